@@ -0,0 +1,82 @@
+package org.doogwood.cmdexec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ExternalCommand#executeAsynchronously()}で多数のコマンドを並行して実行したときのスループットを計測する.
+ * 1回の呼び出しで{@link #BATCH_SIZE}件のコマンドを投入し、すべての完了を待つ。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncExecuteBenchmark {
+	/**
+	 * 1回の呼び出しで投入するコマンドの件数.
+	 */
+	private static final int BATCH_SIZE = 64;
+	/**
+	 * 同時実行数の上限.
+	 */
+	@Param({"1", "4", "16"})
+	private int concurrency;
+	/**
+	 * 実行に使用するスレッドプール.
+	 */
+	private ExecutorService service;
+	/**
+	 * 実行するコマンド.
+	 */
+	private ExternalCommand command;
+	
+	@Setup
+	public void setup() {
+		service = CommandExecutorServices.newBoundedExecutorService(concurrency, BATCH_SIZE);
+		command = ExternalCommand.parse(Benchmarks.trivialCommand());
+		command.setExecutorService(service);
+	}
+	
+	@TearDown
+	public void tearDown() throws InterruptedException {
+		service.shutdown();
+		service.awaitTermination(10, TimeUnit.SECONDS);
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int executeAsynchronously() throws InterruptedException, ExecutionException {
+		final List<Future<Result>> futures = new ArrayList<Future<Result>>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i ++) {
+			futures.add(command.executeAsynchronously());
+		}
+		int sum = 0;
+		for (final Future<Result> future : futures) {
+			final Result res = future.get();
+			sum += res.getExitCode();
+			res.close();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,32 @@
+package org.doogwood.cmdexec;
+
+/**
+ * ベンチマークで共通して使用するユーティリティ.
+ */
+final class Benchmarks {
+	/**
+	 * コンストラクタ.
+	 * インスタンス化は許可しない。
+	 */
+	private Benchmarks() {}
+	
+	/**
+	 * 何もせずにただちに終了するコマンドを返す.
+	 * @return コマンド
+	 */
+	static String trivialCommand() {
+		return System.getProperty("os.name").startsWith("Windows") ? "cmd /c exit 0" : "true";
+	}
+	/**
+	 * ASCII文字からなるデータを生成する.
+	 * @param size データのサイズ
+	 * @return データ
+	 */
+	static byte[] asciiData(final int size) {
+		final byte[] data = new byte[size];
+		for (int i = 0; i < size; i ++) {
+			data[i] = (byte) ('0' + (i % 10));
+		}
+		return data;
+	}
+}
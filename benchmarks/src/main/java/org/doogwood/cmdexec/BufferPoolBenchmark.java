@@ -0,0 +1,69 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link BufferPool}によるセグメントの再利用の効果を計測する.
+ * 閾値未満のデータを書き込んで解放することを繰り返し、プールする場合としない場合を比較する。
+ * 割り当て量とGCの回数は{@code -prof gc}を指定して計測する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferPoolBenchmark {
+	/**
+	 * プールが保持するセグメントの合計サイズの上限（{@code 0}の場合はプールしない）.
+	 */
+	@Param({"0", "33554432"})
+	private long maxRetainedBytes;
+	/**
+	 * 書き込むデータの総量.
+	 */
+	@Param({"262144"})
+	private int totalBytes;
+	/**
+	 * セグメントの取得元のプール.
+	 */
+	private BufferPool pool;
+	/**
+	 * 書き込むデータ.
+	 */
+	private byte[] chunk;
+	
+	@Setup
+	public void setup() {
+		pool = new BufferPool(maxRetainedBytes);
+		chunk = Benchmarks.asciiData(4096);
+	}
+	
+	@Benchmark
+	public int writeAndRelease() throws IOException {
+		final PipeOutputStream out = new PipeOutputStream(PipeOutputStream.DEFAULT_THRESHOLD, pool,
+				TempFileStore.getDefault(), MemoryBudget.unlimited());
+		try {
+			for (int written = 0; written < totalBytes; written += chunk.length) {
+				out.write(chunk, 0, chunk.length);
+			}
+			out.close();
+			return out.isUsingTempFile() ? -1 : totalBytes;
+		} finally {
+			out.release();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.doogwood.cmdexec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 何もしないコマンドを{@link ExternalCommand#execute()}で実行したときの起動から終了までのレイテンシを計測する.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecuteBenchmark {
+	/**
+	 * 実行するコマンド.
+	 */
+	private ExternalCommand command;
+	
+	@Setup
+	public void setup() {
+		command = ExternalCommand.parse(Benchmarks.trivialCommand());
+	}
+	
+	@Benchmark
+	public int execute() {
+		final Result res = command.execute();
+		try {
+			return res.getExitCode();
+		} finally {
+			res.close();
+		}
+	}
+}
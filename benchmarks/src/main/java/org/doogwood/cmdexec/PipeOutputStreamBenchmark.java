@@ -0,0 +1,70 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link PipeOutputStream}への書き込みのスループットを計測する.
+ * 書き込むデータの総量を閾値の前後で、書き込み1回あたりのチャンク・サイズを複数通りで変化させる。
+ * チャンク・サイズ{@code 1}は{@link PipeOutputStream#write(int)}を1バイトずつ呼び出す経路を計測する。
+ * {@code -prof gc}を指定すると割り当て速度も計測できる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipeOutputStreamBenchmark {
+	/**
+	 * 書き込むデータの総量（閾値未満と閾値超過）.
+	 */
+	@Param({"524288", "8388608"})
+	private int totalBytes;
+	/**
+	 * 書き込み1回あたりのチャンク・サイズ.
+	 */
+	@Param({"1", "1024", "4096", "65536"})
+	private int chunkSize;
+	/**
+	 * 書き込むデータ.
+	 */
+	private byte[] chunk;
+	
+	@Setup
+	public void setup() {
+		chunk = Benchmarks.asciiData(chunkSize);
+	}
+	
+	@Benchmark
+	public boolean write() throws IOException {
+		final PipeOutputStream out = new PipeOutputStream();
+		try {
+			if (chunkSize == 1) {
+				for (int written = 0; written < totalBytes; written ++) {
+					out.write(chunk[0]);
+				}
+			} else {
+				for (int written = 0; written < totalBytes; written += chunkSize) {
+					out.write(chunk, 0, Math.min(chunkSize, totalBytes - written));
+				}
+			}
+			out.close();
+			return out.isUsingTempFile();
+		} finally {
+			out.release();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.doogwood.cmdexec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ExternalCommand.Result#getStdoutLines(Charset)}と同じ経路で出力を行ごとにデコードするスループットを計測する.
+ * 出力がメモリ上にある場合と一時ファイルに書き出されている場合を比較する。
+ * 比較のため、{@link BufferedReader}で読み取る場合と{@link CharSequence}のビューとして走査する場合も計測する。
+ * {@code -prof gc}を指定すると行ごとの割り当て量も比較できる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultLinesBenchmark {
+	/**
+	 * 出力の行数.
+	 */
+	@Param({"10000", "200000"})
+	private int lines;
+	/**
+	 * キャラクターセット.
+	 */
+	@Param({"UTF-8", "ISO-8859-1"})
+	private String charsetName;
+	/**
+	 * 出力を保持するストリーム.
+	 */
+	private PipeOutputStream pipe;
+	/**
+	 * キャラクターセット.
+	 */
+	private Charset charset;
+	
+	@Setup
+	public void setup() throws IOException {
+		charset = Charset.forName(charsetName);
+		pipe = new PipeOutputStream();
+		final byte[] line = "2016-01-01 00:00:00 INFO org.doogwood.cmdexec.ExternalCommand - executed\n".getBytes(charset);
+		for (int i = 0; i < lines; i ++) {
+			pipe.write(line);
+		}
+		pipe.close();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		pipe.release();
+	}
+	
+	@Benchmark
+	public int readLines() {
+		int total = 0;
+		for (final String line : new LineIterable(pipe, charset)) {
+			total += line.length();
+		}
+		return total;
+	}
+	
+	@Benchmark
+	public int readLineViews() {
+		int total = 0;
+		for (final CharSequence line : LineIterable.views(pipe, charset)) {
+			total += line.length();
+		}
+		return total;
+	}
+	
+	@Benchmark
+	public int readLinesBufferedReader() throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(pipe.getInputStream(), charset));
+		try {
+			int total = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				total += line.length();
+			}
+			return total;
+		} finally {
+			reader.close();
+		}
+	}
+}
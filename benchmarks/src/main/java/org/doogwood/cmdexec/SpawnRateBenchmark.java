@@ -0,0 +1,84 @@
+package org.doogwood.cmdexec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 引数だけが異なる短いコマンドを次々に実行したときの1秒あたりの起動数を計測する.
+ * 実行ごとにコマンドラインを解析する場合と{@link CommandTemplate}を使用する場合、
+ * さらに{@link StreamPoller}で読み取りのスレッドの起動も省く場合を比較する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SpawnRateBenchmark {
+	/**
+	 * 実行ごとに変える引数.
+	 */
+	private static final String ARG = "--version";
+	/**
+	 * 実行するコマンド.
+	 */
+	private String command;
+	/**
+	 * テンプレート.
+	 */
+	private CommandTemplate template;
+	/**
+	 * ポーラーを設定したコマンドをもとにしたテンプレート.
+	 */
+	private CommandTemplate polledTemplate;
+	
+	@Setup
+	public void setup() {
+		command = Benchmarks.trivialCommand();
+		template = CommandTemplate.parse(command);
+		final ExternalCommand polled = ExternalCommand.parse(command);
+		polled.setStreamPoller(StreamPoller.getShared());
+		polledTemplate = CommandTemplate.of(polled);
+	}
+	
+	@Benchmark
+	public int parseEachTime() {
+		return exitCode(ExternalCommand.parse(command + " " + ARG).execute());
+	}
+	
+	@Benchmark
+	public int template() {
+		return exitCode(template.execute(ARG));
+	}
+	
+	@Benchmark
+	public int templateWithPoller() {
+		return exitCode(polledTemplate.execute(ARG));
+	}
+	
+	/**
+	 * 実行結果を解放して終了コードを返す.
+	 * @param res 実行結果
+	 * @return 終了コード
+	 */
+	private static int exitCode(final Result res) {
+		try {
+			return res.getExitCode();
+		} finally {
+			res.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 一時ファイルを圧縮する場合としない場合で、閾値を超える出力の書き込みと読み取りにかかる時間を比較する.
+ * 圧縮しやすいログ形式のテキストと圧縮できない乱数のデータを与える。
+ * 一時ファイルに書き出したバイト数を補助カウンタ{@code spilledBytes}として報告するため、
+ * ディスクI/Oの削減量と圧縮・伸張にかかるCPU時間を合わせて比較できる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpillCompressionBenchmark {
+	/**
+	 * 書き込むデータの総量.
+	 */
+	@Param({"16777216"})
+	private int totalBytes;
+	/**
+	 * データの種類（ログ形式のテキストもしくは乱数）.
+	 */
+	@Param({"log", "random"})
+	private String data;
+	/**
+	 * 一時ファイルを圧縮するかどうか.
+	 */
+	@Param({"false", "true"})
+	private boolean compressed;
+	/**
+	 * 書き込むデータ.
+	 */
+	private byte[] chunk;
+	/**
+	 * 一時ファイルの格納先.
+	 */
+	private TempFileStore store;
+
+	/**
+	 * 一時ファイルに書き出したバイト数を報告する補助カウンタ.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class SpillCounters {
+		/**
+		 * 直近の操作で一時ファイルに書き出したバイト数.
+		 */
+		public long spilledBytes;
+	}
+
+	@Setup
+	public void setup() {
+		chunk = new byte[64 * 1024];
+		if ("random".equals(data)) {
+			new Random(0).nextBytes(chunk);
+		} else {
+			final byte[] line = "2016-01-01 00:00:00 INFO org.doogwood.cmdexec.ExternalCommand - executed id=".getBytes();
+			final Random random = new Random(0);
+			int position = 0;
+			while (position < chunk.length) {
+				final byte[] entry = (new String(line) + random.nextInt(100000) + "\n").getBytes();
+				final int n = Math.min(entry.length, chunk.length - position);
+				System.arraycopy(entry, 0, chunk, position, n);
+				position += n;
+			}
+		}
+		store = TempFileStore.getDefault();
+	}
+
+	@Benchmark
+	public long writeAndRead(final SpillCounters counters) throws IOException {
+		final PipeOutputStream out = new PipeOutputStream(PipeOutputStream.DEFAULT_THRESHOLD,
+				BufferPool.getSharedPool(), store);
+		out.setSpillCompressed(compressed);
+		try {
+			for (int written = 0; written < totalBytes; written += chunk.length) {
+				out.write(chunk, 0, Math.min(chunk.length, totalBytes - written));
+			}
+			out.close();
+			// 予約したディスク容量は一時ファイルに書き出したバイト数と等しい
+			counters.spilledBytes = store.getUsedBytes();
+			final byte[] buff = new byte[64 * 1024];
+			final InputStream in = out.getInputStream();
+			long read = 0;
+			int n;
+			while ((n = in.read(buff)) != -1) {
+				read += n;
+			}
+			in.close();
+			return read;
+		} finally {
+			out.release();
+		}
+	}
+}
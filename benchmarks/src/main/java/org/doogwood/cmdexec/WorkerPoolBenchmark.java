@@ -0,0 +1,53 @@
+package org.doogwood.cmdexec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 常駐する{@code cat}に{@link WorkerPool#request(byte[])}で1行のリクエストを送ったときのレイテンシを計測する.
+ * {@link ExecuteBenchmark}と比較するとプロセス起動のコストを省いた効果がわかる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkerPoolBenchmark {
+	/**
+	 * ワーカーのプール.
+	 */
+	private WorkerPool pool;
+	/**
+	 * リクエスト.
+	 */
+	private byte[] request;
+	
+	@Setup
+	public void setup() {
+		pool = new WorkerPool(ExternalCommand.parse("cat"), WorkerFraming.lineDelimited());
+		pool.setMaxWorkers(1);
+		request = Benchmarks.asciiData(64);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		pool.close();
+	}
+	
+	@Benchmark
+	public byte[] request() {
+		return pool.request(request);
+	}
+}
@@ -0,0 +1,173 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link CapturePolicy}に従って出力の一部だけを転送する出力ストリーム.
+ * 先頭の内容はただちに転送し、末尾の内容は循環バッファに保持してクローズ時に転送する。
+ */
+final class BoundedOutputStream extends OutputStream {
+	/**
+	 * 転送先のストリーム.
+	 */
+	private final OutputStream target;
+	/**
+	 * ポリシー.
+	 */
+	private final CapturePolicy policy;
+	/**
+	 * 出力が上限を超えたときにプロセスを強制終了する処理.
+	 */
+	private final Runnable killer;
+	/**
+	 * 書き込まれたバイト数.
+	 */
+	private long totalBytes = 0;
+	/**
+	 * 先頭の内容として転送したバイト数.
+	 */
+	private long headWritten = 0;
+	/**
+	 * 末尾の内容を保持する循環バッファ（必要になったときに初期化される）.
+	 */
+	private byte[] ring = null;
+	/**
+	 * 循環バッファの次に書き込む位置.
+	 */
+	private int ringPos = 0;
+	/**
+	 * 循環バッファに保持しているバイト数.
+	 */
+	private int ringCount = 0;
+	/**
+	 * 破棄したバイト数.
+	 */
+	private volatile long droppedBytes = 0;
+	/**
+	 * 出力が上限を超えたかどうかを示す.
+	 */
+	private volatile boolean limitExceeded = false;
+	/**
+	 * 1バイトずつの書き込みを転送するためのバッファ.
+	 */
+	private final byte[] single = new byte[1];
+	/**
+	 * ストリームがクローズ済みかどうかを示す.
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * コンストラクタ.
+	 * @param target 転送先のストリーム
+	 * @param policy ポリシー
+	 * @param killer 出力が上限を超えたときにプロセスを強制終了する処理
+	 */
+	BoundedOutputStream(final OutputStream target, final CapturePolicy policy, final Runnable killer) {
+		this.target = target;
+		this.policy = policy;
+		this.killer = killer;
+	}
+	
+	@Override
+	public void write(final int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		totalBytes += len;
+		if (!limitExceeded && policy.getKillLimitBytes() > 0 && totalBytes > policy.getKillLimitBytes()) {
+			limitExceeded = true;
+			killer.run();
+		}
+		final int head = (int) Math.min(len, policy.getHeadBytes() - headWritten);
+		if (head > 0) {
+			target.write(b, off, head);
+			headWritten += head;
+		}
+		if (head < len) {
+			writeIntoRing(b, off + head, len - head);
+		}
+	}
+	/**
+	 * 循環バッファに書き込む.
+	 * 容量を超えた分は古いものから破棄する。
+	 * @param b データ
+	 * @param off 開始位置
+	 * @param len バイト数
+	 */
+	private void writeIntoRing(final byte[] b, final int off, final int len) {
+		final int capacity = policy.getTailBytes();
+		if (capacity == 0) {
+			droppedBytes += len;
+			return;
+		}
+		if (ring == null) {
+			ring = new byte[capacity];
+		}
+		if (len >= capacity) {
+			// 保持していた内容と新たな内容の先頭部分をすべて破棄する
+			droppedBytes += ringCount + (len - capacity);
+			System.arraycopy(b, off + len - capacity, ring, 0, capacity);
+			ringPos = 0;
+			ringCount = capacity;
+			return;
+		}
+		droppedBytes += Math.max(0, ringCount + len - capacity);
+		final int first = Math.min(len, capacity - ringPos);
+		System.arraycopy(b, off, ring, ringPos, first);
+		System.arraycopy(b, off + first, ring, 0, len - first);
+		ringPos = (ringPos + len) % capacity;
+		ringCount = Math.min(ringCount + len, capacity);
+	}
+	@Override
+	public void flush() throws IOException {
+		target.flush();
+	}
+	/**
+	 * 末尾の内容を転送してから転送先のストリームをクローズする.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (droppedBytes > 0 && policy.hasTruncationMarker()) {
+				target.write(("\n[... " + droppedBytes + " bytes dropped ...]\n").getBytes("US-ASCII"));
+			}
+			if (ringCount > 0) {
+				final int start = (ringPos - ringCount + ring.length) % ring.length;
+				final int first = Math.min(ringCount, ring.length - start);
+				target.write(ring, start, first);
+				target.write(ring, 0, ringCount - first);
+			}
+		} finally {
+			ring = null;
+			target.close();
+		}
+	}
+	/**
+	 * 転送先のストリームを返す.
+	 * @return ストリーム
+	 */
+	OutputStream getTarget() {
+		return target;
+	}
+	/**
+	 * 破棄したバイト数を返す.
+	 * @return バイト数
+	 */
+	long getDroppedBytes() {
+		return droppedBytes;
+	}
+	/**
+	 * 出力が上限を超えた場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	boolean isLimitExceeded() {
+		return limitExceeded;
+	}
+}
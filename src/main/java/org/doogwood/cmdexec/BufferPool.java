@@ -0,0 +1,110 @@
+package org.doogwood.cmdexec;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link PipeOutputStream}がデータを貯めこむために使用するセグメント（バイト配列）のプール.
+ * セグメントは大きさの異なる2つの階層で管理される。
+ * 出力の少ないコマンドが大きなバイト配列を占有しないよう、
+ * データの先頭部分には小さなセグメントを、それ以降には大きなセグメントを使用する。
+ * プールが保持するセグメントの合計サイズには上限があり、上限を超えて返却されたセグメントは破棄される。
+ */
+public final class BufferPool {
+	/**
+	 * 小さなセグメントのサイズ.
+	 */
+	public static final int SMALL_SEGMENT_SIZE = 4 * 1024;
+	/**
+	 * 大きなセグメントのサイズ.
+	 */
+	public static final int LARGE_SEGMENT_SIZE = 64 * 1024;
+	/**
+	 * プールが保持するセグメントの合計サイズの上限のデフォルト値.
+	 */
+	public static final long DEFAULT_MAX_RETAINED_BYTES = 32L * 1024 * 1024;
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで共有するプール.
+	 */
+	private static final BufferPool SHARED_POOL = new BufferPool(DEFAULT_MAX_RETAINED_BYTES);
+	/**
+	 * プールが保持するセグメントの合計サイズの上限.
+	 */
+	private final long maxRetainedBytes;
+	/**
+	 * プールが保持しているセグメントの合計サイズ.
+	 */
+	private final AtomicLong retainedBytes = new AtomicLong();
+	/**
+	 * 小さなセグメントの待ち行列.
+	 */
+	private final ConcurrentLinkedQueue<byte[]> smallSegments = new ConcurrentLinkedQueue<byte[]>();
+	/**
+	 * 大きなセグメントの待ち行列.
+	 */
+	private final ConcurrentLinkedQueue<byte[]> largeSegments = new ConcurrentLinkedQueue<byte[]>();
+	
+	/**
+	 * コンストラクタ.
+	 * @param maxRetainedBytes プールが保持するセグメントの合計サイズの上限（{@code 0}の場合はプールしない）
+	 */
+	public BufferPool(final long maxRetainedBytes) {
+		if (maxRetainedBytes < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxRetainedBytes = maxRetainedBytes;
+	}
+	
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで共有するプールを返す.
+	 * @return プール
+	 */
+	public static BufferPool getSharedPool() {
+		return SHARED_POOL;
+	}
+	/**
+	 * プールが保持しているセグメントの合計サイズを返す.
+	 * @return 合計サイズ
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+	/**
+	 * セグメントを取得する.
+	 * プールに空きがなければ新たに生成する。
+	 * 返されるセグメントの内容は不定である。
+	 * @param large 大きなセグメントを要求する場合{@code true}
+	 * @return セグメント
+	 */
+	public byte[] acquire(final boolean large) {
+		final byte[] segment = (large ? largeSegments : smallSegments).poll();
+		if (segment == null) {
+			return new byte[large ? LARGE_SEGMENT_SIZE : SMALL_SEGMENT_SIZE];
+		}
+		retainedBytes.addAndGet(-segment.length);
+		return segment;
+	}
+	/**
+	 * セグメントをプールに返却する.
+	 * 返却したセグメントをそれ以降に参照してはならない。
+	 * プールが保持するセグメントの合計サイズが上限を超える場合、
+	 * もしくはこのプールが生成したものと異なるサイズの場合、セグメントは破棄される。
+	 * @param segment セグメント
+	 */
+	public void release(final byte[] segment) {
+		final ConcurrentLinkedQueue<byte[]> queue;
+		if (segment.length == SMALL_SEGMENT_SIZE) {
+			queue = smallSegments;
+		} else if (segment.length == LARGE_SEGMENT_SIZE) {
+			queue = largeSegments;
+		} else {
+			return;
+		}
+		// 上限を超えない場合のみ保持する
+		if (retainedBytes.addAndGet(segment.length) > maxRetainedBytes) {
+			retainedBytes.addAndGet(-segment.length);
+			return;
+		}
+		queue.offer(segment);
+	}
+}
@@ -0,0 +1,321 @@
+package org.doogwood.cmdexec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 文字にデコードする前のバイト列のまま改行を探して1行ずつ読み取るリーダー.
+ * 行の区切りは{@link java.io.BufferedReader#readLine()}と同じく
+ * {@code "\n"}、{@code "\r"}、{@code "\r\n"}のいずれかとする。
+ * 改行のバイトが他の文字の一部に現れないキャラクターセット（{@link #isSupported(Charset)}を参照）でのみ使用できる。
+ * <p>デコードは行ごとに要求されたときにだけ行う。
+ * ASCII文字だけからなる行と{@code ISO-8859-1}の行は{@link CharsetDecoder}を経由せずに変換する。
+ * {@link #lineView()}は行ごとに{@link String}を生成せず、内部のバッファを参照するビューを返す。</p>
+ */
+final class ByteLineReader implements Closeable {
+	/**
+	 * {@link #isSupported(Charset)}が扱えると判定するキャラクターセットの正規名（{@code ISO-8859-*}を除く）.
+	 */
+	private static final Set<String> ASCII_COMPATIBLE_CHARSETS = new HashSet<String>(Arrays.asList(
+			"US-ASCII", "UTF-8", "Shift_JIS", "windows-31j", "EUC-JP"));
+	/**
+	 * 1バイトを1文字に変換するキャラクターセット.
+	 */
+	private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+	/**
+	 * 読み取り対象の入力ストリーム.
+	 */
+	private final InputStream in;
+	/**
+	 * キャラクターセット.
+	 */
+	private final Charset charset;
+	/**
+	 * キャラクターセットが{@code ISO-8859-1}であるかどうかを示す.
+	 */
+	private final boolean latin1;
+	/**
+	 * ビューのためのデコーダ（初めて必要になったときに初期化される）.
+	 */
+	private CharsetDecoder decoder = null;
+	/**
+	 * ビューのためのデコード結果を受け取るバッファ（初めて必要になったときに初期化される）.
+	 */
+	private CharBuffer decoded = null;
+	/**
+	 * ASCII文字だけからなる行のビュー.
+	 */
+	private final ByteCharSequence byteView = new ByteCharSequence();
+	/**
+	 * 読み取ったバイト列を保持するバッファ.
+	 */
+	private byte[] buff;
+	/**
+	 * バッファ内の未処理のデータの開始位置.
+	 */
+	private int position = 0;
+	/**
+	 * バッファ内のデータの終了位置.
+	 */
+	private int limit = 0;
+	/**
+	 * 入力ストリームの終端に達したかどうかを示す.
+	 */
+	private boolean eof = false;
+	/**
+	 * 直前の行が{@code '\r'}で終わったかどうかを示す.
+	 */
+	private boolean skipLF = false;
+	/**
+	 * 現在の行の開始位置.
+	 */
+	private int lineStart = 0;
+	/**
+	 * 現在の行のバイト数.
+	 */
+	private int lineLength = 0;
+	/**
+	 * 現在の行がASCII文字だけからなるかどうかを示す.
+	 */
+	private boolean lineAscii = true;
+
+	/**
+	 * コンストラクタ.
+	 * @param in 読み取り対象の入力ストリーム
+	 * @param charset キャラクターセット
+	 */
+	ByteLineReader(final InputStream in, final Charset charset) {
+		if (in == null || !isSupported(charset)) {
+			throw new IllegalArgumentException();
+		}
+		this.in = in;
+		this.charset = charset;
+		this.latin1 = LATIN_1.equals(charset);
+		this.buff = BufferPool.getSharedPool().acquire(true);
+	}
+
+	/**
+	 * キャラクターセットがこのリーダーで扱えるかどうかを判定する.
+	 * 改行が{@code 0x0D}と{@code 0x0A}の1バイトにエンコードされ、{@code 0x80}未満のバイトが常にASCII文字を表わし、
+	 * 他の文字のバイト列に改行のバイトが現れないキャラクターセットのみ扱える。
+	 * 改行のエンコード結果だけでは{@code ISO-2022-JP}や{@code UTF-7}のようにエスケープ・シーケンスで
+	 * 状態を切り替えるキャラクターセットを区別できないため、既知のキャラクターセットに限定する
+	 * （{@code US-ASCII}、{@code ISO-8859-*}、{@code UTF-8}、{@code Shift_JIS}、{@code windows-31j}、{@code EUC-JP}）。
+	 * @param charset キャラクターセット
+	 * @return 判定結果
+	 */
+	static boolean isSupported(final Charset charset) {
+		if (charset == null) {
+			return false;
+		}
+		final String name = charset.name();
+		return ASCII_COMPATIBLE_CHARSETS.contains(name) || name.startsWith("ISO-8859-");
+	}
+	/**
+	 * 次の行に進む.
+	 * @return 次の行がある場合{@code true}（終端に達した場合は{@code false}）
+	 * @throws IOException 読み取り中にエラーが発生した場合
+	 */
+	boolean nextLine() throws IOException {
+		int scan = position;
+		int bits = 0;
+		while (true) {
+			// 前の行が"\r"で終わっていた場合は直後の"\n"を読み飛ばす
+			if (skipLF && position < limit) {
+				skipLF = false;
+				if (buff[position] == '\n') {
+					position ++;
+				}
+				scan = position;
+			}
+			// 改行のバイトを探しながら、ASCII以外のバイト（最上位ビットが立ったバイト）が現れたかどうかを記録する
+			while (scan < limit) {
+				final byte b = buff[scan];
+				if (b == '\n' || b == '\r') {
+					setLine(scan, bits);
+					position = scan + 1;
+					skipLF = b == '\r';
+					return true;
+				}
+				bits |= b;
+				scan ++;
+			}
+			if (eof) {
+				if (scan > position) {
+					// 改行で終わっていない最後の行
+					setLine(scan, bits);
+					position = scan;
+					return true;
+				}
+				return false;
+			}
+			// 走査済みの部分はバッファの先頭に詰められるため、続きから走査する
+			final int scanned = scan - position;
+			fill();
+			scan = scanned;
+		}
+	}
+	/**
+	 * 未処理のデータをバッファの先頭に詰めて、残りの領域に入力ストリームから読み取る.
+	 * 未処理のデータでバッファが埋まっている場合はバッファを拡張する。
+	 * @throws IOException 読み取り中にエラーが発生した場合
+	 */
+	private void fill() throws IOException {
+		final int remaining = limit - position;
+		if (position > 0) {
+			System.arraycopy(buff, position, buff, 0, remaining);
+		} else if (remaining == buff.length) {
+			// 1行がバッファより長い
+			buff = Arrays.copyOf(buff, buff.length * 2);
+		}
+		limit = remaining;
+		position = 0;
+		final int n = in.read(buff, limit, buff.length - limit);
+		if (n == -1) {
+			eof = true;
+		} else {
+			limit += n;
+		}
+	}
+	/**
+	 * 現在の行を設定する.
+	 * @param end 行の終了位置
+	 * @param bits 行のすべてのバイトの論理和
+	 */
+	private void setLine(final int end, final int bits) {
+		lineStart = position;
+		lineLength = end - position;
+		lineAscii = bits >= 0;
+	}
+	/**
+	 * 現在の行を文字列として返す.
+	 * @return 文字列
+	 */
+	String lineString() {
+		if (lineAscii || latin1) {
+			// 1バイトがそのまま1文字に対応するためISO-8859-1として変換する
+			// ISO-8859-1はデコーダを経由しない変換が用意されているため他のキャラクターセットより速い
+			return new String(buff, lineStart, lineLength, LATIN_1);
+		}
+		// InputStreamReaderと同様に不正なバイト列は置換文字に置き換える
+		return new String(buff, lineStart, lineLength, charset);
+	}
+	/**
+	 * 現在の行を参照する{@link CharSequence}を返す.
+	 * 返されるオブジェクトは使い回され、次の行に進むと内容が変わる。
+	 * 行を保持する場合は{@link CharSequence#toString()}で文字列に変換しなければならない。
+	 * @return {@link CharSequence}
+	 */
+	CharSequence lineView() {
+		if (lineAscii || latin1) {
+			byteView.set(buff, lineStart, lineLength);
+			return byteView;
+		}
+		return decodeLine();
+	}
+	/**
+	 * 現在の行を使い回しのバッファにデコードして返す.
+	 * @return デコード結果
+	 */
+	private CharBuffer decodeLine() {
+		if (decoder == null) {
+			decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		// ASCII互換のキャラクターセットでは1バイトが2文字以上になることはまずないため行のバイト数だけの容量を用意する
+		if (decoded == null || decoded.capacity() < lineLength) {
+			decoded = CharBuffer.allocate(Math.max(lineLength, 256));
+		}
+		decoder.reset();
+		decoded.clear();
+		final ByteBuffer bytes = ByteBuffer.wrap(buff, lineStart, lineLength);
+		CoderResult result = decoder.decode(bytes, decoded, true);
+		if (!result.isOverflow()) {
+			result = decoder.flush(decoded);
+		}
+		if (result.isOverflow()) {
+			// 1バイトが複数の文字に対応するキャラクターセットの場合は通常の方法でデコードする
+			return CharBuffer.wrap(lineString());
+		}
+		decoded.flip();
+		return decoded;
+	}
+	/**
+	 * 入力ストリームをクローズし、バッファをプールに返却する.
+	 * @throws IOException クローズ中にエラーが発生した場合
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buff != null) {
+			BufferPool.getSharedPool().release(buff);
+			buff = null;
+		}
+		in.close();
+	}
+
+	/**
+	 * 1バイトを1文字として参照する{@link CharSequence}.
+	 */
+	private static final class ByteCharSequence implements CharSequence {
+		/**
+		 * 参照するバイト列.
+		 */
+		private byte[] bytes;
+		/**
+		 * 開始位置.
+		 */
+		private int offset;
+		/**
+		 * 長さ.
+		 */
+		private int length;
+
+		/**
+		 * 参照するバイト列を設定する.
+		 * @param bytes バイト列
+		 * @param offset 開始位置
+		 * @param length 長さ
+		 */
+		void set(final byte[] bytes, final int offset, final int length) {
+			this.bytes = bytes;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+		@Override
+		public char charAt(final int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException();
+			}
+			return (char) (bytes[offset + index] & 0xFF);
+		}
+		@Override
+		public CharSequence subSequence(final int start, final int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException();
+			}
+			final ByteCharSequence sub = new ByteCharSequence();
+			sub.set(bytes, offset + start, end - start);
+			return sub;
+		}
+		@Override
+		public String toString() {
+			return new String(bytes, offset, length, LATIN_1);
+		}
+	}
+}
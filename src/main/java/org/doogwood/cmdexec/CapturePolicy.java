@@ -0,0 +1,143 @@
+package org.doogwood.cmdexec;
+
+/**
+ * 外部コマンドの出力をどこまで保持するかを表わすポリシー.
+ * 先頭の一定バイト数、末尾の一定バイト数、もしくはその両方を保持し、それ以外は破棄する。
+ * 保持するバイト数に上限を設けることで、1回の実行が使用するメモリとディスクの容量の上限が定まる。
+ * 破棄したバイト数は{@link ExternalCommand.Result#getStdoutDroppedBytes()}などで確認できる。
+ * このオブジェクトは不変である。
+ * @see ExternalCommand#setStdoutCapturePolicy(CapturePolicy)
+ * @see ExternalCommand#setStderrCapturePolicy(CapturePolicy)
+ */
+public final class CapturePolicy {
+	/**
+	 * すべての出力を保持するポリシー.
+	 */
+	private static final CapturePolicy UNBOUNDED = new CapturePolicy(Long.MAX_VALUE, 0, 0, false);
+	
+	/**
+	 * 先頭から保持するバイト数.
+	 */
+	private final long headBytes;
+	/**
+	 * 末尾から保持するバイト数.
+	 */
+	private final int tailBytes;
+	/**
+	 * プロセスを強制終了する出力のバイト数.
+	 */
+	private final long killLimitBytes;
+	/**
+	 * 破棄した位置にマーカーを挿入するかどうかを示す.
+	 */
+	private final boolean truncationMarker;
+	
+	/**
+	 * コンストラクタ.
+	 * @param headBytes 先頭から保持するバイト数
+	 * @param tailBytes 末尾から保持するバイト数
+	 * @param killLimitBytes プロセスを強制終了する出力のバイト数（{@code 0}の場合は強制終了しない）
+	 * @param truncationMarker 破棄した位置にマーカーを挿入するかどうか
+	 */
+	private CapturePolicy(final long headBytes, final int tailBytes,
+			final long killLimitBytes, final boolean truncationMarker) {
+		this.headBytes = headBytes;
+		this.tailBytes = tailBytes;
+		this.killLimitBytes = killLimitBytes;
+		this.truncationMarker = truncationMarker;
+	}
+	
+	/**
+	 * すべての出力を保持するポリシーを返す.
+	 * @return ポリシー
+	 */
+	public static CapturePolicy unbounded() {
+		return UNBOUNDED;
+	}
+	/**
+	 * 先頭の指定されたバイト数だけを保持するポリシーを返す.
+	 * @param bytes 先頭から保持するバイト数
+	 * @return ポリシー
+	 */
+	public static CapturePolicy head(final long bytes) {
+		return headAndTail(bytes, 0);
+	}
+	/**
+	 * 末尾の指定されたバイト数だけを保持するポリシーを返す.
+	 * 末尾の内容はメモリ上の循環バッファに保持される。
+	 * @param bytes 末尾から保持するバイト数
+	 * @return ポリシー
+	 */
+	public static CapturePolicy tail(final int bytes) {
+		return headAndTail(0, bytes);
+	}
+	/**
+	 * 先頭と末尾の指定されたバイト数を保持し、その間を破棄するポリシーを返す.
+	 * 末尾の内容はメモリ上の循環バッファに保持される。
+	 * @param headBytes 先頭から保持するバイト数
+	 * @param tailBytes 末尾から保持するバイト数
+	 * @return ポリシー
+	 */
+	public static CapturePolicy headAndTail(final long headBytes, final int tailBytes) {
+		if (headBytes < 0 || tailBytes < 0) {
+			throw new IllegalArgumentException();
+		}
+		return new CapturePolicy(headBytes, tailBytes, 0, false);
+	}
+	/**
+	 * 出力が指定されたバイト数を超えた時点でプロセスを強制終了するポリシーを返す.
+	 * 強制終了されたかどうかは{@link ExternalCommand.Result#isOutputLimitExceeded()}で確認できる。
+	 * @param bytes プロセスを強制終了する出力のバイト数
+	 * @return ポリシー
+	 */
+	public CapturePolicy withKillLimit(final long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException();
+		}
+		return new CapturePolicy(headBytes, tailBytes, bytes, truncationMarker);
+	}
+	/**
+	 * 出力を破棄した場合に、破棄した位置に破棄したバイト数を示すマーカーを挿入するポリシーを返す.
+	 * マーカーは{@code "\n[... N bytes dropped ...]\n"}という形式のASCII文字列である。
+	 * @return ポリシー
+	 */
+	public CapturePolicy withTruncationMarker() {
+		return new CapturePolicy(headBytes, tailBytes, killLimitBytes, true);
+	}
+	
+	/**
+	 * 先頭から保持するバイト数を返す.
+	 * @return バイト数
+	 */
+	public long getHeadBytes() {
+		return headBytes;
+	}
+	/**
+	 * 末尾から保持するバイト数を返す.
+	 * @return バイト数
+	 */
+	public int getTailBytes() {
+		return tailBytes;
+	}
+	/**
+	 * プロセスを強制終了する出力のバイト数を返す.
+	 * @return バイト数（強制終了しない場合は{@code 0}）
+	 */
+	public long getKillLimitBytes() {
+		return killLimitBytes;
+	}
+	/**
+	 * 破棄した位置にマーカーを挿入する場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean hasTruncationMarker() {
+		return truncationMarker;
+	}
+	/**
+	 * すべての出力を保持し、強制終了もしない場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	boolean isUnbounded() {
+		return headBytes == Long.MAX_VALUE && killLimitBytes == 0;
+	}
+}
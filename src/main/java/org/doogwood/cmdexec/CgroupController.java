@@ -0,0 +1,77 @@
+package org.doogwood.cmdexec;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 実行ごとのcgroupを作成する親となるcgroup v2のディレクトリ.
+ * コマンドは実行ごとにこのディレクトリの下に作成されるcgroupの中で起動され、
+ * {@link ResourceLimits}の上限の適用と{@link ResourceUsage}の計測はプロセス・ツリー全体に対して行われる。
+ * 実行が終了すると、cgroupに残ったプロセスは強制終了され、cgroupは削除される。
+ * <p>ディレクトリはJVMのユーザーに書き込みが委譲されたcgroup v2のディレクトリで、
+ * プロセスを含まないものでなければならない（例えばsystemdの{@code Delegate=yes}で委譲されたユニットの下に作成したディレクトリ）。
+ * 使用できるコントローラー（{@code cpu}、{@code memory}、{@code pids}、{@code io}）は
+ * 初期化時にこのディレクトリの{@code cgroup.subtree_control}で有効にする。</p>
+ * @see ExternalCommand#setCgroupController(CgroupController)
+ */
+public final class CgroupController {
+	/**
+	 * 有効にするコントローラー.
+	 */
+	private static final String[] CONTROLLERS = {"cpu", "memory", "pids", "io"};
+	/**
+	 * すべての{@link ExternalCommand}がデフォルトで使用するコントローラー.
+	 */
+	private static volatile CgroupController defaultController = null;
+	/**
+	 * 親となるcgroupのディレクトリ.
+	 */
+	private final File directory;
+
+	/**
+	 * コンストラクタ.
+	 * @param directory 親となるcgroupのディレクトリ
+	 */
+	public CgroupController(final File directory) {
+		if (directory == null || !new File(directory, "cgroup.controllers").isFile()) {
+			throw new IllegalArgumentException();
+		}
+		this.directory = directory;
+		final File subtreeControl = new File(directory, "cgroup.subtree_control");
+		for (final String controller : CONTROLLERS) {
+			try {
+				ResourceScope.writeFile(subtreeControl, "+" + controller);
+			} catch (final IOException e) {
+				// 使用できないコントローラーは無視する
+				// 必要なコントローラーがない場合は上限を設定する時点でエラーとなる
+			}
+		}
+	}
+
+	/**
+	 * すべての{@link ExternalCommand}がデフォルトで使用するコントローラーを返す.
+	 * @return コントローラー（設定されていない場合は{@code null}）
+	 */
+	public static CgroupController getDefault() {
+		return defaultController;
+	}
+	/**
+	 * すべての{@link ExternalCommand}がデフォルトで使用するコントローラーを設定する.
+	 * 初期状態では{@code null}（cgroupを使用しない）が設定されている。
+	 * @param controller コントローラー
+	 */
+	public static void setDefault(final CgroupController controller) {
+		defaultController = controller;
+	}
+	/**
+	 * 親となるcgroupのディレクトリを返す.
+	 * @return ディレクトリ
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+	@Override
+	public String toString() {
+		return "CgroupController [directory=" + directory + "]";
+	}
+}
@@ -0,0 +1,24 @@
+package org.doogwood.cmdexec;
+
+import java.io.Closeable;
+
+/**
+ * {@link CloseableIterator}を生成する{@link Iterable}.
+ * 拡張for文で読み出しを途中でやめる場合（{@code break}など）はイテレータを参照できないため、
+ * このオブジェクトの{@link #close()}を呼び出して、生成済みのイテレータの資源をまとめて解放する。
+ * @param <T> 要素の型
+ */
+public interface CloseableIterable<T> extends Iterable<T>, Closeable {
+	/**
+	 * イテレータを返す.
+	 * @return イテレータ
+	 */
+	@Override
+	CloseableIterator<T> iterator();
+	/**
+	 * これまでに生成したイテレータのうち、まだ資源を開いているものをすべてクローズする.
+	 * クローズした後も新たなイテレータを生成できる。
+	 */
+	@Override
+	void close();
+}
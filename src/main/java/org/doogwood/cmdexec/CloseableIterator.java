@@ -0,0 +1,21 @@
+package org.doogwood.cmdexec;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * クローズできる{@link Iterator}.
+ * 要素を読み出すために入力ストリームなどの資源を開いているイテレータであり、
+ * 最後の要素まで読み進めた時点で資源は自動的に解放される。
+ * 途中で読み出しをやめる場合は{@link #close()}を呼び出して資源を解放しなくてはならない。
+ * @param <T> 要素の型
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+	/**
+	 * イテレータが開いている資源を解放する.
+	 * 以降の{@link #hasNext()}は{@code false}を返す。
+	 * 複数回呼び出しても問題はない。
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,395 @@
+package org.doogwood.cmdexec;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+/**
+ * 複数の外部コマンドを同時実行数の上限を守りつつ並行して実行するバッチ.
+ * 実行結果は投入した順序のリストとして返され、
+ * 必要であれば完了した順に{@link CompletionListener}で通知を受けることもできる。
+ * バッチ全体の期限とコマンドごとのタイムアウト、エラー発生時の方針を指定できる。
+ */
+public final class CommandBatch {
+	/**
+	 * エラー発生時の方針.
+	 * 実行時例外がスローされた場合に加えて、終了コードが{@code 0}以外の場合もエラーとみなす。
+	 */
+	public static enum ErrorPolicy {
+		/**
+		 * 最初のエラーで未完了のコマンドをすべて取り消す.
+		 */
+		FAIL_FAST,
+		/**
+		 * エラーが発生してもすべてのコマンドを実行する.
+		 */
+		COLLECT_ALL
+	}
+
+	/**
+	 * 実行するコマンド.
+	 */
+	private final List<ExternalCommand> commands;
+	/**
+	 * 同時実行数の上限.
+	 */
+	private int maxParallelism = Runtime.getRuntime().availableProcessors();
+	/**
+	 * コマンドごとのタイムアウトのミリ秒.
+	 */
+	private long commandTimeoutMillis = 0;
+	/**
+	 * バッチ全体の期限のミリ秒.
+	 */
+	private long deadlineMillis = 0;
+	/**
+	 * エラー発生時の方針.
+	 */
+	private ErrorPolicy errorPolicy = ErrorPolicy.COLLECT_ALL;
+
+	/**
+	 * コンストラクタ.
+	 * @param commands 実行するコマンド
+	 */
+	public CommandBatch(final Collection<ExternalCommand> commands) {
+		if (commands == null || commands.contains(null)) {
+			throw new IllegalArgumentException();
+		}
+		this.commands = new ArrayList<ExternalCommand>(commands);
+	}
+
+	/**
+	 * 同時実行数の上限を返す.
+	 * @return 同時実行数の上限
+	 */
+	public int getMaxParallelism() {
+		return maxParallelism;
+	}
+	/**
+	 * 同時実行数の上限を設定する.
+	 * デフォルトではCPUコア数が設定されている。
+	 * @param maxParallelism 同時実行数の上限
+	 */
+	public void setMaxParallelism(final int maxParallelism) {
+		if (maxParallelism < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxParallelism = maxParallelism;
+	}
+	/**
+	 * コマンドごとのタイムアウトのミリ秒を返す.
+	 * @return タイムアウトのミリ秒
+	 */
+	public long getCommandTimeoutMillis() {
+		return commandTimeoutMillis;
+	}
+	/**
+	 * コマンドごとのタイムアウトのミリ秒を設定する.
+	 * デフォルトでは{@code 0}（タイムアウトなし）が設定されている。
+	 * @param timeoutMillis タイムアウトのミリ秒
+	 */
+	public void setCommandTimeoutMillis(final long timeoutMillis) {
+		this.commandTimeoutMillis = timeoutMillis;
+	}
+	/**
+	 * バッチ全体の期限のミリ秒を返す.
+	 * @return 期限のミリ秒
+	 */
+	public long getDeadlineMillis() {
+		return deadlineMillis;
+	}
+	/**
+	 * バッチ全体の期限のミリ秒を設定する.
+	 * 実行開始からこの時間が経過すると未完了のコマンドはすべて取り消される。
+	 * デフォルトでは{@code 0}（期限なし）が設定されている。
+	 * @param deadlineMillis 期限のミリ秒
+	 */
+	public void setDeadlineMillis(final long deadlineMillis) {
+		this.deadlineMillis = deadlineMillis;
+	}
+	/**
+	 * エラー発生時の方針を返す.
+	 * @return エラー発生時の方針
+	 */
+	public ErrorPolicy getErrorPolicy() {
+		return errorPolicy;
+	}
+	/**
+	 * エラー発生時の方針を設定する.
+	 * デフォルトでは{@link ErrorPolicy#COLLECT_ALL}が設定されている。
+	 * @param policy エラー発生時の方針
+	 */
+	public void setErrorPolicy(final ErrorPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.errorPolicy = policy;
+	}
+
+	/**
+	 * バッチを実行する.
+	 * @return 投入した順序の実行結果のリスト
+	 * @throws InterruptedException 待機中に割り込みが発生した場合
+	 */
+	public List<Entry> execute() throws InterruptedException {
+		return execute(null);
+	}
+	/**
+	 * バッチを実行し、コマンドが完了するたびにリスナーに通知する.
+	 * リスナーへの通知はこのメソッドを呼び出したスレッドで行われる。
+	 * 期限切れや{@link ErrorPolicy#FAIL_FAST}により取り消されたコマンドの実行結果は
+	 * {@link Entry#isCancelled()}が{@code true}を返す。
+	 * 実行結果の{@link Result}は呼び出し元の責任でクローズしなくてはならない。
+	 * @param listener リスナー（{@code null}の場合は通知しない）
+	 * @return 投入した順序の実行結果のリスト
+	 * @throws InterruptedException 待機中に割り込みが発生した場合
+	 */
+	public List<Entry> execute(final CompletionListener listener) throws InterruptedException {
+		final int size = commands.size();
+		final List<Entry> entries = new ArrayList<Entry>(size);
+		for (int i = 0; i < size; i ++) {
+			final ExternalCommand command = commands.get(i);
+			// 取り消しの際に子孫のプロセスも含めて強制終了できるよう、ウォッチドッグはあらかじめ生成する
+			entries.add(new Entry(i, command, command.newWatchdog(commandTimeoutMillis)));
+		}
+		if (size == 0) {
+			return entries;
+		}
+
+		final ExecutorService service = CommandExecutorServices.newBoundedExecutorService(
+				Math.min(maxParallelism, size), Integer.MAX_VALUE);
+		final CompletionService<Entry> completion = new ExecutorCompletionService<Entry>(service);
+		final AtomicBoolean aborted = new AtomicBoolean(false);
+		final List<Future<Entry>> futures = new ArrayList<Future<Entry>>(size);
+		// 期限はシステム時計の変更に影響されないSystem#nanoTime()で測る
+		final boolean limited = deadlineMillis > 0;
+		final long deadlineNanos = limited ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : 0;
+		boolean finished = false;
+		try {
+			for (final Entry entry : entries) {
+				futures.add(completion.submit(new Callable<Entry>() {
+					@Override
+					public Entry call() {
+						run(entry, aborted);
+						return entry;
+					}
+				}));
+			}
+			for (int done = 0; done < size; done ++) {
+				final Future<Entry> future;
+				if (!limited) {
+					future = completion.take();
+				} else {
+					future = completion.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (future == null) {
+						// 期限切れのため未完了のコマンドをすべて取り消す
+						abort(entries, futures, aborted, new TimeoutException());
+						break;
+					}
+				}
+				final Entry entry = get(future);
+				if (listener != null) {
+					listener.commandCompleted(entry);
+				}
+				if (errorPolicy == ErrorPolicy.FAIL_FAST && !entry.isSuccessful()) {
+					// 最初のエラーで未完了のコマンドをすべて取り消す
+					abort(entries, futures, aborted, null);
+					break;
+				}
+			}
+			finished = true;
+		} finally {
+			if (!finished) {
+				// 割り込みやリスナーの例外で待機を中断する場合も実行中のコマンドは残さない
+				abort(entries, futures, aborted, null);
+			}
+			// 実行中のスレッドには割り込まない（割り込むと起動したプロセスだけが終了し、子孫のプロセスをたどれなくなる）
+			// 取り消し後に実行が始まったコマンドはただちに戻る
+			service.shutdown();
+		}
+		return Collections.unmodifiableList(entries);
+	}
+	/**
+	 * コマンドを実行して結果を記録する.
+	 * @param entry 実行結果
+	 * @param aborted バッチが中断されたかどうかを示すフラグ
+	 */
+	private void run(final Entry entry, final AtomicBoolean aborted) {
+		if (aborted.get()) {
+			return;
+		}
+		try {
+			final Result result = entry.command.execute(entry.watchdog, 0);
+			synchronized (entry) {
+				if (entry.cancelled) {
+					// 取り消し後に完了した実行結果は誰にも参照されないためここで解放する
+					result.close();
+				} else {
+					entry.result = result;
+					entry.completed = true;
+				}
+			}
+		} catch (final RuntimeException e) {
+			synchronized (entry) {
+				if (!entry.cancelled) {
+					entry.error = e;
+					entry.completed = true;
+				}
+			}
+		}
+	}
+	/**
+	 * 未完了のコマンドをすべて取り消す.
+	 * 実行中のコマンドはウォッチドッグで子孫のプロセスも含めて強制終了され、
+	 * 子孫のプロセスが出力のパイプを開いたまま残っても打ち切りの時刻を過ぎれば完了する。
+	 * 実行が始まっていないコマンドは始まった時点で強制終了される。
+	 * @param entries 実行結果のリスト
+	 * @param futures コマンドの実行を表わすFutureオブジェクトのリスト
+	 * @param aborted バッチが中断されたかどうかを示すフラグ
+	 * @param cause 取り消しの原因（{@code null}の場合は原因を記録しない）
+	 */
+	private static void abort(final List<Entry> entries, final List<Future<Entry>> futures,
+			final AtomicBoolean aborted, final Exception cause) {
+		aborted.set(true);
+		for (int i = 0; i < entries.size(); i ++) {
+			final Entry entry = entries.get(i);
+			synchronized (entry) {
+				if (!entry.completed) {
+					entry.cancelled = true;
+					entry.error = cause;
+				}
+			}
+			// スレッドへの割り込みは起動したプロセスしか終了させないため、ウォッチドッグで強制終了する
+			futures.get(i).cancel(false);
+			entry.watchdog.kill();
+		}
+	}
+	/**
+	 * Futureオブジェクトから実行結果を取り出す.
+	 * @param future Futureオブジェクト
+	 * @return 実行結果
+	 * @throws InterruptedException 待機中に割り込みが発生した場合
+	 */
+	private static Entry get(final Future<Entry> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (final ExecutionException e) {
+			// コマンド実行時の例外は実行結果に記録されるためこの例外がスローされるのは予期せぬ事態のみ
+			// よって非チェック例外でラップして再スローする
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * コマンドが完了したときに通知を受けるリスナー.
+	 */
+	public static interface CompletionListener {
+		/**
+		 * コマンドが完了したときに呼び出される.
+		 * @param entry 実行結果
+		 */
+		void commandCompleted(Entry entry);
+	}
+
+	/**
+	 * バッチ内の1つのコマンドの実行結果を表わすオブジェクト.
+	 */
+	public static final class Entry {
+		/**
+		 * バッチ内での添字.
+		 */
+		private final int index;
+		/**
+		 * コマンド.
+		 */
+		private final ExternalCommand command;
+		/**
+		 * プロセスを強制終了するためのウォッチドッグ.
+		 */
+		private final TimerWatchdog watchdog;
+		/**
+		 * 実行結果.
+		 */
+		private Result result = null;
+		/**
+		 * 実行時にスローされた例外もしくは取り消しの原因.
+		 */
+		private Exception error = null;
+		/**
+		 * 完了したかどうかを示す.
+		 */
+		private boolean completed = false;
+		/**
+		 * 取り消されたかどうかを示す.
+		 */
+		private boolean cancelled = false;
+
+		/**
+		 * コンストラクタ.
+		 * @param index バッチ内での添字
+		 * @param command コマンド
+		 * @param watchdog プロセスを強制終了するためのウォッチドッグ
+		 */
+		private Entry(final int index, final ExternalCommand command, final TimerWatchdog watchdog) {
+			this.index = index;
+			this.command = command;
+			this.watchdog = watchdog;
+		}
+
+		/**
+		 * バッチ内での添字を返す.
+		 * @return 添字
+		 */
+		public int getIndex() {
+			return index;
+		}
+		/**
+		 * コマンドを返す.
+		 * @return コマンド
+		 */
+		public ExternalCommand getCommand() {
+			return command;
+		}
+		/**
+		 * 実行結果を返す.
+		 * @return 実行結果（例外がスローされた場合や取り消された場合は{@code null}）
+		 */
+		public synchronized Result getResult() {
+			return result;
+		}
+		/**
+		 * 実行時にスローされた例外もしくは取り消しの原因を返す.
+		 * 期限切れにより取り消された場合は{@link TimeoutException}を返す。
+		 * @return 例外（ない場合は{@code null}）
+		 */
+		public synchronized Exception getError() {
+			return error;
+		}
+		/**
+		 * 取り消された場合{@code true}を返す.
+		 * @return 判定結果
+		 */
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+		/**
+		 * 実行時例外がスローされることなく終了コード{@code 0}で完了した場合{@code true}を返す.
+		 * @return 判定結果
+		 */
+		public synchronized boolean isSuccessful() {
+			return result != null && result.getExitCode() == 0;
+		}
+	}
+}
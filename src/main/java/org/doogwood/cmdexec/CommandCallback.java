@@ -0,0 +1,23 @@
+package org.doogwood.cmdexec;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+/**
+ * 非同期実行の完了時に通知を受けるコールバック.
+ * {@link CommandFuture#addCallback(CommandCallback)}で登録する。
+ */
+public interface CommandCallback {
+	/**
+	 * 実行が完了したときに呼び出される.
+	 * 実行結果は{@link CommandFuture#get()}が返すものと同じオブジェクトであり、
+	 * いずれかの時点で呼び出し元の責任でクローズしなくてはならない。
+	 * @param result 実行結果
+	 */
+	void onSuccess(Result result);
+	/**
+	 * 実行時に例外がスローされたとき、もしくは取り消されたときに呼び出される.
+	 * 取り消された場合は{@link java.util.concurrent.CancellationException}が渡される。
+	 * @param cause 例外
+	 */
+	void onFailure(Throwable cause);
+}
@@ -0,0 +1,112 @@
+package org.doogwood.cmdexec;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 外部コマンドの非同期実行に使用する{@link ExecutorService}のファクトリ.
+ * 同時実行数と待ち行列の長さに上限をもつスレッドプールを生成する。
+ */
+public final class CommandExecutorServices {
+	/**
+	 * 同時実行数のデフォルト値.
+	 * 外部コマンドの実行スレッドはほとんどの時間をプロセスの終了待ちに費やすため
+	 * CPUコア数よりも多めに設定する。
+	 */
+	public static final int DEFAULT_MAX_CONCURRENCY = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	/**
+	 * 待ち行列の長さのデフォルト値.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	/**
+	 * アイドル状態のスレッドを破棄するまでの秒数.
+	 */
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	/**
+	 * コンストラクタ.
+	 * インスタンス化は許可しない。
+	 */
+	private CommandExecutorServices() {}
+
+	/**
+	 * デフォルト設定でスレッドプールを生成する.
+	 * 待ち行列が満杯の場合は{@link java.util.concurrent.RejectedExecutionException}をスローする。
+	 * @return スレッドプール
+	 */
+	public static ExecutorService newBoundedExecutorService() {
+		return newBoundedExecutorService(DEFAULT_MAX_CONCURRENCY, DEFAULT_QUEUE_CAPACITY);
+	}
+	/**
+	 * 同時実行数と待ち行列の長さを指定してスレッドプールを生成する.
+	 * 待ち行列が満杯の場合は{@link java.util.concurrent.RejectedExecutionException}をスローする。
+	 * @param maxConcurrency 同時実行数の上限
+	 * @param queueCapacity 待ち行列の長さの上限（{@code 0}の場合は待ち行列を持たない）
+	 * @return スレッドプール
+	 */
+	public static ExecutorService newBoundedExecutorService(final int maxConcurrency, final int queueCapacity) {
+		return newBoundedExecutorService(maxConcurrency, queueCapacity, new ThreadPoolExecutor.AbortPolicy());
+	}
+	/**
+	 * 同時実行数と待ち行列の長さ、待ち行列が満杯の場合のポリシーを指定してスレッドプールを生成する.
+	 * スレッドは非デーモン・スレッドとして生成されるため、実行中のコマンドがあるうちはJVMは終了しない。
+	 * アイドル状態が一定時間続いたスレッドは破棄されるため、すべての実行を終えたスレッドプールはJVMの終了を妨げない。
+	 * @param maxConcurrency 同時実行数の上限
+	 * @param queueCapacity 待ち行列の長さの上限（{@code 0}の場合は待ち行列を持たない）
+	 * @param rejectionPolicy 待ち行列が満杯の場合のポリシー
+	 * @return スレッドプール
+	 */
+	public static ExecutorService newBoundedExecutorService(final int maxConcurrency,
+			final int queueCapacity, final RejectedExecutionHandler rejectionPolicy) {
+		if (maxConcurrency < 1 || queueCapacity < 0 || rejectionPolicy == null) {
+			throw new IllegalArgumentException();
+		}
+		final BlockingQueue<Runnable> queue = queueCapacity == 0
+				? new SynchronousQueue<Runnable>()
+				: (queueCapacity == Integer.MAX_VALUE
+					? new LinkedBlockingQueue<Runnable>()
+					: new ArrayBlockingQueue<Runnable>(queueCapacity));
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, new NamedThreadFactory("cmdexec-async"), rejectionPolicy);
+		// 同時実行数の上限まではキューイングよりもスレッド生成を優先しつつ
+		// アイドル状態のスレッドはすべて破棄されるようにする
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * 接頭辞と連番からなる名前の非デーモン・スレッドを生成する{@link ThreadFactory}.
+	 * 非同期実行を依頼したスレッドが先に終了しても、実行中のコマンドは最後まで実行される。
+	 */
+	static final class NamedThreadFactory implements ThreadFactory {
+		/**
+		 * スレッド名の接頭辞.
+		 */
+		private final String prefix;
+		/**
+		 * スレッド名に付与する連番.
+		 */
+		private final AtomicInteger sequence = new AtomicInteger();
+		/**
+		 * コンストラクタ.
+		 * @param prefix スレッド名の接頭辞
+		 */
+		NamedThreadFactory(final String prefix) {
+			this.prefix = prefix;
+		}
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, prefix + "-" + sequence.incrementAndGet());
+			t.setDaemon(false);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+/**
+ * 非同期実行の結果を表わすFutureオブジェクト.
+ * {@link #get()}でブロックして待つ代わりに{@link #addCallback(CommandCallback)}でコールバックを登録すると、
+ * プロセスの終了を検知したスレッドからただちに通知を受けられる。
+ * コールバックの中で別のコマンドを非同期実行すれば、スレッドを待機させることなくコマンドを連鎖させられる。
+ * {@link #cancel(boolean)}で取り消すと実行中のプロセスは強制終了される。
+ * {@link #openStdoutStream()}と{@link #openStderrStream()}を使用すると、完了を待たずに実行中の出力を読み取れる。
+ * @see ExternalCommand#executeAsync(long)
+ */
+public final class CommandFuture implements Future<Result> {
+	/**
+	 * プロセスを強制終了するためのウォッチドッグ.
+	 */
+	private final TimerWatchdog watchdog;
+	/**
+	 * 標準出力を受け取るストリーム.
+	 */
+	private final PipeOutputStream stdout;
+	/**
+	 * 標準エラーを受け取るストリーム.
+	 */
+	private final PipeOutputStream stderr;
+	/**
+	 * 実行をスレッドプールに投入したタスク.
+	 */
+	private Future<?> task = null;
+	/**
+	 * 完了を待つコールバック.
+	 */
+	private List<CommandCallback> callbacks = new ArrayList<CommandCallback>();
+	/**
+	 * 完了したかどうかを示す.
+	 */
+	private boolean done = false;
+	/**
+	 * 取り消されたかどうかを示す.
+	 */
+	private boolean cancelled = false;
+	/**
+	 * 実行が始まったかどうかを示す.
+	 */
+	private boolean started = false;
+	/**
+	 * 実行結果.
+	 */
+	private Result result = null;
+	/**
+	 * 実行時にスローされた例外.
+	 */
+	private Throwable failure = null;
+	
+	/**
+	 * コンストラクタ.
+	 * @param watchdog プロセスを強制終了するためのウォッチドッグ
+	 * @param stdout 標準出力を受け取るストリーム
+	 * @param stderr 標準エラーを受け取るストリーム
+	 */
+	CommandFuture(final TimerWatchdog watchdog, final PipeOutputStream stdout, final PipeOutputStream stderr) {
+		this.watchdog = watchdog;
+		this.stdout = stdout;
+		this.stderr = stderr;
+	}
+	
+	/**
+	 * 実行をスレッドプールに投入したタスクを設定する.
+	 * @param task タスク
+	 */
+	synchronized void setTask(final Future<?> task) {
+		this.task = task;
+		if (cancelled) {
+			task.cancel(false);
+		}
+	}
+	/**
+	 * 実行が始まったことを記録する.
+	 * @return 実行を始めてよい場合{@code true}（取り消し済みの場合は{@code false}）
+	 */
+	synchronized boolean start() {
+		if (done) {
+			return false;
+		}
+		started = true;
+		return true;
+	}
+	/**
+	 * 実行中の標準出力を先頭から読み取る入力ストリームを生成して返す.
+	 * 入力ストリームは書き込まれた出力に追いつくと次の出力を待ち、プロセスが終了すると終端に達する。
+	 * 入力ストリームはいくつでも生成でき、完了後の実行結果と出力を共有するためデータは二重に保持されない。
+	 * 実行結果が{@link Result#close()}で解放されると以降の読み取りはエラーとなる。
+	 * @return 入力ストリーム
+	 * @throws IllegalStateException 実行結果が解放済みの場合、
+	 * 	もしくは一時ファイルを圧縮する設定の場合（{@link ExternalCommand#setSpillCompressed(boolean)}）
+	 * @see PipeOutputStream#openLiveInputStream()
+	 */
+	public InputStream openStdoutStream() {
+		return stdout.openLiveInputStream();
+	}
+	/**
+	 * 実行中の標準エラーを先頭から読み取る入力ストリームを生成して返す.
+	 * @return 入力ストリーム
+	 * @throws IllegalStateException 実行結果が解放済みの場合、もしくは一時ファイルを圧縮する設定の場合
+	 * @see #openStdoutStream()
+	 */
+	public InputStream openStderrStream() {
+		return stderr.openLiveInputStream();
+	}
+	/**
+	 * 実行結果を設定して完了させる.
+	 * @param result 実行結果
+	 * @return 完了させた場合{@code true}（取り消し済みの場合は{@code false}）
+	 */
+	boolean complete(final Result result) {
+		final List<CommandCallback> targets;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.result = result;
+			targets = finish();
+		}
+		for (final CommandCallback callback : targets) {
+			notifySuccess(callback, result);
+		}
+		return true;
+	}
+	/**
+	 * 例外を設定して完了させる.
+	 * @param cause 例外
+	 */
+	void fail(final Throwable cause) {
+		final List<CommandCallback> targets;
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			this.failure = cause;
+			targets = finish();
+		}
+		for (final CommandCallback callback : targets) {
+			notifyFailure(callback, cause);
+		}
+	}
+	/**
+	 * 完了したことを記録して待機中のスレッドを起こす.
+	 * このオブジェクトのロックを保持した状態で呼び出さなくてはならない。
+	 * @return 通知すべきコールバック
+	 */
+	private List<CommandCallback> finish() {
+		done = true;
+		final List<CommandCallback> targets = callbacks;
+		callbacks = null;
+		notifyAll();
+		return targets;
+	}
+	/**
+	 * 完了時に通知を受けるコールバックを登録する.
+	 * 完了済みの場合はこのメソッドを呼び出したスレッドでただちに通知し、
+	 * そうでない場合はプロセスの終了を検知したスレッドから通知する。
+	 * コールバックがスローした実行時例外は無視される。
+	 * @param callback コールバック
+	 * @return このオブジェクト
+	 */
+	public CommandFuture addCallback(final CommandCallback callback) {
+		if (callback == null) {
+			throw new IllegalArgumentException();
+		}
+		final boolean wasCancelled;
+		final Throwable cause;
+		final Result res;
+		synchronized (this) {
+			if (!done) {
+				callbacks.add(callback);
+				return this;
+			}
+			wasCancelled = cancelled;
+			cause = failure;
+			res = result;
+		}
+		if (wasCancelled) {
+			notifyFailure(callback, new CancellationException());
+		} else if (cause != null) {
+			notifyFailure(callback, cause);
+		} else {
+			notifySuccess(callback, res);
+		}
+		return this;
+	}
+	/**
+	 * 成功をコールバックに通知する.
+	 * @param callback コールバック
+	 * @param result 実行結果
+	 */
+	private static void notifySuccess(final CommandCallback callback, final Result result) {
+		try {
+			callback.onSuccess(result);
+		} catch (final RuntimeException e) {
+			// 無視する
+		}
+	}
+	/**
+	 * 失敗をコールバックに通知する.
+	 * @param callback コールバック
+	 * @param cause 例外
+	 */
+	private static void notifyFailure(final CommandCallback callback, final Throwable cause) {
+		try {
+			callback.onFailure(cause);
+		} catch (final RuntimeException e) {
+			// 無視する
+		}
+	}
+	
+	/**
+	 * 実行を取り消す.
+	 * 実行が始まっていなければスレッドプールから取り除き、実行中であればプロセスを強制終了する。
+	 * 引数にかかわらずプロセスは強制終了される。
+	 * @param mayInterruptIfRunning 無視される
+	 * @return 取り消した場合{@code true}（完了済みの場合は{@code false}）
+	 */
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		final List<CommandCallback> targets;
+		final boolean wasStarted;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			cancelled = true;
+			wasStarted = started;
+			targets = finish();
+			if (task != null) {
+				task.cancel(false);
+			}
+		}
+		watchdog.kill();
+		if (!wasStarted) {
+			// 実行されないストリームを読み取っている入力ストリームに終端を通知する
+			closeQuietly(stdout);
+			closeQuietly(stderr);
+		}
+		final CancellationException cause = new CancellationException();
+		for (final CommandCallback callback : targets) {
+			notifyFailure(callback, cause);
+		}
+		return true;
+	}
+	/**
+	 * ストリームをクローズする.
+	 * クローズの最中に発生したエラーは無視する。
+	 * @param pipe ストリーム
+	 */
+	private static void closeQuietly(final PipeOutputStream pipe) {
+		try {
+			pipe.close();
+		} catch (final IOException e) {
+			// 書き込まれていないストリームのため無視する
+		}
+	}
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+	@Override
+	public synchronized Result get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return report();
+	}
+	@Override
+	public synchronized Result get(final long timeout, final TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			final long rest = deadline - System.nanoTime();
+			if (rest <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, rest);
+		}
+		return report();
+	}
+	/**
+	 * 完了の状態に応じて実行結果を返すか例外をスローする.
+	 * @return 実行結果
+	 * @throws ExecutionException 実行時に例外がスローされた場合
+	 */
+	private Result report() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		} else if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,794 @@
+package org.doogwood.cmdexec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.ExecuteResultHandler;
+import org.apache.commons.exec.Executor;
+import org.apache.commons.exec.StreamPumper;
+
+/**
+ * 複数の外部コマンドをパイプ（{@code cmd1 | cmd2 | cmd3}）でつないで実行するパイプライン.
+ * すべてのステージは同時に起動され、各ステージの標準出力は固定サイズのバッファを介して
+ * 次のステージの標準入力へ逐次転送される。中間の出力がヒープに貯めこまれることはない。
+ * 最終ステージの標準出力と各ステージの標準エラーのみが{@link PipeOutputStream}に取り込まれる。
+ * 最初のステージに{@link InputSource}が設定されていれば、その内容が最初のステージの標準入力に転送される。
+ */
+public final class CommandPipeline {
+	/**
+	 * ステージ間の転送に使用するバッファのサイズ.
+	 */
+	private static final int LINK_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * パイプラインを構成するステージ.
+	 */
+	private final List<ExternalCommand> stages = new ArrayList<ExternalCommand>();
+
+	/**
+	 * コンストラクタ.
+	 * 静的メソッドを介した初期化のみ許可する。
+	 * @param stages パイプラインを構成するステージ
+	 */
+	private CommandPipeline(final List<ExternalCommand> stages) {
+		if (stages.isEmpty()) {
+			throw new IllegalArgumentException();
+		}
+		for (final ExternalCommand stage : stages) {
+			pipe(stage);
+		}
+	}
+
+	/**
+	 * パイプラインを構成するステージを受け取りオブジェクトを初期化する.
+	 * @param stages パイプラインを構成するステージ
+	 * @return オブジェクト
+	 */
+	public static CommandPipeline of(final ExternalCommand... stages) {
+		return new CommandPipeline(Arrays.asList(stages));
+	}
+	/**
+	 * パイプラインの末尾にステージを追加する.
+	 * @param next 追加するステージ
+	 * @return このオブジェクト
+	 */
+	public CommandPipeline pipe(final ExternalCommand next) {
+		if (next == null) {
+			throw new IllegalArgumentException();
+		}
+		stages.add(next);
+		return this;
+	}
+	/**
+	 * パイプラインを構成するステージを返す.
+	 * @return ステージのリスト
+	 */
+	public List<ExternalCommand> getStages() {
+		return new ArrayList<ExternalCommand>(stages);
+	}
+	/**
+	 * タイムアウト指定なしで同期実行する.
+	 * @return 実行結果
+	 */
+	public Result execute() {
+		return execute(0);
+	}
+	/**
+	 * タイムアウト指定ありで同期実行する.
+	 * タイムアウトはパイプライン全体に対して適用され、
+	 * 時間内にすべてのステージが終了しなかった場合はすべてのステージを強制終了する。
+	 * いずれかのステージの起動に失敗した場合もすべてのステージを強制終了し、実行時例外をスローする。
+	 * <p>各ステージは{@link ExternalCommand#execute(long)}と同じ経路で起動されるため、
+	 * 組み立て済みの引数と環境変数、標準エラーのリダイレクト、資源の上限、一時ファイルの圧縮、強制終了の猶予時間が適用され、
+	 * 登録された{@link ExecutionListener}にはステージごとに計測値が通知される。
+	 * 強制終了は{@link ExternalCommand}と同様に子孫のプロセスにも及ぶ。</p>
+	 * <p>パイプラインでは次の設定を適用できないため、設定されている場合は{@link IllegalStateException}をスローする：
+	 * {@link StreamPoller}、{@link CapturePolicy}の制限、最終ステージ以外の標準出力のリダイレクト、
+	 * 最初のステージ以外の{@link InputSource}。</p>
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @return 実行結果
+	 * @throws IllegalStateException パイプラインで適用できない設定がある場合
+	 */
+	public Result execute(final long timeoutMillis) {
+		validateStages();
+		final int size = stages.size();
+		// 最終ステージの標準出力を受け取るためのストリームを初期化
+		final PipeOutputStream stdout = newCaptureStream(stages.get(size - 1));
+		final CountingOutputStream countingStdout = new CountingOutputStream(stdout);
+		// 各ステージの標準エラーを受け取るためのストリームを初期化
+		final PipeOutputStream[] stderrs = new PipeOutputStream[size];
+		final CountingOutputStream[] countingStderrs = new CountingOutputStream[size];
+		for (int i = 0; i < size; i ++) {
+			stderrs[i] = newCaptureStream(stages.get(i));
+			countingStderrs[i] = new CountingOutputStream(stderrs[i]);
+		}
+		// ステージ間をつなぐリンクを初期化
+		final Link[] links = new Link[size - 1];
+		for (int i = 0; i < links.length; i ++) {
+			links[i] = new Link();
+		}
+		// 最初のステージの入力元を初期化
+		final InputSource source = stages.get(0).getInputSource();
+		InputStream input = null;
+		final Object monitor = new Object();
+		final StageResultHandler[] handlers = new StageResultHandler[size];
+		final StageStreamHandler[] streamHandlers = new StageStreamHandler[size];
+		final TimerWatchdog[] watchdogs = new TimerWatchdog[size];
+		final ResourceScope[] scopes = new ResourceScope[size];
+		final long[] spawnNanos = new long[size];
+
+		try {
+			input = source != null ? source.open() : null;
+			// すべてのステージを非同期に起動する
+			for (int i = 0; i < size; i ++) {
+				final ExternalCommand stage = stages.get(i);
+				final boolean isLast = i == size - 1;
+				// タイムアウトはパイプライン全体で管理するためウォッチドッグは強制終了にのみ使用する
+				final TimerWatchdog watchdog = stage.newWatchdog(0);
+				scopes[i] = stage.openResourceScope();
+				final Executor exec = stage.newExecutor(watchdog, scopes[i]);
+				// リダイレクトした出力は読み取らない（出力先を渡さない）
+				streamHandlers[i] = new StageStreamHandler(i == 0 ? input : null, i == 0 ? null : links[i - 1],
+						isLast ? null : links[i],
+						isLast && stage.getStdoutRedirect().isCapture() ? countingStdout : null,
+						stage.getStderrRedirect().isCapture() ? countingStderrs[i] : null);
+				exec.setStreamHandler(streamHandlers[i]);
+				handlers[i] = new StageResultHandler(monitor);
+				spawnNanos[i] = System.nanoTime();
+				// 起動を要求するステージも強制終了の対象とする（起動前に強制終了が要求された場合は起動した時点で強制終了する）
+				watchdogs[i] = watchdog;
+				exec.execute(stage.getCommandLine(), handlers[i]);
+			}
+			// すべてのステージの終了を待つ
+			final boolean timedOut = awaitStages(handlers, watchdogs, links, monitor, timeoutMillis);
+			// ステージ間の転送の完了を待つ
+			for (final Link link : links) {
+				link.await();
+			}
+			stdout.close();
+			for (final PipeOutputStream stderr : stderrs) {
+				stderr.close();
+			}
+			final int[] exitCodes = new int[size];
+			for (int i = 0; i < size; i ++) {
+				if (handlers[i].getException() != null) {
+					throw handlers[i].getException();
+				}
+				exitCodes[i] = handlers[i].getExitValue();
+			}
+			// 計測値をリスナーに通知する
+			if (ExternalCommand.hasExecutionListeners()) {
+				for (int i = 0; i < size; i ++) {
+					final boolean isLast = i == size - 1;
+					final StageStreamHandler h = streamHandlers[i];
+					ExternalCommand.fireExecutionCompleted(new ExecutionMetrics(stages.get(i), 0,
+							h.getStartNanos() - spawnNanos[i], h.getStopNanos() - h.getStartNanos(),
+							h.getStoppedNanos() - h.getStopNanos(),
+							isLast ? countingStdout.getCount() : links[i].getTransferredBytes(),
+							countingStderrs[i].getCount(),
+							stderrs[i].isUsingTempFile() || (isLast && stdout.isUsingTempFile()),
+							watchdogs[i].killedProcess(), exitCodes[i]));
+				}
+			}
+			// 実行結果を呼び出し元に返す
+			return new Result(exitCodes, timedOut, stdout, stderrs);
+		} catch (final InterruptedException e) {
+			// 待機中の割り込みは実行の中断とみなしてすべてのステージを強制終了する
+			Thread.currentThread().interrupt();
+			destroyAll(watchdogs, links);
+			releaseAll(stdout, stderrs);
+			throw new RuntimeException(e);
+		} catch (final IOException e) {
+			// IOエラーの発生は予期せぬ事態もしくはステージの起動失敗
+			// よって非チェック例外でラップして再スローする
+			destroyAll(watchdogs, links);
+			releaseAll(stdout, stderrs);
+			throw new RuntimeException(e);
+		} catch (final RuntimeException e) {
+			// 上限を適用する手段がない場合など
+			destroyAll(watchdogs, links);
+			releaseAll(stdout, stderrs);
+			throw e;
+		} finally {
+			// 実行の成否にかかわらず入力元のストリームはクローズし、cgroupは削除する
+			closeQuietly(input);
+			for (final ResourceScope scope : scopes) {
+				if (scope != null) {
+					scope.close();
+				}
+			}
+		}
+	}
+	/**
+	 * パイプラインで適用できない設定がないことを確認する.
+	 * @throws IllegalStateException パイプラインで適用できない設定がある場合
+	 */
+	private void validateStages() {
+		final int size = stages.size();
+		for (int i = 0; i < size; i ++) {
+			final ExternalCommand stage = stages.get(i);
+			if (stage.getStreamPoller() != null) {
+				throw new IllegalStateException("StreamPoller is not supported in a pipeline (stage " + i + ").");
+			}
+			if (!stage.getStdoutCapturePolicy().isUnbounded() || !stage.getStderrCapturePolicy().isUnbounded()) {
+				throw new IllegalStateException("CapturePolicy is not supported in a pipeline (stage " + i + ").");
+			}
+			if (i < size - 1 && !stage.getStdoutRedirect().isCapture()) {
+				throw new IllegalStateException("Stdout of stage " + i + " is connected to the next stage.");
+			}
+			if (i > 0 && stage.getInputSource() != null) {
+				throw new IllegalStateException("Stdin of stage " + i + " is connected to the previous stage.");
+			}
+		}
+	}
+	/**
+	 * 標準出力もしくは標準エラーを受け取るためのストリームを初期化する.
+	 * @param stage ステージ
+	 * @return ストリーム
+	 */
+	private static PipeOutputStream newCaptureStream(final ExternalCommand stage) {
+		final PipeOutputStream pipe = new PipeOutputStream(PipeOutputStream.DEFAULT_THRESHOLD,
+				BufferPool.getSharedPool(), tempFileStoreOf(stage));
+		pipe.setSpillCompressed(stage.isSpillCompressed());
+		return pipe;
+	}
+	/**
+	 * すべてのステージの終了を待つ.
+	 * 時間内に終了しなかった場合、もしくはいずれかのステージが起動に失敗した場合はすべてのステージを強制終了する。
+	 * 期限はシステム時計の変更に影響されない{@link System#nanoTime()}で測る。
+	 * @param handlers 各ステージの実行結果ハンドラ
+	 * @param watchdogs 各ステージのウォッチドッグ
+	 * @param links ステージ間のリンク
+	 * @param monitor 実行結果ハンドラが終了を通知するモニター
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @return タイムアウトにより強制終了した場合{@code true}
+	 * @throws InterruptedException 待機中に割り込みが発生した場合
+	 */
+	private static boolean awaitStages(final StageResultHandler[] handlers, final TimerWatchdog[] watchdogs,
+			final Link[] links, final Object monitor, final long timeoutMillis) throws InterruptedException {
+		final boolean limited = timeoutMillis > 0;
+		final long deadlineNanos = limited ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+		boolean destroyed = false;
+		boolean timedOut = false;
+		synchronized (monitor) {
+			while (true) {
+				boolean finished = true;
+				boolean failed = false;
+				for (final StageResultHandler handler : handlers) {
+					if (!handler.hasResult()) {
+						finished = false;
+					} else if (handler.getException() != null) {
+						failed = true;
+					}
+				}
+				if (finished) {
+					return timedOut;
+				}
+				final long restNanos = limited ? deadlineNanos - System.nanoTime() : 0;
+				if (!destroyed && (failed || (limited && restNanos <= 0))) {
+					// 起動の失敗もしくはタイムアウトによりすべてのステージを強制終了する
+					destroyed = true;
+					timedOut = !failed;
+					destroyAll(watchdogs, links);
+				}
+				if (limited && !destroyed) {
+					TimeUnit.NANOSECONDS.timedWait(monitor, restNanos);
+				} else {
+					monitor.wait();
+				}
+			}
+		}
+	}
+	/**
+	 * すべてのステージを強制終了し、ステージ間のリンクを切断する.
+	 * 強制終了は{@link TimerWatchdog}を介して行うため、各ステージの子孫のプロセスにも及ぶ。
+	 * @param watchdogs 各ステージのウォッチドッグ
+	 * @param links ステージ間のリンク
+	 */
+	private static void destroyAll(final TimerWatchdog[] watchdogs, final Link[] links) {
+		for (final Link link : links) {
+			link.abort();
+		}
+		for (final TimerWatchdog watchdog : watchdogs) {
+			if (watchdog != null) {
+				watchdog.kill();
+			}
+		}
+	}
+	/**
+	 * 出力を受け取るためのストリームをすべて解放する.
+	 * @param stdout 最終ステージの標準出力
+	 * @param stderrs 各ステージの標準エラー
+	 */
+	private static void releaseAll(final PipeOutputStream stdout, final PipeOutputStream[] stderrs) {
+		stdout.release();
+		for (final PipeOutputStream stderr : stderrs) {
+			stderr.release();
+		}
+	}
+	/**
+	 * コマンドに設定された一時ファイルの格納先を返す.
+	 * @param command コマンド
+	 * @return 一時ファイルの格納先
+	 */
+	private static TempFileStore tempFileStoreOf(final ExternalCommand command) {
+		return command.getTempFileStore() != null ? command.getTempFileStore() : TempFileStore.getDefault();
+	}
+	/**
+	 * ストリームをクローズする.
+	 * クローズの最中に発生したエラーは無視する。
+	 * @param c ストリーム
+	 */
+	private static void closeQuietly(final Closeable c) {
+		if (c == null) {
+			return;
+		}
+		try {
+			c.close();
+		} catch (final IOException e) {
+			// プロセスのパイプのため無視する
+		}
+	}
+
+	/**
+	 * ステージの終了をモニターに通知する実行結果ハンドラ.
+	 */
+	private static final class StageResultHandler implements ExecuteResultHandler {
+		/**
+		 * 終了を通知するモニター.
+		 */
+		private final Object monitor;
+		/**
+		 * 終了コード.
+		 */
+		private int exitValue;
+		/**
+		 * 起動の失敗などの例外.
+		 */
+		private ExecuteException exception = null;
+		/**
+		 * 終了したかどうかを示す.
+		 */
+		private boolean hasResult = false;
+
+		/**
+		 * コンストラクタ.
+		 * @param monitor 終了を通知するモニター
+		 */
+		StageResultHandler(final Object monitor) {
+			this.monitor = monitor;
+		}
+
+		@Override
+		public void onProcessComplete(final int exitValue) {
+			synchronized (monitor) {
+				this.exitValue = exitValue;
+				this.hasResult = true;
+				monitor.notifyAll();
+			}
+		}
+		@Override
+		public void onProcessFailed(final ExecuteException e) {
+			synchronized (monitor) {
+				this.exitValue = e.getExitValue();
+				this.exception = e;
+				this.hasResult = true;
+				monitor.notifyAll();
+			}
+		}
+		/**
+		 * 終了コードを返す.
+		 * @return 終了コード
+		 */
+		int getExitValue() {
+			synchronized (monitor) {
+				return exitValue;
+			}
+		}
+		/**
+		 * 起動の失敗などの例外を返す.
+		 * @return 例外（ない場合は{@code null}）
+		 */
+		ExecuteException getException() {
+			synchronized (monitor) {
+				return exception;
+			}
+		}
+		/**
+		 * 終了した場合{@code true}を返す.
+		 * @return 判定結果
+		 */
+		boolean hasResult() {
+			synchronized (monitor) {
+				return hasResult;
+			}
+		}
+	}
+
+	/**
+	 * 前段のステージの標準出力を後段のステージの標準入力へ転送するリンク.
+	 * 両端のストリームが揃った時点で転送用のスレッドを起動する。
+	 * 前段の出力が終わると後段の標準入力をクローズして終端を伝える。
+	 * 後段が先に終了した場合は前段の標準出力をクローズする。
+	 */
+	private static final class Link implements Runnable {
+		/**
+		 * 前段のステージの標準出力.
+		 */
+		private InputStream upstream = null;
+		/**
+		 * 後段のステージの標準入力.
+		 */
+		private OutputStream downstream = null;
+		/**
+		 * 転送用のスレッドを起動したかどうかを示す.
+		 */
+		private boolean started = false;
+		/**
+		 * 転送が終了したかどうか（もしくは切断されたかどうか）を示す.
+		 */
+		private boolean done = false;
+		/**
+		 * 転送したバイト数.
+		 */
+		private volatile long transferredBytes = 0;
+
+		/**
+		 * 前段のステージの標準出力を設定する.
+		 * @param in 前段のステージの標準出力
+		 */
+		synchronized void setUpstream(final InputStream in) {
+			upstream = in;
+			startIfReady();
+		}
+		/**
+		 * 後段のステージの標準入力を設定する.
+		 * @param out 後段のステージの標準入力
+		 */
+		synchronized void setDownstream(final OutputStream out) {
+			downstream = out;
+			startIfReady();
+		}
+		/**
+		 * 両端のストリームが揃っていれば転送用のスレッドを起動する.
+		 */
+		private void startIfReady() {
+			if (done) {
+				// すでに切断されている
+				closeQuietly(upstream);
+				closeQuietly(downstream);
+			} else if (!started && upstream != null && downstream != null) {
+				started = true;
+				final Thread t = new Thread(this, "cmdexec-pipeline-link");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+		@Override
+		public void run() {
+			final InputStream in;
+			final OutputStream out;
+			synchronized (this) {
+				in = upstream;
+				out = downstream;
+			}
+			final byte[] buff = new byte[LINK_BUFFER_SIZE];
+			try {
+				int n;
+				while ((n = in.read(buff)) != -1) {
+					out.write(buff, 0, n);
+					out.flush();
+					transferredBytes += n;
+				}
+			} catch (final IOException e) {
+				// 後段が先に終了した場合や強制終了された場合はここで転送を終える
+			} finally {
+				closeQuietly(out);
+				closeQuietly(in);
+				synchronized (this) {
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+		/**
+		 * 転送したバイト数を返す.
+		 * @return バイト数
+		 */
+		long getTransferredBytes() {
+			return transferredBytes;
+		}
+		/**
+		 * 転送の終了を待つ.
+		 * @throws InterruptedException 待機中に割り込みが発生した場合
+		 */
+		synchronized void await() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+		}
+		/**
+		 * リンクを切断する.
+		 */
+		synchronized void abort() {
+			closeQuietly(upstream);
+			closeQuietly(downstream);
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * ステージのプロセスのストリームをリンクもしくは{@link PipeOutputStream}に接続するストリームハンドラ.
+	 * 出力先が{@code null}の出力（リダイレクトした出力）はただちにクローズし、読み取らない。
+	 */
+	private static final class StageStreamHandler implements TimedStreamHandler {
+		/**
+		 * 標準入力の入力元（最初のステージ以外もしくは入力元がない場合は{@code null}）.
+		 */
+		private final InputStream input;
+		/**
+		 * 前段とのリンク（最初のステージの場合は{@code null}）.
+		 */
+		private final Link inLink;
+		/**
+		 * 後段とのリンク（最終ステージの場合は{@code null}）.
+		 */
+		private final Link outLink;
+		/**
+		 * 標準出力の出力先（最終ステージ以外もしくはリダイレクトした場合は{@code null}）.
+		 */
+		private final OutputStream stdout;
+		/**
+		 * 標準エラーの出力先（リダイレクトした場合は{@code null}）.
+		 */
+		private final OutputStream stderr;
+		/**
+		 * 標準出力と標準エラーを転送するスレッド.
+		 */
+		private final List<Thread> pumpers = new ArrayList<Thread>();
+		/**
+		 * 転送を開始した時刻（ナノ秒）.
+		 */
+		private volatile long startNanos = 0;
+		/**
+		 * 転送の停止を開始した時刻（ナノ秒）.
+		 */
+		private volatile long stopNanos = 0;
+		/**
+		 * 転送を停止し終えた時刻（ナノ秒）.
+		 */
+		private volatile long stoppedNanos = 0;
+
+		/**
+		 * コンストラクタ.
+		 * @param input 標準入力の入力元
+		 * @param inLink 前段とのリンク
+		 * @param outLink 後段とのリンク
+		 * @param stdout 標準出力の出力先
+		 * @param stderr 標準エラーの出力先
+		 */
+		StageStreamHandler(final InputStream input, final Link inLink, final Link outLink,
+				final OutputStream stdout, final OutputStream stderr) {
+			this.input = input;
+			this.inLink = inLink;
+			this.outLink = outLink;
+			this.stdout = stdout;
+			this.stderr = stderr;
+		}
+
+		@Override
+		public void setProcessInputStream(final OutputStream os) throws IOException {
+			if (inLink == null && input != null) {
+				// 入力元の内容を転送し終えたら標準入力をクローズする
+				pumpers.add(newPumper(input, os, true));
+			} else if (inLink == null) {
+				// 最初のステージに入力元がなければただちに終端を伝える
+				os.close();
+			} else {
+				inLink.setDownstream(os);
+			}
+		}
+		@Override
+		public void setProcessOutputStream(final InputStream is) throws IOException {
+			if (outLink != null) {
+				outLink.setUpstream(is);
+			} else if (stdout != null) {
+				pumpers.add(newPumper(is, stdout, false));
+			} else {
+				is.close();
+			}
+		}
+		@Override
+		public void setProcessErrorStream(final InputStream is) throws IOException {
+			if (stderr != null) {
+				pumpers.add(newPumper(is, stderr, false));
+			} else {
+				is.close();
+			}
+		}
+		/**
+		 * ストリームを転送するスレッドを生成する.
+		 * @param is 転送元
+		 * @param os 転送先
+		 * @param closeWhenExhausted 転送元の終端に達したとき転送先をクローズする場合{@code true}
+		 * @return スレッド
+		 */
+		private static Thread newPumper(final InputStream is, final OutputStream os, final boolean closeWhenExhausted) {
+			final Thread t = new Thread(new StreamPumper(is, os, closeWhenExhausted,
+					LargeBufferPumpStreamHandler.PUMP_BUFFER_SIZE), "cmdexec-pipeline-pumper");
+			t.setDaemon(true);
+			return t;
+		}
+		@Override
+		public void start() throws IOException {
+			startNanos = System.nanoTime();
+			for (final Thread t : pumpers) {
+				t.start();
+			}
+		}
+		@Override
+		public void stop() throws IOException {
+			// プロセスの終了後に呼び出される
+			// この後でプロセスのストリームはクローズされるため、パイプに残ったデータを転送し終えるまで待つ
+			stopNanos = System.nanoTime();
+			try {
+				for (final Thread t : pumpers) {
+					t.join();
+				}
+				if (outLink != null) {
+					outLink.await();
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				stoppedNanos = System.nanoTime();
+			}
+		}
+		@Override
+		public long getStartNanos() {
+			return startNanos;
+		}
+		@Override
+		public long getStopNanos() {
+			return stopNanos;
+		}
+		@Override
+		public long getStoppedNanos() {
+			return stoppedNanos;
+		}
+	}
+
+	/**
+	 * パイプラインの実行結果を表わすオブジェクト.
+	 * 不要になった時点で{@link #close()}を呼び出して、保持している内容を解放しなくてはならない。
+	 */
+	public static final class Result implements Closeable {
+		/**
+		 * 各ステージの終了コード.
+		 */
+		private final int[] exitCodes;
+		/**
+		 * タイムアウトによりすべてのステージを強制終了したかどうかを示す.
+		 */
+		private final boolean timedOut;
+		/**
+		 * 最終ステージの標準出力の内容にアクセスするための{@link PipeOutputStream}.
+		 */
+		private final PipeOutputStream stdout;
+		/**
+		 * 各ステージの標準エラーの内容にアクセスするための{@link PipeOutputStream}.
+		 */
+		private final PipeOutputStream[] stderrs;
+
+		/**
+		 * コンストラクタ.
+		 * @param exitCodes 各ステージの終了コード
+		 * @param timedOut タイムアウトによりすべてのステージを強制終了したかどうか
+		 * @param stdout 最終ステージの標準出力の内容にアクセスするための{@link PipeOutputStream}
+		 * @param stderrs 各ステージの標準エラーの内容にアクセスするための{@link PipeOutputStream}
+		 */
+		private Result(final int[] exitCodes, final boolean timedOut,
+				final PipeOutputStream stdout, final PipeOutputStream[] stderrs) {
+			this.exitCodes = exitCodes;
+			this.timedOut = timedOut;
+			this.stdout = stdout;
+			this.stderrs = stderrs;
+		}
+
+		/**
+		 * 最終ステージの終了コードを返す.
+		 * @return 終了コード
+		 */
+		public int getExitCode() {
+			return exitCodes[exitCodes.length - 1];
+		}
+		/**
+		 * 各ステージの終了コードを返す.
+		 * @return 終了コードの配列
+		 */
+		public int[] getExitCodes() {
+			return exitCodes.clone();
+		}
+		/**
+		 * タイムアウトによりすべてのステージを強制終了した場合{@code true}を返す.
+		 * この場合、終了コードは強制終了されたことを示す値となる。
+		 * @return 判定結果
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+		/**
+		 * 最終ステージの標準出力の内容にアクセスするための{@link InputStream}を返す.
+		 * @return {@link InputStream}
+		 */
+		public InputStream getStdout() {
+			return stdout.getInputStream();
+		}
+		/**
+		 * 最終ステージの標準出力の内容に行ごとにアクセスするための{@link Iterable}を返す.
+		 * キャラクターセットにはJVMのデフォルト・キャラクターセットを使用する。
+		 * @return {@link Iterable}
+		 */
+		public CloseableIterable<String> getStdoutLines() {
+			return getStdoutLines(Charset.defaultCharset());
+		}
+		/**
+		 * 最終ステージの標準出力の内容に行ごとにアクセスするための{@link Iterable}を返す.
+		 * 途中で読み出しをやめる場合はイテレータもしくは返された{@link CloseableIterable}をクローズしなくてはならない。
+		 * @param charset キャラクターセット
+		 * @return {@link Iterable}
+		 * @see ExternalCommand.Result#getStdoutLines(Charset)
+		 */
+		public CloseableIterable<String> getStdoutLines(final Charset charset) {
+			return new LineIterable(stdout, charset);
+		}
+		/**
+		 * 最終ステージの標準出力の内容に行ごとに{@link CharSequence}としてアクセスするための{@link Iterable}を返す.
+		 * イテレータが返す{@link CharSequence}は使い回され、次の行に進むと内容が変わる。
+		 * 途中で読み出しをやめる場合はイテレータもしくは返された{@link CloseableIterable}をクローズしなくてはならない。
+		 * @param charset キャラクターセット
+		 * @return {@link Iterable}
+		 * @see ExternalCommand.Result#getStdoutLineViews(Charset)
+		 */
+		public CloseableIterable<CharSequence> getStdoutLineViews(final Charset charset) {
+			return LineIterable.views(stdout, charset);
+		}
+		/**
+		 * 指定されたステージの標準エラーの内容にアクセスするための{@link InputStream}を返す.
+		 * @param stage ステージの添字
+		 * @return {@link InputStream}
+		 */
+		public InputStream getStderr(final int stage) {
+			return stderrs[stage].getInputStream();
+		}
+		/**
+		 * 指定されたステージの標準エラーの内容に行ごとにアクセスするための{@link Iterable}を返す.
+		 * 途中で読み出しをやめる場合はイテレータもしくは返された{@link CloseableIterable}をクローズしなくてはならない。
+		 * @param stage ステージの添字
+		 * @param charset キャラクターセット
+		 * @return {@link Iterable}
+		 */
+		public CloseableIterable<String> getStderrLines(final int stage, final Charset charset) {
+			return new LineIterable(stderrs[stage], charset);
+		}
+		/**
+		 * 標準出力と標準エラーの内容を解放する.
+		 * このメソッドの呼び出し後は、それ以前に取得したストリームを含め内容にアクセスしてはならない。
+		 */
+		@Override
+		public void close() {
+			stdout.release();
+			for (final PipeOutputStream stderr : stderrs) {
+				stderr.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package org.doogwood.cmdexec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+/**
+ * 冪等な外部コマンドの実行結果をキャッシュするオブジェクト.
+ * {@code git rev-parse}や{@code uname}のように同じ引数で繰り返し実行され、
+ * 実行のたびに同じ結果を返すコマンドに対してプロセス起動のコストを省くために使用する。
+ * <p>キャッシュのキーはコマンドライン、カレント・ディレクトリ、環境変数、標準入力の内容である。
+ * 環境変数は{@link CommandTemplate#setEnvironment(Map)}で設定されたものをキーに含める
+ * （設定されていない場合はこのJVMの環境変数を引き継ぎ、これは実行中に変わらない）。
+ * 標準入力の内容は、{@link InputSource#of(java.io.File)}の場合はファイルのパス、サイズ、最終更新時刻で識別し
+ * （内容を読み取らないため、サイズと最終更新時刻を変えずに書き換えられたファイルは区別できない）、
+ * {@link InputSource#of(byte[])}の場合は内容のダイジェストで識別する。
+ * 標準入力の入力元が{@link InputSource#of(byte[])}もしくは{@link InputSource#of(java.io.File)}以外の場合は
+ * 内容を繰り返し読み取れないためキャッシュを使わずに実行する。
+ * {@link ExternalCommand#setStdoutRedirect(OutputRedirect)}などで出力をリダイレクトする場合も同様である。</p>
+ * <p>終了コード{@code 0}で完了し、出力が一時ファイルに書き出されず、
+ * {@link CapturePolicy}により出力が破棄されなかった実行結果のみキャッシュする。
+ * キャッシュされた実行結果は有効期限が過ぎると破棄され、合計のバイト数が上限を超えると
+ * 最も長く参照されていないものから破棄される。
+ * 同じキーの実行が同時に要求された場合は1度だけ実行し、その結果をすべての呼び出し元で共有する。</p>
+ * <p>{@link #execute(ExternalCommand)}が返す{@link Result}は呼び出しごとに独立しており、呼び出し元の責任でクローズしなくてはならない。</p>
+ */
+public final class CommandResultCache {
+	/**
+	 * キャッシュされた実行結果の合計のバイト数の上限.
+	 */
+	private final long maxBytes;
+	/**
+	 * キャッシュされた実行結果の有効期限のナノ秒.
+	 */
+	private final long ttlNanos;
+	/**
+	 * キャッシュされた実行結果.
+	 * 参照された順に並べ、先頭が最も長く参照されていないものとなる。
+	 */
+	private final LinkedHashMap<List<String>, CachedResult> entries =
+			new LinkedHashMap<List<String>, CachedResult>(16, 0.75f, true);
+	/**
+	 * 実行中のキーと、その完了を待ち合わせるためのオブジェクト.
+	 */
+	private final Map<List<String>, Flight> flights = new HashMap<List<String>, Flight>();
+	/**
+	 * キャッシュされた実行結果の合計のバイト数.
+	 */
+	private long cachedBytes = 0;
+	/**
+	 * キャッシュが使われた回数.
+	 */
+	private long hitCount = 0;
+	/**
+	 * キャッシュが使われず実行された回数.
+	 */
+	private long missCount = 0;
+
+	/**
+	 * コンストラクタ.
+	 * @param maxBytes キャッシュされた実行結果の合計のバイト数の上限
+	 * @param ttlMillis キャッシュされた実行結果の有効期限のミリ秒
+	 */
+	public CommandResultCache(final long maxBytes, final long ttlMillis) {
+		if (maxBytes < 0 || ttlMillis <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxBytes = maxBytes;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	/**
+	 * タイムアウト指定なしで同期実行する.
+	 * キャッシュされた実行結果があればそれを返す。
+	 * @param command コマンド
+	 * @return 実行結果
+	 */
+	public Result execute(final ExternalCommand command) {
+		return execute(command, 0);
+	}
+	/**
+	 * タイムアウト指定ありで同期実行する.
+	 * キャッシュされた実行結果があればそれを返す。
+	 * 同じキーのコマンドが実行中の場合はその完了を待ち合わせ、結果を共有する
+	 * （その結果がキャッシュできないものだった場合は改めて実行する）。
+	 * @param command コマンド
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @return 実行結果
+	 */
+	public Result execute(final ExternalCommand command, final long timeoutMillis) {
+		if (command == null) {
+			throw new IllegalArgumentException();
+		}
+		final List<String> key = keyOf(command);
+		if (key == null) {
+			// 標準入力の内容を特定できないかリダイレクトするためキャッシュを使わずに実行する
+			synchronized (this) {
+				missCount ++;
+			}
+			return command.execute(timeoutMillis);
+		}
+
+		final Flight flight;
+		final boolean owner;
+		synchronized (this) {
+			final CachedResult cached = lookup(key);
+			if (cached != null) {
+				hitCount ++;
+				return cached.toResult();
+			}
+			final Flight running = flights.get(key);
+			if (running == null) {
+				flight = new Flight();
+				flights.put(key, flight);
+				owner = true;
+				missCount ++;
+			} else {
+				flight = running;
+				owner = false;
+			}
+		}
+
+		if (owner) {
+			return executeAndCache(command, timeoutMillis, key, flight);
+		}
+		// 実行中のコマンドの完了を待ち合わせる
+		final CachedResult shared = flight.await();
+		if (shared != null) {
+			synchronized (this) {
+				hitCount ++;
+			}
+			return shared.toResult();
+		}
+		synchronized (this) {
+			missCount ++;
+		}
+		return command.execute(timeoutMillis);
+	}
+	/**
+	 * コマンドを実行し、可能であれば実行結果をキャッシュする.
+	 * @param command コマンド
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @param key キャッシュのキー
+	 * @param flight 完了を待ち合わせるためのオブジェクト
+	 * @return 実行結果
+	 */
+	private Result executeAndCache(final ExternalCommand command, final long timeoutMillis,
+			final List<String> key, final Flight flight) {
+		CachedResult cached = null;
+		try {
+			final Result result = command.execute(timeoutMillis);
+			cached = CachedResult.of(result, maxBytes, System.nanoTime() + ttlNanos);
+			return result;
+		} catch (final RuntimeException e) {
+			flight.fail(e);
+			throw e;
+		} finally {
+			synchronized (this) {
+				flights.remove(key);
+				if (cached != null) {
+					put(key, cached);
+				}
+			}
+			flight.complete(cached);
+		}
+	}
+	/**
+	 * 有効期限内の実行結果を取り出す.
+	 * 有効期限の過ぎた実行結果は破棄する。
+	 * @param key キャッシュのキー
+	 * @return 実行結果（ない場合は{@code null}）
+	 */
+	private CachedResult lookup(final List<String> key) {
+		final CachedResult cached = entries.get(key);
+		if (cached == null) {
+			return null;
+		}
+		if (cached.expiresNanos - System.nanoTime() <= 0) {
+			entries.remove(key);
+			cachedBytes -= cached.size();
+			return null;
+		}
+		return cached;
+	}
+	/**
+	 * 実行結果をキャッシュし、合計のバイト数が上限を超えた分を最も長く参照されていないものから破棄する.
+	 * @param key キャッシュのキー
+	 * @param cached 実行結果
+	 */
+	private void put(final List<String> key, final CachedResult cached) {
+		final CachedResult old = entries.put(key, cached);
+		if (old != null) {
+			cachedBytes -= old.size();
+		}
+		cachedBytes += cached.size();
+		final Iterator<CachedResult> iter = entries.values().iterator();
+		while (cachedBytes > maxBytes && iter.hasNext()) {
+			cachedBytes -= iter.next().size();
+			iter.remove();
+		}
+	}
+	/**
+	 * キャッシュされた実行結果をすべて破棄する.
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+		cachedBytes = 0;
+	}
+	/**
+	 * キャッシュされた実行結果の数を返す.
+	 * 有効期限の過ぎたものも破棄されるまでは数に含まれる。
+	 * @return 実行結果の数
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	/**
+	 * キャッシュされた実行結果の合計のバイト数を返す.
+	 * @return バイト数
+	 */
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+	/**
+	 * キャッシュが使われた回数を返す.
+	 * @return 回数
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+	/**
+	 * キャッシュが使われず実行された回数を返す.
+	 * @return 回数
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * コマンドからキャッシュのキーを生成する.
+	 * @param command コマンド
+	 * @return キー（標準入力の内容を特定できない場合や出力をリダイレクトする場合は{@code null}）
+	 */
+	private static List<String> keyOf(final ExternalCommand command) {
+		if (!command.getStdoutRedirect().isCapture() || !command.getStderrRedirect().isCapture()) {
+			// リダイレクト先への書き込みは実行のたびに行わなくてはならない
+			return null;
+		}
+		final InputSource source = command.getInputSource();
+		final String input;
+		if (source == null) {
+			input = "";
+		} else if (source.getFile() != null) {
+			// ファイルは実行のたびに内容を読み取らず、パスとサイズと最終更新時刻で識別する
+			final File file = source.getFile().getAbsoluteFile();
+			input = "file:" + file.getPath() + ':' + file.length() + ':' + file.lastModified();
+		} else if (source.isRepeatable()) {
+			input = "sha256:" + digest(source);
+		} else {
+			return null;
+		}
+		final List<String> key = new ArrayList<String>();
+		key.add(command.getWorkingDirectory().getAbsolutePath());
+		key.add(input);
+		// 環境変数の数を前置して、可変長の環境変数と引数の境界を区別する
+		final String[] env = command.getPreparedEnvironment();
+		if (env == null) {
+			key.add("inherit");
+		} else {
+			final String[] sorted = env.clone();
+			Arrays.sort(sorted);
+			key.add(String.valueOf(sorted.length));
+			key.addAll(Arrays.asList(sorted));
+		}
+		key.addAll(Arrays.asList(command.getCommandLine().toStrings()));
+		return key;
+	}
+	/**
+	 * 入力元の内容のダイジェストを16進数の文字列として求める.
+	 * @param source 入力元
+	 * @return ダイジェスト
+	 */
+	private static String digest(final InputSource source) {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			// SHA-256はすべてのJava実装でサポートされるためこの例外がスローされるのは予期せぬ事態のみ
+			// よって非チェック例外でラップして再スローする
+			throw new RuntimeException(e);
+		}
+		try {
+			final InputStream in = source.open();
+			try {
+				final byte[] buff = new byte[LargeBufferPumpStreamHandler.PUMP_BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buff)) != -1) {
+					md.update(buff, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			// 入力元の読み取り中のエラーは予期せぬ事態
+			// よって非チェック例外でラップして再スローする
+			throw new RuntimeException(e);
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (final byte b : md.digest()) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * キャッシュされた実行結果.
+	 * 出力の内容はバイト配列として保持する。
+	 */
+	private static final class CachedResult {
+		/**
+		 * 終了コード.
+		 */
+		private final int exitCode;
+		/**
+		 * 標準出力の内容.
+		 */
+		private final byte[] stdout;
+		/**
+		 * 標準エラーの内容.
+		 */
+		private final byte[] stderr;
+		/**
+		 * 有効期限の時刻（ナノ秒）.
+		 */
+		private final long expiresNanos;
+
+		/**
+		 * コンストラクタ.
+		 * @param exitCode 終了コード
+		 * @param stdout 標準出力の内容
+		 * @param stderr 標準エラーの内容
+		 * @param expiresNanos 有効期限の時刻
+		 */
+		private CachedResult(final int exitCode, final byte[] stdout, final byte[] stderr, final long expiresNanos) {
+			this.exitCode = exitCode;
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.expiresNanos = expiresNanos;
+		}
+		/**
+		 * 実行結果の内容をコピーしてキャッシュ用のオブジェクトを生成する.
+		 * @param result 実行結果
+		 * @param maxBytes バイト数の上限
+		 * @param expiresNanos 有効期限の時刻
+		 * @return オブジェクト（キャッシュできない実行結果の場合は{@code null}）
+		 */
+		static CachedResult of(final Result result, final long maxBytes, final long expiresNanos) {
+			if (result.getExitCode() != 0 || result.isUsingTempFile()
+					|| result.getStdoutDroppedBytes() > 0 || result.getStderrDroppedBytes() > 0) {
+				return null;
+			}
+			final ByteBuffer stdout = result.getStdoutBuffer();
+			final ByteBuffer stderr = result.getStderrBuffer();
+			if ((long) stdout.remaining() + stderr.remaining() > maxBytes) {
+				return null;
+			}
+			return new CachedResult(result.getExitCode(), toBytes(stdout), toBytes(stderr), expiresNanos);
+		}
+		/**
+		 * {@link ByteBuffer}の内容をバイト配列にコピーする.
+		 * @param buffer {@link ByteBuffer}
+		 * @return バイト配列
+		 */
+		private static byte[] toBytes(final ByteBuffer buffer) {
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			return bytes;
+		}
+		/**
+		 * 出力の合計のバイト数を返す.
+		 * @return バイト数
+		 */
+		long size() {
+			return (long) stdout.length + stderr.length;
+		}
+		/**
+		 * 呼び出し元に返すための実行結果を生成する.
+		 * @return 実行結果
+		 */
+		Result toResult() {
+			return Result.of(exitCode, stdout, stderr);
+		}
+	}
+
+	/**
+	 * 同じキーのコマンドの実行の完了を待ち合わせるためのオブジェクト.
+	 */
+	private static final class Flight {
+		/**
+		 * 完了を通知するためのラッチ.
+		 */
+		private final CountDownLatch latch = new CountDownLatch(1);
+		/**
+		 * キャッシュされた実行結果.
+		 */
+		private volatile CachedResult cached = null;
+		/**
+		 * 実行時にスローされた例外.
+		 */
+		private volatile RuntimeException error = null;
+
+		/**
+		 * 実行時に例外がスローされたことを記録する.
+		 * @param e 例外
+		 */
+		void fail(final RuntimeException e) {
+			error = e;
+		}
+		/**
+		 * 完了を通知する.
+		 * @param result キャッシュされた実行結果（キャッシュできなかった場合は{@code null}）
+		 */
+		void complete(final CachedResult result) {
+			cached = result;
+			latch.countDown();
+		}
+		/**
+		 * 完了を待ち合わせる.
+		 * @return キャッシュされた実行結果（キャッシュできなかった場合は{@code null}）
+		 */
+		CachedResult await() {
+			try {
+				latch.await();
+			} catch (final InterruptedException e) {
+				// 割り込み状態を復元して非チェック例外でラップして再スローする
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			if (error != null) {
+				// 共有する実行が失敗したため同じ例外を原因として再スローする
+				throw new RuntimeException(error);
+			}
+			return cached;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.doogwood.cmdexec;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+/**
+ * 引数だけを変えて同じコマンドを繰り返し実行するためのテンプレート.
+ * コマンドラインの解析と文字列配列への変換、環境変数の変換はテンプレートの生成時に一度だけ行い、
+ * 実行のたびに行うのは後ろに付け加える引数の連結だけである。
+ * 多数の短いコマンドを次々に実行する場合に、実行ごとの準備にかかる時間を抑えられる。
+ * <p>後ろに付け加える引数はクォートや変数の展開を行わず、そのままプロセスに渡される。
+ * 実行に関する設定（カレント・ディレクトリ、一時ファイルの格納先、ポーラーなど）は
+ * {@link #bind(String...)}もしくは{@link #execute(String...)}の呼び出し時点のもとになるコマンドの設定に従う。
+ * 実行ごとに読み取りのスレッドを起動する時間も抑えたい場合は
+ * もとになるコマンドに{@link ExternalCommand#setStreamPoller(StreamPoller)}でポーラーを設定する。</p>
+ * <p>プロセスの起動方法（{@code posix_spawn}や{@code vfork}など）はJVMが決定する。
+ * LinuxのJDKはいずれもデフォルトでこれらの軽量な方法を使用するため、このクラスは変更しない。</p>
+ */
+public final class CommandTemplate {
+	/**
+	 * もとになるコマンド.
+	 */
+	private final ExternalCommand base;
+	/**
+	 * 変換済みのコマンドと固定の引数.
+	 */
+	private final String[] prefix;
+	/**
+	 * 設定された環境変数.
+	 */
+	private Map<String, String> environmentMap = null;
+	/**
+	 * 変換済みの環境変数（{@code "名前=値"}の配列）.
+	 * {@code null}の場合は環境変数を引き継ぐ。
+	 */
+	private String[] environment = null;
+
+	/**
+	 * コンストラクタ.
+	 * 静的メソッドを介した初期化のみ許可する。
+	 * @param base もとになるコマンド
+	 */
+	private CommandTemplate(final ExternalCommand base) {
+		this.base = base;
+		// もとになるコマンドを実行する場合と同じ変換を一度だけ行う
+		this.prefix = base.getCommandLine().toStrings();
+	}
+
+	/**
+	 * コマンドをもとにテンプレートを生成する.
+	 * コマンドとその引数は実行ごとに付け加える引数の前に置かれる。
+	 * @param command もとになるコマンド
+	 * @return テンプレート
+	 */
+	public static CommandTemplate of(final ExternalCommand command) {
+		if (command == null) {
+			throw new IllegalArgumentException();
+		}
+		return new CommandTemplate(command);
+	}
+	/**
+	 * 外部コマンド文字列をもとにテンプレートを生成する.
+	 * @param commandLine 外部コマンド文字列
+	 * @return テンプレート
+	 */
+	public static CommandTemplate parse(final String commandLine) {
+		return of(ExternalCommand.parse(commandLine));
+	}
+	/**
+	 * もとになるコマンドを返す.
+	 * @return コマンド
+	 */
+	public ExternalCommand getCommand() {
+		return base;
+	}
+	/**
+	 * 設定された環境変数を返す.
+	 * @return 環境変数（設定されていない場合は{@code null}）
+	 */
+	public Map<String, String> getEnvironment() {
+		return environmentMap;
+	}
+	/**
+	 * 実行するプロセスの環境変数を設定する.
+	 * 設定した環境変数はJVMの環境変数を引き継がず、プロセスの環境変数のすべてとなる。
+	 * JVMの環境変数に追加したい場合は{@link System#getenv()}の内容をコピーしたマップに追加して設定する。
+	 * 変換はこのメソッドの呼び出し時に一度だけ行う。
+	 * デフォルトでは{@code null}（JVMの環境変数を引き継ぐ）が設定されている。
+	 * @param env 環境変数
+	 */
+	public void setEnvironment(final Map<String, String> env) {
+		if (env == null) {
+			this.environmentMap = null;
+			this.environment = null;
+			return;
+		}
+		final Map<String, String> copy = Collections.unmodifiableMap(new LinkedHashMap<String, String>(env));
+		final String[] strings = new String[copy.size()];
+		int i = 0;
+		for (final Map.Entry<String, String> e : copy.entrySet()) {
+			if (e.getKey() == null || e.getValue() == null) {
+				throw new IllegalArgumentException();
+			}
+			strings[i ++] = e.getKey() + "=" + e.getValue();
+		}
+		this.environmentMap = copy;
+		this.environment = strings;
+	}
+	/**
+	 * 引数を付け加えたコマンドを生成する.
+	 * 生成したコマンドは通常のコマンドと同様に同期・非同期で実行できる。
+	 * @param args 付け加える引数
+	 * @return コマンド
+	 */
+	public ExternalCommand bind(final String... args) {
+		if (args == null) {
+			throw new IllegalArgumentException();
+		}
+		final String[] arguments = Arrays.copyOf(prefix, prefix.length + args.length);
+		for (int i = 0; i < args.length; i ++) {
+			if (args[i] == null) {
+				throw new IllegalArgumentException();
+			}
+			arguments[prefix.length + i] = args[i];
+		}
+		return new ExternalCommand(base, arguments, environment);
+	}
+	/**
+	 * 引数を付け加えてタイムアウト指定なしで同期実行する.
+	 * @param args 付け加える引数
+	 * @return 実行結果
+	 */
+	public Result execute(final String... args) {
+		return bind(args).execute();
+	}
+	/**
+	 * 引数を付け加えてタイムアウト指定ありで同期実行する.
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @param args 付け加える引数
+	 * @return 実行結果
+	 * @see ExternalCommand#execute(long)
+	 */
+	public Result execute(final long timeoutMillis, final String... args) {
+		return bind(args).execute(timeoutMillis);
+	}
+	/**
+	 * 引数を付け加えてタイムアウト指定ありで非同期実行する.
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @param args 付け加える引数
+	 * @return 実行結果にアクセスするためのFutureオブジェクト
+	 * @see ExternalCommand#executeAsync(long)
+	 */
+	public CommandFuture executeAsync(final long timeoutMillis, final String... args) {
+		return bind(args).executeAsync(timeoutMillis);
+	}
+}
@@ -0,0 +1,43 @@
+package org.doogwood.cmdexec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 書き込まれたバイト数を数えながら転送する出力ストリーム.
+ */
+final class CountingOutputStream extends FilterOutputStream {
+	/**
+	 * 書き込まれたバイト数.
+	 */
+	private volatile long count = 0;
+	
+	/**
+	 * コンストラクタ.
+	 * @param out 転送先のストリーム
+	 */
+	CountingOutputStream(final OutputStream out) {
+		super(out);
+	}
+	
+	@Override
+	public void write(final int b) throws IOException {
+		out.write(b);
+		count ++;
+	}
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		// FilterOutputStreamのデフォルト実装は1バイトずつ書き込むため直接転送する
+		out.write(b, off, len);
+		count += len;
+	}
+	
+	/**
+	 * 書き込まれたバイト数を返す.
+	 * @return バイト数
+	 */
+	long getCount() {
+		return count;
+	}
+}
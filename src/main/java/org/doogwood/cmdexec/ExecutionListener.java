@@ -0,0 +1,15 @@
+package org.doogwood.cmdexec;
+
+/**
+ * 外部コマンドの実行が完了したときに計測値の通知を受けるリスナー.
+ * {@link ExternalCommand#addExecutionListener(ExecutionListener)}で登録する。
+ * 通知はコマンドを実行したスレッドで行われるため、時間のかかる処理は避けなくてはならない。
+ */
+public interface ExecutionListener {
+	/**
+	 * 外部コマンドの実行が完了したときに呼び出される.
+	 * このメソッドがスローした実行時例外は無視される。
+	 * @param metrics 計測値
+	 */
+	void executionCompleted(ExecutionMetrics metrics);
+}
@@ -0,0 +1,165 @@
+package org.doogwood.cmdexec;
+
+/**
+ * 外部コマンドの1回の実行について計測した値を表わすオブジェクト.
+ * 時間はいずれもナノ秒単位で、{@link System#nanoTime()}によって計測される。
+ */
+public final class ExecutionMetrics {
+	/**
+	 * 実行したコマンド.
+	 */
+	private final ExternalCommand command;
+	/**
+	 * 非同期実行のキューで待機した時間.
+	 */
+	private final long queueWaitNanos;
+	/**
+	 * プロセスの起動にかかった時間.
+	 */
+	private final long spawnNanos;
+	/**
+	 * プロセスの起動から終了までの時間.
+	 */
+	private final long runNanos;
+	/**
+	 * プロセスの終了から出力を受け取り終えるまでの時間.
+	 */
+	private final long drainNanos;
+	/**
+	 * 標準出力のバイト数.
+	 */
+	private final long stdoutBytes;
+	/**
+	 * 標準エラーのバイト数.
+	 */
+	private final long stderrBytes;
+	/**
+	 * 出力が一時ファイルに書き出されたかどうかを示す.
+	 */
+	private final boolean spilled;
+	/**
+	 * プロセスが強制終了されたかどうかを示す.
+	 */
+	private final boolean killed;
+	/**
+	 * 終了コード.
+	 */
+	private final int exitCode;
+
+	/**
+	 * コンストラクタ.
+	 * @param command 実行したコマンド
+	 * @param queueWaitNanos キューで待機した時間
+	 * @param spawnNanos プロセスの起動にかかった時間
+	 * @param runNanos プロセスの起動から終了までの時間
+	 * @param drainNanos プロセスの終了から出力を受け取り終えるまでの時間
+	 * @param stdoutBytes 標準出力のバイト数
+	 * @param stderrBytes 標準エラーのバイト数
+	 * @param spilled 出力が一時ファイルに書き出されたかどうか
+	 * @param killed プロセスが強制終了されたかどうか
+	 * @param exitCode 終了コード
+	 */
+	ExecutionMetrics(final ExternalCommand command, final long queueWaitNanos,
+			final long spawnNanos, final long runNanos, final long drainNanos,
+			final long stdoutBytes, final long stderrBytes,
+			final boolean spilled, final boolean killed, final int exitCode) {
+		this.command = command;
+		this.queueWaitNanos = queueWaitNanos;
+		this.spawnNanos = spawnNanos;
+		this.runNanos = runNanos;
+		this.drainNanos = drainNanos;
+		this.stdoutBytes = stdoutBytes;
+		this.stderrBytes = stderrBytes;
+		this.spilled = spilled;
+		this.killed = killed;
+		this.exitCode = exitCode;
+	}
+
+	/**
+	 * 実行したコマンドを返す.
+	 * @return コマンド
+	 */
+	public ExternalCommand getCommand() {
+		return command;
+	}
+	/**
+	 * 非同期実行のキューで待機した時間を返す.
+	 * 同期実行の場合は{@code 0}を返す。
+	 * @return ナノ秒
+	 */
+	public long getQueueWaitNanos() {
+		return queueWaitNanos;
+	}
+	/**
+	 * プロセスの起動にかかった時間を返す.
+	 * @return ナノ秒
+	 */
+	public long getSpawnNanos() {
+		return spawnNanos;
+	}
+	/**
+	 * プロセスの起動から終了までの時間を返す.
+	 * @return ナノ秒
+	 */
+	public long getRunNanos() {
+		return runNanos;
+	}
+	/**
+	 * プロセスの終了から出力を受け取り終えるまでの時間を返す.
+	 * @return ナノ秒
+	 */
+	public long getDrainNanos() {
+		return drainNanos;
+	}
+	/**
+	 * キューでの待機から出力を受け取り終えるまでの合計の時間を返す.
+	 * @return ナノ秒
+	 */
+	public long getTotalNanos() {
+		return queueWaitNanos + spawnNanos + runNanos + drainNanos;
+	}
+	/**
+	 * 標準出力のバイト数を返す.
+	 * @return バイト数
+	 */
+	public long getStdoutBytes() {
+		return stdoutBytes;
+	}
+	/**
+	 * 標準エラーのバイト数を返す.
+	 * @return バイト数
+	 */
+	public long getStderrBytes() {
+		return stderrBytes;
+	}
+	/**
+	 * 標準出力もしくは標準エラーが一時ファイルに書き出された場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean isSpilled() {
+		return spilled;
+	}
+	/**
+	 * タイムアウトもしくはディスク容量の上限超過によりプロセスが強制終了された場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean isKilled() {
+		return killed;
+	}
+	/**
+	 * 終了コードを返す.
+	 * @return 終了コード
+	 */
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	@Override
+	public String toString() {
+		return "ExecutionMetrics [command=" + command.getCommandLine()
+				+ ", queueWaitNanos=" + queueWaitNanos + ", spawnNanos=" + spawnNanos
+				+ ", runNanos=" + runNanos + ", drainNanos=" + drainNanos
+				+ ", stdoutBytes=" + stdoutBytes + ", stderrBytes=" + stderrBytes
+				+ ", spilled=" + spilled + ", killed=" + killed + ", exitCode=" + exitCode + "]";
+	}
+}
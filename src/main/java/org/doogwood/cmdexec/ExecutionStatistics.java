@@ -0,0 +1,221 @@
+package org.doogwood.cmdexec;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * 外部コマンドの実行の計測値を集計するリスナー.
+ * {@link ExternalCommand#addExecutionListener(ExecutionListener)}で登録すると
+ * 以降のすべての実行について回数・時間・出力のバイト数を集計する。
+ * {@link #registerMBean()}によりJMXで集計値を公開することもできる。
+ * 集計はスレッドセーフに行われる。
+ */
+public final class ExecutionStatistics implements ExecutionListener, ExecutionStatisticsMBean {
+	/**
+	 * JMXで公開する際のデフォルトのオブジェクト名.
+	 */
+	public static final String DEFAULT_OBJECT_NAME = "org.doogwood.cmdexec:type=ExecutionStatistics";
+	/**
+	 * ヒストグラムの階級の数.
+	 */
+	public static final int HISTOGRAM_BUCKETS = 32;
+
+	/**
+	 * 実行回数.
+	 */
+	private final AtomicLong executionCount = new AtomicLong();
+	/**
+	 * 終了コードが{@code 0}以外だった実行の回数.
+	 */
+	private final AtomicLong failureCount = new AtomicLong();
+	/**
+	 * プロセスが強制終了された実行の回数.
+	 */
+	private final AtomicLong killedCount = new AtomicLong();
+	/**
+	 * 出力が一時ファイルに書き出された実行の回数.
+	 */
+	private final AtomicLong spilledCount = new AtomicLong();
+	/**
+	 * 標準出力の合計バイト数.
+	 */
+	private final AtomicLong stdoutBytes = new AtomicLong();
+	/**
+	 * 標準エラーの合計バイト数.
+	 */
+	private final AtomicLong stderrBytes = new AtomicLong();
+	/**
+	 * キューで待機した合計のナノ秒.
+	 */
+	private final AtomicLong queueWaitNanos = new AtomicLong();
+	/**
+	 * プロセスの起動にかかった合計のナノ秒.
+	 */
+	private final AtomicLong spawnNanos = new AtomicLong();
+	/**
+	 * プロセスの起動から終了までの合計のナノ秒.
+	 */
+	private final AtomicLong runNanos = new AtomicLong();
+	/**
+	 * プロセスの終了から出力を受け取り終えるまでの合計のナノ秒.
+	 */
+	private final AtomicLong drainNanos = new AtomicLong();
+	/**
+	 * 1回の実行にかかったナノ秒の最大値.
+	 */
+	private final AtomicLong maxTotalNanos = new AtomicLong();
+	/**
+	 * 1回の実行にかかったミリ秒のヒストグラム.
+	 */
+	private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+	@Override
+	public void executionCompleted(final ExecutionMetrics metrics) {
+		executionCount.incrementAndGet();
+		if (metrics.getExitCode() != 0) {
+			failureCount.incrementAndGet();
+		}
+		if (metrics.isKilled()) {
+			killedCount.incrementAndGet();
+		}
+		if (metrics.isSpilled()) {
+			spilledCount.incrementAndGet();
+		}
+		stdoutBytes.addAndGet(metrics.getStdoutBytes());
+		stderrBytes.addAndGet(metrics.getStderrBytes());
+		queueWaitNanos.addAndGet(metrics.getQueueWaitNanos());
+		spawnNanos.addAndGet(metrics.getSpawnNanos());
+		runNanos.addAndGet(metrics.getRunNanos());
+		drainNanos.addAndGet(metrics.getDrainNanos());
+
+		final long total = metrics.getTotalNanos();
+		// 最大値を更新する
+		while (true) {
+			final long max = maxTotalNanos.get();
+			if (total <= max || maxTotalNanos.compareAndSet(max, total)) {
+				break;
+			}
+		}
+		histogram.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMillis(total)));
+	}
+	/**
+	 * ミリ秒からヒストグラムの階級の添字を求める.
+	 * @param millis ミリ秒
+	 * @return 添字
+	 */
+	static int bucketOf(final long millis) {
+		if (millis <= 0) {
+			return 0;
+		}
+		return Math.min(64 - Long.numberOfLeadingZeros(millis), HISTOGRAM_BUCKETS - 1);
+	}
+
+	@Override
+	public long getExecutionCount() {
+		return executionCount.get();
+	}
+	@Override
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+	@Override
+	public long getKilledCount() {
+		return killedCount.get();
+	}
+	@Override
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+	@Override
+	public long getStdoutBytes() {
+		return stdoutBytes.get();
+	}
+	@Override
+	public long getStderrBytes() {
+		return stderrBytes.get();
+	}
+	@Override
+	public long getTotalQueueWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(queueWaitNanos.get());
+	}
+	@Override
+	public long getTotalSpawnMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(spawnNanos.get());
+	}
+	@Override
+	public long getTotalRunMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(runNanos.get());
+	}
+	@Override
+	public long getTotalDrainMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(drainNanos.get());
+	}
+	@Override
+	public long getMaxTotalMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxTotalNanos.get());
+	}
+	/**
+	 * 1回の実行にかかった時間のヒストグラムを返す.
+	 * 添字{@code 0}の要素は1ミリ秒未満の実行の回数を、
+	 * 添字{@code i}（{@code i >= 1}）の要素は2<sup>i-1</sup>ミリ秒以上2<sup>i</sup>ミリ秒未満の実行の回数を表わす。
+	 * ただし最後の要素はそれ以上のすべての実行の回数を表わす。
+	 * @return 度数の配列
+	 */
+	@Override
+	public long[] getTotalMillisHistogram() {
+		final long[] result = new long[HISTOGRAM_BUCKETS];
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i ++) {
+			result[i] = histogram.get(i);
+		}
+		return result;
+	}
+	@Override
+	public void reset() {
+		executionCount.set(0);
+		failureCount.set(0);
+		killedCount.set(0);
+		spilledCount.set(0);
+		stdoutBytes.set(0);
+		stderrBytes.set(0);
+		queueWaitNanos.set(0);
+		spawnNanos.set(0);
+		runNanos.set(0);
+		drainNanos.set(0);
+		maxTotalNanos.set(0);
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i ++) {
+			histogram.set(i, 0);
+		}
+	}
+
+	/**
+	 * デフォルトのオブジェクト名でプラットフォームのMBeanサーバーに登録する.
+	 * @return 登録に使用したオブジェクト名
+	 */
+	public ObjectName registerMBean() {
+		return registerMBean(DEFAULT_OBJECT_NAME);
+	}
+	/**
+	 * 指定されたオブジェクト名でプラットフォームのMBeanサーバーに登録する.
+	 * @param name オブジェクト名
+	 * @return 登録に使用したオブジェクト名
+	 */
+	public ObjectName registerMBean(final String name) {
+		try {
+			final ObjectName objectName = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			return objectName;
+		} catch (final MalformedObjectNameException e) {
+			throw new IllegalArgumentException(e);
+		} catch (final JMException e) {
+			// 同名のMBeanがすでに登録されている場合など
+			// 非チェック例外でラップして再スローする
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.doogwood.cmdexec;
+
+/**
+ * {@link ExecutionStatistics}をJMXで公開するためのインターフェース.
+ */
+public interface ExecutionStatisticsMBean {
+	/**
+	 * 実行回数を返す.
+	 * @return 実行回数
+	 */
+	long getExecutionCount();
+	/**
+	 * 終了コードが{@code 0}以外だった実行の回数を返す.
+	 * @return 実行回数
+	 */
+	long getFailureCount();
+	/**
+	 * プロセスが強制終了された実行の回数を返す.
+	 * @return 実行回数
+	 */
+	long getKilledCount();
+	/**
+	 * 出力が一時ファイルに書き出された実行の回数を返す.
+	 * @return 実行回数
+	 */
+	long getSpilledCount();
+	/**
+	 * 標準出力の合計バイト数を返す.
+	 * @return バイト数
+	 */
+	long getStdoutBytes();
+	/**
+	 * 標準エラーの合計バイト数を返す.
+	 * @return バイト数
+	 */
+	long getStderrBytes();
+	/**
+	 * キューで待機した合計の時間を返す.
+	 * @return ミリ秒
+	 */
+	long getTotalQueueWaitMillis();
+	/**
+	 * プロセスの起動にかかった合計の時間を返す.
+	 * @return ミリ秒
+	 */
+	long getTotalSpawnMillis();
+	/**
+	 * プロセスの起動から終了までの合計の時間を返す.
+	 * @return ミリ秒
+	 */
+	long getTotalRunMillis();
+	/**
+	 * プロセスの終了から出力を受け取り終えるまでの合計の時間を返す.
+	 * @return ミリ秒
+	 */
+	long getTotalDrainMillis();
+	/**
+	 * 1回の実行にかかった時間の最大値を返す.
+	 * @return ミリ秒
+	 */
+	long getMaxTotalMillis();
+	/**
+	 * 1回の実行にかかった時間のヒストグラムを返す.
+	 * @return 度数の配列
+	 * @see ExecutionStatistics#getTotalMillisHistogram()
+	 */
+	long[] getTotalMillisHistogram();
+	/**
+	 * 集計値をすべて{@code 0}に戻す.
+	 */
+	void reset();
+}
@@ -1,39 +1,117 @@
 package org.doogwood.cmdexec;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.ExecuteException;
-import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.Executor;
-import org.apache.commons.exec.PumpStreamHandler;
 
 /**
  * 外部コマンドを表わすオブジェクト.
  * 同期もしくは非同期で当該コマンドを実行するためのメソッドを提供する。
  */
 public final class ExternalCommand {
+	/**
+	 * 強制終了の際に{@code SIGTERM}を送ってから{@code SIGKILL}を送るまでのデフォルトの猶予のミリ秒.
+	 */
+	public static final long DEFAULT_KILL_GRACE_PERIOD_MILLIS = 1000;
+	/**
+	 * 非同期実行のためにすべてのインスタンスが共有するデフォルトのスレッドプール.
+	 * 初めて必要になったときに初期化される。
+	 */
+	private static ExecutorService defaultExecutorService = null;
+	/**
+	 * 実行が完了したときに計測値の通知を受けるリスナー.
+	 */
+	private static final List<ExecutionListener> executionListeners = new CopyOnWriteArrayList<ExecutionListener>();
 	/**
 	 * Apache Commons Execのコマンドライン・オブジェクト.
+	 * {@link CommandTemplate}から生成した場合は初めて必要になったときに初期化される。
 	 */
-	private final CommandLine commandLine;
+	private CommandLine commandLine;
+	/**
+	 * {@link CommandTemplate}から生成した場合の組み立て済みのコマンドと引数.
+	 * {@code null}でない場合はコマンドラインの解析とクォートを行わずにこのままプロセスを起動する。
+	 */
+	private final String[] preparedArguments;
+	/**
+	 * {@link CommandTemplate}から生成した場合の組み立て済みの環境変数（{@code "名前=値"}の配列）.
+	 * {@code null}の場合は環境変数を引き継ぐ。
+	 */
+	private final String[] preparedEnvironment;
 	/**
 	 * コマンド実行時のカレント・ディレクトリ.
 	 */
 	private File workingDirectory = new File(".");
+	/**
+	 * 非同期実行に使用するスレッドプール.
+	 * {@code null}の場合はデフォルトのスレッドプールを使用する。
+	 */
+	private ExecutorService executorService = null;
+	/**
+	 * 出力が閾値を超えた場合に書き出す一時ファイルの格納先.
+	 * {@code null}の場合はデフォルトの格納先を使用する。
+	 */
+	private TempFileStore tempFileStore = null;
+	/**
+	 * 出力が閾値を超えた場合に一時ファイルを圧縮するかどうかを示す.
+	 */
+	private boolean spillCompressed = false;
+	/**
+	 * 標準入力に与えるデータの入力元.
+	 * {@code null}の場合は標準入力をただちにクローズする。
+	 */
+	private InputSource inputSource = null;
+	/**
+	 * 標準出力と標準エラーの読み取りを任せるポーラー.
+	 * {@code null}の場合はストリームごとに読み取りのスレッドを起動する。
+	 */
+	private StreamPoller streamPoller = null;
+	/**
+	 * 標準出力をどこまで保持するかを表わすポリシー.
+	 */
+	private CapturePolicy stdoutCapturePolicy = CapturePolicy.unbounded();
+	/**
+	 * 標準エラーをどこまで保持するかを表わすポリシー.
+	 */
+	private CapturePolicy stderrCapturePolicy = CapturePolicy.unbounded();
+	/**
+	 * 標準出力の出力先.
+	 */
+	private OutputRedirect stdoutRedirect = OutputRedirect.capture();
+	/**
+	 * 標準エラーの出力先.
+	 */
+	private OutputRedirect stderrRedirect = OutputRedirect.capture();
+	/**
+	 * 1回の実行でコマンドが使用できる資源の上限.
+	 */
+	private ResourceLimits resourceLimits = ResourceLimits.none();
+	/**
+	 * 実行ごとのcgroupを作成する親となるcgroup.
+	 * {@code null}の場合はデフォルトのコントローラーを使用する。
+	 */
+	private CgroupController cgroupController = null;
+	/**
+	 * 強制終了の際に{@code SIGTERM}を送ってから{@code SIGKILL}を送るまでの猶予のミリ秒.
+	 */
+	private long killGracePeriodMillis = DEFAULT_KILL_GRACE_PERIOD_MILLIS;
 	/**
 	 * コンストラクタ.
 	 * 静的メソッドを介した初期化のみ許可する。
@@ -47,14 +125,57 @@ public final class ExternalCommand {
 		for (final String arg : Arrays.copyOfRange(args, 1, args.length)) {
 			this.commandLine.addArgument(arg);
 		}
+		this.preparedArguments = null;
+		this.preparedEnvironment = null;
+	}
+	/**
+	 * コンストラクタ.
+	 * {@link CommandTemplate}が組み立て済みのコマンドと引数で実行するオブジェクトを生成するために使用する。
+	 * 実行に関する設定はもとになるオブジェクトからコピーする。
+	 * @param base もとになるオブジェクト
+	 * @param arguments 組み立て済みのコマンドと引数
+	 * @param environment 組み立て済みの環境変数（{@code null}の場合は環境変数を引き継ぐ）
+	 */
+	ExternalCommand(final ExternalCommand base, final String[] arguments, final String[] environment) {
+		this.commandLine = null;
+		this.preparedArguments = arguments;
+		this.preparedEnvironment = environment;
+		this.workingDirectory = base.workingDirectory;
+		this.executorService = base.executorService;
+		this.tempFileStore = base.tempFileStore;
+		this.spillCompressed = base.spillCompressed;
+		this.inputSource = base.inputSource;
+		this.streamPoller = base.streamPoller;
+		this.stdoutCapturePolicy = base.stdoutCapturePolicy;
+		this.stderrCapturePolicy = base.stderrCapturePolicy;
+		this.stdoutRedirect = base.stdoutRedirect;
+		this.stderrRedirect = base.stderrRedirect;
+		this.resourceLimits = base.resourceLimits;
+		this.cgroupController = base.cgroupController;
+		this.killGracePeriodMillis = base.killGracePeriodMillis;
 	}
 	/**
 	 * Apache Commons Execのコマンドライン・オブジェクトを返す.
 	 * @return コマンドライン・オブジェクト
 	 */
 	public CommandLine getCommandLine() {
+		if (commandLine == null) {
+			// 組み立て済みの引数はクォートせずにそのまま保持する
+			final CommandLine line = new CommandLine(preparedArguments[0]);
+			for (int i = 1; i < preparedArguments.length; i ++) {
+				line.addArgument(preparedArguments[i], false);
+			}
+			commandLine = line;
+		}
 		return commandLine;
 	}
+	/**
+	 * 組み立て済みの環境変数を返す.
+	 * @return {@code 名前=値}形式の環境変数の配列（このJVMの環境変数を引き継ぐ場合は{@code null}）
+	 */
+	String[] getPreparedEnvironment() {
+		return preparedEnvironment;
+	}
 	/**
 	 * コマンド実行時のカレント・ディレクトリを返す.
 	 * @return コマンド実行時のカレント・ディレクトリ
@@ -81,6 +202,246 @@ public final class ExternalCommand {
 	public void setWorkingDirectory(final String dirPath) {
 		setWorkingDirectory(new File(dirPath));
 	}
+	/**
+	 * 非同期実行に使用するスレッドプールを返す.
+	 * 個別に設定されていない場合は{@code null}を返す。
+	 * @return スレッドプール
+	 */
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+	/**
+	 * 非同期実行に使用するスレッドプールを設定する.
+	 * {@code null}を設定した場合はデフォルトのスレッドプールを使用する。
+	 * 設定したスレッドプールのライフサイクルは呼び出し元が管理する。
+	 * @param service スレッドプール
+	 */
+	public void setExecutorService(final ExecutorService service) {
+		this.executorService = service;
+	}
+	/**
+	 * 出力が閾値を超えた場合に書き出す一時ファイルの格納先を返す.
+	 * 個別に設定されていない場合は{@code null}を返す。
+	 * @return 一時ファイルの格納先
+	 */
+	public TempFileStore getTempFileStore() {
+		return tempFileStore;
+	}
+	/**
+	 * 出力が閾値を超えた場合に書き出す一時ファイルの格納先を設定する.
+	 * {@code null}を設定した場合は{@link TempFileStore#getDefault()}を使用する。
+	 * @param store 一時ファイルの格納先
+	 */
+	public void setTempFileStore(final TempFileStore store) {
+		this.tempFileStore = store;
+	}
+	/**
+	 * 出力が閾値を超えた場合に一時ファイルを圧縮する場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean isSpillCompressed() {
+		return spillCompressed;
+	}
+	/**
+	 * 出力が閾値を超えた場合に一時ファイルを圧縮するかどうかを設定する.
+	 * 大量のテキストを出力するコマンドではディスクへの書き込み量が減るかわりに、圧縮と伸張のCPU時間がかかる。
+	 * デフォルトでは{@code false}が設定されている。
+	 * @param compressed 圧縮する場合{@code true}
+	 * @see PipeOutputStream#setSpillCompressed(boolean)
+	 */
+	public void setSpillCompressed(final boolean compressed) {
+		this.spillCompressed = compressed;
+	}
+	/**
+	 * 標準入力に与えるデータの入力元を返す.
+	 * @return 入力元（設定されていない場合は{@code null}）
+	 */
+	public InputSource getInputSource() {
+		return inputSource;
+	}
+	/**
+	 * 標準入力に与えるデータの入力元を設定する.
+	 * デフォルトでは{@code null}が設定されており、標準入力は実行直後にクローズされる。
+	 * @param source 入力元
+	 */
+	public void setInputSource(final InputSource source) {
+		this.inputSource = source;
+	}
+	/**
+	 * 標準出力と標準エラーの読み取りを任せるポーラーを返す.
+	 * @return ポーラー（未設定の場合は{@code null}）
+	 */
+	public StreamPoller getStreamPoller() {
+		return streamPoller;
+	}
+	/**
+	 * 標準出力と標準エラーの読み取りを任せるポーラーを設定する.
+	 * 設定した場合、実行ごとに読み取りのスレッドを起動せずポーラーのスレッドがまとめて読み取るため、
+	 * 多数のコマンドを同時に実行する場合にスレッドの数を抑えられる。
+	 * {@link #executeStreaming(OutputListener, OutputListener, long)}のリスナーはポーラーのスレッドから呼び出されるため、
+	 * 時間のかかる処理を行うと同じポーラーを使用するすべてのコマンドの読み取りが遅れる。
+	 * デフォルトでは{@code null}（ストリームごとに読み取りのスレッドを起動する）が設定されている。
+	 * @param poller ポーラー
+	 * @see StreamPoller#getShared()
+	 */
+	public void setStreamPoller(final StreamPoller poller) {
+		this.streamPoller = poller;
+	}
+	/**
+	 * 標準出力をどこまで保持するかを表わすポリシーを返す.
+	 * @return ポリシー
+	 */
+	public CapturePolicy getStdoutCapturePolicy() {
+		return stdoutCapturePolicy;
+	}
+	/**
+	 * 標準出力をどこまで保持するかを表わすポリシーを設定する.
+	 * {@link #execute(long)}などで実行結果を受け取る場合に適用され、
+	 * {@link #executeStreaming(OutputListener, OutputListener, long)}には適用されない。
+	 * デフォルトでは{@link CapturePolicy#unbounded()}が設定されている。
+	 * @param policy ポリシー
+	 */
+	public void setStdoutCapturePolicy(final CapturePolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.stdoutCapturePolicy = policy;
+	}
+	/**
+	 * 標準エラーをどこまで保持するかを表わすポリシーを返す.
+	 * @return ポリシー
+	 */
+	public CapturePolicy getStderrCapturePolicy() {
+		return stderrCapturePolicy;
+	}
+	/**
+	 * 標準エラーをどこまで保持するかを表わすポリシーを設定する.
+	 * {@link #execute(long)}などで実行結果を受け取る場合に適用され、
+	 * {@link #executeStreaming(OutputListener, OutputListener, long)}には適用されない。
+	 * デフォルトでは{@link CapturePolicy#unbounded()}が設定されている。
+	 * @param policy ポリシー
+	 */
+	public void setStderrCapturePolicy(final CapturePolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.stderrCapturePolicy = policy;
+	}
+	/**
+	 * 標準出力の出力先を返す.
+	 * @return 出力先
+	 */
+	public OutputRedirect getStdoutRedirect() {
+		return stdoutRedirect;
+	}
+	/**
+	 * 標準出力の出力先を設定する.
+	 * {@link OutputRedirect#capture()}以外を設定した場合、標準出力はOSのレベルでリダイレクトされ、
+	 * 実行結果の標準出力の内容は空となる（リスナーにも通知されない）。
+	 * 転送のスレッドも起動されない。
+	 * デフォルトでは{@link OutputRedirect#capture()}が設定されている。
+	 * @param redirect 出力先
+	 */
+	public void setStdoutRedirect(final OutputRedirect redirect) {
+		if (redirect == null || redirect.isMergeToStdout()) {
+			throw new IllegalArgumentException();
+		}
+		this.stdoutRedirect = redirect;
+	}
+	/**
+	 * 標準エラーの出力先を返す.
+	 * @return 出力先
+	 */
+	public OutputRedirect getStderrRedirect() {
+		return stderrRedirect;
+	}
+	/**
+	 * 標準エラーの出力先を設定する.
+	 * {@link OutputRedirect#capture()}以外を設定した場合、標準エラーはOSのレベルでリダイレクトされ、
+	 * 実行結果の標準エラーの内容は空となる（リスナーにも通知されない）。
+	 * {@link OutputRedirect#toStdout()}を設定した場合は標準出力の出力先に合流する。
+	 * デフォルトでは{@link OutputRedirect#capture()}が設定されている。
+	 * @param redirect 出力先
+	 */
+	public void setStderrRedirect(final OutputRedirect redirect) {
+		if (redirect == null) {
+			throw new IllegalArgumentException();
+		}
+		this.stderrRedirect = redirect;
+	}
+	/**
+	 * 1回の実行でコマンドが使用できる資源の上限を返す.
+	 * @return 上限
+	 */
+	public ResourceLimits getResourceLimits() {
+		return resourceLimits;
+	}
+	/**
+	 * 1回の実行でコマンドが使用できる資源の上限を設定する.
+	 * cgroupのコントローラーが設定されている場合はcgroupで、そうでなければ{@code prlimit}コマンドで適用する。
+	 * 適用する手段がない上限が含まれる場合、実行時に{@link IllegalStateException}がスローされる
+	 * （CPUの割り当てとプロセス数の上限はcgroupのコントローラーが必要である）。
+	 * デフォルトでは{@link ResourceLimits#none()}が設定されている。
+	 * @param limits 上限
+	 * @see #setCgroupController(CgroupController)
+	 */
+	public void setResourceLimits(final ResourceLimits limits) {
+		if (limits == null) {
+			throw new IllegalArgumentException();
+		}
+		this.resourceLimits = limits;
+	}
+	/**
+	 * 実行ごとのcgroupを作成する親となるcgroupを返す.
+	 * 個別に設定されていない場合は{@code null}を返す。
+	 * @return コントローラー
+	 */
+	public CgroupController getCgroupController() {
+		return cgroupController;
+	}
+	/**
+	 * 実行ごとのcgroupを作成する親となるcgroupを設定する.
+	 * コントローラーが設定されている場合、コマンドは実行ごとに作成されるcgroupの中で起動され、
+	 * 実行結果の{@link Result#getResourceUsage()}でプロセス・ツリー全体の資源の使用量を参照できる。
+	 * 実行が終了した時点でcgroupに残っている子プロセスは強制終了される。
+	 * {@code null}を設定した場合は{@link CgroupController#getDefault()}を使用する。
+	 * @param controller コントローラー
+	 */
+	public void setCgroupController(final CgroupController controller) {
+		this.cgroupController = controller;
+	}
+	/**
+	 * 強制終了の際に{@code SIGTERM}を送ってから{@code SIGKILL}を送るまでの猶予のミリ秒を返す.
+	 * @return ミリ秒
+	 */
+	public long getKillGracePeriodMillis() {
+		return killGracePeriodMillis;
+	}
+	/**
+	 * 強制終了の際に{@code SIGTERM}を送ってから{@code SIGKILL}を送るまでの猶予のミリ秒を設定する.
+	 * タイムアウトや{@link CommandFuture#cancel(boolean)}でコマンドを強制終了する場合、
+	 * コマンドとその時点の子孫のプロセスに{@code SIGTERM}を送り、猶予時間の後もなお動作しているものには{@code SIGKILL}を送る
+	 * （子孫のプロセスの特定は{@code /proc}を読み取れるLinuxでのみ行う）。
+	 * さらに{@link TimerWatchdog#DRAIN_MARGIN_MILLIS}だけ経過しても出力のパイプが閉じられない場合は、
+	 * 出力の読み取りを打ち切って実行を完了する（ポーラーを使用しない場合に限る）。
+	 * デフォルトでは{@link #DEFAULT_KILL_GRACE_PERIOD_MILLIS}が設定されている。
+	 * @param millis ミリ秒
+	 */
+	public void setKillGracePeriodMillis(final long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.killGracePeriodMillis = millis;
+	}
+	/**
+	 * 上限を適用する範囲を開始する.
+	 * @return 範囲（上限もcgroupもない場合は{@code null}）
+	 * @throws IOException cgroupの作成中にエラーが発生した場合
+	 */
+	ResourceScope openResourceScope() throws IOException {
+		return ResourceScope.open(resourceLimits,
+				cgroupController != null ? cgroupController : CgroupController.getDefault());
+	}
 	/**
 	 * タイムアウト指定なしで同期実行する.
 	 * @return 実行結果
@@ -90,47 +451,345 @@ public final class ExternalCommand {
 	}
 	/**
 	 * タイムアウト指定ありで同期実行する.
+	 * 出力が一時ファイルに書き出された場合、一時ファイルは{@link Result#close()}の呼び出しで削除される。
+	 * 一時ファイルへの書き出しが格納先のディスク容量の上限を超えた場合はコマンドを強制終了し、
+	 * {@link SpillQuotaExceededException}を原因とする実行時例外をスローする。
 	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
 	 * @return 実行結果
 	 */
 	public Result execute(final long timeoutMillis) {
+		return execute(newWatchdog(timeoutMillis), 0);
+	}
+	/**
+	 * ウォッチドッグを指定して同期実行する.
+	 * @param watchdog ウォッチドッグ
+	 * @param queueWaitNanos 非同期実行のキューで待機したナノ秒
+	 * @return 実行結果
+	 */
+	Result execute(final TimerWatchdog watchdog, final long queueWaitNanos) {
+		return execute(watchdog, queueWaitNanos, newCaptureStream(), newCaptureStream());
+	}
+	/**
+	 * 標準出力もしくは標準エラーを受け取るためのストリームを初期化する.
+	 * @return ストリーム
+	 */
+	private PipeOutputStream newCaptureStream() {
+		final TempFileStore store = tempFileStore != null ? tempFileStore : TempFileStore.getDefault();
+		final PipeOutputStream pipe = new PipeOutputStream(PipeOutputStream.DEFAULT_THRESHOLD, BufferPool.getSharedPool(), store);
+		pipe.setSpillCompressed(spillCompressed);
+		return pipe;
+	}
+	/**
+	 * ウォッチドッグと出力を受け取るストリームを指定して同期実行する.
+	 * @param watchdog ウォッチドッグ
+	 * @param queueWaitNanos 非同期実行のキューで待機したナノ秒
+	 * @param out 標準出力を受け取るためのストリーム
+	 * @param err 標準エラーを受け取るためのストリーム
+	 * @return 実行結果
+	 */
+	private Result execute(final TimerWatchdog watchdog, final long queueWaitNanos,
+			final PipeOutputStream out, final PipeOutputStream err) {
+		// ディスク容量もしくは出力の上限を超えた場合はただちにコマンドを強制終了する
+		final Runnable killer = new Runnable() {
+			@Override
+			public void run() {
+				watchdog.destroyProcess();
+			}
+		};
+		out.setSpillFailureHandler(killer);
+		err.setSpillFailureHandler(killer);
+		// ポリシーに従って出力の一部だけを保持する
+		final BoundedOutputStream boundedOut = stdoutCapturePolicy.isUnbounded()
+				? null : new BoundedOutputStream(out, stdoutCapturePolicy, killer);
+		final BoundedOutputStream boundedErr = stderrCapturePolicy.isUnbounded()
+				? null : new BoundedOutputStream(err, stderrCapturePolicy, killer);
+		ResourceScope scope = null;
+		try {
+			// 資源の上限を適用する範囲を開始する
+			scope = openResourceScope();
+			// 実行して終了コードを受け取る（同期実行する）
+			final int exitCode = execute(boundedOut != null ? boundedOut : out,
+					boundedErr != null ? boundedErr : err, watchdog, queueWaitNanos, scope);
+			// 範囲を終了して資源の使用量を受け取る
+			final ResourceUsage usage = scope != null ? scope.close() : null;
+			// ディスク容量の上限を超えていないかチェック
+			final SpillQuotaExceededException spillFailure =
+					out.getSpillFailure() != null ? out.getSpillFailure() : err.getSpillFailure();
+			if (spillFailure != null) {
+				throw spillFailure;
+			}
+			// 実行結果を呼び出し元に返す
+			final Result result = new Result(exitCode, out, err);
+			if (boundedOut != null) {
+				result.stdoutDroppedBytes = boundedOut.getDroppedBytes();
+				result.outputLimitExceeded = boundedOut.isLimitExceeded();
+			}
+			if (boundedErr != null) {
+				result.stderrDroppedBytes = boundedErr.getDroppedBytes();
+				result.outputLimitExceeded |= boundedErr.isLimitExceeded();
+			}
+			result.resourceUsage = usage;
+			return result;
+		} catch (final ExecuteException e) {
+			// 終了コード判定はスキップされるためこの例外がスローされるのは予期せぬ事態のみ
+			// よって非チェック例外でラップして再スローする
+			out.release();
+			err.release();
+			throw new RuntimeException(e);
+		} catch (final IOException e) {
+			// IOエラーの発生は予期せぬ事態もしくはディスク容量の上限超過
+			// よって非チェック例外でラップして再スローする
+			out.release();
+			err.release();
+			throw new RuntimeException(e);
+		} catch (final RuntimeException e) {
+			// 上限を適用する手段がない場合など
+			out.release();
+			err.release();
+			throw e;
+		} finally {
+			// 実行の成否にかかわらずcgroupは削除する
+			if (scope != null) {
+				scope.close();
+			}
+		}
+	}
+	/**
+	 * タイムアウト指定なしで同期実行し、出力を到着した順に逐次リスナーに通知する.
+	 * @param stdoutListener 標準出力を受け取るリスナー
+	 * @param stderrListener 標準エラーを受け取るリスナー
+	 * @return 終了コード
+	 */
+	public int executeStreaming(final OutputListener stdoutListener, final OutputListener stderrListener) {
+		return executeStreaming(stdoutListener, stderrListener, 0);
+	}
+	/**
+	 * タイムアウト指定ありで同期実行し、出力を到着した順に逐次リスナーに通知する.
+	 * 出力は内部に貯めこまれないため、コマンドがどれだけ出力してもメモリ使用量は一定である。
+	 * リスナーへの通知はコマンドの実行中に行われ、コマンドの終了後に{@link OutputListener#outputClosed()}が呼び出される。
+	 * 行ごとに通知を受け取りたい場合は{@link LineSplitter}を使用する。
+	 * @param stdoutListener 標準出力を受け取るリスナー
+	 * @param stderrListener 標準エラーを受け取るリスナー
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @return 終了コード
+	 */
+	public int executeStreaming(final OutputListener stdoutListener,
+			final OutputListener stderrListener, final long timeoutMillis) {
 		// 標準出力を受け取るためのストリームを初期化
-		final PipeOutputStream out = new PipeOutputStream();
+		final ListenerOutputStream out = new ListenerOutputStream(stdoutListener);
 		// 標準エラーを受け取るためのストリームを初期化
-		final PipeOutputStream err = new PipeOutputStream();
-		// ストリームを引数にしてストリームハンドラを初期化
-		final PumpStreamHandler streamHandler = new PumpStreamHandler(out, err);
-		// エグゼキュータを初期化
-		final Executor exec = new DefaultExecutor();
-		// タイムアウト指定の引数を確認
-		if (timeoutMillis > 0) {
-			// 1以上の場合のみ実際にエグゼキュータに対して設定を行う
-			exec.setWatchdog(new ExecuteWatchdog(timeoutMillis));
-		}
-		// 終了コードによるエラー判定をスキップするよう指定
-		exec.setExitValues(null);
-		// コマンド実行時のカレント・ディレクトリを設定
-		exec.setWorkingDirectory(workingDirectory);
-		// ストリームハンドラを設定
-		exec.setStreamHandler(streamHandler);
-		
+		final ListenerOutputStream err = new ListenerOutputStream(stderrListener);
+		ResourceScope scope = null;
 		try {
+			// 資源の上限を適用する範囲を開始する
+			scope = openResourceScope();
 			// 実行して終了コードを受け取る（同期実行する）
-			final int exitCode = exec.execute(commandLine);
-			out.close();
-			err.close();
-			// 実行結果を呼び出し元に返す
-			return new Result(exitCode, out, err);
+			return execute(out, err, newWatchdog(timeoutMillis), 0, scope);
 		} catch (final ExecuteException e) {
 			// 終了コード判定はスキップされるためこの例外がスローされるのは予期せぬ事態のみ
 			// よって非チェック例外でラップして再スローする
 			throw new RuntimeException(e);
 		} catch (final IOException e) {
-			// IOエラーの発生は予期せぬ事態
+			// IOエラーの発生は予期せぬ事態もしくはリスナーの処理中のエラー
 			// よって非チェック例外でラップして再スローする
 			throw new RuntimeException(e);
+		} finally {
+			if (scope != null) {
+				scope.close();
+			}
+		}
+	}
+	/**
+	 * 出力先のストリームを指定して同期実行する.
+	 * 入力元が設定されていればその内容を標準入力に転送する。
+	 * 実行が終了すると出力先のストリームと入力元のストリームはクローズされる。
+	 * @param out 標準出力の出力先
+	 * @param err 標準エラーの出力先
+	 * @param watchdog ウォッチドッグ
+	 * @param queueWaitNanos 非同期実行のキューで待機したナノ秒
+	 * @param scope 資源の上限を適用する範囲（{@code null}の場合は上限なし）
+	 * @return 終了コード
+	 * @throws IOException 実行中にエラーが発生した場合
+	 */
+	private int execute(final OutputStream out, final OutputStream err,
+			final TimerWatchdog watchdog, final long queueWaitNanos,
+			final ResourceScope scope) throws IOException {
+		// 入力元のストリームを生成
+		final InputStream in = inputSource != null ? inputSource.open() : null;
+		// 計測のため出力のバイト数を数えるストリームで包む
+		final CountingOutputStream countingOut = new CountingOutputStream(out);
+		final CountingOutputStream countingErr = new CountingOutputStream(err);
+		// ストリームを引数にしてストリームハンドラを初期化
+		// リダイレクトした出力は読み取らない（出力先を渡さない）
+		final OutputStream handlerOut = stdoutRedirect.isCapture() ? countingOut : null;
+		final OutputStream handlerErr = stderrRedirect.isCapture() ? countingErr : null;
+		final TimedStreamHandler streamHandler = streamPoller != null
+				? new PollingStreamHandler(streamPoller, handlerOut, handlerErr, in, watchdog)
+				: new LargeBufferPumpStreamHandler(handlerOut, handlerErr, in, watchdog);
+		// エグゼキュータを初期化してストリームハンドラを設定
+		final Executor exec = newExecutor(watchdog, scope);
+		exec.setStreamHandler(streamHandler);
+		
+		final long spawnNanos = System.nanoTime();
+		try {
+			// 実行して終了コードを受け取る（同期実行する）
+			final int exitCode = exec.execute(getCommandLine());
+			// 計測値をリスナーに通知する
+			if (!executionListeners.isEmpty()) {
+				fireExecutionCompleted(new ExecutionMetrics(this, queueWaitNanos,
+						streamHandler.getStartNanos() - spawnNanos,
+						streamHandler.getStopNanos() - streamHandler.getStartNanos(),
+						streamHandler.getStoppedNanos() - streamHandler.getStopNanos(),
+						countingOut.getCount(), countingErr.getCount(),
+						isUsingTempFile(out) || isUsingTempFile(err),
+						watchdog.killedProcess(), exitCode));
+			}
+			return exitCode;
+		} finally {
+			// 実行の成否にかかわらず出力先と入力元のストリームはクローズする
+			try {
+				out.close();
+			} finally {
+				try {
+					err.close();
+				} finally {
+					if (in != null) {
+						in.close();
+					}
+				}
+			}
 		}
 	}
+	/**
+	 * このコマンドを起動するためのエグゼキュータを初期化する.
+	 * 組み立て済みの引数と環境変数、出力のリダイレクト、資源の上限を反映し、
+	 * ウォッチドッグとカレント・ディレクトリを設定する。ストリームハンドラは呼び出し元が設定する。
+	 * {@link CommandPipeline}と{@link WorkerPool}もこのメソッドを介してコマンドを起動する。
+	 * @param watchdog ウォッチドッグ
+	 * @param scope 資源の上限を適用する範囲（{@code null}の場合は上限なし）
+	 * @return エグゼキュータ
+	 */
+	Executor newExecutor(final TimerWatchdog watchdog, final ResourceScope scope) {
+		// 組み立て済みの引数がある場合はコマンドラインの変換を省いて直接プロセスを起動する
+		// 出力をリダイレクトする場合はリダイレクトを設定するシェルを介して起動する
+		// 資源の上限を適用する場合は上限を設定するコマンドを介して起動する
+		String[] arguments = preparedArguments;
+		if (!stdoutRedirect.isCapture() || !stderrRedirect.isCapture()) {
+			arguments = OutputRedirect.wrap(stdoutRedirect, stderrRedirect,
+					arguments != null ? arguments : getCommandLine().toStrings());
+		}
+		if (scope != null) {
+			arguments = scope.wrap(arguments != null ? arguments : getCommandLine().toStrings());
+		}
+		final Executor exec = arguments != null
+				? new PreparedExecutor(arguments, preparedEnvironment) : new DefaultExecutor();
+		// ウォッチドッグを設定
+		// cgroupの中で実行する場合は強制終了の際にcgroupのすべてのプロセスを強制終了させる
+		if (scope != null) {
+			watchdog.setResourceScope(scope);
+		}
+		exec.setWatchdog(watchdog);
+		// 終了コードによるエラー判定をスキップするよう指定
+		exec.setExitValues(null);
+		// コマンド実行時のカレント・ディレクトリを設定
+		exec.setWorkingDirectory(workingDirectory);
+		return exec;
+	}
+	/**
+	 * 組み立て済みのコマンドと引数でプロセスを起動するエグゼキュータ.
+	 * {@link DefaultExecutor}は実行のたびにコマンドライン・オブジェクトを文字列配列に変換し、
+	 * 引数の変数の展開とクォートを行うが、このエグゼキュータはそれらを省く。
+	 */
+	private static final class PreparedExecutor extends DefaultExecutor {
+		/**
+		 * 組み立て済みのコマンドと引数.
+		 */
+		private final String[] arguments;
+		/**
+		 * 組み立て済みの環境変数.
+		 */
+		private final String[] environment;
+		
+		/**
+		 * コンストラクタ.
+		 * @param arguments 組み立て済みのコマンドと引数
+		 * @param environment 組み立て済みの環境変数（{@code null}の場合は環境変数を引き継ぐ）
+		 */
+		PreparedExecutor(final String[] arguments, final String[] environment) {
+			this.arguments = arguments;
+			this.environment = environment;
+		}
+		
+		@Override
+		protected Process launch(final CommandLine command, final Map<String, String> env,
+				final File dir) throws IOException {
+			if (dir != null && !dir.exists()) {
+				throw new IOException(dir + " doesn't exist.");
+			}
+			return Runtime.getRuntime().exec(arguments, environment, dir);
+		}
+	}
+	/**
+	 * 出力先のストリームが一時ファイルに書き出しているかどうかを判定する.
+	 * @param os 出力先のストリーム
+	 * @return 判定結果
+	 */
+	private static boolean isUsingTempFile(final OutputStream os) {
+		if (os instanceof BoundedOutputStream) {
+			return isUsingTempFile(((BoundedOutputStream) os).getTarget());
+		}
+		return os instanceof PipeOutputStream && ((PipeOutputStream) os).isUsingTempFile();
+	}
+	/**
+	 * 計測値を受け取るリスナーが登録されている場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	static boolean hasExecutionListeners() {
+		return !executionListeners.isEmpty();
+	}
+	/**
+	 * 計測値をリスナーに通知する.
+	 * リスナーがスローした実行時例外は実行結果に影響を与えないよう無視する。
+	 * @param metrics 計測値
+	 */
+	static void fireExecutionCompleted(final ExecutionMetrics metrics) {
+		for (final ExecutionListener listener : executionListeners) {
+			try {
+				listener.executionCompleted(metrics);
+			} catch (final RuntimeException e) {
+				// 無視する
+			}
+		}
+	}
+	/**
+	 * 実行が完了したときに計測値の通知を受けるリスナーを登録する.
+	 * リスナーはすべてのインスタンスの同期・非同期の実行とバッチの実行について通知を受ける。
+	 * 集計値が必要な場合は{@link ExecutionStatistics}を登録する。
+	 * @param listener リスナー
+	 */
+	public static void addExecutionListener(final ExecutionListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException();
+		}
+		executionListeners.add(listener);
+	}
+	/**
+	 * 登録済みのリスナーを削除する.
+	 * @param listener リスナー
+	 */
+	public static void removeExecutionListener(final ExecutionListener listener) {
+		executionListeners.remove(listener);
+	}
+	/**
+	 * ウォッチドッグを生成する.
+	 * タイムアウト指定がない場合もプロセスを強制終了できるようウォッチドッグは常に生成する。
+	 * タイムアウトは共有のタイマーで監視するため、プロセスごとに監視用のスレッドは起動されない。
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒（{@code 0}以下の場合はタイムアウトなし）
+	 * @return ウォッチドッグ
+	 */
+	TimerWatchdog newWatchdog(final long timeoutMillis) {
+		return new TimerWatchdog(timeoutMillis, killGracePeriodMillis);
+	}
 	/**
 	 * タイムアウト指定なしで非同期実行する.
 	 * @return 実行結果にアクセスするためのFutureオブジェクト
@@ -140,18 +799,119 @@ public final class ExternalCommand {
 	}
 	/**
 	 * タイムアウト指定ありで非同期実行する.
+	 * 個別にスレッドプールが設定されていればそれを、
+	 * そうでなければデフォルトのスレッドプールを使用する。
+	 * スレッドプールの待ち行列が満杯の場合の振る舞いはそのスレッドプールのポリシーに従う
+	 * （デフォルトのスレッドプールでは{@link java.util.concurrent.RejectedExecutionException}がスローされる）。
 	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
 	 * @return 実行結果にアクセスするためのFutureオブジェクト
 	 */
 	public Future<Result> executeAsynchronously(final long timeoutMillis) {
-		final ExecutorService service = Executors.newSingleThreadExecutor();
+		final ExecutorService service = executorService != null ? executorService : getDefaultExecutorService();
+		final long submittedNanos = System.nanoTime();
 		return service.submit(new Callable<Result>() {
 			@Override
 			public Result call() throws Exception {
-				return ExternalCommand.this.execute(timeoutMillis);
+				return ExternalCommand.this.execute(newWatchdog(timeoutMillis), System.nanoTime() - submittedNanos);
 			}
 		});
 	}
+	/**
+	 * タイムアウト指定なしで非同期実行し、完了時にコールバックで通知を受けられるFutureオブジェクトを返す.
+	 * @return 実行結果にアクセスするためのFutureオブジェクト
+	 */
+	public CommandFuture executeAsync() {
+		return executeAsync(0);
+	}
+	/**
+	 * タイムアウト指定ありで非同期実行し、完了時にコールバックで通知を受けられるFutureオブジェクトを返す.
+	 * 使用するスレッドプールは{@link #executeAsynchronously(long)}と同じである。
+	 * 実行結果はプロセスの終了を検知したスレッドで設定され、登録済みのコールバックにただちに通知される。
+	 * {@link CommandFuture#cancel(boolean)}で取り消すと実行中のプロセスは強制終了される。
+	 * 実行中の出力は{@link CommandFuture#openStdoutStream()}などで完了を待たずに読み取ることができる。
+	 * @param timeoutMillis 実行を打ち切るまでのミリ秒
+	 * @return 実行結果にアクセスするためのFutureオブジェクト
+	 */
+	public CommandFuture executeAsync(final long timeoutMillis) {
+		final ExecutorService service = executorService != null ? executorService : getDefaultExecutorService();
+		final TimerWatchdog watchdog = newWatchdog(timeoutMillis);
+		// 実行中の出力を読み取れるよう出力を受け取るストリームはあらかじめ初期化する
+		final PipeOutputStream out = newCaptureStream();
+		final PipeOutputStream err = newCaptureStream();
+		final CommandFuture future = new CommandFuture(watchdog, out, err);
+		final long submittedNanos = System.nanoTime();
+		future.setTask(service.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (!future.start()) {
+					// 実行が始まる前に取り消された
+					return;
+				}
+				try {
+					final Result result = ExternalCommand.this.execute(watchdog,
+							System.nanoTime() - submittedNanos, out, err);
+					if (!future.complete(result)) {
+						// 取り消し後に完了した実行結果は誰にも参照されないためここで解放する
+						result.close();
+					}
+				} catch (final RuntimeException e) {
+					future.fail(e);
+				}
+			}
+		}));
+		return future;
+	}
+	/**
+	 * 非同期実行のためのデフォルトのスレッドプールを返す.
+	 * 未初期化もしくはシャットダウン済みの場合は
+	 * {@link CommandExecutorServices#newBoundedExecutorService()}で新たに初期化する。
+	 * @return スレッドプール
+	 */
+	public static synchronized ExecutorService getDefaultExecutorService() {
+		if (defaultExecutorService == null || defaultExecutorService.isShutdown()) {
+			defaultExecutorService = CommandExecutorServices.newBoundedExecutorService();
+		}
+		return defaultExecutorService;
+	}
+	/**
+	 * 非同期実行のためのデフォルトのスレッドプールを設定する.
+	 * それまで使用されていたスレッドプールはシャットダウンされない。
+	 * @param service スレッドプール
+	 */
+	public static synchronized void setDefaultExecutorService(final ExecutorService service) {
+		if (service == null) {
+			throw new IllegalArgumentException();
+		}
+		defaultExecutorService = service;
+	}
+	/**
+	 * 非同期実行のためのデフォルトのスレッドプールをシャットダウンする.
+	 * 新たな実行の受付を停止したうえで、実行中および待機中のコマンドの完了を指定された時間だけ待つ。
+	 * この後に非同期実行が要求された場合はデフォルトのスレッドプールが新たに初期化される。
+	 * @param timeoutMillis 完了を待つミリ秒
+	 * @return 時間内にすべてのコマンドが完了した場合{@code true}
+	 * @throws InterruptedException 待機中に割り込みが発生した場合
+	 */
+	public static boolean shutdownDefaultExecutorService(final long timeoutMillis) throws InterruptedException {
+		final ExecutorService service;
+		synchronized (ExternalCommand.class) {
+			service = defaultExecutorService;
+			defaultExecutorService = null;
+		}
+		if (service == null) {
+			return true;
+		}
+		service.shutdown();
+		return service.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * このコマンドの標準出力を指定されたコマンドの標準入力につなぐパイプラインを生成する.
+	 * @param next 後段のコマンド
+	 * @return パイプライン
+	 */
+	public CommandPipeline pipe(final ExternalCommand next) {
+		return CommandPipeline.of(this).pipe(next);
+	}
 	/**
 	 * 外部コマンド文字列を受け取りオブジェクトを初期化する.
 	 * @param commandLine 外部コマンド文字列
@@ -170,8 +930,9 @@ public final class ExternalCommand {
 	}
 	/**
 	 * 実行結果を表わすオブジェクト.
+	 * 不要になった時点で{@link #close()}を呼び出して、保持している内容を解放しなくてはならない。
 	 */
-	public static final class Result {
+	public static final class Result implements Closeable {
 		/**
 		 * 終了コード.
 		 */
@@ -184,6 +945,22 @@ public final class ExternalCommand {
 		 * 標準エラーの内容にアクセスするための{@link PipeOutputStream}.
 		 */
 		private final PipeOutputStream stderr;
+		/**
+		 * ポリシーに従って破棄した標準出力のバイト数.
+		 */
+		private long stdoutDroppedBytes = 0;
+		/**
+		 * ポリシーに従って破棄した標準エラーのバイト数.
+		 */
+		private long stderrDroppedBytes = 0;
+		/**
+		 * 出力が上限を超えたためプロセスを強制終了したかどうかを示す.
+		 */
+		private boolean outputLimitExceeded = false;
+		/**
+		 * cgroupで計測した資源の使用量.
+		 */
+		private ResourceUsage resourceUsage = null;
 		/**
 		 * コンストラクタ.
 		 * @param exitCode 終了コード
@@ -195,6 +972,73 @@ public final class ExternalCommand {
 			this.stdout = stdout;
 			this.stderr = stderr;
 		}
+		/**
+		 * バイト配列の内容を出力とする実行結果を生成する.
+		 * バイト配列の内容はプールのセグメントにコピーされる。
+		 * @param exitCode 終了コード
+		 * @param stdout 標準出力の内容
+		 * @param stderr 標準エラーの内容
+		 * @return 実行結果
+		 */
+		static Result of(final int exitCode, final byte[] stdout, final byte[] stderr) {
+			return new Result(exitCode, toPipeOutputStream(stdout), toPipeOutputStream(stderr));
+		}
+		/**
+		 * バイト配列の内容を書き込み済みの{@link PipeOutputStream}を生成する.
+		 * @param data バイト配列
+		 * @return {@link PipeOutputStream}
+		 */
+		private static PipeOutputStream toPipeOutputStream(final byte[] data) {
+			// 内容はすでにメモリ上にあるため予算による一時ファイルへの書き出しは行わない
+			final PipeOutputStream pipe = new PipeOutputStream(Integer.MAX_VALUE, BufferPool.getSharedPool(),
+					TempFileStore.getDefault(), MemoryBudget.unlimited());
+			try {
+				pipe.write(data);
+				pipe.close();
+			} catch (final IOException e) {
+				// メモリ上への書き込みのため発生するのは予期せぬ事態のみ
+				// よって非チェック例外でラップして再スローする
+				throw new RuntimeException(e);
+			}
+			return pipe;
+		}
+		/**
+		 * {@link CapturePolicy}に従って破棄した標準出力のバイト数を返す.
+		 * @return バイト数
+		 */
+		public long getStdoutDroppedBytes() {
+			return stdoutDroppedBytes;
+		}
+		/**
+		 * {@link CapturePolicy}に従って破棄した標準エラーのバイト数を返す.
+		 * @return バイト数
+		 */
+		public long getStderrDroppedBytes() {
+			return stderrDroppedBytes;
+		}
+		/**
+		 * 標準出力もしくは標準エラーが{@link CapturePolicy#withKillLimit(long)}の上限を超えたため
+		 * プロセスを強制終了した場合{@code true}を返す.
+		 * @return 判定結果
+		 */
+		public boolean isOutputLimitExceeded() {
+			return outputLimitExceeded;
+		}
+		/**
+		 * プロセス・ツリー全体が使用した資源の量を返す.
+		 * {@link ExternalCommand#setCgroupController(CgroupController)}でcgroupを使用して実行した場合にのみ計測される。
+		 * @return 使用量（計測していない場合は{@code null}）
+		 */
+		public ResourceUsage getResourceUsage() {
+			return resourceUsage;
+		}
+		/**
+		 * 標準出力もしくは標準エラーが一時ファイルに書き出されている場合{@code true}を返す.
+		 * @return 判定結果
+		 */
+		boolean isUsingTempFile() {
+			return stdout.isUsingTempFile() || stderr.isUsingTempFile();
+		}
 		/**
 		 * 終了コードを返す.
 		 * @return 終了コード
@@ -216,58 +1060,127 @@ public final class ExternalCommand {
 		public InputStream getStderr() {
 			return stderr.getInputStream();
 		}
+		/**
+		 * 標準出力の内容を読み取り専用の{@link ByteBuffer}として返す.
+		 * 内容がメモリ上にある場合は初回の呼び出しで1度だけ連続した領域にまとめ（1つのセグメントに収まる場合はコピーしない）、
+		 * 一時ファイルに書き出されている場合はファイルをメモリにマッピングする。
+		 * 返された{@link ByteBuffer}は{@link #close()}の後も読み取れる。
+		 * @return {@link ByteBuffer}
+		 * @see PipeOutputStream#getByteBuffer()
+		 */
+		public ByteBuffer getStdoutBuffer() {
+			return stdout.getByteBuffer();
+		}
+		/**
+		 * 標準出力の内容を指定されたチャネルに書き出す.
+		 * 内容が一時ファイルに書き出されている場合、OSがサポートしていればヒープを経由せずに転送される。
+		 * @param target 書き出し先のチャネル
+		 * @return 書き出したバイト数
+		 * @throws IOException 書き出し中にエラーが発生した場合
+		 * @see PipeOutputStream#transferTo(WritableByteChannel)
+		 */
+		public long transferStdoutTo(final WritableByteChannel target) throws IOException {
+			return stdout.transferTo(target);
+		}
+		/**
+		 * 標準エラーの内容を読み取り専用の{@link ByteBuffer}として返す.
+		 * 内容がメモリ上にある場合は初回の呼び出しで1度だけ連続した領域にまとめ（1つのセグメントに収まる場合はコピーしない）、
+		 * 一時ファイルに書き出されている場合はファイルをメモリにマッピングする。
+		 * 返された{@link ByteBuffer}は{@link #close()}の後も読み取れる。
+		 * @return {@link ByteBuffer}
+		 * @see PipeOutputStream#getByteBuffer()
+		 */
+		public ByteBuffer getStderrBuffer() {
+			return stderr.getByteBuffer();
+		}
+		/**
+		 * 標準エラーの内容を指定されたチャネルに書き出す.
+		 * 内容が一時ファイルに書き出されている場合、OSがサポートしていればヒープを経由せずに転送される。
+		 * @param target 書き出し先のチャネル
+		 * @return 書き出したバイト数
+		 * @throws IOException 書き出し中にエラーが発生した場合
+		 * @see PipeOutputStream#transferTo(WritableByteChannel)
+		 */
+		public long transferStderrTo(final WritableByteChannel target) throws IOException {
+			return stderr.transferTo(target);
+		}
 		/**
 		 * 標準出力の内容に行ごとにアクセスするための{@link Iterable}を返す.
 		 * キャラクターセットにはJVMのデフォルト・キャラクターセットを使用する。
 		 * @return {@link Iterable}
 		 */
-		public Iterable<String> getStdoutLines() {
+		public CloseableIterable<String> getStdoutLines() {
 			return getStdoutLines(Charset.defaultCharset());
 		}
 		/**
 		 * 標準出力の内容に行ごとにアクセスするための{@link Iterable}を返す.
+		 * 内容はあらかじめ読み込まれることはなく、イテレータを進めるたびに1行ずつデコードされる。
+		 * イテレータは最後の行まで読み進めた時点で入力ストリームをクローズする。
+		 * 途中で読み出しをやめる場合はイテレータもしくは返された{@link CloseableIterable}をクローズしなくてはならない。
+		 * @param charset キャラクターセット
+		 * @return {@link Iterable}
+		 */
+		public CloseableIterable<String> getStdoutLines(final Charset charset) {
+			return new LineIterable(stdout, charset);
+		}
+		/**
+		 * 標準出力の内容に行ごとに{@link CharSequence}としてアクセスするための{@link Iterable}を返す.
+		 * 行を絞り込んだり解析したりするだけで文字列として保持しない場合に使用する。
+		 * ASCII互換のキャラクターセットでは行ごとに{@link String}を生成せず、
+		 * イテレータは内部のバッファを参照する{@link CharSequence}を使い回して返す。
+		 * その内容は次の行に進むと変わるため、行を保持する場合は{@link CharSequence#toString()}で文字列に変換しなければならない。
+		 * 途中で読み出しをやめる場合はイテレータもしくは返された{@link CloseableIterable}をクローズしなくてはならない。
 		 * @param charset キャラクターセット
 		 * @return {@link Iterable}
 		 */
-		public Iterable<String> getStdoutLines(final Charset charset) {
-			return readLines(stdout.getInputStream(), charset);
+		public CloseableIterable<CharSequence> getStdoutLineViews(final Charset charset) {
+			return LineIterable.views(stdout, charset);
 		}
 		/**
 		 * 標準エラーの内容に行ごとにアクセスするための{@link Iterable}を返す.
 		 * キャラクターセットにはJVMのデフォルト・キャラクターセットを使用する。
 		 * @return {@link Iterable}
 		 */
-		public Iterable<String> getStderrLines() {
+		public CloseableIterable<String> getStderrLines() {
 			return getStderrLines(Charset.defaultCharset());
 		}
 		/**
 		 * 標準エラーの内容に行ごとにアクセスするための{@link Iterable}を返す.
+		 * 内容はあらかじめ読み込まれることはなく、イテレータを進めるたびに1行ずつデコードされる。
+		 * イテレータは最後の行まで読み進めた時点で入力ストリームをクローズする。
+		 * 途中で読み出しをやめる場合はイテレータもしくは返された{@link CloseableIterable}をクローズしなくてはならない。
+		 * @param charset キャラクターセット
+		 * @return {@link Iterable}
+		 */
+		public CloseableIterable<String> getStderrLines(final Charset charset) {
+			return new LineIterable(stderr, charset);
+		}
+		/**
+		 * 標準エラーの内容に行ごとに{@link CharSequence}としてアクセスするための{@link Iterable}を返す.
+		 * 行を絞り込んだり解析したりするだけで文字列として保持しない場合に使用する。
+		 * ASCII互換のキャラクターセットでは行ごとに{@link String}を生成せず、
+		 * イテレータは内部のバッファを参照する{@link CharSequence}を使い回して返す。
+		 * その内容は次の行に進むと変わるため、行を保持する場合は{@link CharSequence#toString()}で文字列に変換しなければならない。
+		 * 途中で読み出しをやめる場合はイテレータもしくは返された{@link CloseableIterable}をクローズしなくてはならない。
 		 * @param charset キャラクターセット
 		 * @return {@link Iterable}
 		 */
-		public Iterable<String> getStderrLines(final Charset charset) {
-			return readLines(stderr.getInputStream(), charset);
+		public CloseableIterable<CharSequence> getStderrLineViews(final Charset charset) {
+			return LineIterable.views(stderr, charset);
 		}
 		/**
-		 * ストリームから文字列を読み出し行ごとのリストに変換する.
-		 * @param in ストリーム
-		 * @return リスト
+		 * 標準出力と標準エラーの内容を解放する.
+		 * メモリ上に保持していたセグメントはプールに返却され、以降の実行で再利用される。
+		 * 一時ファイルはただちに削除される。
+		 * このメソッドの呼び出し後は、それ以前に取得した入力ストリームや行ごとのイテレータを含め内容にアクセスしてはならない
+		 * （入力ストリームからの読み取りはエラーとなる）。
+		 * ただし{@link #getStdoutBuffer()}と{@link #getStderrBuffer()}で取得済みの{@link ByteBuffer}は
+		 * プールに返却されない領域もしくはマッピングしたファイルを参照するため、引き続き読み取れる。
 		 */
-		private List<String> readLines(final InputStream in, final Charset cs) {
-			final BufferedReader br = new BufferedReader(new InputStreamReader(in, cs));
-			final List<String> result = new ArrayList<String>();
-			String line = null;
-			try {
-				while ((line = br.readLine()) != null) {
-					result.add(line);
-				}
-			} catch (final IOException e) {
-				// 読み取り対象のストリームはByteArrayInputStreamである前提のため
-				// IOエラーが起きることは実際上あり得ないこと
-				// 万一エラーが起きた場合でも非チェック例外で包んで再スローする
-				throw new RuntimeException(e);
-			}
-			return result;
+		@Override
+		public void close() {
+			stdout.release();
+			stderr.release();
 		}
 	}
 }
@@ -0,0 +1,219 @@
+package org.doogwood.cmdexec;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 外部コマンドの標準入力に与えるデータの入力元.
+ * 実行のたびに{@link #open()}で入力ストリームが生成され、
+ * その内容が大きなバッファで標準入力に転送される。
+ * 入力ストリームの終端に達すると標準入力はクローズされ、外部コマンドに終端が伝わる。
+ * 入力ストリームは実行の終了後にクローズされる。
+ */
+public abstract class InputSource {
+	/**
+	 * コンストラクタ.
+	 * 静的メソッドを介した初期化のみ許可する。
+	 */
+	private InputSource() {}
+	
+	/**
+	 * 入力ストリームを生成する.
+	 * @return 入力ストリーム
+	 * @throws IOException 入力ストリームの生成中にエラーが発生した場合
+	 */
+	abstract InputStream open() throws IOException;
+	/**
+	 * 何度でも同じ内容を読み取れる入力元の場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	boolean isRepeatable() {
+		return false;
+	}
+	/**
+	 * 入力元のファイルを返す.
+	 * @return ファイル（ファイルを入力元としない場合は{@code null}）
+	 */
+	File getFile() {
+		return null;
+	}
+	
+	/**
+	 * 入力ストリームを入力元とするオブジェクトを生成する.
+	 * 入力ストリームは1度しか読み取れないため、このオブジェクトを設定したコマンドは1度しか実行できない。
+	 * @param in 入力ストリーム
+	 * @return オブジェクト
+	 */
+	public static InputSource of(final InputStream in) {
+		if (in == null) {
+			throw new IllegalArgumentException();
+		}
+		return new InputSource() {
+			@Override
+			InputStream open() {
+				return in;
+			}
+		};
+	}
+	/**
+	 * バイト配列を入力元とするオブジェクトを生成する.
+	 * バイト配列はコピーされずに参照される。
+	 * @param data バイト配列
+	 * @return オブジェクト
+	 */
+	public static InputSource of(final byte[] data) {
+		if (data == null) {
+			throw new IllegalArgumentException();
+		}
+		return new InputSource() {
+			@Override
+			InputStream open() {
+				return new ByteArrayInputStream(data);
+			}
+			@Override
+			boolean isRepeatable() {
+				return true;
+			}
+		};
+	}
+	/**
+	 * ファイルを入力元とするオブジェクトを生成する.
+	 * ファイルは実行のたびに開かれ、内容はストリームとして転送される（一時ファイルへのコピーは作らない）。
+	 * @param file ファイル
+	 * @return オブジェクト
+	 */
+	public static InputSource of(final File file) {
+		if (file == null) {
+			throw new IllegalArgumentException();
+		}
+		return new InputSource() {
+			@Override
+			InputStream open() throws IOException {
+				return new FileInputStream(file);
+			}
+			@Override
+			boolean isRepeatable() {
+				return true;
+			}
+			@Override
+			File getFile() {
+				return file;
+			}
+		};
+	}
+	/**
+	 * チャネルを入力元とするオブジェクトを生成する.
+	 * チャネルは1度しか読み取れないため、このオブジェクトを設定したコマンドは1度しか実行できない。
+	 * @param channel チャネル
+	 * @return オブジェクト
+	 */
+	public static InputSource of(final ReadableByteChannel channel) {
+		if (channel == null) {
+			throw new IllegalArgumentException();
+		}
+		return new InputSource() {
+			@Override
+			InputStream open() {
+				return Channels.newInputStream(channel);
+			}
+		};
+	}
+	/**
+	 * チャンクの供給元を入力元とするオブジェクトを生成する.
+	 * @param supplier チャンクの供給元
+	 * @return オブジェクト
+	 */
+	public static InputSource of(final ChunkSupplier supplier) {
+		if (supplier == null) {
+			throw new IllegalArgumentException();
+		}
+		return new InputSource() {
+			@Override
+			InputStream open() {
+				return new ChunkInputStream(supplier);
+			}
+		};
+	}
+	
+	/**
+	 * 標準入力に与えるデータをチャンクごとに供給するオブジェクト.
+	 */
+	public static interface ChunkSupplier {
+		/**
+		 * 次のチャンクを返す.
+		 * 返したバイト配列はこのメソッドの次の呼び出しまで変更してはならない。
+		 * @return チャンク（終端に達した場合は{@code null}）
+		 * @throws IOException チャンクの生成中にエラーが発生した場合
+		 */
+		byte[] nextChunk() throws IOException;
+	}
+	
+	/**
+	 * {@link ChunkSupplier}から供給されるチャンクを順に読み取る入力ストリーム.
+	 */
+	private static final class ChunkInputStream extends InputStream {
+		/**
+		 * チャンクの供給元.
+		 */
+		private final ChunkSupplier supplier;
+		/**
+		 * 読み取り中のチャンク.
+		 */
+		private byte[] chunk = new byte[0];
+		/**
+		 * 読み取り中のチャンク内の位置.
+		 */
+		private int pos = 0;
+		/**
+		 * 終端に達したかどうかを示す.
+		 */
+		private boolean eof = false;
+		
+		/**
+		 * コンストラクタ.
+		 * @param supplier チャンクの供給元
+		 */
+		ChunkInputStream(final ChunkSupplier supplier) {
+			this.supplier = supplier;
+		}
+		
+		/**
+		 * 読み取り中のチャンクを読み終えていれば次のチャンクを取得する.
+		 * @return 終端に達した場合{@code false}
+		 * @throws IOException チャンクの生成中にエラーが発生した場合
+		 */
+		private boolean fill() throws IOException {
+			while (!eof && pos == chunk.length) {
+				final byte[] next = supplier.nextChunk();
+				if (next == null) {
+					eof = true;
+				} else {
+					chunk = next;
+					pos = 0;
+				}
+			}
+			return !eof;
+		}
+		@Override
+		public int read() throws IOException {
+			return fill() ? chunk[pos ++] & 0xff : -1;
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			} else if (!fill()) {
+				return -1;
+			}
+			final int n = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+}
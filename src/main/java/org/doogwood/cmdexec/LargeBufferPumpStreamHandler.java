@@ -0,0 +1,237 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.exec.StreamPumper;
+
+/**
+ * 大きなバッファでストリームを転送する{@link PumpStreamHandler}.
+ * {@link PumpStreamHandler}のデフォルトのバッファ（1KB）では
+ * 大量の入出力に対して読み書きの呼び出し回数が多くなりすぎるため、これを拡張する。
+ * <p>プロセスの終了後も子孫のプロセスが出力のパイプを開いたままでいると、転送のスレッドは終端に達しない。
+ * このハンドラは{@link TimerWatchdog#getAbandonNanos()}の時刻を過ぎても転送が終わらない場合は転送の完了を待つのをやめ、
+ * 以降に読み取られたデータは出力先に書き込まずに捨てる。</p>
+ */
+final class LargeBufferPumpStreamHandler extends PumpStreamHandler implements TimedStreamHandler {
+	/**
+	 * ストリームの転送に使用するバッファのサイズ.
+	 */
+	static final int PUMP_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * 転送のスレッドの終了を待つ間にウォッチドッグの状態を確認する間隔のミリ秒.
+	 */
+	private static final long JOIN_SLICE_MILLIS = 100;
+	/**
+	 * 転送の打ち切りを判断するウォッチドッグ.
+	 */
+	private final TimerWatchdog watchdog;
+	/**
+	 * 転送のスレッド.
+	 */
+	private final List<Thread> pumps = new ArrayList<Thread>(3);
+	/**
+	 * 打ち切りの際に切り離す出力先.
+	 */
+	private final List<DetachableOutputStream> outputs = new ArrayList<DetachableOutputStream>(2);
+	/**
+	 * ストリームの転送を開始した時刻（ナノ秒）.
+	 * プロセスの起動直後に相当する。
+	 */
+	private volatile long startNanos = 0;
+	/**
+	 * ストリームの転送の終了処理を開始した時刻（ナノ秒）.
+	 * プロセスの終了直後に相当する。
+	 */
+	private volatile long stopNanos = 0;
+	/**
+	 * ストリームの転送を終えた時刻（ナノ秒）.
+	 */
+	private volatile long stoppedNanos = 0;
+	
+	/**
+	 * コンストラクタ.
+	 * @param out 標準出力の出力先（{@code null}の場合は読み取らない）
+	 * @param err 標準エラーの出力先（{@code null}の場合は読み取らない）
+	 * @param input 標準入力の入力元（{@code null}の場合は標準入力をただちにクローズする）
+	 * @param watchdog 転送の打ち切りを判断するウォッチドッグ（{@code null}の場合は打ち切らない）
+	 */
+	LargeBufferPumpStreamHandler(final OutputStream out, final OutputStream err,
+			final InputStream input, final TimerWatchdog watchdog) {
+		super(out, err, input);
+		this.watchdog = watchdog;
+	}
+	
+	@Override
+	public void setProcessOutputStream(final InputStream is) {
+		if (getOut() == null) {
+			// 出力はリダイレクトされているため転送のスレッドを起動せずにクローズする
+			closeQuietly(is);
+			return;
+		}
+		super.setProcessOutputStream(is);
+	}
+	@Override
+	public void setProcessErrorStream(final InputStream is) {
+		if (getErr() == null) {
+			closeQuietly(is);
+			return;
+		}
+		super.setProcessErrorStream(is);
+	}
+	@Override
+	public void start() {
+		startNanos = System.nanoTime();
+		super.start();
+	}
+	@Override
+	public void stop() throws IOException {
+		stopNanos = System.nanoTime();
+		try {
+			// PumpStreamHandler#stop()と同様に転送のスレッドの終了を待ってから出力先をフラッシュする
+			for (final Thread pump : pumps) {
+				if (!await(pump)) {
+					// 期限を過ぎたため残りの転送は捨てる
+					for (final DetachableOutputStream os : outputs) {
+						os.detach();
+					}
+					break;
+				}
+			}
+			flushQuietly(getErr());
+			flushQuietly(getOut());
+		} finally {
+			stoppedNanos = System.nanoTime();
+		}
+	}
+	/**
+	 * 出力先をフラッシュする.
+	 * {@link PumpStreamHandler#stop()}と同様にフラッシュ中のエラーは無視する。
+	 * @param os 出力先
+	 */
+	private static void flushQuietly(final OutputStream os) {
+		if (os == null) {
+			return;
+		}
+		try {
+			os.flush();
+		} catch (final IOException e) {
+			// 無視する
+		}
+	}
+	/**
+	 * プロセスの出力をクローズする.
+	 * @param is プロセスの出力
+	 */
+	private static void closeQuietly(final InputStream is) {
+		try {
+			is.close();
+		} catch (final IOException e) {
+			// 無視する
+		}
+	}
+	/**
+	 * 転送のスレッドの終了を待つ.
+	 * 待つ間に強制終了された場合も打ち切りの時刻に従うよう、一定の間隔でウォッチドッグの状態を確認する。
+	 * @param pump 転送のスレッド
+	 * @return スレッドが終了した場合{@code true}（打ち切りの時刻を過ぎた場合は{@code false}）
+	 */
+	private boolean await(final Thread pump) {
+		try {
+			while (pump.isAlive()) {
+				final long abandonNanos = watchdog != null ? watchdog.getAbandonNanos() : 0;
+				long wait = JOIN_SLICE_MILLIS;
+				if (abandonNanos != 0) {
+					final long rest = TimeUnit.NANOSECONDS.toMillis(abandonNanos - System.nanoTime());
+					if (rest <= 0) {
+						return false;
+					}
+					wait = Math.min(wait, rest);
+				}
+				pump.join(wait);
+			}
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	@Override
+	public long getStartNanos() {
+		return startNanos;
+	}
+	@Override
+	public long getStopNanos() {
+		return stopNanos;
+	}
+	@Override
+	public long getStoppedNanos() {
+		return stoppedNanos;
+	}
+	@Override
+	protected Thread createPump(final InputStream is, final OutputStream os, final boolean closeWhenExhausted) {
+		// 標準出力と標準エラーの転送（終端でクローズしない転送）は出力先を切り離せるようにする
+		final OutputStream target;
+		if (closeWhenExhausted) {
+			target = os;
+		} else {
+			final DetachableOutputStream detachable = new DetachableOutputStream(os);
+			outputs.add(detachable);
+			target = detachable;
+		}
+		final Thread result = new Thread(new StreamPumper(is, target, closeWhenExhausted, PUMP_BUFFER_SIZE),
+				"Exec Stream Pumper");
+		result.setDaemon(true);
+		pumps.add(result);
+		return result;
+	}
+
+	/**
+	 * 切り離した後の書き込みを捨てる出力ストリーム.
+	 */
+	private static final class DetachableOutputStream extends OutputStream {
+		/**
+		 * 出力先（切り離した後は{@code null}）.
+		 */
+		private OutputStream target;
+
+		/**
+		 * コンストラクタ.
+		 * @param target 出力先
+		 */
+		DetachableOutputStream(final OutputStream target) {
+			this.target = target;
+		}
+
+		/**
+		 * 出力先を切り離す.
+		 * このメソッドから戻った時点で出力先への書き込みは行われていない。
+		 */
+		synchronized void detach() {
+			target = null;
+		}
+		@Override
+		public synchronized void write(final int b) throws IOException {
+			if (target != null) {
+				target.write(b);
+			}
+		}
+		@Override
+		public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+			if (target != null) {
+				target.write(b, off, len);
+			}
+		}
+		@Override
+		public synchronized void flush() throws IOException {
+			if (target != null) {
+				target.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package org.doogwood.cmdexec;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * {@link PipeOutputStream}の内容に行ごとにアクセスするための{@link Iterable}.
+ * 内容をあらかじめリストに読み込むことはせず、イテレータが要求されるたびに
+ * 入力ストリームを生成して1行ずつデコードする。
+ * キャラクターセットが{@link ByteLineReader}で扱えるものであれば、
+ * {@link java.io.Reader}を経由せずにバイト列のまま改行を探して行ごとにデコードする。
+ * <p>イテレータは最後の行まで読み進めた時点で入力ストリームをクローズする。
+ * 途中で読み出しをやめる場合はイテレータもしくはこのオブジェクトをクローズしなくてはならない
+ * （内容が一時ファイルにある場合、クローズしないとファイル・ディスクリプタが開いたまま残る）。</p>
+ */
+final class LineIterable implements CloseableIterable<String> {
+	/**
+	 * 読み取り対象のストリーム.
+	 */
+	private final PipeOutputStream pipe;
+	/**
+	 * キャラクターセット.
+	 */
+	private final Charset charset;
+	/**
+	 * 生成したイテレータのうち、まだ入力ストリームを開いているもの.
+	 */
+	private final OpenIterators openIterators = new OpenIterators();
+
+	/**
+	 * コンストラクタ.
+	 * @param pipe 読み取り対象のストリーム
+	 * @param charset キャラクターセット
+	 */
+	LineIterable(final PipeOutputStream pipe, final Charset charset) {
+		if (pipe == null || charset == null) {
+			throw new IllegalArgumentException();
+		}
+		this.pipe = pipe;
+		this.charset = charset;
+	}
+
+	/**
+	 * 行ごとのイテレータを返す.
+	 * イテレータは最後の行まで読み進めた時点で入力ストリームをクローズする。
+	 * @return イテレータ
+	 */
+	@Override
+	public CloseableIterator<String> iterator() {
+		if (ByteLineReader.isSupported(charset)) {
+			return openIterators.add(new ByteLineIterator<String>(
+					new ByteLineReader(pipe.getInputStream(), charset), openIterators) {
+				@Override
+				String current(final ByteLineReader reader) {
+					return reader.lineString();
+				}
+			});
+		}
+		return openIterators.add(new LineIterator(
+				new BufferedReader(new InputStreamReader(pipe.getInputStream(), charset)), openIterators));
+	}
+	@Override
+	public void close() {
+		openIterators.closeAll();
+	}
+	/**
+	 * {@link PipeOutputStream}の内容に行ごとに{@link CharSequence}としてアクセスするための{@link Iterable}を返す.
+	 * キャラクターセットが{@link ByteLineReader}で扱えるものであれば、イテレータは行ごとに{@link String}を生成せず、
+	 * 内部のバッファを参照する使い回しの{@link CharSequence}を返す。
+	 * その内容は次の行に進むと変わるため、行を保持する場合は{@link CharSequence#toString()}で文字列に変換しなければならない。
+	 * @param pipe 読み取り対象のストリーム
+	 * @param charset キャラクターセット
+	 * @return {@link Iterable}
+	 */
+	static CloseableIterable<CharSequence> views(final PipeOutputStream pipe, final Charset charset) {
+		final LineIterable strings = new LineIterable(pipe, charset);
+		return new CloseableIterable<CharSequence>() {
+			@Override
+			public CloseableIterator<CharSequence> iterator() {
+				if (ByteLineReader.isSupported(charset)) {
+					return strings.openIterators.add(new ByteLineIterator<CharSequence>(
+							new ByteLineReader(pipe.getInputStream(), charset), strings.openIterators) {
+						@Override
+						CharSequence current(final ByteLineReader reader) {
+							return reader.lineView();
+						}
+					});
+				}
+				// バイト列のまま扱えないキャラクターセットの場合は文字列をそのまま返す
+				final CloseableIterator<String> iter = strings.iterator();
+				return new CloseableIterator<CharSequence>() {
+					@Override
+					public boolean hasNext() {
+						return iter.hasNext();
+					}
+					@Override
+					public CharSequence next() {
+						return iter.next();
+					}
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+					@Override
+					public void close() {
+						iter.close();
+					}
+				};
+			}
+			@Override
+			public void close() {
+				strings.close();
+			}
+		};
+	}
+
+	/**
+	 * 入力ストリームを開いているイテレータの集合.
+	 * イテレータは最後まで読み終えるかクローズされた時点で集合から取り除かれる。
+	 */
+	private static final class OpenIterators {
+		/**
+		 * 入力ストリームを開いているイテレータ.
+		 */
+		private final Set<Closeable> iterators = new LinkedHashSet<Closeable>();
+
+		/**
+		 * イテレータを追加する.
+		 * @param iterator イテレータ
+		 * @param <I> イテレータの型
+		 * @return 追加したイテレータ
+		 */
+		synchronized <I extends Closeable> I add(final I iterator) {
+			iterators.add(iterator);
+			return iterator;
+		}
+		/**
+		 * イテレータを取り除く.
+		 * @param iterator イテレータ
+		 */
+		synchronized void remove(final Closeable iterator) {
+			iterators.remove(iterator);
+		}
+		/**
+		 * すべてのイテレータをクローズする.
+		 */
+		void closeAll() {
+			final List<Closeable> list;
+			synchronized (this) {
+				list = new ArrayList<Closeable>(iterators);
+				iterators.clear();
+			}
+			for (final Closeable iterator : list) {
+				try {
+					iterator.close();
+				} catch (final IOException e) {
+					// イテレータのクローズはIOエラーをスローしない
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@link ByteLineReader}から1行ずつ読み出すイテレータ.
+	 * @param <T> 行の型
+	 */
+	private abstract static class ByteLineIterator<T> implements CloseableIterator<T> {
+		/**
+		 * 読み取り対象のリーダー.
+		 */
+		private final ByteLineReader reader;
+		/**
+		 * このイテレータを登録した集合.
+		 */
+		private final OpenIterators owner;
+		/**
+		 * 次の行を読み込み済みかどうかを示す.
+		 */
+		private boolean ready = false;
+		/**
+		 * 最後まで読み終えているかどうかを示す.
+		 */
+		private boolean finished = false;
+
+		/**
+		 * コンストラクタ.
+		 * @param reader 読み取り対象のリーダー
+		 * @param owner このイテレータを登録する集合
+		 */
+		ByteLineIterator(final ByteLineReader reader, final OpenIterators owner) {
+			this.reader = reader;
+			this.owner = owner;
+		}
+
+		/**
+		 * リーダーの現在の行を返す.
+		 * @param reader リーダー
+		 * @return 行
+		 */
+		abstract T current(ByteLineReader reader);
+
+		@Override
+		public boolean hasNext() {
+			if (ready) {
+				return true;
+			} else if (finished) {
+				return false;
+			}
+			try {
+				ready = reader.nextLine();
+			} catch (final IOException e) {
+				// IOエラーの発生は予期せぬ事態
+				// よって非チェック例外でラップして再スローする
+				close();
+				throw new RuntimeException(e);
+			}
+			if (!ready) {
+				// 最後まで読み終えたらストリームをクローズする
+				close();
+			}
+			return ready;
+		}
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			return current(reader);
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public void close() {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			ready = false;
+			owner.remove(this);
+			try {
+				reader.close();
+			} catch (final IOException e) {
+				// 読み取り専用のストリームのクローズで発生したエラーは無視する
+			}
+		}
+	}
+
+	/**
+	 * {@link BufferedReader}から1行ずつ読み出すイテレータ.
+	 */
+	private static final class LineIterator implements CloseableIterator<String> {
+		/**
+		 * 読み取り対象のリーダー.
+		 */
+		private final BufferedReader reader;
+		/**
+		 * このイテレータを登録した集合.
+		 */
+		private final OpenIterators owner;
+		/**
+		 * 先読みした行.
+		 */
+		private String next = null;
+		/**
+		 * 最後まで読み終えているかどうかを示す.
+		 */
+		private boolean finished = false;
+
+		/**
+		 * コンストラクタ.
+		 * @param reader 読み取り対象のリーダー
+		 * @param owner このイテレータを登録する集合
+		 */
+		LineIterator(final BufferedReader reader, final OpenIterators owner) {
+			this.reader = reader;
+			this.owner = owner;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			} else if (finished) {
+				return false;
+			}
+			try {
+				next = reader.readLine();
+			} catch (final IOException e) {
+				// IOエラーの発生は予期せぬ事態
+				// よって非チェック例外でラップして再スローする
+				close();
+				throw new RuntimeException(e);
+			}
+			if (next == null) {
+				// 最後まで読み終えたらストリームをクローズする
+				close();
+			}
+			return next != null;
+		}
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final String line = next;
+			next = null;
+			return line;
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public void close() {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			next = null;
+			owner.remove(this);
+			try {
+				reader.close();
+			} catch (final IOException e) {
+				// 読み取り専用のストリームのクローズで発生したエラーは無視する
+			}
+		}
+	}
+}
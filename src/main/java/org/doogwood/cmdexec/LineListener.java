@@ -0,0 +1,17 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+
+/**
+ * 外部コマンドの出力を行ごとに受け取るリスナー.
+ * {@link LineSplitter}を介して{@link OutputListener}として使用する。
+ */
+public interface LineListener {
+	/**
+	 * 1行分の出力が到着したときに呼び出される.
+	 * 行末の改行文字は含まれない。
+	 * @param line 行
+	 * @throws IOException 処理中にエラーが発生した場合
+	 */
+	void lineArrived(String line) throws IOException;
+}
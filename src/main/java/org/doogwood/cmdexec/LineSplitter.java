@@ -0,0 +1,144 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 到着した出力を逐次デコードして行ごとに{@link LineListener}に通知する{@link OutputListener}.
+ * 行の区切りは{@link java.io.BufferedReader#readLine()}と同じく
+ * {@code "\n"}、{@code "\r"}、{@code "\r\n"}のいずれかとする。
+ * 保持するのは未完成の1行分の文字だけであり、出力全体の大きさによらずメモリ使用量は一定である。
+ */
+public final class LineSplitter implements OutputListener {
+	/**
+	 * デコード結果を受け取るバッファのサイズ.
+	 */
+	private static final int CHAR_BUFFER_SIZE = 8192;
+	/**
+	 * 通知先のリスナー.
+	 */
+	private final LineListener listener;
+	/**
+	 * デコーダ.
+	 */
+	private final CharsetDecoder decoder;
+	/**
+	 * デコード結果を受け取るバッファ.
+	 */
+	private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+	/**
+	 * 組み立て中の行.
+	 */
+	private final StringBuilder line = new StringBuilder();
+	/**
+	 * 前回の到着分の末尾にあったデコードしきれないバイト列（マルチバイト文字の途中など）.
+	 */
+	private byte[] leftover = new byte[0];
+	/**
+	 * 直前の文字が{@code '\r'}であったかどうかを示す.
+	 */
+	private boolean skipLF = false;
+	
+	/**
+	 * コンストラクタ.
+	 * @param listener 通知先のリスナー
+	 * @param charset キャラクターセット
+	 */
+	public LineSplitter(final LineListener listener, final Charset charset) {
+		if (listener == null || charset == null) {
+			throw new IllegalArgumentException();
+		}
+		this.listener = listener;
+		// InputStreamReaderと同様に不正なバイト列は置換文字に置き換える
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+	/**
+	 * コンストラクタ.
+	 * キャラクターセットにはJVMのデフォルト・キャラクターセットを使用する。
+	 * @param listener 通知先のリスナー
+	 */
+	public LineSplitter(final LineListener listener) {
+		this(listener, Charset.defaultCharset());
+	}
+	
+	@Override
+	public void outputArrived(final byte[] b, final int off, final int len) throws IOException {
+		final ByteBuffer in;
+		if (leftover.length == 0) {
+			in = ByteBuffer.wrap(b, off, len);
+		} else {
+			// 前回の残りがある場合のみ連結する
+			final byte[] joined = new byte[leftover.length + len];
+			System.arraycopy(leftover, 0, joined, 0, leftover.length);
+			System.arraycopy(b, off, joined, leftover.length, len);
+			in = ByteBuffer.wrap(joined);
+		}
+		decode(in, false);
+		// デコードしきれなかったバイト列は次回に持ち越す
+		leftover = new byte[in.remaining()];
+		in.get(leftover);
+	}
+	@Override
+	public void outputClosed() throws IOException {
+		decode(ByteBuffer.wrap(leftover), true);
+		leftover = new byte[0];
+		decoder.flush(chars);
+		scan();
+		// 改行で終わっていない最後の行も通知する
+		if (line.length() > 0) {
+			emit();
+		}
+	}
+	/**
+	 * バイト列をデコードして行の区切りを探す.
+	 * @param in バイト列
+	 * @param endOfInput 入力の終わりであれば{@code true}
+	 * @throws IOException リスナーの処理中にエラーが発生した場合
+	 */
+	private void decode(final ByteBuffer in, final boolean endOfInput) throws IOException {
+		while (decoder.decode(in, chars, endOfInput).isOverflow()) {
+			scan();
+		}
+		scan();
+	}
+	/**
+	 * デコード済みの文字を走査して完成した行をリスナーに通知する.
+	 * @throws IOException リスナーの処理中にエラーが発生した場合
+	 */
+	private void scan() throws IOException {
+		chars.flip();
+		while (chars.hasRemaining()) {
+			final char c = chars.get();
+			if (skipLF) {
+				skipLF = false;
+				if (c == '\n') {
+					continue;
+				}
+			}
+			if (c == '\n') {
+				emit();
+			} else if (c == '\r') {
+				skipLF = true;
+				emit();
+			} else {
+				line.append(c);
+			}
+		}
+		chars.clear();
+	}
+	/**
+	 * 組み立て中の行をリスナーに通知する.
+	 * @throws IOException リスナーの処理中にエラーが発生した場合
+	 */
+	private void emit() throws IOException {
+		final String s = line.toString();
+		line.setLength(0);
+		listener.lineArrived(s);
+	}
+}
@@ -0,0 +1,59 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 書き込まれたデータを{@link OutputListener}に転送する出力ストリーム.
+ * データを内部に貯めこむことはしない。
+ */
+final class ListenerOutputStream extends OutputStream {
+	/**
+	 * 転送先のリスナー.
+	 */
+	private final OutputListener listener;
+	/**
+	 * 1バイトずつの書き込みを転送するためのバッファ.
+	 */
+	private final byte[] single = new byte[1];
+	/**
+	 * ストリームがクローズ済みかどうかを示す.
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * コンストラクタ.
+	 * @param listener 転送先のリスナー
+	 */
+	ListenerOutputStream(final OutputListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException();
+		}
+		this.listener = listener;
+	}
+	
+	@Override
+	public void write(final int b) throws IOException {
+		single[0] = (byte) b;
+		listener.outputArrived(single, 0, 1);
+	}
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException();
+		} else if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		} else if (len == 0) {
+			return;
+		}
+		listener.outputArrived(b, off, len);
+	}
+	@Override
+	public void close() throws IOException {
+		// 終了の通知は1度だけ行う
+		if (!closed) {
+			closed = true;
+			listener.outputClosed();
+		}
+	}
+}
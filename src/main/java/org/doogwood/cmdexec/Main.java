@@ -31,6 +31,8 @@ public final class Main {
 		for (final String line : res.getStderrLines()) {
 			System.out.println("2>  " + line);
 		}
+		// 実行結果が保持している内容を解放する
+		res.close();
 		System.out.println();
 	}
 }
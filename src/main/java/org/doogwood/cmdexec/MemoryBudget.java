@@ -0,0 +1,240 @@
+package org.doogwood.cmdexec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * {@link PipeOutputStream}がメモリ上にデータを貯めこむために使用できるメモリの総量.
+ * すべての{@link PipeOutputStream}が1つの予算を共有することで、
+ * 同時に実行するコマンドが多くても出力の保持に使用するヒープの総量が上限を超えないようにする。
+ * {@link PipeOutputStream}はセグメント・バッファに書き込む前に、保持することになるセグメントの大きさだけこの予算から容量の割り当てを受け、
+ * 割り当てを受けられなかった場合は閾値に達していなくても一時ファイルに書き出す。
+ * 割り当てられた容量は一時ファイルへの移し替えもしくは{@link PipeOutputStream#release()}の時点で返却され、
+ * 解放されないまま回収された{@link PipeOutputStream}の分はガベージ・コレクションの後に返却される。
+ * 予算は同時に保持する総量を抑えるものであり、1つのストリームが保持する量は引き続き
+ * {@link PipeOutputStream}の閾値（デフォルトは{@link PipeOutputStream#DEFAULT_THRESHOLD}）で抑える。
+ * <p>ヒープの監視を有効にした予算は、GCの後も使用量が閾値を超えているヒープのメモリ・プールがあると
+ * {@link java.lang.management.MemoryMXBean}から通知を受け、しばらくの間は新たな割り当てを行わない。</p>
+ */
+public final class MemoryBudget {
+	/**
+	 * ヒープの逼迫の通知を受けてから割り当てを止める最短のミリ秒.
+	 * この時間が経過した後はメモリ・プールの状態を確認しなおす。
+	 */
+	private static final long PRESSURE_HOLD_MILLIS = 1000;
+	/**
+	 * 上限を設けない予算.
+	 */
+	private static final MemoryBudget UNLIMITED = new MemoryBudget(Long.MAX_VALUE, 0);
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで使用する予算.
+	 * 初めて必要になったときに初期化される。
+	 */
+	private static volatile MemoryBudget defaultBudget = null;
+	/**
+	 * 予算の上限.
+	 */
+	private final long limitBytes;
+	/**
+	 * 割り当て済みのバイト数.
+	 */
+	private final AtomicLong usedBytes = new AtomicLong();
+	/**
+	 * ヒープの逼迫の通知を受けた時刻（ミリ秒、逼迫していない場合は{@code 0}）.
+	 */
+	private volatile long pressureMillis = 0;
+
+	/**
+	 * コンストラクタ.
+	 * ヒープの監視は行わない。
+	 * @param limitBytes 予算の上限
+	 */
+	public MemoryBudget(final long limitBytes) {
+		this(limitBytes, 0);
+	}
+	/**
+	 * コンストラクタ.
+	 * ヒープの監視を有効にする場合、GCの後のメモリ・プールの使用量（コレクション使用量）の閾値を
+	 * 最大サイズに対する割合で指定する。
+	 * アプリケーションがすでに閾値を設定しているメモリ・プールはその閾値を変更しない。
+	 * 監視のリスナーはJVMが終了するまで登録されたままとなるため、ヒープを監視する予算は長期間使用するものに限る。
+	 * @param limitBytes 予算の上限
+	 * @param heapUsageThreshold ヒープの逼迫とみなす使用量の割合（{@code 0}の場合は監視しない）
+	 */
+	public MemoryBudget(final long limitBytes, final double heapUsageThreshold) {
+		if (limitBytes < 0 || !(heapUsageThreshold >= 0 && heapUsageThreshold < 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.limitBytes = limitBytes;
+		if (heapUsageThreshold > 0) {
+			monitorHeap(heapUsageThreshold);
+		}
+	}
+
+	/**
+	 * 上限を設けない予算を返す.
+	 * @return 予算
+	 */
+	public static MemoryBudget unlimited() {
+		return UNLIMITED;
+	}
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで使用する予算を返す.
+	 * 設定されていない場合はJVMの最大ヒープ・サイズの4分の1を上限とし、
+	 * GCの後のヒープの使用量が85%を超えた場合に割り当てを止める予算を初期化する。
+	 * @return 予算
+	 */
+	public static MemoryBudget getDefault() {
+		final MemoryBudget budget = defaultBudget;
+		if (budget != null) {
+			return budget;
+		}
+		synchronized (MemoryBudget.class) {
+			if (defaultBudget == null) {
+				defaultBudget = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4, 0.85);
+			}
+			return defaultBudget;
+		}
+	}
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで使用する予算を設定する.
+	 * 設定以前に作成された{@link PipeOutputStream}には影響しない。
+	 * @param budget 予算
+	 */
+	public static void setDefault(final MemoryBudget budget) {
+		if (budget == null) {
+			throw new IllegalArgumentException();
+		}
+		defaultBudget = budget;
+	}
+	/**
+	 * 予算の上限を返す.
+	 * @return バイト数
+	 */
+	public long getLimitBytes() {
+		return limitBytes;
+	}
+	/**
+	 * 割り当て済みのバイト数を返す.
+	 * @return バイト数
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+	/**
+	 * ヒープが逼迫しているため割り当てを止めている場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean isUnderPressure() {
+		final long since = pressureMillis;
+		if (since == 0) {
+			return false;
+		}
+		if (System.currentTimeMillis() - since < PRESSURE_HOLD_MILLIS) {
+			return true;
+		}
+		// 一定時間が経過したらメモリ・プールの状態を確認しなおす
+		if (isCollectionUsageThresholdExceeded()) {
+			pressureMillis = System.currentTimeMillis();
+			return true;
+		}
+		pressureMillis = 0;
+		return false;
+	}
+	/**
+	 * 容量の割り当てを試みる.
+	 * @param bytes 割り当てるバイト数
+	 * @return 割り当てた場合{@code true}（上限を超える場合やヒープが逼迫している場合は{@code false}）
+	 */
+	boolean tryReserve(final long bytes) {
+		if (limitBytes == Long.MAX_VALUE && pressureMillis == 0) {
+			// 上限のない予算は数えるだけとする
+			usedBytes.addAndGet(bytes);
+			return true;
+		}
+		if (isUnderPressure()) {
+			return false;
+		}
+		while (true) {
+			final long used = usedBytes.get();
+			if (bytes > limitBytes - used) {
+				return false;
+			}
+			if (usedBytes.compareAndSet(used, used + bytes)) {
+				return true;
+			}
+		}
+	}
+	/**
+	 * 割り当てた容量を返却する.
+	 * @param bytes 返却するバイト数
+	 */
+	void release(final long bytes) {
+		usedBytes.addAndGet(-bytes);
+	}
+	/**
+	 * ヒープの逼迫を記録する.
+	 * {@link java.lang.management.MemoryMXBean}の通知を受けたときに呼び出される。
+	 */
+	void pressureDetected() {
+		pressureMillis = System.currentTimeMillis();
+	}
+	/**
+	 * ヒープのメモリ・プールにコレクション使用量の閾値を設定し、閾値を超えた通知を受けるリスナーを登録する.
+	 * @param fraction 最大サイズに対する閾値の割合
+	 */
+	private void monitorHeap(final double fraction) {
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (!isTenured(pool)) {
+				continue;
+			}
+			final long max = pool.getUsage().getMax();
+			if (max > 0 && pool.getCollectionUsageThreshold() == 0) {
+				pool.setCollectionUsageThreshold((long) (max * fraction));
+			}
+		}
+		final NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+		emitter.addNotificationListener(new NotificationListener() {
+			@Override
+			public void handleNotification(final Notification notification, final Object handback) {
+				if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+					pressureDetected();
+				}
+			}
+		}, null, null);
+	}
+	/**
+	 * 長期間生存するオブジェクトを保持するヒープのメモリ・プールかどうかを判定する.
+	 * EdenやSurvivorのプールは使用量の閾値をサポートしないため、それをもって区別する。
+	 * @param pool メモリ・プール
+	 * @return 判定結果
+	 */
+	private static boolean isTenured(final MemoryPoolMXBean pool) {
+		return pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+				&& pool.isCollectionUsageThresholdSupported();
+	}
+	/**
+	 * ヒープのいずれかのメモリ・プールでGCの後の使用量が閾値を超えているかどうかを判定する.
+	 * @return 判定結果
+	 */
+	private static boolean isCollectionUsageThresholdExceeded() {
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (isTenured(pool) && pool.getCollectionUsageThreshold() > 0 && pool.isCollectionUsageThresholdExceeded()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	@Override
+	public String toString() {
+		return "MemoryBudget [limitBytes=" + limitBytes + ", usedBytes=" + usedBytes.get()
+				+ ", underPressure=" + (pressureMillis != 0) + "]";
+	}
+}
@@ -0,0 +1,28 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+
+/**
+ * 外部コマンドの出力を受け取るリスナー.
+ * 出力はコマンドの実行中に到着した順に逐次通知される。
+ * 通知はストリームハンドラのスレッドで同期的に行われるため、
+ * 通知を受けたメソッドが処理を終えるまで次の出力の読み取りは行われない。
+ * つまり処理の遅いリスナーはパイプを通じて外部コマンドの書き込みを待たせることになる（バックプレッシャー）。
+ */
+public interface OutputListener {
+	/**
+	 * 出力が到着したときに呼び出される.
+	 * 引数のバイト配列はこのメソッドから復帰した後に再利用されるため、
+	 * 内容を保持する場合はコピーしなくてはならない。
+	 * @param b データ
+	 * @param off データの開始位置
+	 * @param len データの長さ
+	 * @throws IOException 処理中にエラーが発生した場合
+	 */
+	void outputArrived(byte[] b, int off, int len) throws IOException;
+	/**
+	 * 出力が終了したときに呼び出される.
+	 * @throws IOException 処理中にエラーが発生した場合
+	 */
+	void outputClosed() throws IOException;
+}
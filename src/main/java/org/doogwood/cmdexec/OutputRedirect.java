@@ -0,0 +1,175 @@
+package org.doogwood.cmdexec;
+
+import java.io.File;
+
+/**
+ * 外部コマンドの標準出力もしくは標準エラーの出力先.
+ * デフォルトの{@link #capture()}以外を指定した場合、出力はOSのレベルでファイルなどにリダイレクトされ、
+ * JVMのスレッドを経由しない。
+ * そのため出力をパイプから読み取ってコピーするコストや、転送のスレッドを起動するコストがかからない。
+ * リダイレクトは{@code /bin/sh}を介して行うため、{@code /bin/sh}のない環境では実行時に{@link IllegalStateException}がスローされる。
+ * このオブジェクトは不変である。
+ * @see ExternalCommand#setStdoutRedirect(OutputRedirect)
+ * @see ExternalCommand#setStderrRedirect(OutputRedirect)
+ */
+public final class OutputRedirect {
+	/**
+	 * リダイレクトに使用するシェル.
+	 */
+	private static final File SHELL = new File("/bin/sh");
+	/**
+	 * 出力を実行結果として受け取る出力先.
+	 */
+	private static final OutputRedirect CAPTURE = new OutputRedirect(null, false, false);
+	/**
+	 * 出力を捨てる出力先.
+	 */
+	private static final OutputRedirect DISCARD = new OutputRedirect(new File("/dev/null"), false, false);
+	/**
+	 * 標準出力と同じ出力先.
+	 */
+	private static final OutputRedirect STDOUT = new OutputRedirect(null, false, true);
+
+	/**
+	 * 出力先のファイル.
+	 */
+	private final File file;
+	/**
+	 * ファイルに追記するかどうかを示す.
+	 */
+	private final boolean append;
+	/**
+	 * 標準出力に合流させるかどうかを示す.
+	 */
+	private final boolean mergeToStdout;
+
+	/**
+	 * コンストラクタ.
+	 * @param file 出力先のファイル（{@code null}の場合はファイルに出力しない）
+	 * @param append ファイルに追記するかどうか
+	 * @param mergeToStdout 標準出力に合流させるかどうか
+	 */
+	private OutputRedirect(final File file, final boolean append, final boolean mergeToStdout) {
+		this.file = file;
+		this.append = append;
+		this.mergeToStdout = mergeToStdout;
+	}
+
+	/**
+	 * 出力を実行結果として受け取る出力先を返す.
+	 * @return 出力先
+	 */
+	public static OutputRedirect capture() {
+		return CAPTURE;
+	}
+	/**
+	 * 出力を捨てる出力先（{@code /dev/null}）を返す.
+	 * @return 出力先
+	 */
+	public static OutputRedirect discard() {
+		return DISCARD;
+	}
+	/**
+	 * 出力をファイルに書き出す出力先を返す.
+	 * ファイルがすでに存在する場合は内容を切り詰めてから書き出す。
+	 * @param file ファイル
+	 * @return 出力先
+	 */
+	public static OutputRedirect toFile(final File file) {
+		if (file == null) {
+			throw new IllegalArgumentException();
+		}
+		return new OutputRedirect(file, false, false);
+	}
+	/**
+	 * 出力をファイルに追記する出力先を返す.
+	 * ファイルが存在しない場合は作成する。
+	 * @param file ファイル
+	 * @return 出力先
+	 */
+	public static OutputRedirect appendToFile(final File file) {
+		if (file == null) {
+			throw new IllegalArgumentException();
+		}
+		return new OutputRedirect(file, true, false);
+	}
+	/**
+	 * 標準エラーを標準出力に合流させる出力先（{@code 2>&1}）を返す.
+	 * 標準エラーにのみ設定できる。
+	 * 標準出力を実行結果として受け取る場合、標準エラーの内容は標準出力の内容に含まれる。
+	 * @return 出力先
+	 */
+	public static OutputRedirect toStdout() {
+		return STDOUT;
+	}
+
+	/**
+	 * 出力先のファイルを返す.
+	 * @return ファイル（ファイルに出力しない場合は{@code null}）
+	 */
+	public File getFile() {
+		return file;
+	}
+	/**
+	 * ファイルに追記する場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean isAppend() {
+		return append;
+	}
+	/**
+	 * 標準出力に合流させる場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean isMergeToStdout() {
+		return mergeToStdout;
+	}
+	/**
+	 * 出力を実行結果として受け取る場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	boolean isCapture() {
+		return file == null && !mergeToStdout;
+	}
+	/**
+	 * 標準出力と標準エラーをリダイレクトしたうえでコマンドを起動するよう、コマンドと引数を包む.
+	 * シェルがリダイレクトを設定してからコマンドに置き換わるため、プロセスの親子関係は変わらない。
+	 * ファイルのパスは引数として渡し、シェルのスクリプトには埋め込まない。
+	 * 相対パスはコマンドのカレント・ディレクトリではなくJVMのカレント・ディレクトリを基準に解決する。
+	 * @param stdout 標準出力の出力先
+	 * @param stderr 標準エラーの出力先
+	 * @param arguments コマンドと引数
+	 * @return 包んだコマンドと引数
+	 * @throws IllegalStateException {@code /bin/sh}が存在しない場合
+	 */
+	static String[] wrap(final OutputRedirect stdout, final OutputRedirect stderr, final String[] arguments) {
+		if (!SHELL.isFile()) {
+			throw new IllegalStateException("Output redirection requires " + SHELL);
+		}
+		// 例: /bin/sh -c 'e=$1; shift; exec "$@" >"$0" 2>&1' out.txt '' command args...
+		final StringBuilder script = new StringBuilder("e=$1; shift; exec \"$@\"");
+		if (stdout.file != null) {
+			script.append(stdout.append ? " >>\"$0\"" : " >\"$0\"");
+		}
+		if (stderr.mergeToStdout) {
+			script.append(" 2>&1");
+		} else if (stderr.file != null) {
+			script.append(stderr.append ? " 2>>\"$e\"" : " 2>\"$e\"");
+		}
+		final String[] wrapped = new String[arguments.length + 5];
+		wrapped[0] = SHELL.getPath();
+		wrapped[1] = "-c";
+		wrapped[2] = script.toString();
+		wrapped[3] = stdout.file != null ? stdout.file.getAbsolutePath() : "";
+		wrapped[4] = stderr.file != null ? stderr.file.getAbsolutePath() : "";
+		System.arraycopy(arguments, 0, wrapped, 5, arguments.length);
+		return wrapped;
+	}
+	@Override
+	public String toString() {
+		if (mergeToStdout) {
+			return "OutputRedirect [stdout]";
+		}
+		return "OutputRedirect [file=" + file + ", append=" + append + "]";
+	}
+}
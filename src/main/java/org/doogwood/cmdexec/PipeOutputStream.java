@@ -1,21 +1,50 @@
 package org.doogwood.cmdexec;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * 入力ストリームを生成する出力ストリーム.
  * 出力ストリームとして何かしらの処理の結果を受け取り内部的に貯めこんで、
  * その結果をもとにして入力ストリームを生成する。
+ * <p>メモリ上に貯めこむデータは{@link MemoryBudget}から、セグメント・バッファが保持するセグメントの大きさだけ容量の割り当てを受ける。
+ * 割り当てを受けられない場合は閾値に達していなくても一時ファイルに書き出す。</p>
+ * <p>{@link #openLiveInputStream()}で生成した入力ストリームは書き込みの途中でも読み取ることができ、
+ * 書き込まれたデータに追いつくと次の書き込みを待つ。書き込みと読み取りはこのオブジェクトのロックで同期する。</p>
+ * <p>保持しているデータは{@link #release()}で解放する。解放されないままガベージ・コレクトされた場合も
+ * 一時ファイルは削除され予約したディスク容量とメモリの割り当ては返却されるが、その時期はガベージ・コレクション次第となる。</p>
  */
 public final class PipeOutputStream extends OutputStream {
+	/**
+	 * 一時ファイル作成を判断する閾値のデフォルト値.
+	 * メモリ上に保持する総量は{@link MemoryBudget}で抑えるが、1つのストリームが保持する量もこの値で抑える。
+	 * 閾値を超える大きな出力は一時ファイルに書き出しておけば{@link #getByteBuffer()}や{@link #getFileChannel()}で
+	 * ヒープにコピーせずに読み取れるうえ、1つの大きな出力が予算を使い切って他のコマンドの出力を一時ファイルに追いやることがない。
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+	/**
+	 * 一時ファイルへの書き込みに使用するバッファのサイズ.
+	 */
+	private static final int TEMP_FILE_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * 一時ファイルを圧縮する場合にまとめて圧縮するブロックのサイズ.
+	 */
+	private static final int COMPRESSION_BLOCK_SIZE = 256 * 1024;
 	/**
 	 * 一時ファイル作成を判断する閾値.
 	 */
@@ -25,45 +54,140 @@ public final class PipeOutputStream extends OutputStream {
 	 */
 	private int byteCount = 0;
 	/**
-	 * データを貯めこむバイト配列ストリーム.
+	 * データを貯めこむセグメント・バッファ.
+	 */
+	private SegmentedBuffer segmentedBuffer;
+	/**
+	 * メモリ上に貯めこむデータの容量を割り当てる予算.
 	 */
-	private ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+	private final MemoryBudget memoryBudget;
+	/**
+	 * 予算から割り当てを受けたバイト数.
+	 */
+	private int grantedBytes = 0;
+	/**
+	 * 一時ファイルの格納先.
+	 */
+	private final TempFileStore tempFileStore;
 	/**
 	 * データを貯めこむ一時ファイル.
 	 */
 	private File tempFile = null;
+	/**
+	 * 解放されないまま回収された場合に後始末する一時ファイルとディスク容量、メモリの割り当て.
+	 */
+	private final RetainedResources retainedResources;
+	/**
+	 * 回収された場合の後始末の登録（資源を確保するまでは{@code null}）.
+	 */
+	private ReferenceCleaner.Cleanup cleanup = null;
+	/**
+	 * 一時ファイルに書き出したデータの圧縮前のバイト数.
+	 */
+	private long tempFileDataLength = 0;
+	/**
+	 * 一時ファイルに書き込んだデータのうち、バッファから書き出し済みであることが確かなバイト数.
+	 */
+	private long tempFileFlushedLength = 0;
+	/**
+	 * 一時ファイルを圧縮するかどうかを示す.
+	 */
+	private boolean spillCompressed = false;
+	/**
+	 * 一時ファイルの圧縮に使用する{@link Deflater}.
+	 */
+	private Deflater deflater = null;
+	/**
+	 * 一時ファイルへの書き出しがディスク容量の上限を超えた場合の例外.
+	 */
+	private SpillQuotaExceededException spillFailure = null;
+	/**
+	 * 一時ファイルへの書き出しがディスク容量の上限を超えたときに実行する処理.
+	 */
+	private Runnable spillFailureHandler = null;
 	/**
 	 * 一時ファイルのための出力ストリーム.
 	 */
-	private FileOutputStream tempFileOutputStream = null;
+	private OutputStream tempFileOutputStream = null;
 	/**
 	 * ストリームへの書き込みが終わっているかどうかを示す.
 	 */
 	private boolean closed = false;
+	/**
+	 * 保持していたデータが解放済みかどうかを示す.
+	 */
+	private boolean released = false;
+	/**
+	 * 書き込み中に読み取る入力ストリームを生成したかどうかを示す.
+	 */
+	private boolean liveReaderOpened = false;
+	/**
+	 * 書き込みを待っている入力ストリームの数.
+	 */
+	private int waitingReaders = 0;
 	
 	/**
 	 * コンストラクタ.
 	 * @param threshold 一時ファイル作成を判断する閾値（単位はバイト）
+	 * @param pool データを貯めこむセグメントの取得元のプール
+	 * @param store 一時ファイルの格納先
+	 * @param budget メモリ上に貯めこむデータの容量を割り当てる予算
 	 */
-	public PipeOutputStream(final int threshold) {
-		if (threshold < 0) {
+	public PipeOutputStream(final int threshold, final BufferPool pool,
+			final TempFileStore store, final MemoryBudget budget) {
+		if (threshold < 0 || pool == null || store == null || budget == null) {
 			throw new IllegalArgumentException();
 		}
 		this.threshold = threshold;
+		this.segmentedBuffer = new SegmentedBuffer(pool);
+		this.tempFileStore = store;
+		this.memoryBudget = budget;
+		this.retainedResources = new RetainedResources(store, budget);
+	}
+	/**
+	 * コンストラクタ.
+	 * メモリの予算には{@link MemoryBudget#getDefault()}が使用される。
+	 * @param threshold 一時ファイル作成を判断する閾値（単位はバイト）
+	 * @param pool データを貯めこむセグメントの取得元のプール
+	 * @param store 一時ファイルの格納先
+	 */
+	public PipeOutputStream(final int threshold, final BufferPool pool, final TempFileStore store) {
+		this(threshold, pool, store, MemoryBudget.getDefault());
+	}
+	/**
+	 * コンストラクタ.
+	 * 一時ファイルの格納先には{@link TempFileStore#getDefault()}が使用される。
+	 * @param threshold 一時ファイル作成を判断する閾値（単位はバイト）
+	 * @param pool データを貯めこむセグメントの取得元のプール
+	 */
+	public PipeOutputStream(final int threshold, final BufferPool pool) {
+		this(threshold, pool, TempFileStore.getDefault());
 	}
 	/**
 	 * コンストラクタ.
-	 * 一時ファイル作成を判断する閾値には1MB（{@code 1028 * 1028}バイト）が設定される。
+	 * セグメントの取得元には{@link BufferPool#getSharedPool()}が使用される。
+	 * @param threshold 一時ファイル作成を判断する閾値（単位はバイト）
+	 */
+	public PipeOutputStream(final int threshold) {
+		this(threshold, BufferPool.getSharedPool());
+	}
+	/**
+	 * コンストラクタ.
+	 * 一時ファイル作成を判断する閾値には1MB（{@link #DEFAULT_THRESHOLD}バイト）が設定される。
 	 */
 	public PipeOutputStream() {
-		this(1028 * 1028);
+		this(DEFAULT_THRESHOLD);
 	}
 	
 	@Override
-	public void write(final int b) throws IOException {
-		// 閾値をチェック
-		if (byteCount < threshold) {
-			// 閾値未満である場合
+	public synchronized void write(final int b) throws IOException {
+		// すでにディスク容量の上限を超えていればエラーとする
+		if (spillFailure != null) {
+			throw spillFailure;
+		}
+		// 閾値と予算をチェック
+		if (acquireMemory(1) > 0) {
+			// 閾値未満で予算の割り当てを受けられた場合
 
 			// 書き込みバイト数をインクリメント
 			byteCount ++;
@@ -78,26 +202,218 @@ public final class PipeOutputStream extends OutputStream {
 				// なければつくる
 				makeTempFile();
 			}
-			// 一時ファイルへの書き込み処理を実施
+			// ディスク容量を予約して一時ファイルへの書き込み処理を実施
+			// 圧縮する場合は圧縮後のデータを書き出す時点で予約する
+			if (!spillCompressed) {
+				reserveTempFileSpace(1);
+			}
+			tempFileDataLength ++;
 			writeIntoTempFile(b);
 		}
+		notifyReaders();
+	}
+	@Override
+	public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+		// 引数をチェック
+		if (b == null) {
+			throw new NullPointerException();
+		} else if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		} else if (len == 0) {
+			return;
+		} else if (spillFailure != null) {
+			// すでにディスク容量の上限を超えていればエラーとする
+			throw spillFailure;
+		}
+		// 閾値と予算の割り当てまでの残り容量を求める
+		final int headLen = acquireMemory(len);
+		if (headLen > 0) {
+			// 閾値未満の部分はセグメント・バッファへ一括で書き込む
+			byteCount += headLen;
+			segmentedBuffer.write(b, off, headLen);
+		}
+		// 閾値を超える部分が残っているかチェック
+		final int tailLen = len - headLen;
+		if (tailLen > 0) {
+			// 一時ファイルインスタンスへの参照をチェック
+			if (tempFile == null) {
+				// なければつくる
+				makeTempFile();
+			}
+			// ディスク容量を予約して残りは一時ファイルへ一括で書き込む
+			// 圧縮する場合は圧縮後のデータを書き出す時点で予約する
+			if (!spillCompressed) {
+				reserveTempFileSpace(tailLen);
+			}
+			tempFileDataLength += tailLen;
+			tempFileOutputStream.write(b, off + headLen, tailLen);
+		}
+		notifyReaders();
+	}
+	/**
+	 * セグメント・バッファに書き込めるバイト数を求める.
+	 * 割り当て済みの容量が足りなければ、セグメント・バッファが取得するセグメントの大きさ単位で予算から割り当てを受ける
+	 * （先頭の{@link BufferPool#LARGE_SEGMENT_SIZE}バイトまでは{@link BufferPool#SMALL_SEGMENT_SIZE}単位、
+	 * それより後は{@link BufferPool#LARGE_SEGMENT_SIZE}単位）。
+	 * 一時ファイルを作成した後は常に{@code 0}を返す。
+	 * このオブジェクトのロックを保持した状態で呼び出さなくてはならない。
+	 * @param len 書き込もうとしているバイト数
+	 * @return 書き込めるバイト数
+	 */
+	private int acquireMemory(final int len) {
+		if (tempFile != null) {
+			return 0;
+		}
+		final int wanted = Math.min(len, threshold - byteCount);
+		if (wanted <= 0) {
+			return 0;
+		}
+		final long required = (long) byteCount + wanted;
+		if (required > grantedBytes) {
+			// 実際に保持することになるセグメントの分だけ、閾値を超えない範囲で割り当てを受ける
+			long target = grantedBytes;
+			while (target < required) {
+				target += target < BufferPool.LARGE_SEGMENT_SIZE
+						? BufferPool.SMALL_SEGMENT_SIZE : BufferPool.LARGE_SEGMENT_SIZE;
+			}
+			final int grant = (int) (Math.min(target, threshold) - grantedBytes);
+			registerCleanup();
+			if (!memoryBudget.tryReserve(grant)) {
+				// 割り当て済みの残りだけをメモリ上に書き込み、以降は一時ファイルに書き出す
+				return grantedBytes - byteCount;
+			}
+			grantedBytes += grant;
+			retainedResources.addGrantedBytes(grant);
+		}
+		return wanted;
+	}
+	/**
+	 * 予算から割り当てを受けた容量を返却する.
+	 */
+	private void releaseMemory() {
+		retainedResources.releaseMemory();
+		grantedBytes = 0;
+	}
+	/**
+	 * 書き込みを待っている入力ストリームがあれば起こす.
+	 * このオブジェクトのロックを保持した状態で呼び出さなくてはならない。
+	 */
+	private void notifyReaders() {
+		if (waitingReaders > 0) {
+			notifyAll();
+		}
+	}
+	/**
+	 * これまでに書き込んだバイト数の合計を返す.
+	 * このオブジェクトのロックを保持した状態で呼び出さなくてはならない。
+	 * @return バイト数
+	 */
+	private long writtenBytes() {
+		return tempFile != null ? tempFileDataLength : byteCount;
 	}
 	/**
 	 * 一時ファイルを作成する.
-	 * すでにバイト配列に書き込み済みのデータがあればこれを一時ファイルに書き出す。
+	 * すでにセグメント・バッファに書き込み済みのデータがあればこれを一時ファイルに書き出す。
 	 * @throws IOException 一時ファイル作成とデータ書き込みの最中にエラーが発生した場合
 	 */
 	private void makeTempFile() throws IOException {
+		if (!spillCompressed) {
+			// 移し替えるデータの分のディスク容量を予約
+			reserveTempFileSpace(segmentedBuffer.size());
+		}
 		// 一時ファイル・インスタンスを生成
-		tempFile = File.createTempFile("pipeOutputStream", ".tmp");
-		// JVMが終了するとき一時ファイルも削除するよう指示
-		tempFile.deleteOnExit();
+		// File#deleteOnExit()はJVMが終了するまでパスを保持し続けるため使用しない
+		// 一時ファイルは#release()で削除し、解放されないまま回収された場合はReferenceCleanerが削除する
+		registerCleanup();
+		tempFile = tempFileStore.createTempFile();
+		final FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+		retainedResources.setFile(tempFile, fileOutputStream);
 		// 一時ファイルへの書き込みようにストリームを生成
-		tempFileOutputStream = new FileOutputStream(tempFile);
-		// すでにバイト配列に書き込んでいたデータを移し替え
-		tempFileOutputStream.write(byteArrayOutputStream.toByteArray());
-		// ByteArrayOutputStreamのインスタンスへの参照を破棄
-		byteArrayOutputStream = null;
+		// 1バイトずつの書き込みがそのままシステムコールにならないようバッファリングする
+		if (spillCompressed) {
+			// 圧縮はブロック単位でまとめて行い、圧縮後のデータを書き出すごとにディスク容量を予約する
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			tempFileOutputStream = new BufferedOutputStream(new DeflaterOutputStream(
+					new ReservingOutputStream(fileOutputStream), deflater, TEMP_FILE_BUFFER_SIZE),
+					COMPRESSION_BLOCK_SIZE);
+		} else {
+			tempFileOutputStream = new BufferedOutputStream(fileOutputStream, TEMP_FILE_BUFFER_SIZE);
+		}
+		tempFileDataLength = segmentedBuffer.size();
+		// すでにセグメント・バッファに書き込んでいたデータを移し替え（中間のコピーは作らない）
+		segmentedBuffer.writeTo(tempFileOutputStream);
+		// 不要になったセグメントはただちにプールに返却し参照を破棄
+		segmentedBuffer.release();
+		segmentedBuffer = null;
+		releaseMemory();
+	}
+	/**
+	 * 解放されないまま回収された場合に一時ファイルとディスク容量、メモリの割り当てを後始末するよう登録する.
+	 * 登録は最初に資源を確保するときに1度だけ行う。
+	 */
+	private void registerCleanup() {
+		if (cleanup == null) {
+			cleanup = ReferenceCleaner.register(this, retainedResources);
+		}
+	}
+	/**
+	 * 一時ファイルのためのディスク容量を予約する.
+	 * 上限を超える場合はそれを記録し、設定されていれば{@link #setSpillFailureHandler(Runnable)}の処理を実行する。
+	 * @param bytes 予約するバイト数
+	 * @throws SpillQuotaExceededException ディスク容量の上限を超える場合
+	 */
+	private void reserveTempFileSpace(final long bytes) throws SpillQuotaExceededException {
+		try {
+			registerCleanup();
+			tempFileStore.reserve(bytes);
+			retainedResources.addReservedBytes(bytes);
+		} catch (final SpillQuotaExceededException e) {
+			spillFailure = e;
+			if (spillFailureHandler != null) {
+				spillFailureHandler.run();
+			}
+			throw e;
+		}
+	}
+	/**
+	 * 一時ファイルを圧縮するかどうかを設定する.
+	 * {@code true}を設定した場合、閾値を超えたデータは{@link Deflater#BEST_SPEED}でブロックごとに圧縮して書き出し、
+	 * {@link #getInputStream()}などで読み取る際に少しずつ伸張する。
+	 * 圧縮しやすい出力（テキストやログなど）ではディスクへの書き込み量と予約するディスク容量が減るかわりに、
+	 * 圧縮と伸張のCPU時間がかかる。
+	 * 圧縮した一時ファイルは{@link #getFileChannel()}で直接読み取ることはできない。
+	 * また、圧縮する場合は{@link #openLiveInputStream()}を使用できない。
+	 * デフォルトでは{@code false}が設定されている。
+	 * @param compressed 圧縮する場合{@code true}
+	 * @throws IllegalStateException すでに一時ファイルを作成している場合、
+	 * 	もしくは書き込み中に読み取る入力ストリームを生成済みの場合に圧縮しようとした場合
+	 */
+	public synchronized void setSpillCompressed(final boolean compressed) {
+		if (tempFile != null || released || (compressed && liveReaderOpened)) {
+			throw new IllegalStateException();
+		}
+		this.spillCompressed = compressed;
+	}
+	/**
+	 * 一時ファイルを圧縮する場合{@code true}を返す.
+	 * @return 判定結果
+	 */
+	public boolean isSpillCompressed() {
+		return spillCompressed;
+	}
+	/**
+	 * 一時ファイルへの書き出しがディスク容量の上限を超えたときに実行する処理を設定する.
+	 * @param handler 処理
+	 */
+	void setSpillFailureHandler(final Runnable handler) {
+		this.spillFailureHandler = handler;
+	}
+	/**
+	 * 一時ファイルへの書き出しがディスク容量の上限を超えた場合はその例外を返す.
+	 * @return 例外（上限を超えていない場合は{@code null}）
+	 */
+	public SpillQuotaExceededException getSpillFailure() {
+		return spillFailure;
 	}
 	/**
 	 * 一時ファイルに対してデータを書き込む.
@@ -108,11 +424,11 @@ public final class PipeOutputStream extends OutputStream {
 		tempFileOutputStream.write(b);
 	}
 	/**
-	 * バイト配列に対してデータを書き込む.
+	 * セグメント・バッファに対してデータを書き込む.
 	 * @param b データ
 	 */
 	private void writeIntoByteArray(final int b) {
-		byteArrayOutputStream.write(b);
+		segmentedBuffer.write(b);
 	}
 	/**
 	 * 一時ファイルを使用している場合{@code true}を返す.
@@ -126,29 +442,291 @@ public final class PipeOutputStream extends OutputStream {
 	 * このメソッドが{@code true}を返した場合、
 	 * この{@code OutputStream}へのデータの書き出しが完了しており、
 	 * {@link #getInputStream()}を呼び出す準備ができていることを示す。
+	 * {@link #release()}の呼び出し後は{@code false}を返す。
 	 * @return 判定結果
 	 */
 	public boolean isReadyForReading() {
-		return closed;
+		return closed && !released;
+	}
+	/**
+	 * 保持しているデータを解放する.
+	 * メモリ上のデータを保持していたセグメントはプールに返却され、一時ファイルはただちに削除される。
+	 * このメソッドの呼び出し後は、それ以前に{@link #getInputStream()}で取得した入力ストリームのうち
+	 * メモリ上のデータを読み取るものは{@link IOException}をスローする。
+	 * {@link #getByteBuffer()}で取得した{@link ByteBuffer}はプールに返却されない領域を参照するため引き続き読み取れる。
+	 */
+	public synchronized void release() {
+		released = true;
+		// 書き込みを待っている入力ストリームにはエラーを通知する
+		notifyAll();
+		if (segmentedBuffer != null) {
+			segmentedBuffer.release();
+			segmentedBuffer = null;
+		}
+		releaseMemory();
+		if (tempFileOutputStream != null) {
+			// 書き込み途中で解放された場合はストリームをクローズしてから削除する
+			try {
+				tempFileOutputStream.close();
+			} catch (final IOException e) {
+				// 削除するファイルのため無視する
+			}
+			tempFileOutputStream = null;
+		}
+		endDeflater();
+		// 一時ファイルを削除し、予約していたディスク容量を解放する
+		if (cleanup != null) {
+			cleanup.clean();
+			cleanup = null;
+		}
+		tempFile = null;
 	}
 	@Override
-	public final void close() throws IOException {
+	public final synchronized void close() throws IOException {
 		try {
 			// 一時ファイルのFileOutputStreamへの参照をチェック
 			if (tempFileOutputStream != null) {
 				// もし参照があればともかくclose()を呼び出す
 				tempFileOutputStream.close();
 			}
+		} catch (final IOException e) {
+			// ディスク容量の上限を超えた後は残りのデータを書き出せないため無視する
+			// （上限を超えたことは#getSpillFailure()で確認できる）
+			if (spillFailure == null) {
+				throw e;
+			}
 		} finally {
 			// FileOutputStreamの事後処理の結果にかかわらず
 			// 当該インスタンスへの参照は破棄
 			tempFileOutputStream = null;
+			tempFileFlushedLength = tempFileDataLength;
+			endDeflater();
 			// PipeOutputStreamとしてはクローズ済みとしてマークする
 			closed = true;
+			// 書き込みを待っている入力ストリームに終端を通知する
+			notifyAll();
 		}
 	}
+	/**
+	 * 一時ファイルの圧縮に使用した{@link Deflater}のネイティブ・メモリを解放する.
+	 * {@link DeflaterOutputStream}は引数で与えた{@link Deflater}を解放しないため明示的に解放する。
+	 */
+	private void endDeflater() {
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+	/**
+	 * データを読み取り専用の{@link ByteBuffer}として返す.
+	 * メモリ上にデータを保持している場合、データが1つのセグメントに収まっていれば
+	 * 内部のバイト配列を直接参照するためコピーは作らない。
+	 * 複数のセグメントにまたがる場合は初回の呼び出しで1度だけ連続した領域にコピーし、以降の呼び出しはその領域を参照する。
+	 * いずれの場合も参照する領域はプールに返却されないため、{@link #release()}の後も内容は変わらない。
+	 * 一時ファイルを使用している場合は一時ファイルをメモリにマッピングした{@link java.nio.MappedByteBuffer}を返す。
+	 * 一時ファイルを圧縮している場合は伸張したデータをヒープ上にコピーする。
+	 * @return {@link ByteBuffer}
+	 * @throws IllegalStateException 書き込みが終わっていない場合、
+	 * 	もしくは一時ファイルが大きすぎてマッピングできない場合
+	 */
+	public synchronized ByteBuffer getByteBuffer() {
+		// 読み込み準備ができているかチェック
+		if (!isReadyForReading()) {
+			// できていない場合は実行時例外をスロー
+			throw new IllegalStateException();
+		}
+		// 一時ファイルの有無をチェック
+		if (tempFile == null) {
+			// 一時ファイルがない＝セグメント・バッファでデータを保持している
+			return segmentedBuffer.toByteBuffer();
+		} else if (spillCompressed) {
+			return inflateToByteBuffer();
+		}
+		final FileChannel channel = getFileChannel();
+		try {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				// ByteBufferで扱える大きさを超えている
+				throw new IllegalStateException();
+			}
+			// マッピングはチャネルをクローズした後も有効
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (final IOException e) {
+			// 一時ファイルを読み取れない＝予期せぬエラー
+			// 実行時例外をスローする
+			throw new IllegalStateException(e);
+		} finally {
+			closeQuietly(channel);
+		}
+	}
+	/**
+	 * 圧縮した一時ファイルを伸張して読み取り専用の{@link ByteBuffer}として返す.
+	 * @return {@link ByteBuffer}
+	 * @throws IllegalStateException 伸張後のデータが大きすぎる場合
+	 */
+	private ByteBuffer inflateToByteBuffer() {
+		if (tempFileDataLength > Integer.MAX_VALUE) {
+			// ByteBufferで扱える大きさを超えている
+			throw new IllegalStateException();
+		}
+		final byte[] data = new byte[(int) tempFileDataLength];
+		final InputStream in = getInputStream();
+		try {
+			int position = 0;
+			while (position < data.length) {
+				final int n = in.read(data, position, data.length - position);
+				if (n == -1) {
+					// 書き出したバイト数に満たない＝予期せぬエラー
+					throw new IllegalStateException();
+				}
+				position += n;
+			}
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		} catch (final IOException e) {
+			// 一時ファイルを読み取れない＝予期せぬエラー
+			// 実行時例外をスローする
+			throw new IllegalStateException(e);
+		} finally {
+			try {
+				in.close();
+			} catch (final IOException e) {
+				// 読み取り専用のストリームのため無視する
+			}
+		}
+	}
+	/**
+	 * 一時ファイルを読み取るための{@link FileChannel}を生成して返す.
+	 * チャネルのクローズは呼び出し元の責任で行う。
+	 * @return {@link FileChannel}
+	 * @throws IllegalStateException 書き込みが終わっていない場合、一時ファイルを使用していない場合、
+	 * 	もしくは一時ファイルを圧縮している場合
+	 */
+	public FileChannel getFileChannel() {
+		// 読み込み準備ができているか、一時ファイルがあるかチェック
+		if (!isReadyForReading() || tempFile == null || spillCompressed) {
+			// できていない場合は実行時例外をスロー
+			throw new IllegalStateException();
+		}
+		try {
+			return new FileInputStream(tempFile).getChannel();
+		} catch (final FileNotFoundException e) {
+			// 一時ファイルが見つからない＝予期せぬエラー
+			// 実行時例外をスローする
+			throw new IllegalStateException(e);
+		}
+	}
+	/**
+	 * データを指定されたチャネルに書き出す.
+	 * 一時ファイルを使用している場合は{@link FileChannel#transferTo(long, long, WritableByteChannel)}を使用するため、
+	 * OSがサポートしていればデータはヒープを経由せずに転送される。
+	 * 一時ファイルを圧縮している場合は伸張しながらバッファ単位で書き出す。
+	 * 書き出し先のチャネルはクローズしない。
+	 * @param target 書き出し先のチャネル
+	 * @return 書き出したバイト数
+	 * @throws IOException 書き出し中にエラーが発生した場合
+	 * @throws IllegalStateException 書き込みが終わっていない場合
+	 */
+	public long transferTo(final WritableByteChannel target) throws IOException {
+		// 読み込み準備ができているかチェック
+		if (!isReadyForReading()) {
+			// できていない場合は実行時例外をスロー
+			throw new IllegalStateException();
+		} else if (target == null) {
+			throw new IllegalArgumentException();
+		}
+		// 一時ファイルの有無をチェック
+		if (tempFile == null) {
+			// 一時ファイルがない＝セグメントを直接参照するバッファから書き出す
+			// 書き出しの途中でセグメントがプールに返却されないようロックを保持する
+			synchronized (this) {
+				if (released) {
+					throw new IllegalStateException();
+				}
+				long size = 0;
+				for (final ByteBuffer buff : segmentedBuffer.toByteBuffers()) {
+					size += buff.remaining();
+					while (buff.hasRemaining()) {
+						target.write(buff);
+					}
+				}
+				return size;
+			}
+		} else if (spillCompressed) {
+			return inflateTo(target);
+		}
+		final FileChannel channel = getFileChannel();
+		try {
+			final long size = channel.size();
+			long position = 0;
+			// transferToは要求したバイト数より少ない数しか転送しないことがある
+			while (position < size) {
+				position += channel.transferTo(position, size - position, target);
+			}
+			return size;
+		} finally {
+			closeQuietly(channel);
+		}
+	}
+	/**
+	 * 圧縮した一時ファイルを伸張しながら指定されたチャネルに書き出す.
+	 * @param target 書き出し先のチャネル
+	 * @return 書き出したバイト数
+	 * @throws IOException 書き出し中にエラーが発生した場合
+	 */
+	private long inflateTo(final WritableByteChannel target) throws IOException {
+		final BufferPool pool = BufferPool.getSharedPool();
+		final byte[] buff = pool.acquire(true);
+		final InputStream in = getInputStream();
+		try {
+			long size = 0;
+			int n;
+			while ((n = in.read(buff)) != -1) {
+				final ByteBuffer wrapped = ByteBuffer.wrap(buff, 0, n);
+				while (wrapped.hasRemaining()) {
+					target.write(wrapped);
+				}
+				size += n;
+			}
+			return size;
+		} finally {
+			in.close();
+			pool.release(buff);
+		}
+	}
+	/**
+	 * チャネルをクローズする.
+	 * クローズの最中に発生したエラーは無視する。
+	 * @param channel チャネル
+	 */
+	private static void closeQuietly(final FileChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// 読み取り専用のチャネルのため無視する
+		}
+	}
+	/**
+	 * 書き込みの途中でも読み取ることのできる入力ストリームを生成して返す.
+	 * 入力ストリームはいつ生成しても先頭から読み取り、書き込まれたデータに追いつくと
+	 * 次の書き込みか{@link #close()}の呼び出しまで{@link InputStream#read()}をブロックする（{@code tail -f}と同様）。
+	 * ブロックせずに読み取りたい場合は{@link InputStream#available()}で読み取れるバイト数を確認する。
+	 * 入力ストリームはいくつでも生成でき、それぞれが独立して読み取る。データはコピーされず、
+	 * メモリ上のセグメントもしくは一時ファイルから直接読み取る。
+	 * 読み取りの途中で{@link #release()}が呼び出された場合、以降の読み取りは{@link IOException}をスローする。
+	 * @return 入力ストリーム
+	 * @throws IllegalStateException 解放済みの場合もしくは一時ファイルを圧縮する設定の場合
+	 */
+	public synchronized InputStream openLiveInputStream() {
+		if (released || spillCompressed) {
+			throw new IllegalStateException();
+		}
+		liveReaderOpened = true;
+		return new LiveInputStream();
+	}
 	/**
 	 * 入力ストリームを生成して返す.
+	 * メモリ上にデータを保持している場合、入力ストリームはこのオブジェクトのロックを保持してセグメントから直接読み取る
+	 * （コピーは作らない）。{@link #release()}の後の読み取りは{@link IOException}をスローする。
 	 * @return 入力ストリーム
 	 */
 	public InputStream getInputStream() {
@@ -159,11 +737,16 @@ public final class PipeOutputStream extends OutputStream {
 		}
 		// 一時ファイルの有無をチェック
 		if (tempFile == null) {
-			// 一時ファイルがない＝バイト配列でデータを保持している
-			// バイト配列からByteArrayInputStreamを生成して返す
-			return new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
+			// 一時ファイルがない＝セグメント・バッファでデータを保持している
+			// ロックを保持してセグメントから読み取る入力ストリームを生成して返す（コピーは作らない）
+			// セグメントへの参照を渡さないため、解放後にプールで再利用されたセグメントを読み取ることはない
+			return new LiveInputStream();
 		} else {
 			try {
+				if (spillCompressed) {
+					// 読み取りに応じて少しずつ伸張する入力ストリームを返す
+					return new SpillInputStream(new FileInputStream(tempFile));
+				}
 				// 一時ファイルからFileInputStreamを生成して返す
 				return new FileInputStream(tempFile);
 			} catch (final FileNotFoundException e) {
@@ -173,4 +756,276 @@ public final class PipeOutputStream extends OutputStream {
 			}
 		}
 	}
+	
+	/**
+	 * 一時ファイルと予約したディスク容量、予算から割り当てを受けたメモリの容量.
+	 * {@link PipeOutputStream}が解放されないまま回収された場合は{@link ReferenceCleaner}が後始末する。
+	 * 後始末のためにこのオブジェクトから{@link PipeOutputStream}を参照してはならない。
+	 */
+	private static final class RetainedResources implements Runnable {
+		/**
+		 * 一時ファイルの格納先.
+		 */
+		private final TempFileStore store;
+		/**
+		 * 一時ファイル.
+		 */
+		private File file = null;
+		/**
+		 * 一時ファイルの出力ストリーム.
+		 */
+		private OutputStream output = null;
+		/**
+		 * 予約済みのディスク容量（単位はバイト）.
+		 */
+		private long reservedBytes = 0;
+		/**
+		 * メモリ上に貯めこむデータの容量を割り当てる予算.
+		 */
+		private final MemoryBudget budget;
+		/**
+		 * 予算から割り当てを受けたバイト数.
+		 */
+		private long grantedBytes = 0;
+
+		/**
+		 * コンストラクタ.
+		 * @param store 一時ファイルの格納先
+		 * @param budget メモリ上に貯めこむデータの容量を割り当てる予算
+		 */
+		RetainedResources(final TempFileStore store, final MemoryBudget budget) {
+			this.store = store;
+			this.budget = budget;
+		}
+
+		/**
+		 * 一時ファイルを設定する.
+		 * @param file 一時ファイル
+		 * @param output 一時ファイルの出力ストリーム
+		 */
+		synchronized void setFile(final File file, final OutputStream output) {
+			this.file = file;
+			this.output = output;
+		}
+		/**
+		 * 予約済みのディスク容量を加算する.
+		 * @param bytes 予約したバイト数
+		 */
+		synchronized void addReservedBytes(final long bytes) {
+			reservedBytes += bytes;
+		}
+		/**
+		 * 予算から割り当てを受けたバイト数を加算する.
+		 * @param bytes 割り当てを受けたバイト数
+		 */
+		synchronized void addGrantedBytes(final long bytes) {
+			grantedBytes += bytes;
+		}
+		/**
+		 * 予算から割り当てを受けた容量を返却する.
+		 */
+		synchronized void releaseMemory() {
+			budget.release(grantedBytes);
+			grantedBytes = 0;
+		}
+		/**
+		 * 一時ファイルを削除し、予約していたディスク容量とメモリの割り当てを解放する.
+		 */
+		@Override
+		public synchronized void run() {
+			releaseMemory();
+			if (output != null) {
+				try {
+					output.close();
+				} catch (final IOException e) {
+					// 削除するファイルのため無視する
+				}
+				output = null;
+			}
+			if (file != null) {
+				file.delete();
+				file = null;
+			}
+			store.release(reservedBytes);
+			reservedBytes = 0;
+		}
+	}
+	
+	/**
+	 * 圧縮後のデータを書き出す前にディスク容量を予約する出力ストリーム.
+	 */
+	private final class ReservingOutputStream extends FilterOutputStream {
+		/**
+		 * コンストラクタ.
+		 * @param out 一時ファイルの出力ストリーム
+		 */
+		ReservingOutputStream(final OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			reserveTempFileSpace(1);
+			out.write(b);
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			reserveTempFileSpace(len);
+			out.write(b, off, len);
+		}
+	}
+	
+	/**
+	 * 圧縮した一時ファイルを伸張しながら読み取る入力ストリーム.
+	 * クローズの際に{@link Inflater}のネイティブ・メモリを解放する。
+	 */
+	private static final class SpillInputStream extends InflaterInputStream {
+		/**
+		 * コンストラクタ.
+		 * @param in 一時ファイルの入力ストリーム
+		 */
+		SpillInputStream(final InputStream in) {
+			super(in, new Inflater(), TEMP_FILE_BUFFER_SIZE);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+	
+	/**
+	 * 書き込みの途中でも読み取ることのできる入力ストリーム.
+	 * 読み取りは{@link PipeOutputStream}のロックを保持して行う。
+	 * 書き込みが終わった後にメモリ上のデータを読み取る{@link #getInputStream()}の入力ストリームとしても使用する。
+	 */
+	private final class LiveInputStream extends InputStream {
+		/**
+		 * 次に読み取る位置.
+		 */
+		private long position = 0;
+		/**
+		 * 一時ファイルを読み取るためのチャネル（初めて必要になったときに初期化される）.
+		 */
+		private FileChannel channel = null;
+		/**
+		 * この入力ストリームがクローズされたかどうかを示す.
+		 */
+		private boolean streamClosed = false;
+		/**
+		 * 1バイトずつの読み取りに使用するバッファ.
+		 */
+		private final byte[] single = new byte[1];
+		
+		@Override
+		public int read() throws IOException {
+			synchronized (PipeOutputStream.this) {
+				return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+			}
+		}
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (b == null) {
+				throw new NullPointerException();
+			} else if (off < 0 || len < 0 || len > b.length - off) {
+				throw new IndexOutOfBoundsException();
+			}
+			synchronized (PipeOutputStream.this) {
+				while (true) {
+					checkReadable();
+					final long available = writtenBytes() - position;
+					if (len == 0) {
+						return 0;
+					} else if (available > 0) {
+						final int n = copy(b, off, (int) Math.min(len, available));
+						position += n;
+						return n;
+					} else if (closed) {
+						return -1;
+					}
+					// 次の書き込みを待つ
+					waitingReaders ++;
+					try {
+						PipeOutputStream.this.wait();
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					} finally {
+						waitingReaders --;
+					}
+				}
+			}
+		}
+		@Override
+		public int available() throws IOException {
+			synchronized (PipeOutputStream.this) {
+				checkReadable();
+				return (int) Math.min(writtenBytes() - position, Integer.MAX_VALUE);
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			synchronized (PipeOutputStream.this) {
+				streamClosed = true;
+				if (channel != null) {
+					closeQuietly(channel);
+					channel = null;
+				}
+			}
+		}
+		/**
+		 * 読み取りを続けられるかどうかをチェックする.
+		 * @throws IOException この入力ストリームがクローズ済みの場合もしくはデータが解放済みの場合
+		 */
+		private void checkReadable() throws IOException {
+			if (streamClosed) {
+				throw new IOException("Stream closed");
+			} else if (released) {
+				throw new IOException("Released");
+			}
+		}
+		/**
+		 * 現在の位置からデータをコピーする.
+		 * {@link PipeOutputStream}のロックを保持した状態で呼び出さなくてはならない。
+		 * @param b コピー先のバイト配列
+		 * @param off コピー先の開始位置
+		 * @param len コピーするバイト数（書き込み済みのバイト数を超えてはならない）
+		 * @return コピーしたバイト数
+		 * @throws IOException 一時ファイルの読み取り中にエラーが発生した場合
+		 */
+		private int copy(final byte[] b, final int off, final int len) throws IOException {
+			if (tempFile == null) {
+				// 閾値未満であればセグメントからコピーする
+				return segmentedBuffer.read((int) position, b, off, len);
+			}
+			// 書き出し済みのデータを読み尽くした場合に限り、バッファリングされているデータを一時ファイルに書き出す
+			// 読み取りのたびに書き出すと、小さな書き込みのたびにシステムコールが発生する
+			if (position >= tempFileFlushedLength && tempFileOutputStream != null) {
+				tempFileOutputStream.flush();
+				tempFileFlushedLength = tempFileDataLength;
+			}
+			final int readable = (int) Math.min(len, tempFileFlushedLength - position);
+			if (readable <= 0) {
+				// 書き込んだバイト数に満たない＝予期せぬエラー
+				throw new IOException("Unexpected end of file");
+			}
+			if (channel == null) {
+				channel = new FileInputStream(tempFile).getChannel();
+			}
+			final ByteBuffer buff = ByteBuffer.wrap(b, off, readable);
+			int n;
+			do {
+				n = channel.read(buff, position);
+			} while (n == 0);
+			if (n == -1) {
+				// 書き込んだバイト数に満たない＝予期せぬエラー
+				throw new IOException("Unexpected end of file");
+			}
+			return n;
+		}
+	}
 }
@@ -0,0 +1,195 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.StreamPumper;
+
+/**
+ * 標準出力と標準エラーの読み取りを{@link StreamPoller}に任せるストリームハンドラ.
+ * プロセスごとに読み取りのスレッドを起動しない。
+ * 標準入力に与えるデータがある場合のみ、書き込みがブロックしうるため転送のスレッドを起動する。
+ */
+final class PollingStreamHandler implements TimedStreamHandler {
+	/**
+	 * 標準入力の転送のスレッドの終了を待つ間にウォッチドッグの状態を確認する間隔のミリ秒.
+	 */
+	private static final long JOIN_SLICE_MILLIS = 100;
+	/**
+	 * 読み取りを任せるポーラー.
+	 */
+	private final StreamPoller poller;
+	/**
+	 * 標準出力の出力先.
+	 */
+	private final OutputStream out;
+	/**
+	 * 標準エラーの出力先.
+	 */
+	private final OutputStream err;
+	/**
+	 * 標準入力の入力元.
+	 */
+	private final InputStream input;
+	/**
+	 * 出力の読み取りを打ち切る時刻を知るためのウォッチドッグ.
+	 */
+	private final TimerWatchdog watchdog;
+	/**
+	 * 標準出力の読み取りの登録.
+	 */
+	private StreamPoller.Registration outRegistration = null;
+	/**
+	 * 標準エラーの読み取りの登録.
+	 */
+	private StreamPoller.Registration errRegistration = null;
+	/**
+	 * プロセスの標準出力.
+	 */
+	private InputStream processOut = null;
+	/**
+	 * プロセスの標準エラー.
+	 */
+	private InputStream processErr = null;
+	/**
+	 * 標準入力に転送するスレッド.
+	 */
+	private Thread inputPumper = null;
+	/**
+	 * ストリームの転送を開始した時刻（ナノ秒）.
+	 */
+	private volatile long startNanos = 0;
+	/**
+	 * ストリームの転送の終了処理を開始した時刻（ナノ秒）.
+	 */
+	private volatile long stopNanos = 0;
+	/**
+	 * ストリームの転送を終えた時刻（ナノ秒）.
+	 */
+	private volatile long stoppedNanos = 0;
+
+	/**
+	 * コンストラクタ.
+	 * @param poller 読み取りを任せるポーラー
+	 * @param out 標準出力の出力先（{@code null}の場合は読み取らない）
+	 * @param err 標準エラーの出力先（{@code null}の場合は読み取らない）
+	 * @param input 標準入力の入力元（{@code null}の場合は標準入力をただちにクローズする）
+	 * @param watchdog 出力の読み取りを打ち切る時刻を知るためのウォッチドッグ（{@code null}の場合は打ち切らない）
+	 */
+	PollingStreamHandler(final StreamPoller poller, final OutputStream out,
+			final OutputStream err, final InputStream input, final TimerWatchdog watchdog) {
+		this.poller = poller;
+		this.out = out;
+		this.err = err;
+		this.input = input;
+		this.watchdog = watchdog;
+	}
+
+	@Override
+	public void setProcessInputStream(final OutputStream os) throws IOException {
+		if (input == null) {
+			os.close();
+			return;
+		}
+		inputPumper = new Thread(new StreamPumper(input, os, true,
+				LargeBufferPumpStreamHandler.PUMP_BUFFER_SIZE), "Exec Stream Pumper");
+		inputPumper.setDaemon(true);
+	}
+	@Override
+	public void setProcessOutputStream(final InputStream is) throws IOException {
+		if (out == null) {
+			// 出力はリダイレクトされているためポーラーに登録せずにクローズする
+			is.close();
+			return;
+		}
+		processOut = is;
+	}
+	@Override
+	public void setProcessErrorStream(final InputStream is) throws IOException {
+		if (err == null) {
+			is.close();
+			return;
+		}
+		processErr = is;
+	}
+	@Override
+	public void start() {
+		startNanos = System.nanoTime();
+		if (processOut != null) {
+			outRegistration = poller.register(processOut, out);
+		}
+		if (processErr != null) {
+			errRegistration = poller.register(processErr, err);
+		}
+		if (inputPumper != null) {
+			inputPumper.start();
+		}
+	}
+	@Override
+	public void stop() throws IOException {
+		stopNanos = System.nanoTime();
+		final BufferPool pool = BufferPool.getSharedPool();
+		final byte[] buff = pool.acquire(true);
+		try {
+			// プロセスの終了後に残った出力を読み取る（打ち切りの時刻を過ぎれば残りは捨てる）
+			if (outRegistration != null) {
+				outRegistration.drain(buff, watchdog);
+			}
+			if (errRegistration != null) {
+				errRegistration.drain(buff, watchdog);
+			}
+			if (inputPumper != null) {
+				// 打ち切りの時刻を過ぎても入力元の読み取りから戻らない場合は待つのをやめる（デーモン・スレッドのため残しておく）
+				awaitInputPumper();
+			}
+			if (out != null) {
+				out.flush();
+			}
+			if (err != null) {
+				err.flush();
+			}
+		} finally {
+			pool.release(buff);
+			stoppedNanos = System.nanoTime();
+		}
+	}
+	/**
+	 * 標準入力の転送のスレッドの終了を待つ.
+	 * 待つ間に強制終了された場合も打ち切りの時刻に従うよう、一定の間隔でウォッチドッグの状態を確認する。
+	 * @return スレッドが終了した場合{@code true}（打ち切りの時刻を過ぎた場合は{@code false}）
+	 */
+	private boolean awaitInputPumper() {
+		try {
+			while (inputPumper.isAlive()) {
+				final long abandonNanos = watchdog != null ? watchdog.getAbandonNanos() : 0;
+				long wait = JOIN_SLICE_MILLIS;
+				if (abandonNanos != 0) {
+					final long rest = TimeUnit.NANOSECONDS.toMillis(abandonNanos - System.nanoTime());
+					if (rest <= 0) {
+						return false;
+					}
+					wait = Math.min(wait, rest);
+				}
+				inputPumper.join(wait);
+			}
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	@Override
+	public long getStartNanos() {
+		return startNanos;
+	}
+	@Override
+	public long getStopNanos() {
+		return stopNanos;
+	}
+	@Override
+	public long getStoppedNanos() {
+		return stoppedNanos;
+	}
+}
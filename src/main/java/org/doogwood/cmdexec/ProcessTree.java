@@ -0,0 +1,224 @@
+package org.doogwood.cmdexec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * プロセスとその子孫のプロセスからなるツリー.
+ * Linuxの{@code /proc}から親子関係を読み取り、ある時点のツリーを記録してシグナルを送る。
+ * シグナルは{@code kill}コマンドで送る。
+ * {@code /proc}のない環境では子孫のプロセスは記録されず、{@link #isSupported()}は{@code false}を返す。
+ * <p>PIDの再利用によって無関係のプロセスにシグナルを送らないよう、
+ * 記録したプロセスの起動時刻が変わっていないことを確かめてから送る。</p>
+ */
+final class ProcessTree {
+	/**
+	 * {@code /proc}の読み取りに使用するキャラクターセット.
+	 */
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	/**
+	 * {@code /proc}のディレクトリ.
+	 */
+	private static final File PROC = new File("/proc");
+	/**
+	 * 記録したプロセスのPIDと起動時刻（根のプロセスが先頭で、以降は子孫のプロセス）.
+	 */
+	private final Map<Long, Long> processes;
+
+	/**
+	 * コンストラクタ.
+	 * @param processes 記録したプロセスのPIDと起動時刻
+	 */
+	private ProcessTree(final Map<Long, Long> processes) {
+		this.processes = processes;
+	}
+
+	/**
+	 * この環境でプロセスのツリーを記録できるかどうかを判定する.
+	 * @return 判定結果
+	 */
+	static boolean isSupported() {
+		return new File(PROC, "self/stat").isFile();
+	}
+	/**
+	 * プロセスのPIDを返す.
+	 * Java 9以降は{@code Process#pid()}を、それより前はUNIXの実装クラスのフィールドを参照する。
+	 * @param process プロセス
+	 * @return PID（取得できない場合は{@code -1}）
+	 */
+	static long pidOf(final Process process) {
+		try {
+			final Method pid = Process.class.getMethod("pid");
+			return ((Number) pid.invoke(process)).longValue();
+		} catch (final Exception e) {
+			// Java 8以前
+		}
+		try {
+			final Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return pid.getLong(process);
+		} catch (final Exception e) {
+			return -1;
+		}
+	}
+	/**
+	 * 指定されたプロセスとその時点の子孫のプロセスを記録する.
+	 * @param pid 根のプロセスのPID
+	 * @return ツリー
+	 */
+	static ProcessTree snapshot(final long pid) {
+		final Map<Long, Long> processes = new LinkedHashMap<Long, Long>();
+		if (pid <= 0 || !isSupported()) {
+			return new ProcessTree(processes);
+		}
+		// すべてのプロセスの親子関係を読み取る
+		final Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+		final Map<Long, Long> startTimes = new HashMap<Long, Long>();
+		final String[] names = PROC.list();
+		if (names != null) {
+			for (final String name : names) {
+				if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+					continue;
+				}
+				final long[] stat = readStat(Long.parseLong(name));
+				if (stat == null) {
+					continue;
+				}
+				startTimes.put(stat[0], stat[2]);
+				List<Long> list = children.get(stat[1]);
+				if (list == null) {
+					list = new ArrayList<Long>();
+					children.put(stat[1], list);
+				}
+				list.add(stat[0]);
+			}
+		}
+		if (!startTimes.containsKey(pid)) {
+			return new ProcessTree(processes);
+		}
+		// 根から幅優先でたどる
+		final LinkedList<Long> queue = new LinkedList<Long>();
+		queue.add(pid);
+		while (!queue.isEmpty()) {
+			final Long p = queue.removeFirst();
+			if (processes.containsKey(p)) {
+				continue;
+			}
+			processes.put(p, startTimes.get(p));
+			final List<Long> list = children.get(p);
+			if (list != null) {
+				queue.addAll(list);
+			}
+		}
+		return new ProcessTree(processes);
+	}
+	/**
+	 * 記録したプロセスのうち、まだ動作しているものにシグナルを送る.
+	 * @param signal シグナルの名前（{@code "TERM"}や{@code "KILL"}）
+	 * @param includeRoot 根のプロセスにも送る場合{@code true}
+	 * @return シグナルを送ったプロセスの数
+	 */
+	int signal(final String signal, final boolean includeRoot) {
+		final List<String> command = new ArrayList<String>();
+		command.add("kill");
+		command.add("-s");
+		command.add(signal);
+		boolean root = true;
+		for (final Map.Entry<Long, Long> e : processes.entrySet()) {
+			if ((includeRoot || !root) && isAlive(e.getKey(), e.getValue())) {
+				command.add(e.getKey().toString());
+			}
+			root = false;
+		}
+		final int count = command.size() - 3;
+		if (count == 0) {
+			return 0;
+		}
+		try {
+			final Process kill = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+			kill.getOutputStream().close();
+			kill.getInputStream().close();
+			kill.getErrorStream().close();
+			kill.waitFor();
+		} catch (final IOException e) {
+			// シグナルを送れなかったプロセスは残る
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return count;
+	}
+	/**
+	 * 記録したプロセスのうち、まだ動作しているものがあるかどうかを判定する.
+	 * 終了して回収を待っているプロセス（ゾンビ）は動作していないものとみなす。
+	 * @return 判定結果
+	 */
+	boolean isAlive() {
+		for (final Map.Entry<Long, Long> e : processes.entrySet()) {
+			if (isAlive(e.getKey(), e.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * プロセスが記録した時点と同じプロセスのまま動作しているかどうかを判定する.
+	 * @param pid PID
+	 * @param startTime 記録した起動時刻
+	 * @return 判定結果
+	 */
+	private static boolean isAlive(final long pid, final long startTime) {
+		final long[] stat = readStat(pid);
+		return stat != null && stat[2] == startTime && stat[3] != 'Z';
+	}
+	/**
+	 * {@code /proc/[pid]/stat}を読み取る.
+	 * @param pid PID
+	 * @return PID、親のPID、起動時刻、状態の文字（読み取れない場合は{@code null}）
+	 */
+	private static long[] readStat(final long pid) {
+		final String stat;
+		try {
+			final InputStream in = new FileInputStream(new File(PROC, pid + "/stat"));
+			try {
+				final byte[] buff = new byte[1024];
+				int len = 0;
+				int n;
+				while (len < buff.length && (n = in.read(buff, len, buff.length - len)) != -1) {
+					len += n;
+				}
+				stat = new String(buff, 0, len, US_ASCII);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			// プロセスがすでに終了している
+			return null;
+		}
+		// コマンド名は空白や括弧を含みうるため最後の')'より後ろを解析する
+		// 例: "1234 (sh) S 1000 ..."（状態、親のPID、...、22番目が起動時刻）
+		final int close = stat.lastIndexOf(')');
+		if (close < 0) {
+			return null;
+		}
+		final String[] fields = stat.substring(close + 2).split(" ");
+		if (fields.length < 20) {
+			return null;
+		}
+		try {
+			return new long[] {pid, Long.parseLong(fields[1]), Long.parseLong(fields[19]), fields[0].charAt(0)};
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+}
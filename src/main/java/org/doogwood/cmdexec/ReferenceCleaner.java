@@ -0,0 +1,125 @@
+package org.doogwood.cmdexec;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * オブジェクトが明示的に解放されないままガベージ・コレクトされた場合に後始末の処理を実行する仕組み.
+ * {@link PhantomReference}と{@link ReferenceQueue}で回収を検知し、デーモン・スレッドで後始末の処理を実行する。
+ * <p>後始末の処理は回収されたオブジェクトを参照してはならない（参照していると回収されない）。
+ * 明示的に解放する場合は{@link Cleanup#clean()}を呼び出す。後始末の処理は高々1回しか実行されない。</p>
+ */
+final class ReferenceCleaner {
+	/**
+	 * 回収されたオブジェクトの参照が登録されるキュー.
+	 */
+	private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+	/**
+	 * 後始末を待っている参照.
+	 * 参照そのものが回収されないよう強い参照で保持する。
+	 */
+	private static final Set<Cleanup> PENDING = Collections.newSetFromMap(new IdentityHashMap<Cleanup, Boolean>());
+	/**
+	 * 後始末の処理を実行するスレッド（初めて登録されたときに起動する）.
+	 */
+	private static Thread thread = null;
+
+	/**
+	 * コンストラクタ.
+	 * インスタンス化は許可しない。
+	 */
+	private ReferenceCleaner() {}
+
+	/**
+	 * オブジェクトが回収されたときに実行する後始末の処理を登録する.
+	 * @param referent 対象のオブジェクト
+	 * @param action 後始末の処理（対象のオブジェクトを参照してはならない）
+	 * @return 登録
+	 */
+	static Cleanup register(final Object referent, final Runnable action) {
+		if (referent == null || action == null) {
+			throw new IllegalArgumentException();
+		}
+		final Cleanup cleanup = new Cleanup(referent, action);
+		synchronized (PENDING) {
+			PENDING.add(cleanup);
+			if (thread == null) {
+				thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						drain();
+					}
+				}, "cmdexec-reference-cleaner");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		return cleanup;
+	}
+	/**
+	 * 後始末を待っている参照の数を返す.
+	 * @return 参照の数
+	 */
+	static int pendingCount() {
+		synchronized (PENDING) {
+			return PENDING.size();
+		}
+	}
+	/**
+	 * 回収されたオブジェクトの後始末を続ける.
+	 */
+	private static void drain() {
+		while (true) {
+			try {
+				((Cleanup) QUEUE.remove()).clean();
+			} catch (final InterruptedException e) {
+				// デーモン・スレッドのため割り込まれても後始末を続ける
+			} catch (final RuntimeException e) {
+				// 後始末の処理のエラーで他の後始末が止まらないよう無視する
+			}
+		}
+	}
+
+	/**
+	 * 後始末の処理の登録.
+	 */
+	static final class Cleanup extends PhantomReference<Object> {
+		/**
+		 * 後始末の処理（実行済みの場合は{@code null}）.
+		 */
+		private Runnable action;
+
+		/**
+		 * コンストラクタ.
+		 * @param referent 対象のオブジェクト
+		 * @param action 後始末の処理
+		 */
+		private Cleanup(final Object referent, final Runnable action) {
+			super(referent, QUEUE);
+			this.action = action;
+		}
+
+		/**
+		 * 後始末の処理を実行して登録を解除する.
+		 * すでに実行済みの場合は何もしない。
+		 */
+		void clean() {
+			final Runnable a;
+			synchronized (this) {
+				a = action;
+				action = null;
+			}
+			if (a == null) {
+				return;
+			}
+			synchronized (PENDING) {
+				PENDING.remove(this);
+			}
+			clear();
+			a.run();
+		}
+	}
+}
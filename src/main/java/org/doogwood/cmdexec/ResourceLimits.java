@@ -0,0 +1,122 @@
+package org.doogwood.cmdexec;
+
+/**
+ * 1回の実行でコマンドが使用できる資源の上限.
+ * CPUの割り当て、メモリ使用量、プロセス数の上限を指定する。上限はLinuxでのみ適用できる。
+ * {@link CgroupController}が設定されていればcgroup v2のコントローラーで、
+ * そうでなければ{@code prlimit}コマンドで設定するリソース制限（rlimit）で適用する。
+ * このオブジェクトは不変である。
+ * @see ExternalCommand#setResourceLimits(ResourceLimits)
+ */
+public final class ResourceLimits {
+	/**
+	 * 上限を設けない設定.
+	 */
+	private static final ResourceLimits NONE = new ResourceLimits(0, 0, 0);
+
+	/**
+	 * CPUの割り当て（CPU数）.
+	 */
+	private final double cpuQuota;
+	/**
+	 * メモリ使用量の上限（バイト）.
+	 */
+	private final long memoryLimitBytes;
+	/**
+	 * プロセス数の上限.
+	 */
+	private final int maxProcesses;
+
+	/**
+	 * コンストラクタ.
+	 * @param cpuQuota CPUの割り当て（{@code 0}の場合は上限なし）
+	 * @param memoryLimitBytes メモリ使用量の上限（{@code 0}の場合は上限なし）
+	 * @param maxProcesses プロセス数の上限（{@code 0}の場合は上限なし）
+	 */
+	private ResourceLimits(final double cpuQuota, final long memoryLimitBytes, final int maxProcesses) {
+		this.cpuQuota = cpuQuota;
+		this.memoryLimitBytes = memoryLimitBytes;
+		this.maxProcesses = maxProcesses;
+	}
+
+	/**
+	 * 上限を設けない設定を返す.
+	 * @return 設定
+	 */
+	public static ResourceLimits none() {
+		return NONE;
+	}
+	/**
+	 * CPUの割り当てを設定した新しいオブジェクトを返す.
+	 * 割り当てはCPU数で指定する（{@code 0.5}であれば1つのCPUの半分の時間）。
+	 * cgroupの{@code cpu.max}で適用するため、{@link CgroupController}が必要である。
+	 * @param cpus CPUの割り当て
+	 * @return 設定
+	 */
+	public ResourceLimits withCpuQuota(final double cpus) {
+		if (!(cpus > 0) || Double.isInfinite(cpus)) {
+			throw new IllegalArgumentException();
+		}
+		return new ResourceLimits(cpus, memoryLimitBytes, maxProcesses);
+	}
+	/**
+	 * メモリ使用量の上限を設定した新しいオブジェクトを返す.
+	 * cgroupでは{@code memory.max}としてプロセス・ツリー全体の使用量に適用し、
+	 * {@code prlimit}ではプロセスごとの仮想メモリの大きさ（{@code RLIMIT_AS}）に適用する。
+	 * @param bytes メモリ使用量の上限（バイト）
+	 * @return 設定
+	 */
+	public ResourceLimits withMemoryLimit(final long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException();
+		}
+		return new ResourceLimits(cpuQuota, bytes, maxProcesses);
+	}
+	/**
+	 * プロセス数の上限を設定した新しいオブジェクトを返す.
+	 * cgroupの{@code pids.max}で実行ごとのプロセス・ツリー全体に適用するため、{@link CgroupController}が必要である。
+	 * {@code prlimit}で設定できるプロセス数の上限（{@code RLIMIT_NPROC}）はJVMと同じユーザーで動作するすべてのプロセスを数え、
+	 * 実行ごとの上限にならないため使用しない。
+	 * @param count プロセス数の上限
+	 * @return 設定
+	 */
+	public ResourceLimits withMaxProcesses(final int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException();
+		}
+		return new ResourceLimits(cpuQuota, memoryLimitBytes, count);
+	}
+	/**
+	 * CPUの割り当てを返す.
+	 * @return CPU数（上限なしの場合は{@code 0}）
+	 */
+	public double getCpuQuota() {
+		return cpuQuota;
+	}
+	/**
+	 * メモリ使用量の上限を返す.
+	 * @return バイト数（上限なしの場合は{@code 0}）
+	 */
+	public long getMemoryLimitBytes() {
+		return memoryLimitBytes;
+	}
+	/**
+	 * プロセス数の上限を返す.
+	 * @return プロセス数（上限なしの場合は{@code 0}）
+	 */
+	public int getMaxProcesses() {
+		return maxProcesses;
+	}
+	/**
+	 * 上限を設けない設定であれば{@code true}を返す.
+	 * @return 判定結果
+	 */
+	boolean isUnlimited() {
+		return cpuQuota == 0 && memoryLimitBytes == 0 && maxProcesses == 0;
+	}
+	@Override
+	public String toString() {
+		return "ResourceLimits [cpuQuota=" + cpuQuota + ", memoryLimitBytes=" + memoryLimitBytes
+				+ ", maxProcesses=" + maxProcesses + "]";
+	}
+}
@@ -0,0 +1,356 @@
+package org.doogwood.cmdexec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 1回の実行に{@link ResourceLimits}の上限を適用し、{@link ResourceUsage}を計測する範囲.
+ * {@link CgroupController}が設定されている場合は実行ごとにcgroupを作成し、
+ * コマンドをそのcgroupに移してから起動する。
+ * 設定されていない場合は{@code prlimit}コマンドを介してリソース制限を設定したうえでコマンドを起動する。
+ * いずれの場合もコマンドは{@code exec}で置き換えられるため、起動したプロセスのPIDは変わらない。
+ */
+final class ResourceScope {
+	/**
+	 * cgroupの設定ファイルの読み書きに使用するキャラクターセット.
+	 */
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	/**
+	 * {@code cpu.max}の期間（マイクロ秒）.
+	 */
+	private static final long CPU_PERIOD_MICROS = 100000;
+	/**
+	 * cgroupのプロセスがいなくなるのを待つ最大のミリ秒.
+	 */
+	private static final long DRAIN_TIMEOUT_MILLIS = 1000;
+	/**
+	 * cgroupの名前を一意にするための連番.
+	 */
+	private static final AtomicLong sequence = new AtomicLong();
+	/**
+	 * 実行ごとのcgroupのディレクトリ（{@code prlimit}を使用する場合は{@code null}）.
+	 */
+	private final File cgroup;
+	/**
+	 * コマンドの前に置く引数.
+	 */
+	private final String[] prefix;
+	/**
+	 * 終了時に計測した使用量.
+	 */
+	private ResourceUsage usage = null;
+	/**
+	 * 終了済みかどうかを示す.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * コンストラクタ.
+	 * @param cgroup 実行ごとのcgroupのディレクトリ
+	 * @param prefix コマンドの前に置く引数
+	 */
+	private ResourceScope(final File cgroup, final String[] prefix) {
+		this.cgroup = cgroup;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * 上限を適用する範囲を開始する.
+	 * @param limits 上限
+	 * @param controller cgroupのコントローラー（{@code null}の場合は{@code prlimit}を使用する）
+	 * @return 範囲（上限もcgroupもない場合は{@code null}）
+	 * @throws IOException cgroupの作成中にエラーが発生した場合
+	 * @throws IllegalStateException 上限を適用する手段がない場合
+	 */
+	static ResourceScope open(final ResourceLimits limits, final CgroupController controller) throws IOException {
+		if (controller != null) {
+			return openCgroup(limits, controller);
+		}
+		if (limits.isUnlimited()) {
+			return null;
+		}
+		return openPrlimit(limits);
+	}
+	/**
+	 * cgroupを作成して上限を設定する.
+	 * @param limits 上限
+	 * @param controller cgroupのコントローラー
+	 * @return 範囲
+	 * @throws IOException cgroupの作成中にエラーが発生した場合
+	 */
+	private static ResourceScope openCgroup(final ResourceLimits limits, final CgroupController controller) throws IOException {
+		final File dir = new File(controller.getDirectory(),
+				"cmdexec-" + System.nanoTime() + "-" + sequence.incrementAndGet());
+		if (!dir.mkdir()) {
+			throw new IOException("Cannot create cgroup: " + dir);
+		}
+		try {
+			if (limits.getCpuQuota() > 0) {
+				final long quota = Math.max(1000, Math.round(limits.getCpuQuota() * CPU_PERIOD_MICROS));
+				writeLimit(dir, "cpu.max", quota + " " + CPU_PERIOD_MICROS);
+			}
+			if (limits.getMemoryLimitBytes() > 0) {
+				writeLimit(dir, "memory.max", String.valueOf(limits.getMemoryLimitBytes()));
+			}
+			if (limits.getMaxProcesses() > 0) {
+				writeLimit(dir, "pids.max", String.valueOf(limits.getMaxProcesses()));
+			}
+		} catch (final IOException e) {
+			dir.delete();
+			throw e;
+		} catch (final RuntimeException e) {
+			dir.delete();
+			throw e;
+		}
+		// シェルが自身をcgroupに移したうえでコマンドに置き換わる
+		final String[] prefix = {"/bin/sh", "-c", "echo $$ > \"$0\" && exec \"$@\"",
+				new File(dir, "cgroup.procs").getPath()};
+		return new ResourceScope(dir, prefix);
+	}
+	/**
+	 * cgroupの上限のファイルに書き込む.
+	 * @param dir cgroupのディレクトリ
+	 * @param name ファイル名
+	 * @param value 値
+	 * @throws IOException 書き込み中にエラーが発生した場合
+	 * @throws IllegalStateException 該当するコントローラーが有効になっていない場合
+	 */
+	private static void writeLimit(final File dir, final String name, final String value) throws IOException {
+		final File file = new File(dir, name);
+		if (!file.exists()) {
+			throw new IllegalStateException("Controller for " + name + " is not enabled in " + dir.getParent());
+		}
+		writeFile(file, value);
+	}
+	/**
+	 * {@code prlimit}コマンドの引数を組み立てる.
+	 * @param limits 上限
+	 * @return 範囲
+	 * @throws IllegalStateException {@code prlimit}では適用できない上限が含まれる場合
+	 */
+	private static ResourceScope openPrlimit(final ResourceLimits limits) {
+		if (!System.getProperty("os.name", "").startsWith("Linux")) {
+			throw new IllegalStateException("Resource limits are supported only on Linux.");
+		}
+		if (limits.getCpuQuota() > 0) {
+			throw new IllegalStateException("CPU quota requires CgroupController.");
+		}
+		if (limits.getMaxProcesses() > 0) {
+			// RLIMIT_NPROCはユーザーごとのプロセス数に適用され、実行ごとの上限にならない
+			throw new IllegalStateException("Process limit requires CgroupController.");
+		}
+		final List<String> prefix = new ArrayList<String>();
+		prefix.add("prlimit");
+		if (limits.getMemoryLimitBytes() > 0) {
+			prefix.add("--as=" + limits.getMemoryLimitBytes());
+		}
+		prefix.add("--");
+		return new ResourceScope(null, prefix.toArray(new String[prefix.size()]));
+	}
+	/**
+	 * コマンドとその引数を上限を適用して起動するための引数に変換する.
+	 * @param arguments コマンドとその引数
+	 * @return 変換した引数
+	 */
+	String[] wrap(final String[] arguments) {
+		final String[] wrapped = Arrays.copyOf(prefix, prefix.length + arguments.length);
+		System.arraycopy(arguments, 0, wrapped, prefix.length, arguments.length);
+		return wrapped;
+	}
+	/**
+	 * 範囲を終了する.
+	 * cgroupに残ったプロセスを強制終了し、使用量を読み取ってからcgroupを削除する。
+	 * 2回目以降の呼び出しは最初の呼び出しと同じ値を返す。
+	 * @return 使用量（{@code prlimit}を使用した場合は{@code null}）
+	 */
+	ResourceUsage close() {
+		if (closed) {
+			return usage;
+		}
+		closed = true;
+		if (cgroup == null) {
+			return null;
+		}
+		killAll();
+		final long[] cpu = readCpuStat();
+		final long[] io = readIoStat();
+		usage = new ResourceUsage(cpu[0], cpu[1], readLong(new File(cgroup, "memory.peak")), io[0], io[1]);
+		// プロセスの回収がカーネル内で完了するまで削除に失敗することがあるため何度か試みる
+		for (int i = 0; i < 10 && !cgroup.delete() && sleep(10); i ++) {
+			// 削除できるまで繰り返す
+		}
+		return usage;
+	}
+	/**
+	 * cgroupのすべてのプロセスを強制終了する.
+	 * {@code prlimit}を使用した場合や{@code cgroup.kill}がない場合（Linux 5.14より前）は何もしない。
+	 */
+	void kill() {
+		if (cgroup == null) {
+			return;
+		}
+		final File kill = new File(cgroup, "cgroup.kill");
+		if (kill.exists()) {
+			try {
+				writeFile(kill, "1");
+			} catch (final IOException e) {
+				// 終了済みでcgroupが削除された場合など
+			}
+		}
+	}
+	/**
+	 * cgroupに残ったプロセスを強制終了し、いなくなるまで待つ.
+	 * コマンドが起動した子プロセスのうちコマンドの終了後も動作しているものが対象となる。
+	 */
+	private void killAll() {
+		final File procs = new File(cgroup, "cgroup.procs");
+		final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+		boolean killed = false;
+		while (System.currentTimeMillis() < deadline) {
+			final String pids = readFile(procs);
+			if (pids == null || pids.trim().isEmpty()) {
+				return;
+			}
+			if (!killed) {
+				// 強制終了できない場合はプロセスの終了を待つだけとなる
+				kill();
+				killed = true;
+			}
+			if (!sleep(10)) {
+				return;
+			}
+		}
+	}
+	/**
+	 * {@code cpu.stat}からCPU時間を読み取る.
+	 * @return ユーザー・モードとカーネル・モードのCPU時間（読み取れない項目は{@code -1}）
+	 */
+	private long[] readCpuStat() {
+		final long[] cpu = {-1, -1};
+		final String stat = readFile(new File(cgroup, "cpu.stat"));
+		if (stat == null) {
+			return cpu;
+		}
+		for (final String line : stat.split("\n")) {
+			final String[] kv = line.split(" ");
+			if (kv.length != 2) {
+				continue;
+			}
+			if (kv[0].equals("user_usec")) {
+				cpu[0] = parseLong(kv[1]);
+			} else if (kv[0].equals("system_usec")) {
+				cpu[1] = parseLong(kv[1]);
+			}
+		}
+		return cpu;
+	}
+	/**
+	 * {@code io.stat}から全デバイスの読み書きのバイト数を合計して読み取る.
+	 * @return 読み取りと書き込みのバイト数（{@code io}コントローラーが有効でない場合は{@code -1}）
+	 */
+	private long[] readIoStat() {
+		final String stat = readFile(new File(cgroup, "io.stat"));
+		if (stat == null) {
+			return new long[] {-1, -1};
+		}
+		final long[] io = {0, 0};
+		for (final String line : stat.split("\n")) {
+			// 例: "8:0 rbytes=1024 wbytes=0 rios=1 wios=0 dbytes=0 dios=0"
+			for (final String field : line.split(" ")) {
+				if (field.startsWith("rbytes=")) {
+					io[0] += Math.max(0, parseLong(field.substring(7)));
+				} else if (field.startsWith("wbytes=")) {
+					io[1] += Math.max(0, parseLong(field.substring(7)));
+				}
+			}
+		}
+		return io;
+	}
+	/**
+	 * 数値1つだけを内容とするファイルを読み取る.
+	 * @param file ファイル
+	 * @return 数値（読み取れない場合は{@code -1}）
+	 */
+	private static long readLong(final File file) {
+		final String value = readFile(file);
+		return value == null ? -1 : parseLong(value.trim());
+	}
+	/**
+	 * 文字列を数値に変換する.
+	 * @param value 文字列
+	 * @return 数値（変換できない場合は{@code -1}）
+	 */
+	private static long parseLong(final String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+	/**
+	 * cgroupのファイルの内容を読み取る.
+	 * @param file ファイル
+	 * @return 内容（ファイルが存在しないか読み取れない場合は{@code null}）
+	 */
+	private static String readFile(final File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			final InputStream in = new FileInputStream(file);
+			try {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final byte[] buff = new byte[4096];
+				int n;
+				while ((n = in.read(buff)) != -1) {
+					bytes.write(buff, 0, n);
+				}
+				return new String(bytes.toByteArray(), US_ASCII);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+	/**
+	 * cgroupのファイルに書き込む.
+	 * カーネルは1回の書き込みを1つの値として解釈するため、値はまとめて書き込む。
+	 * @param file ファイル
+	 * @param value 値
+	 * @throws IOException 書き込み中にエラーが発生した場合
+	 */
+	static void writeFile(final File file, final String value) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(value.getBytes(US_ASCII));
+		} finally {
+			out.close();
+		}
+	}
+	/**
+	 * 指定されたミリ秒だけ待機する.
+	 * 割り込みが発生した場合は割り込み状態を設定しなおして待機をやめる。
+	 * @param millis ミリ秒
+	 * @return 割り込みが発生せずに待機した場合{@code true}
+	 */
+	private static boolean sleep(final long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
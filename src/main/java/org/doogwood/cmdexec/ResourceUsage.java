@@ -0,0 +1,92 @@
+package org.doogwood.cmdexec;
+
+/**
+ * 1回の実行でコマンドのプロセス・ツリー全体が使用した資源の量.
+ * {@link CgroupController}を使用した実行についてcgroupの統計から読み取った値である。
+ * cgroupで該当するコントローラーが有効になっていない項目は{@code -1}となる。
+ * @see ExternalCommand.Result#getResourceUsage()
+ */
+public final class ResourceUsage {
+	/**
+	 * ユーザー・モードのCPU時間（マイクロ秒）.
+	 */
+	private final long userCpuMicros;
+	/**
+	 * カーネル・モードのCPU時間（マイクロ秒）.
+	 */
+	private final long systemCpuMicros;
+	/**
+	 * メモリ使用量のピーク（バイト）.
+	 */
+	private final long peakMemoryBytes;
+	/**
+	 * ブロック・デバイスから読み取ったバイト数.
+	 */
+	private final long readBytes;
+	/**
+	 * ブロック・デバイスに書き込んだバイト数.
+	 */
+	private final long writeBytes;
+
+	/**
+	 * コンストラクタ.
+	 * @param userCpuMicros ユーザー・モードのCPU時間
+	 * @param systemCpuMicros カーネル・モードのCPU時間
+	 * @param peakMemoryBytes メモリ使用量のピーク
+	 * @param readBytes ブロック・デバイスから読み取ったバイト数
+	 * @param writeBytes ブロック・デバイスに書き込んだバイト数
+	 */
+	ResourceUsage(final long userCpuMicros, final long systemCpuMicros,
+			final long peakMemoryBytes, final long readBytes, final long writeBytes) {
+		this.userCpuMicros = userCpuMicros;
+		this.systemCpuMicros = systemCpuMicros;
+		this.peakMemoryBytes = peakMemoryBytes;
+		this.readBytes = readBytes;
+		this.writeBytes = writeBytes;
+	}
+
+	/**
+	 * ユーザー・モードのCPU時間を返す.
+	 * @return マイクロ秒（計測できなかった場合は{@code -1}）
+	 */
+	public long getUserCpuMicros() {
+		return userCpuMicros;
+	}
+	/**
+	 * カーネル・モードのCPU時間を返す.
+	 * @return マイクロ秒（計測できなかった場合は{@code -1}）
+	 */
+	public long getSystemCpuMicros() {
+		return systemCpuMicros;
+	}
+	/**
+	 * メモリ使用量のピークを返す.
+	 * cgroupの{@code memory.peak}の値で、プロセス・ツリー全体の常駐メモリとページ・キャッシュを含む。
+	 * @return バイト数（計測できなかった場合は{@code -1}）
+	 */
+	public long getPeakMemoryBytes() {
+		return peakMemoryBytes;
+	}
+	/**
+	 * ブロック・デバイスから読み取ったバイト数を返す.
+	 * ページ・キャッシュから読み取った分は含まない。
+	 * @return バイト数（計測できなかった場合は{@code -1}）
+	 */
+	public long getReadBytes() {
+		return readBytes;
+	}
+	/**
+	 * ブロック・デバイスに書き込んだバイト数を返す.
+	 * @return バイト数（計測できなかった場合は{@code -1}）
+	 */
+	public long getWriteBytes() {
+		return writeBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "ResourceUsage [userCpuMicros=" + userCpuMicros + ", systemCpuMicros=" + systemCpuMicros
+				+ ", peakMemoryBytes=" + peakMemoryBytes + ", readBytes=" + readBytes
+				+ ", writeBytes=" + writeBytes + "]";
+	}
+}
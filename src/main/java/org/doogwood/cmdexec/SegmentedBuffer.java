@@ -0,0 +1,203 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BufferPool}から取得したセグメントを連ねてデータを貯めこむバッファ.
+ * {@link java.io.ByteArrayOutputStream}と異なり容量の拡張時に既存のデータをコピーしない。
+ * <p>セグメントは{@link #release()}でプールに返却され、他のデータの書き込みに再利用される。
+ * そのためセグメントを直接参照するオブジェクトを呼び出し元に渡す場合は、
+ * そのセグメントをプールから切り離して返却の対象から外す（{@link #toByteBuffer()}を参照）。</p>
+ */
+final class SegmentedBuffer {
+	/**
+	 * セグメントの取得元のプール.
+	 */
+	private final BufferPool pool;
+	/**
+	 * データを貯めこんでいるセグメント.
+	 */
+	private final List<byte[]> segments = new ArrayList<byte[]>();
+	/**
+	 * 書き込み中のセグメント.
+	 */
+	private byte[] current = null;
+	/**
+	 * 書き込み中のセグメントに書き込んだバイト数.
+	 */
+	private int currentCount = 0;
+	/**
+	 * 全体で書き込んだバイト数.
+	 */
+	private int size = 0;
+	/**
+	 * セグメントをプールから切り離したかどうかを示す.
+	 * 切り離したセグメントは解放の際にプールに返却しない。
+	 */
+	private boolean detached = false;
+	
+	/**
+	 * コンストラクタ.
+	 * @param pool セグメントの取得元のプール
+	 */
+	SegmentedBuffer(final BufferPool pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException();
+		}
+		this.pool = pool;
+	}
+	
+	/**
+	 * 1バイトを書き込む.
+	 * @param b データ
+	 */
+	void write(final int b) {
+		ensureCapacity();
+		current[currentCount ++] = (byte) b;
+		size ++;
+	}
+	/**
+	 * バイト配列の一部を書き込む.
+	 * @param b データ
+	 * @param off データの開始位置
+	 * @param len データの長さ
+	 */
+	void write(final byte[] b, final int off, final int len) {
+		int pos = off;
+		int rest = len;
+		while (rest > 0) {
+			ensureCapacity();
+			final int n = Math.min(rest, current.length - currentCount);
+			System.arraycopy(b, pos, current, currentCount, n);
+			currentCount += n;
+			pos += n;
+			rest -= n;
+		}
+		size += len;
+	}
+	/**
+	 * 書き込み中のセグメントに空きがなければ新たなセグメントを取得する.
+	 * 先頭の{@link BufferPool#LARGE_SEGMENT_SIZE}バイトまでは小さなセグメントを使用する。
+	 */
+	private void ensureCapacity() {
+		if (current == null || currentCount == current.length) {
+			current = pool.acquire(size >= BufferPool.LARGE_SEGMENT_SIZE);
+			currentCount = 0;
+			segments.add(current);
+		}
+	}
+	/**
+	 * 書き込んだバイト数を返す.
+	 * @return バイト数
+	 */
+	int size() {
+		return size;
+	}
+	/**
+	 * 指定されたセグメントに書き込まれているバイト数を返す.
+	 * @param index セグメントの添字
+	 * @return バイト数
+	 */
+	private int lengthOf(final int index) {
+		return index == segments.size() - 1 ? currentCount : segments.get(index).length;
+	}
+	/**
+	 * 貯めこんだデータを出力ストリームに書き出す.
+	 * @param out 出力ストリーム
+	 * @throws IOException 書き出し中にエラーが発生した場合
+	 */
+	void writeTo(final OutputStream out) throws IOException {
+		for (int i = 0; i < segments.size(); i ++) {
+			out.write(segments.get(i), 0, lengthOf(i));
+		}
+	}
+	/**
+	 * 指定された位置からデータをバイト配列にコピーする.
+	 * @param position コピーを開始する位置
+	 * @param b コピー先のバイト配列
+	 * @param off コピー先の開始位置
+	 * @param len コピーする最大のバイト数
+	 * @return コピーしたバイト数
+	 */
+	int read(final int position, final byte[] b, final int off, final int len) {
+		int skipped = 0;
+		int copied = 0;
+		for (int i = 0; i < segments.size() && copied < len; i ++) {
+			final int segmentLength = lengthOf(i);
+			if (skipped + segmentLength <= position) {
+				// 開始位置より前のセグメントは読み飛ばす
+				skipped += segmentLength;
+				continue;
+			}
+			final int from = Math.max(position - skipped, 0);
+			final int n = Math.min(segmentLength - from, len - copied);
+			System.arraycopy(segments.get(i), from, b, off + copied, n);
+			copied += n;
+			skipped += segmentLength;
+		}
+		return copied;
+	}
+	/**
+	 * セグメントを直接参照する読み取り専用の{@link ByteBuffer}の配列を返す.
+	 * セグメントはプールから切り離されないため、呼び出し元は{@link #release()}の前に使い終えなくてはならない。
+	 * @return {@link ByteBuffer}の配列
+	 */
+	ByteBuffer[] toByteBuffers() {
+		final ByteBuffer[] buffs = new ByteBuffer[segments.size()];
+		for (int i = 0; i < buffs.length; i ++) {
+			buffs[i] = ByteBuffer.wrap(segments.get(i), 0, lengthOf(i)).slice().asReadOnlyBuffer();
+		}
+		return buffs;
+	}
+	/**
+	 * データ全体を読み取り専用の{@link ByteBuffer}として返す.
+	 * 返した{@link ByteBuffer}は{@link #release()}の後も有効であり、その内容が他のデータで上書きされることはない。
+	 * データが1つのセグメントに収まっている場合はそのセグメントをプールから切り離して参照する（コピーは作らない）。
+	 * 複数のセグメントにまたがる場合は初回の呼び出しで1度だけプールに属さない連続した領域にまとめ、
+	 * セグメントはプールに返却する。以降の呼び出しはまとめた領域を参照するためコピーは作らない。
+	 * この呼び出しの後にデータを書き込んではならない。
+	 * @return {@link ByteBuffer}
+	 */
+	ByteBuffer toByteBuffer() {
+		if (segments.size() > 1) {
+			final byte[] joined = new byte[size];
+			int pos = 0;
+			for (int i = 0; i < segments.size(); i ++) {
+				final int len = lengthOf(i);
+				System.arraycopy(segments.get(i), 0, joined, pos, len);
+				pos += len;
+			}
+			if (!detached) {
+				for (final byte[] segment : segments) {
+					pool.release(segment);
+				}
+			}
+			segments.clear();
+			segments.add(joined);
+			current = joined;
+			currentCount = joined.length;
+		}
+		detached = true;
+		return ByteBuffer.wrap(current == null ? new byte[0] : current, 0, currentCount).slice().asReadOnlyBuffer();
+	}
+	/**
+	 * セグメントをプールに返却する.
+	 * プールから切り離したセグメントは返却しない。
+	 * 返却後はデータは空になる。
+	 */
+	void release() {
+		if (!detached) {
+			for (final byte[] segment : segments) {
+				pool.release(segment);
+			}
+		}
+		segments.clear();
+		current = null;
+		currentCount = 0;
+		size = 0;
+	}
+}
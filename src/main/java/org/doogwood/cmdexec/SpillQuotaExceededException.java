@@ -0,0 +1,22 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+
+/**
+ * 一時ファイルへの書き出しが{@link TempFileStore}のディスク容量の上限を超えた場合にスローされる例外.
+ */
+public final class SpillQuotaExceededException extends IOException {
+	/**
+	 * シリアル・バージョンUID.
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * コンストラクタ.
+	 * @param quotaBytes ディスク容量の上限
+	 * @param requestedBytes 書き出そうとしたバイト数
+	 */
+	public SpillQuotaExceededException(final long quotaBytes, final long requestedBytes) {
+		super("Spill quota exceeded (quota: " + quotaBytes + " bytes, requested: " + requestedBytes + " bytes).");
+	}
+}
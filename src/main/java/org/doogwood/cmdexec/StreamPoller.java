@@ -0,0 +1,398 @@
+package org.doogwood.cmdexec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 少数のスレッドで多数の外部コマンドの出力を受け取るポーラー.
+ * 通常の実行では標準出力と標準エラーのそれぞれにブロッキングI/Oで読み取るスレッドを割り当てるが、
+ * {@link ExternalCommand#setStreamPoller(StreamPoller)}でこのオブジェクトを設定したコマンドは
+ * ポーラーのスレッドが読み取り可能なバイト数を確認しながら複数のプロセスの出力をまとめて読み取る。
+ * プロセスの終了後に残った出力は実行したスレッドが終端まで読み取る。
+ * ただし出力の読み取りを打ち切る時刻がある場合（タイムアウトを指定した場合や強制終了した場合）は、
+ * 読み取り可能な分だけを実行したスレッドが読み取り、ブロックしうる終端までの残りは後始末のスレッドに任せて
+ * 打ち切りの時刻までその完了を待つ。
+ * <p>Javaのプロセスのパイプはセレクターに登録できないため、読み取り可能なバイト数の確認はポーリングで行う。
+ * 出力がない間はポーリングの間隔を{@link #MAX_POLL_INTERVAL_NANOS}まで広げるため、
+ * スレッドごとに読み取る場合と比べて出力の到着から受け取りまでの遅延がわずかに増える。</p>
+ */
+public final class StreamPoller {
+	/**
+	 * 出力がない場合のポーリングの間隔の最大値（ナノ秒）.
+	 */
+	public static final long MAX_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	/**
+	 * 出力がない場合のポーリングの間隔の最小値（ナノ秒）.
+	 */
+	private static final long MIN_POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	/**
+	 * 終端までの読み取りの完了を待つ間にウォッチドッグの状態を確認する間隔のミリ秒.
+	 */
+	private static final long DRAIN_SLICE_MILLIS = 100;
+	/**
+	 * すべてのコマンドが共有するデフォルトのポーラー.
+	 * 初めて必要になったときに初期化される。
+	 */
+	private static StreamPoller sharedPoller = null;
+	/**
+	 * 打ち切りの時刻がある場合に、プロセスの終了後に終端までの読み取りを行うスレッドのプール.
+	 * 初めて必要になったときに初期化される。
+	 */
+	private static ExecutorService drainer = null;
+	/**
+	 * ポーリングを行うスレッドごとの処理.
+	 */
+	private final PollingLoop[] loops;
+	/**
+	 * 次に登録を割り当てるスレッドの添字.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * コンストラクタ.
+	 * @param threads ポーリングを行うスレッドの数
+	 */
+	public StreamPoller(final int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException();
+		}
+		loops = new PollingLoop[threads];
+		for (int i = 0; i < threads; i ++) {
+			loops[i] = new PollingLoop();
+			final Thread t = new Thread(loops[i], "cmdexec-stream-poller-" + (i + 1));
+			t.setDaemon(true);
+			loops[i].thread = t;
+			t.start();
+		}
+	}
+
+	/**
+	 * すべてのコマンドが共有するデフォルトのポーラーを返す.
+	 * 未初期化の場合はスレッドの数を1つとして初期化する。
+	 * @return ポーラー
+	 */
+	public static synchronized StreamPoller getShared() {
+		if (sharedPoller == null) {
+			sharedPoller = new StreamPoller(1);
+		}
+		return sharedPoller;
+	}
+	/**
+	 * 終端までの読み取りを行うスレッドのプールを返す.
+	 * 読み取りは通常すぐに終わるため、スレッドは使い回され、使われなくなると終了する。
+	 * @return スレッドのプール
+	 */
+	private static synchronized ExecutorService getDrainer() {
+		if (drainer == null) {
+			drainer = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "cmdexec-stream-drainer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return drainer;
+	}
+	/**
+	 * ポーリングを行うスレッドの数を返す.
+	 * @return スレッドの数
+	 */
+	public int getThreadCount() {
+		return loops.length;
+	}
+	/**
+	 * 読み取りを登録しているストリームの数を返す.
+	 * @return ストリームの数
+	 */
+	public int getRegistrationCount() {
+		int count = 0;
+		for (final PollingLoop loop : loops) {
+			count += loop.count.get();
+		}
+		return count;
+	}
+	/**
+	 * 入力ストリームの内容を出力ストリームに転送するよう登録する.
+	 * @param in 入力ストリーム
+	 * @param out 出力ストリーム
+	 * @return 登録
+	 */
+	Registration register(final InputStream in, final OutputStream out) {
+		final PollingLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		final Registration reg = new Registration(in, out, loop.count);
+		loop.count.incrementAndGet();
+		loop.added.add(reg);
+		LockSupport.unpark(loop.thread);
+		return reg;
+	}
+
+	/**
+	 * ポーリングを行うスレッドの処理.
+	 */
+	private static final class PollingLoop implements Runnable {
+		/**
+		 * 新たに登録されたストリーム.
+		 */
+		private final ConcurrentLinkedQueue<Registration> added = new ConcurrentLinkedQueue<Registration>();
+		/**
+		 * 登録中のストリームの数.
+		 */
+		private final AtomicInteger count = new AtomicInteger();
+		/**
+		 * ポーリングを行うスレッド.
+		 */
+		private Thread thread;
+
+		@Override
+		public void run() {
+			final List<Registration> regs = new ArrayList<Registration>();
+			final byte[] buff = new byte[LargeBufferPumpStreamHandler.PUMP_BUFFER_SIZE];
+			long interval = MIN_POLL_INTERVAL_NANOS;
+			while (true) {
+				Registration reg;
+				while ((reg = added.poll()) != null) {
+					regs.add(reg);
+				}
+				boolean progress = false;
+				final Iterator<Registration> iter = regs.iterator();
+				while (iter.hasNext()) {
+					final int n = iter.next().poll(buff);
+					if (n < 0) {
+						iter.remove();
+					} else if (n > 0) {
+						progress = true;
+					}
+				}
+				if (progress) {
+					interval = MIN_POLL_INTERVAL_NANOS;
+				} else {
+					// 出力がない間はポーリングの間隔を広げる
+					LockSupport.parkNanos(interval);
+					interval = Math.min(interval * 2, MAX_POLL_INTERVAL_NANOS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 入力ストリームの内容を出力ストリームに転送する登録.
+	 */
+	static final class Registration {
+		/**
+		 * 入力ストリーム.
+		 */
+		private final InputStream in;
+		/**
+		 * 出力ストリーム.
+		 */
+		private final OutputStream out;
+		/**
+		 * 登録が解除されたかどうかを示す.
+		 */
+		private boolean cancelled = false;
+		/**
+		 * 読み取りもしくは書き込みでエラーが発生したかどうかを示す.
+		 */
+		private boolean failed = false;
+		/**
+		 * 登録しているポーリングのスレッドの登録数.
+		 */
+		private final AtomicInteger count;
+		/**
+		 * 登録数から差し引いたかどうかを示す.
+		 */
+		private boolean uncounted = false;
+
+		/**
+		 * コンストラクタ.
+		 * @param in 入力ストリーム
+		 * @param out 出力ストリーム
+		 * @param count 登録しているポーリングのスレッドの登録数
+		 */
+		Registration(final InputStream in, final OutputStream out, final AtomicInteger count) {
+			this.in = in;
+			this.out = out;
+			this.count = count;
+		}
+
+		/**
+		 * 登録数から差し引く.
+		 * 登録の解除もしくは終端の検知のいずれか早い時点で1度だけ差し引く。
+		 * このオブジェクトのロックを保持した状態で呼び出さなくてはならない。
+		 */
+		private void uncount() {
+			if (!uncounted) {
+				uncounted = true;
+				count.decrementAndGet();
+			}
+		}
+
+		/**
+		 * 読み取り可能なバイト数だけ読み取って転送する.
+		 * ブロックすることはない。
+		 * @param buff バッファ
+		 * @return 転送したバイト数（登録が解除された場合や終端に達した場合は{@code -1}）
+		 */
+		synchronized int poll(final byte[] buff) {
+			if (cancelled || failed) {
+				uncount();
+				return -1;
+			}
+			try {
+				final int available = in.available();
+				if (available <= 0) {
+					return 0;
+				}
+				final int n = in.read(buff, 0, Math.min(available, buff.length));
+				if (n > 0) {
+					out.write(buff, 0, n);
+				} else if (n == -1) {
+					uncount();
+				}
+				return n;
+			} catch (final IOException e) {
+				// StreamPumperと同様にエラーが発生した時点で転送をやめる
+				failed = true;
+				uncount();
+				return -1;
+			}
+		}
+		/**
+		 * 登録を解除し、残りの内容を終端まで転送する.
+		 * 出力の読み取りを打ち切る時刻（{@link TimerWatchdog#getAbandonNanos()}）がなければ、呼び出し元のスレッドで終端まで読み取る。
+		 * 打ち切りの時刻がある場合は、読み取り可能なバイト数だけ呼び出し元のスレッドで読み取り、
+		 * それより後は読み取りがブロックしうるため終端までの読み取りを後始末のスレッドに任せて、その完了を待つ。
+		 * 打ち切りの時刻を過ぎても終端に達しない場合は待つのをやめ、以降に読み取った内容は捨てる
+		 * （子孫のプロセスが出力のパイプを開いたまま動作している場合など）。
+		 * ポーラーのスレッドが転送中の場合はその完了を待つ。
+		 * エラーが発生していた場合、残りの内容は読み捨てる。
+		 * @param buff バッファ
+		 * @param watchdog ウォッチドッグ（{@code null}の場合は終端に達するまで待つ）
+		 * @return 終端まで転送した場合{@code true}（打ち切った場合は{@code false}）
+		 */
+		boolean drain(final byte[] buff, final TimerWatchdog watchdog) {
+			synchronized (this) {
+				cancelled = true;
+				uncount();
+			}
+			if (watchdog == null || watchdog.getAbandonNanos() == 0) {
+				// 打ち切ることはないため、スレッドを増やさずに呼び出し元のスレッドで終端まで読み取る
+				transferToEnd(buff);
+				return true;
+			}
+			try {
+				int available;
+				while ((available = in.available()) > 0) {
+					final int n = in.read(buff, 0, Math.min(available, buff.length));
+					if (n == -1) {
+						return true;
+					}
+					transfer(buff, n);
+				}
+			} catch (final IOException e) {
+				// プロセスのストリームがクローズされた場合など
+				synchronized (this) {
+					failed = true;
+				}
+				return true;
+			}
+			final CountDownLatch done = new CountDownLatch(1);
+			getDrainer().execute(new Runnable() {
+				@Override
+				public void run() {
+					final BufferPool pool = BufferPool.getSharedPool();
+					final byte[] b = pool.acquire(true);
+					try {
+						transferToEnd(b);
+					} finally {
+						pool.release(b);
+						done.countDown();
+					}
+				}
+			});
+			if (await(done, watchdog)) {
+				return true;
+			}
+			// 期限を過ぎたため残りの転送は捨てる
+			synchronized (this) {
+				failed = true;
+			}
+			return false;
+		}
+		/**
+		 * 残りの内容を終端まで読み取って転送する.
+		 * @param buff バッファ
+		 */
+		private void transferToEnd(final byte[] buff) {
+			try {
+				int n;
+				while ((n = in.read(buff)) != -1) {
+					transfer(buff, n);
+				}
+			} catch (final IOException e) {
+				// プロセスのストリームがクローズされた場合など
+				synchronized (this) {
+					failed = true;
+				}
+			}
+		}
+		/**
+		 * 読み取った内容を出力ストリームに書き込む.
+		 * エラーが発生した後や転送を打ち切った後は捨てる。
+		 * @param buff バッファ
+		 * @param n バイト数
+		 */
+		private synchronized void transfer(final byte[] buff, final int n) {
+			if (failed) {
+				return;
+			}
+			try {
+				out.write(buff, 0, n);
+			} catch (final IOException e) {
+				failed = true;
+			}
+		}
+		/**
+		 * 終端までの読み取りの完了を待つ.
+		 * 待つ間に強制終了された場合も打ち切りの時刻に従うよう、一定の間隔でウォッチドッグの状態を確認する。
+		 * @param done 終端に達したことを通知するラッチ
+		 * @param watchdog ウォッチドッグ
+		 * @return 完了した場合{@code true}（打ち切りの時刻を過ぎた場合は{@code false}）
+		 */
+		private static boolean await(final CountDownLatch done, final TimerWatchdog watchdog) {
+			try {
+				while (true) {
+					final long abandonNanos = watchdog != null ? watchdog.getAbandonNanos() : 0;
+					long wait = DRAIN_SLICE_MILLIS;
+					if (abandonNanos != 0) {
+						final long rest = TimeUnit.NANOSECONDS.toMillis(abandonNanos - System.nanoTime());
+						if (rest <= 0) {
+							return done.getCount() == 0;
+						}
+						wait = Math.min(wait, rest);
+					}
+					if (done.await(wait, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+}
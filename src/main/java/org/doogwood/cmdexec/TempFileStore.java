@@ -0,0 +1,124 @@
+package org.doogwood.cmdexec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link PipeOutputStream}が閾値を超えたデータを書き出す一時ファイルの格納先.
+ * 一時ファイルを作成するディレクトリと、そこで使用するディスク容量の上限を管理する。
+ * 容量は一時ファイルへの書き出しのたびに予約され、一時ファイルの削除とともに解放される。
+ * 上限を超える書き出しが要求された場合は{@link SpillQuotaExceededException}がスローされる。
+ */
+public final class TempFileStore {
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで使用する格納先.
+	 */
+	private static volatile TempFileStore defaultStore = new TempFileStore(null, Long.MAX_VALUE);
+	/**
+	 * 一時ファイルを作成するディレクトリ.
+	 * {@code null}の場合はシステムの一時ディレクトリを使用する。
+	 */
+	private final File directory;
+	/**
+	 * ディスク容量の上限.
+	 */
+	private final long quotaBytes;
+	/**
+	 * 使用中のディスク容量.
+	 */
+	private final AtomicLong usedBytes = new AtomicLong();
+	
+	/**
+	 * コンストラクタ.
+	 * @param directory 一時ファイルを作成するディレクトリ（{@code null}の場合はシステムの一時ディレクトリ）
+	 * @param quotaBytes ディスク容量の上限
+	 */
+	public TempFileStore(final File directory, final long quotaBytes) {
+		if ((directory != null && !directory.isDirectory()) || quotaBytes < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.directory = directory;
+		this.quotaBytes = quotaBytes;
+	}
+	/**
+	 * コンストラクタ.
+	 * ディスク容量の上限は設けない。
+	 * @param directory 一時ファイルを作成するディレクトリ
+	 */
+	public TempFileStore(final File directory) {
+		this(directory, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで使用する格納先を返す.
+	 * 初期状態ではシステムの一時ディレクトリを使用し、ディスク容量の上限は設けない。
+	 * @return 格納先
+	 */
+	public static TempFileStore getDefault() {
+		return defaultStore;
+	}
+	/**
+	 * すべての{@link PipeOutputStream}がデフォルトで使用する格納先を設定する.
+	 * 設定以前に作成された{@link PipeOutputStream}には影響しない。
+	 * @param store 格納先
+	 */
+	public static void setDefault(final TempFileStore store) {
+		if (store == null) {
+			throw new IllegalArgumentException();
+		}
+		defaultStore = store;
+	}
+	/**
+	 * 一時ファイルを作成するディレクトリを返す.
+	 * @return ディレクトリ（システムの一時ディレクトリを使用する場合は{@code null}）
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+	/**
+	 * ディスク容量の上限を返す.
+	 * @return ディスク容量の上限
+	 */
+	public long getQuotaBytes() {
+		return quotaBytes;
+	}
+	/**
+	 * 使用中のディスク容量を返す.
+	 * @return 使用中のディスク容量
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+	/**
+	 * 一時ファイルを作成する.
+	 * @return 一時ファイル
+	 * @throws IOException 一時ファイルの作成中にエラーが発生した場合
+	 */
+	File createTempFile() throws IOException {
+		return File.createTempFile("pipeOutputStream", ".tmp", directory);
+	}
+	/**
+	 * ディスク容量を予約する.
+	 * @param bytes 予約するバイト数
+	 * @throws SpillQuotaExceededException 上限を超える場合
+	 */
+	void reserve(final long bytes) throws SpillQuotaExceededException {
+		while (true) {
+			final long used = usedBytes.get();
+			if (bytes > quotaBytes - used) {
+				throw new SpillQuotaExceededException(quotaBytes, bytes);
+			}
+			if (usedBytes.compareAndSet(used, used + bytes)) {
+				return;
+			}
+		}
+	}
+	/**
+	 * 予約したディスク容量を解放する.
+	 * @param bytes 解放するバイト数
+	 */
+	void release(final long bytes) {
+		usedBytes.addAndGet(-bytes);
+	}
+}
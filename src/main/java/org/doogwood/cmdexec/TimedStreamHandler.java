@@ -0,0 +1,27 @@
+package org.doogwood.cmdexec;
+
+import org.apache.commons.exec.ExecuteStreamHandler;
+
+/**
+ * 転送の開始と終了の時刻を記録する{@link ExecuteStreamHandler}.
+ * {@link ExecutionMetrics}の計測に使用する。
+ */
+interface TimedStreamHandler extends ExecuteStreamHandler {
+	/**
+	 * ストリームの転送を開始した時刻を返す.
+	 * プロセスの起動直後に相当する。
+	 * @return ナノ秒（開始していない場合は{@code 0}）
+	 */
+	long getStartNanos();
+	/**
+	 * ストリームの転送の終了処理を開始した時刻を返す.
+	 * プロセスの終了直後に相当する。
+	 * @return ナノ秒（開始していない場合は{@code 0}）
+	 */
+	long getStopNanos();
+	/**
+	 * ストリームの転送を終えた時刻を返す.
+	 * @return ナノ秒（終えていない場合は{@code 0}）
+	 */
+	long getStoppedNanos();
+}
@@ -0,0 +1,252 @@
+package org.doogwood.cmdexec;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.Watchdog;
+
+/**
+ * すべてのインスタンスが共有するタイマーでタイムアウトを監視するウォッチドッグ.
+ * {@link ExecuteWatchdog}はタイムアウトが指定されるとプロセスごとに監視用のスレッドを起動するが、
+ * このクラスは1つのタイマーのスレッドにプロセスの強制終了を予約することで、同時に実行するプロセスが多くてもスレッドを増やさない。
+ * <p>{@link ExecuteWatchdog}は起動したプロセスだけに{@code SIGTERM}を送るが、
+ * このクラスはその時点の子孫のプロセスにも{@code SIGTERM}を送り、猶予時間の後もなお動作しているものには{@code SIGKILL}を送る。
+ * cgroupの中で実行している場合は猶予時間の後にcgroupのすべてのプロセスを強制終了する。
+ * シグナルの送信は{@code kill}コマンドの完了を待つため、タイマーのスレッドやこのオブジェクトのロックを保持したままでは行わず、
+ * シグナルを送るためのスレッドに任せる（他のプロセスのタイムアウトの監視を遅らせないため）。</p>
+ */
+final class TimerWatchdog extends ExecuteWatchdog {
+	/**
+	 * すべてのインスタンスが共有するタイマー.
+	 * 初めて必要になったときに初期化される。
+	 */
+	private static ScheduledExecutorService timer = null;
+	/**
+	 * すべてのインスタンスが共有する、プロセスにシグナルを送るためのスレッドのプール.
+	 * 初めて必要になったときに初期化される。
+	 */
+	private static ExecutorService signaller = null;
+	/**
+	 * 強制終了してから出力の読み取りを打ち切るまでの、猶予時間に加える余裕のミリ秒.
+	 */
+	static final long DRAIN_MARGIN_MILLIS = 500;
+	/**
+	 * タイムアウトのミリ秒.
+	 */
+	private final long timeoutMillis;
+	/**
+	 * {@code SIGTERM}を送ってから{@code SIGKILL}を送るまでの猶予のミリ秒.
+	 */
+	private final long gracePeriodMillis;
+	/**
+	 * 監視中のプロセス.
+	 */
+	private Process process = null;
+	/**
+	 * プロセスを起動した時刻（ナノ秒）.
+	 */
+	private long startNanos = 0;
+	/**
+	 * 強制終了を開始した時刻（ナノ秒）.
+	 */
+	private long killNanos = 0;
+	/**
+	 * プロセスを実行しているcgroupの範囲.
+	 */
+	private ResourceScope scope = null;
+	/**
+	 * 予約したプロセスの強制終了.
+	 */
+	private ScheduledFuture<?> scheduled = null;
+	/**
+	 * プロセスが起動されたかどうかを示す.
+	 */
+	private boolean started = false;
+	/**
+	 * 強制終了が要求されたかどうかを示す.
+	 */
+	private boolean killRequested = false;
+	
+	/**
+	 * コンストラクタ.
+	 * @param timeoutMillis タイムアウトのミリ秒（{@code 0}以下の場合はタイムアウトなし）
+	 * @param gracePeriodMillis {@code SIGTERM}を送ってから{@code SIGKILL}を送るまでの猶予のミリ秒
+	 */
+	TimerWatchdog(final long timeoutMillis, final long gracePeriodMillis) {
+		// 親クラスには監視用のスレッドを起動させない
+		super(INFINITE_TIMEOUT);
+		this.timeoutMillis = timeoutMillis;
+		this.gracePeriodMillis = gracePeriodMillis;
+	}
+	
+	@Override
+	public synchronized void start(final Process process) {
+		super.start(process);
+		this.process = process;
+		this.startNanos = System.nanoTime();
+		started = true;
+		if (killRequested) {
+			// 起動前に強制終了が要求されていた
+			destroyProcess();
+		} else if (timeoutMillis > 0) {
+			scheduled = getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					destroyProcess();
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	@Override
+	public synchronized void stop() {
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		// 予約済みのSIGKILLは取り消さない（子孫のプロセスが猶予時間の後も残っている可能性がある）
+		process = null;
+		super.stop();
+	}
+	
+	@Override
+	public synchronized void timeoutOccured(final Watchdog w) {
+		if (process == null || killNanos != 0) {
+			super.timeoutOccured(w);
+			return;
+		}
+		killNanos = System.nanoTime();
+		if (!ProcessTree.isSupported()) {
+			// 子孫のプロセスをたどれない環境ではExecuteWatchdogと同様に起動したプロセスだけを終了する
+			super.timeoutOccured(w);
+			return;
+		}
+		final Process target = process;
+		final ResourceScope killScope = scope;
+		getSignaller().execute(new Runnable() {
+			@Override
+			public void run() {
+				terminate(target, killScope);
+			}
+		});
+	}
+	/**
+	 * プロセスを強制終了した場合{@code true}を返す.
+	 * 起動したプロセスにはシグナルを送るためのスレッドから直接{@link Process#destroy()}を呼び出すため、
+	 * 親クラスは強制終了を記録しない。そのため強制終了を開始した時点で強制終了したものとみなす。
+	 * @return 判定結果
+	 */
+	@Override
+	public synchronized boolean killedProcess() {
+		return killNanos != 0 || super.killedProcess();
+	}
+	/**
+	 * プロセスとその子孫のプロセスに{@code SIGTERM}を送り、猶予時間の後の{@code SIGKILL}を予約する.
+	 * シグナルを送るためのスレッドで実行する。
+	 * @param target 起動したプロセス
+	 * @param killScope プロセスを実行しているcgroupの範囲
+	 */
+	private void terminate(final Process target, final ResourceScope killScope) {
+		final ProcessTree tree;
+		try {
+			// 子孫のプロセスを記録してから、起動したプロセスより先にSIGTERMを送る
+			// 起動したプロセスが先に終了すると子孫のプロセスは親をたどれなくなるため
+			tree = ProcessTree.snapshot(ProcessTree.pidOf(target));
+			tree.signal("TERM", false);
+		} finally {
+			// 起動したプロセスにはExecuteWatchdogと同様にProcess#destroy()でSIGTERMを送る
+			// ExecuteWatchdog#destroyProcess()は呼び出しから戻るとすぐに監視を終えるため、親クラスを介さず直接送る
+			target.destroy();
+		}
+		getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				getSignaller().execute(new Runnable() {
+					@Override
+					public void run() {
+						// 猶予時間の後もなお動作しているプロセスを強制終了する
+						tree.signal("KILL", true);
+						if (killScope != null) {
+							killScope.kill();
+						}
+					}
+				});
+			}
+		}, gracePeriodMillis, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * プロセスを実行しているcgroupの範囲を設定する.
+	 * 強制終了の際、猶予時間の後にcgroupのすべてのプロセスを強制終了する。
+	 * @param scope 範囲
+	 */
+	synchronized void setResourceScope(final ResourceScope scope) {
+		this.scope = scope;
+	}
+	/**
+	 * 出力の読み取りを打ち切る時刻を返す.
+	 * 強制終了した場合は強制終了の開始から、タイムアウトが指定されている場合はその期限から、
+	 * 猶予時間と{@link #DRAIN_MARGIN_MILLIS}だけ経過した時刻である。
+	 * コマンドの終了後も子孫のプロセスが出力のパイプを開いたまま動作している場合に、
+	 * 実行の完了を際限なく待たないために使用する。
+	 * @return ナノ秒（打ち切らない場合は{@code 0}）
+	 */
+	synchronized long getAbandonNanos() {
+		final long margin = TimeUnit.MILLISECONDS.toNanos(gracePeriodMillis + DRAIN_MARGIN_MILLIS);
+		if (killNanos != 0) {
+			return killNanos + margin;
+		}
+		if (timeoutMillis > 0 && started) {
+			return startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) + margin;
+		}
+		return 0;
+	}
+	/**
+	 * プロセスを強制終了する.
+	 * {@link #destroyProcess()}と異なりプロセスの起動前に呼び出してもブロックせず、起動した時点で強制終了する。
+	 */
+	synchronized void kill() {
+		killRequested = true;
+		if (started) {
+			destroyProcess();
+		}
+	}
+	/**
+	 * 共有のタイマーを返す.
+	 * @return タイマー
+	 */
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "cmdexec-watchdog-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+	/**
+	 * 共有の、プロセスにシグナルを送るためのスレッドのプールを返す.
+	 * シグナルの送信は通常すぐに終わるため、スレッドは使い回され、使われなくなると終了する。
+	 * @return スレッドのプール
+	 */
+	private static synchronized ExecutorService getSignaller() {
+		if (signaller == null) {
+			signaller = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "cmdexec-process-signaller");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return signaller;
+	}
+}
@@ -0,0 +1,153 @@
+package org.doogwood.cmdexec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * 常駐する外部コマンドとの間でリクエストとレスポンスを区切る方式.
+ * リクエストは外部コマンドの標準入力に書き込まれ、レスポンスは標準出力から読み取られる。
+ * @see WorkerPool
+ */
+public abstract class WorkerFraming {
+	/**
+	 * コンストラクタ.
+	 * 静的メソッドを介した初期化のみ許可する。
+	 */
+	private WorkerFraming() {}
+
+	/**
+	 * リクエストを書き込む.
+	 * @param out 外部コマンドの標準入力
+	 * @param request リクエスト
+	 * @throws IOException 書き込み中にエラーが発生した場合
+	 */
+	abstract void writeRequest(OutputStream out, byte[] request) throws IOException;
+	/**
+	 * レスポンスを読み取る.
+	 * @param in 外部コマンドの標準出力
+	 * @return レスポンス
+	 * @throws IOException 読み取り中にエラーが発生した場合、もしくはレスポンスの途中で終端に達した場合
+	 */
+	abstract byte[] readResponse(InputStream in) throws IOException;
+
+	/**
+	 * 改行でリクエストとレスポンスを区切る方式を返す.
+	 * リクエストの後ろに改行（{@code LF}）を付けて書き込み、改行までをレスポンスとして読み取る。
+	 * レスポンスに改行は含まれない（{@code CR LF}の場合は{@code CR}も取り除く）。
+	 * リクエストとレスポンスのいずれも改行を含んではならない。
+	 * @return 区切り方式
+	 */
+	public static WorkerFraming lineDelimited() {
+		return new WorkerFraming() {
+			@Override
+			void writeRequest(final OutputStream out, final byte[] request) throws IOException {
+				out.write(request);
+				out.write('\n');
+			}
+			@Override
+			byte[] readResponse(final InputStream in) throws IOException {
+				final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+				while (true) {
+					final int b = in.read();
+					if (b == -1) {
+						throw new EOFException();
+					} else if (b == '\n') {
+						break;
+					}
+					buff.write(b);
+				}
+				final byte[] bytes = buff.toByteArray();
+				if (bytes.length > 0 && bytes[bytes.length - 1] == '\r') {
+					return Arrays.copyOf(bytes, bytes.length - 1);
+				}
+				return bytes;
+			}
+		};
+	}
+	/**
+	 * 長さを前置してリクエストとレスポンスを区切る方式を返す.
+	 * リクエストとレスポンスはいずれもビッグエンディアンの4バイトの長さに続けて内容を書き込む。
+	 * 内容には任意のバイト列を含めることができる。
+	 * @return 区切り方式
+	 */
+	public static WorkerFraming lengthPrefixed() {
+		return new WorkerFraming() {
+			@Override
+			void writeRequest(final OutputStream out, final byte[] request) throws IOException {
+				new DataOutputStream(out).writeInt(request.length);
+				out.write(request);
+			}
+			@Override
+			byte[] readResponse(final InputStream in) throws IOException {
+				final DataInputStream data = new DataInputStream(in);
+				final int length = data.readInt();
+				if (length < 0) {
+					throw new IOException("Invalid length: " + length);
+				}
+				final byte[] bytes = new byte[length];
+				data.readFully(bytes);
+				return bytes;
+			}
+		};
+	}
+	/**
+	 * 終端マーカーでレスポンスの終わりを示す方式を返す.
+	 * リクエストはそのまま書き込み、終端マーカーが現れるまでをレスポンスとして読み取る。
+	 * レスポンスに終端マーカーは含まれない。
+	 * 外部コマンドが処理の完了ごとに決まった文字列を出力する場合に使用する。
+	 * @param marker 終端マーカー
+	 * @return 区切り方式
+	 */
+	public static WorkerFraming sentinel(final byte[] marker) {
+		if (marker == null || marker.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		final byte[] copy = marker.clone();
+		return new WorkerFraming() {
+			@Override
+			void writeRequest(final OutputStream out, final byte[] request) throws IOException {
+				out.write(request);
+			}
+			@Override
+			byte[] readResponse(final InputStream in) throws IOException {
+				final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+				final byte[] tail = new byte[copy.length];
+				int count = 0;
+				while (true) {
+					final int b = in.read();
+					if (b == -1) {
+						throw new EOFException();
+					}
+					buff.write(b);
+					// 直近のバイト列を循環バッファに保持して終端マーカーと比較する
+					tail[count ++ % tail.length] = (byte) b;
+					if (count >= tail.length && endsWithMarker(tail, count)) {
+						break;
+					}
+				}
+				final byte[] bytes = buff.toByteArray();
+				return Arrays.copyOf(bytes, bytes.length - copy.length);
+			}
+			/**
+			 * 循環バッファに保持した直近のバイト列が終端マーカーと一致するかどうか判定する.
+			 * @param tail 循環バッファ
+			 * @param count これまでに読み取ったバイト数
+			 * @return 判定結果
+			 */
+			private boolean endsWithMarker(final byte[] tail, final int count) {
+				for (int i = 0; i < copy.length; i ++) {
+					if (tail[(count + i) % tail.length] != copy[i]) {
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,624 @@
+package org.doogwood.cmdexec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.exec.DefaultExecuteResultHandler;
+import org.apache.commons.exec.ExecuteStreamHandler;
+import org.apache.commons.exec.Executor;
+import org.apache.commons.exec.StreamPumper;
+
+/**
+ * 常駐する外部コマンドのプール.
+ * フォーマッターや変換ツールのように何度も呼び出すコマンドについて、
+ * プロセスを起動したままにしておき標準入出力を介してリクエストを送ることで起動のコストを省く。
+ * リクエストとレスポンスの区切り方は{@link WorkerFraming}で指定する。
+ * <p>ワーカーは必要になったときに起動され、同時に存在するワーカーの数は上限を超えない。
+ * 一定数のリクエストを処理したワーカーや起動から一定時間が経過したワーカーは破棄されて新たに起動し直される。
+ * 予期せず終了したワーカーは破棄され、処理中のリクエストは新たなワーカーで1度だけ再試行される
+ * （このためリクエストは冪等でなくてはならない）。
+ * ワーカーの標準エラーは読み捨てられる。</p>
+ * <p>ワーカーは{@link ExternalCommand#execute(long)}と同じ経路で起動されるため、
+ * 組み立て済みの引数と環境変数、標準エラーのリダイレクト、資源の上限、強制終了の猶予時間が適用される。
+ * 資源の上限はワーカーのプロセスごとに適用される。</p>
+ * <p>不要になった時点で{@link #close()}を呼び出して、すべてのワーカーを終了させなくてはならない。</p>
+ */
+public final class WorkerPool implements Closeable {
+	/**
+	 * ワーカーとして起動するコマンド.
+	 */
+	private final ExternalCommand command;
+	/**
+	 * リクエストとレスポンスの区切り方.
+	 */
+	private final WorkerFraming framing;
+	/**
+	 * ワーカーの数の上限.
+	 */
+	private int maxWorkers = Runtime.getRuntime().availableProcessors();
+	/**
+	 * ワーカー1つあたりが処理するリクエストの数の上限.
+	 */
+	private int maxRequestsPerWorker = 0;
+	/**
+	 * ワーカーの寿命のミリ秒.
+	 */
+	private long maxLifetimeMillis = 0;
+	/**
+	 * リクエストのタイムアウトのミリ秒.
+	 */
+	private long requestTimeoutMillis = 0;
+	/**
+	 * ヘルスチェックのためのリクエスト.
+	 */
+	private byte[] healthCheckRequest = null;
+	/**
+	 * ヘルスチェックを行う間隔のミリ秒.
+	 */
+	private long healthCheckIntervalMillis = 0;
+	/**
+	 * 待機中のワーカー.
+	 * 最後に返却されたものから順に使用する。
+	 */
+	private final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+	/**
+	 * 起動中・待機中・使用中のワーカーの数.
+	 */
+	private int workerCount = 0;
+	/**
+	 * これまでにワーカーを起動した回数.
+	 */
+	private long spawnCount = 0;
+	/**
+	 * プールがクローズ済みかどうかを示す.
+	 */
+	private boolean closed = false;
+	/**
+	 * リクエストのタイムアウトを監視するスレッド.
+	 * 初めて必要になったときに初期化される。
+	 */
+	private ScheduledExecutorService timer = null;
+
+	/**
+	 * コンストラクタ.
+	 * ワーカーの標準入出力はリクエストとレスポンスのやりとりに使用するため、
+	 * 標準入出力に関わる設定（{@link InputSource}、標準出力のリダイレクト、{@link StreamPoller}、
+	 * {@link CapturePolicy}の制限）を持つコマンドは指定できない。
+	 * @param command ワーカーとして起動するコマンド
+	 * @param framing リクエストとレスポンスの区切り方
+	 */
+	public WorkerPool(final ExternalCommand command, final WorkerFraming framing) {
+		if (command == null || framing == null) {
+			throw new IllegalArgumentException();
+		}
+		if (command.getInputSource() != null || !command.getStdoutRedirect().isCapture()) {
+			throw new IllegalArgumentException("Stdin and stdout of a worker are used for requests.");
+		}
+		if (command.getStreamPoller() != null || !command.getStdoutCapturePolicy().isUnbounded()
+				|| !command.getStderrCapturePolicy().isUnbounded()) {
+			throw new IllegalArgumentException("Output capture settings are not supported for a worker.");
+		}
+		this.command = command;
+		this.framing = framing;
+	}
+
+	/**
+	 * ワーカーの数の上限を返す.
+	 * @return ワーカーの数の上限
+	 */
+	public synchronized int getMaxWorkers() {
+		return maxWorkers;
+	}
+	/**
+	 * ワーカーの数の上限を設定する.
+	 * デフォルトではCPUコア数が設定されている。
+	 * @param maxWorkers ワーカーの数の上限
+	 */
+	public synchronized void setMaxWorkers(final int maxWorkers) {
+		if (maxWorkers < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxWorkers = maxWorkers;
+		notifyAll();
+	}
+	/**
+	 * ワーカー1つあたりが処理するリクエストの数の上限を返す.
+	 * @return リクエストの数の上限
+	 */
+	public synchronized int getMaxRequestsPerWorker() {
+		return maxRequestsPerWorker;
+	}
+	/**
+	 * ワーカー1つあたりが処理するリクエストの数の上限を設定する.
+	 * 上限に達したワーカーは破棄される。
+	 * デフォルトでは{@code 0}（上限なし）が設定されている。
+	 * @param maxRequests リクエストの数の上限
+	 */
+	public synchronized void setMaxRequestsPerWorker(final int maxRequests) {
+		if (maxRequests < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxRequestsPerWorker = maxRequests;
+	}
+	/**
+	 * ワーカーの寿命のミリ秒を返す.
+	 * @return 寿命のミリ秒
+	 */
+	public synchronized long getMaxLifetimeMillis() {
+		return maxLifetimeMillis;
+	}
+	/**
+	 * ワーカーの寿命のミリ秒を設定する.
+	 * 起動からこの時間が経過したワーカーは処理中のリクエストを終えた時点で破棄される。
+	 * デフォルトでは{@code 0}（寿命なし）が設定されている。
+	 * @param lifetimeMillis 寿命のミリ秒
+	 */
+	public synchronized void setMaxLifetimeMillis(final long lifetimeMillis) {
+		this.maxLifetimeMillis = lifetimeMillis;
+	}
+	/**
+	 * リクエストのタイムアウトのミリ秒を返す.
+	 * @return タイムアウトのミリ秒
+	 */
+	public synchronized long getRequestTimeoutMillis() {
+		return requestTimeoutMillis;
+	}
+	/**
+	 * リクエストのタイムアウトのミリ秒を設定する.
+	 * この時間内にレスポンスを返さなかったワーカーは強制終了され、
+	 * {@link TimeoutException}を原因とする実行時例外がスローされる（再試行はしない）。
+	 * デフォルトでは{@code 0}（タイムアウトなし）が設定されている。
+	 * @param timeoutMillis タイムアウトのミリ秒
+	 */
+	public synchronized void setRequestTimeoutMillis(final long timeoutMillis) {
+		this.requestTimeoutMillis = timeoutMillis;
+	}
+	/**
+	 * ヘルスチェックを設定する.
+	 * 最後の使用から指定された間隔以上待機していたワーカーは、使用する前にヘルスチェックのリクエストを送り、
+	 * レスポンスを返さなかった場合は破棄される。レスポンスの内容は問わない。
+	 * @param request ヘルスチェックのためのリクエスト（{@code null}の場合はヘルスチェックを行わない）
+	 * @param intervalMillis ヘルスチェックを行う間隔のミリ秒
+	 */
+	public synchronized void setHealthCheck(final byte[] request, final long intervalMillis) {
+		if (intervalMillis < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.healthCheckRequest = request == null ? null : request.clone();
+		this.healthCheckIntervalMillis = intervalMillis;
+	}
+	/**
+	 * 起動中・待機中・使用中のワーカーの数を返す.
+	 * @return ワーカーの数
+	 */
+	public synchronized int getWorkerCount() {
+		return workerCount;
+	}
+	/**
+	 * 待機中のワーカーの数を返す.
+	 * @return ワーカーの数
+	 */
+	public synchronized int getIdleWorkerCount() {
+		return idleWorkers.size();
+	}
+	/**
+	 * これまでにワーカーを起動した回数を返す.
+	 * @return 回数
+	 */
+	public synchronized long getSpawnCount() {
+		return spawnCount;
+	}
+
+	/**
+	 * 文字列のリクエストを送り、レスポンスを文字列として受け取る.
+	 * @param request リクエスト
+	 * @param charset キャラクターセット
+	 * @return レスポンス
+	 */
+	public String request(final String request, final Charset charset) {
+		if (request == null || charset == null) {
+			throw new IllegalArgumentException();
+		}
+		return new String(request(request.getBytes(charset)), charset);
+	}
+	/**
+	 * リクエストを送り、レスポンスを受け取る.
+	 * 待機中のワーカーがなくワーカーの数が上限に達している場合は、ワーカーが返却されるまで待機する。
+	 * @param request リクエスト
+	 * @return レスポンス
+	 */
+	public byte[] request(final byte[] request) {
+		if (request == null) {
+			throw new IllegalArgumentException();
+		}
+		IOException lastError = null;
+		for (int attempt = 0; attempt < 2; attempt ++) {
+			final Worker worker = borrow();
+			try {
+				final byte[] response = worker.call(request);
+				giveBack(worker);
+				return response;
+			} catch (final IOException e) {
+				// ワーカーが予期せず終了した場合など
+				discard(worker);
+				if (worker.timedOut) {
+					throw new RuntimeException(new TimeoutException());
+				}
+				lastError = e;
+			} catch (final RuntimeException e) {
+				discard(worker);
+				throw e;
+			}
+		}
+		// 再試行でも失敗したため非チェック例外でラップしてスローする
+		throw new RuntimeException(lastError);
+	}
+	/**
+	 * 使用するワーカーを取り出す.
+	 * 待機中のワーカーがなければ新たに起動する。
+	 * @return ワーカー
+	 */
+	private Worker borrow() {
+		while (true) {
+			Worker worker = null;
+			byte[] healthCheck = null;
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						throw new IllegalStateException();
+					}
+					if (!idleWorkers.isEmpty()) {
+						worker = idleWorkers.removeFirst();
+						break;
+					} else if (workerCount < maxWorkers) {
+						workerCount ++;
+						spawnCount ++;
+						break;
+					}
+					try {
+						wait();
+					} catch (final InterruptedException e) {
+						// 割り込み状態を復元して非チェック例外でラップして再スローする
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					}
+				}
+				if (worker != null && healthCheckRequest != null
+						&& System.nanoTime() - worker.lastUsedNanos
+						>= TimeUnit.MILLISECONDS.toNanos(healthCheckIntervalMillis)) {
+					healthCheck = healthCheckRequest;
+				}
+			}
+			if (worker == null) {
+				return spawn();
+			}
+			if (!worker.isAlive()) {
+				// 待機中に終了したワーカーは破棄して次を探す
+				discard(worker);
+				continue;
+			}
+			if (healthCheck == null) {
+				return worker;
+			}
+			try {
+				worker.call(healthCheck);
+				return worker;
+			} catch (final IOException e) {
+				// ヘルスチェックに失敗したワーカーは破棄して次を探す
+				discard(worker);
+			}
+		}
+	}
+	/**
+	 * ワーカーを新たに起動する.
+	 * ワーカーの数は呼び出し元で加算済みでなくてはならない。
+	 * @return ワーカー
+	 */
+	private Worker spawn() {
+		try {
+			return new Worker();
+		} catch (final IOException e) {
+			synchronized (this) {
+				workerCount --;
+				notifyAll();
+			}
+			// 起動の失敗は予期せぬ事態
+			// よって非チェック例外でラップして再スローする
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * 使用を終えたワーカーを返却する.
+	 * 寿命に達したワーカーは破棄する。
+	 * @param worker ワーカー
+	 */
+	private void giveBack(final Worker worker) {
+		final boolean retire;
+		synchronized (this) {
+			retire = closed
+					|| (maxRequestsPerWorker > 0 && worker.requestCount >= maxRequestsPerWorker)
+					|| (maxLifetimeMillis > 0 && System.nanoTime() - worker.startedNanos
+							>= TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis));
+			if (!retire) {
+				idleWorkers.addFirst(worker);
+				notifyAll();
+			}
+		}
+		if (retire) {
+			discard(worker);
+		}
+	}
+	/**
+	 * ワーカーを終了させて破棄する.
+	 * @param worker ワーカー
+	 */
+	private void discard(final Worker worker) {
+		worker.destroy();
+		synchronized (this) {
+			workerCount --;
+			notifyAll();
+		}
+	}
+	/**
+	 * リクエストのタイムアウトを監視するスレッドを返す.
+	 * @return スレッド
+	 */
+	private synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread t = new Thread(r, "cmdexec-worker-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+	/**
+	 * プールをクローズする.
+	 * 待機中のワーカーはただちに終了させ、使用中のワーカーは返却された時点で終了させる。
+	 */
+	@Override
+	public void close() {
+		final List<Worker> workers;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			workers = new ArrayList<Worker>(idleWorkers);
+			idleWorkers.clear();
+			if (timer != null) {
+				timer.shutdownNow();
+			}
+			notifyAll();
+		}
+		for (final Worker worker : workers) {
+			discard(worker);
+		}
+	}
+
+	/**
+	 * 常駐する外部コマンドのプロセス.
+	 */
+	private final class Worker {
+		/**
+		 * プロセスを強制終了するためのウォッチドッグ.
+		 * 強制終了は子孫のプロセスにも及ぶ。
+		 */
+		private final TimerWatchdog watchdog = command.newWatchdog(0);
+		/**
+		 * 資源の上限を適用する範囲（上限もcgroupもない場合は{@code null}）.
+		 */
+		private final ResourceScope scope;
+		/**
+		 * プロセスの終了を検知するための結果ハンドラ.
+		 */
+		private final DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
+		/**
+		 * プロセスの標準入出力を受け取るストリームハンドラ.
+		 */
+		private final WorkerStreamHandler streamHandler = new WorkerStreamHandler();
+		/**
+		 * 起動した時刻（ナノ秒）.
+		 */
+		private final long startedNanos = System.nanoTime();
+		/**
+		 * 最後に使用した時刻（ナノ秒）.
+		 * 更新するのはワーカーを使用中のスレッドのみだが、プールのロックの中で別のスレッドから参照される。
+		 */
+		private volatile long lastUsedNanos = startedNanos;
+		/**
+		 * 処理したリクエストの数.
+		 * 更新するのはワーカーを使用中のスレッドのみだが、プールのロックの中で別のスレッドから参照される。
+		 */
+		private volatile int requestCount = 0;
+		/**
+		 * タイムアウトにより強制終了されたかどうかを示す.
+		 */
+		private volatile boolean timedOut = false;
+
+		/**
+		 * コンストラクタ.
+		 * プロセスを起動し、標準入出力を受け取るまで待機する。
+		 * @throws IOException 起動に失敗した場合
+		 */
+		Worker() throws IOException {
+			scope = command.openResourceScope();
+			boolean started = false;
+			try {
+				final Executor exec = command.newExecutor(watchdog, scope);
+				exec.setStreamHandler(streamHandler);
+				exec.execute(command.getCommandLine(), resultHandler);
+				while (!streamHandler.started.await(10, TimeUnit.MILLISECONDS)) {
+					if (resultHandler.hasResult()) {
+						throw new IOException("Failed to start worker", resultHandler.getException());
+					}
+				}
+				started = true;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				watchdog.kill();
+				throw new IOException(e);
+			} finally {
+				// 起動に失敗した場合はcgroupを削除する
+				if (!started && scope != null) {
+					scope.close();
+				}
+			}
+		}
+		/**
+		 * リクエストを送り、レスポンスを受け取る.
+		 * @param request リクエスト
+		 * @return レスポンス
+		 * @throws IOException ワーカーとの通信中にエラーが発生した場合
+		 */
+		byte[] call(final byte[] request) throws IOException {
+			final long timeoutMillis = getRequestTimeoutMillis();
+			final ScheduledFuture<?> timeout = timeoutMillis <= 0 ? null : getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					// プロセスを強制終了すれば標準出力が終端に達し、読み取り中のスレッドが解放される
+					timedOut = true;
+					watchdog.destroyProcess();
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			streamHandler.begin();
+			try {
+				framing.writeRequest(streamHandler.stdin, request);
+				streamHandler.stdin.flush();
+				final byte[] response = framing.readResponse(streamHandler.stdout);
+				requestCount ++;
+				lastUsedNanos = System.nanoTime();
+				return response;
+			} finally {
+				streamHandler.end();
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+			}
+		}
+		/**
+		 * プロセスが実行中の場合{@code true}を返す.
+		 * @return 判定結果
+		 */
+		boolean isAlive() {
+			return !resultHandler.hasResult();
+		}
+		/**
+		 * プロセスを強制終了する.
+		 */
+		void destroy() {
+			// 標準入力のフラッシュでブロックしないよう先にプロセスを終了させる
+			watchdog.destroyProcess();
+			try {
+				streamHandler.stdin.close();
+			} catch (final IOException e) {
+				// 終了させたプロセスのため無視する
+			} finally {
+				if (scope != null) {
+					scope.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * ワーカーの標準入出力を受け取るストリームハンドラ.
+	 * 標準エラーは読み捨てる。
+	 */
+	private static final class WorkerStreamHandler implements ExecuteStreamHandler {
+		/**
+		 * 標準入出力を受け取ったことを通知するラッチ.
+		 */
+		private final CountDownLatch started = new CountDownLatch(1);
+		/**
+		 * 標準入力.
+		 */
+		private volatile OutputStream stdin;
+		/**
+		 * 標準出力.
+		 */
+		private volatile InputStream stdout;
+		/**
+		 * 標準エラーを読み捨てるスレッド.
+		 */
+		private Thread stderrPumper;
+		/**
+		 * リクエストを処理中かどうかを示す.
+		 */
+		private boolean busy = false;
+		
+		/**
+		 * リクエストの処理を開始したことを記録する.
+		 */
+		synchronized void begin() {
+			busy = true;
+		}
+		/**
+		 * リクエストの処理を終えたことを記録する.
+		 */
+		synchronized void end() {
+			busy = false;
+			notifyAll();
+		}
+
+		@Override
+		public void setProcessInputStream(final OutputStream os) {
+			stdin = new BufferedOutputStream(os, LargeBufferPumpStreamHandler.PUMP_BUFFER_SIZE);
+		}
+		@Override
+		public void setProcessOutputStream(final InputStream is) {
+			stdout = new BufferedInputStream(is, LargeBufferPumpStreamHandler.PUMP_BUFFER_SIZE);
+		}
+		@Override
+		public void setProcessErrorStream(final InputStream is) {
+			stderrPumper = new Thread(new StreamPumper(is, new OutputStream() {
+				@Override
+				public void write(final int b) {
+					// 読み捨てる
+				}
+				@Override
+				public void write(final byte[] b, final int off, final int len) {
+					// 読み捨てる
+				}
+			}, false, LargeBufferPumpStreamHandler.PUMP_BUFFER_SIZE), "cmdexec-worker-stderr");
+			stderrPumper.setDaemon(true);
+		}
+		@Override
+		public void start() {
+			stderrPumper.start();
+			started.countDown();
+		}
+		@Override
+		public synchronized void stop() {
+			// 標準入出力はこのメソッドの終了後にエグゼキュータがクローズする
+			// 処理中のレスポンスを読み取る前にクローズされないよう、処理を終えるまで待機する
+			while (busy) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class BoundedOutputStreamTest {
+	
+	private static final Runnable NOP = new Runnable() {
+		@Override
+		public void run() {}
+	};
+	
+	private static String write(final CapturePolicy policy, final String... chunks) throws IOException {
+		final ByteArrayOutputStream target = new ByteArrayOutputStream();
+		final BoundedOutputStream out = new BoundedOutputStream(target, policy, NOP);
+		for (final String chunk : chunks) {
+			out.write(chunk.getBytes("US-ASCII"));
+		}
+		out.close();
+		return target.toString("US-ASCII");
+	}
+
+	@Test
+	public void headTest00() throws IOException {
+		assertThat(write(CapturePolicy.head(5), "abc", "defgh", "ij"), is("abcde"));
+		assertThat(write(CapturePolicy.head(5), "abc"), is("abc"));
+		assertThat(write(CapturePolicy.head(0), "abc"), is(""));
+	}
+
+	@Test
+	public void tailTest00() throws IOException {
+		assertThat(write(CapturePolicy.tail(5), "abc", "defgh", "ij"), is("fghij"));
+		assertThat(write(CapturePolicy.tail(5), "abc"), is("abc"));
+		assertThat(write(CapturePolicy.tail(5), "abcdefghijkl"), is("hijkl"));
+		assertThat(write(CapturePolicy.tail(5), "abcd", "e", "f", "g"), is("cdefg"));
+	}
+
+	@Test
+	public void headAndTailTest00() throws IOException {
+		assertThat(write(CapturePolicy.headAndTail(3, 3), "abcdefghij"), is("abchij"));
+		assertThat(write(CapturePolicy.headAndTail(3, 3), "abcde"), is("abcde"));
+		assertThat(write(CapturePolicy.headAndTail(3, 3).withTruncationMarker(), "abcdefghij"),
+				is("abc\n[... 4 bytes dropped ...]\nhij"));
+		assertThat(write(CapturePolicy.headAndTail(3, 3).withTruncationMarker(), "abcdef"), is("abcdef"));
+	}
+
+	@Test
+	public void droppedBytesTest00() throws IOException {
+		final BoundedOutputStream out = new BoundedOutputStream(
+				new ByteArrayOutputStream(), CapturePolicy.headAndTail(10, 10), NOP);
+		for (int i = 0; i < 1000; i ++) {
+			out.write('x');
+		}
+		out.close();
+		assertThat(out.getDroppedBytes(), is(980L));
+	}
+
+	@Test
+	public void killLimitTest00() throws IOException {
+		final int[] killed = new int[1];
+		final BoundedOutputStream out = new BoundedOutputStream(new ByteArrayOutputStream(),
+				CapturePolicy.head(10).withKillLimit(100), new Runnable() {
+			@Override
+			public void run() {
+				killed[0] ++;
+			}
+		});
+		out.write(new byte[100]);
+		assertFalse(out.isLimitExceeded());
+		out.write(new byte[1]);
+		out.write(new byte[1]);
+		assertTrue(out.isLimitExceeded());
+		assertThat(killed[0], is(1));
+		out.close();
+	}
+
+	@Test
+	public void policyTest00() {
+		try {
+			CapturePolicy.head(-1);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			CapturePolicy.unbounded().withKillLimit(0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		assertTrue(CapturePolicy.unbounded().isUnbounded());
+		assertFalse(CapturePolicy.unbounded().withKillLimit(10).isUnbounded());
+		assertFalse(CapturePolicy.tail(10).isUnbounded());
+	}
+
+	@Test
+	public void executeTest00() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final ExternalCommand cmd = ExternalCommand.parse("seq", "1", "100000");
+		cmd.setStdoutCapturePolicy(CapturePolicy.headAndTail(8, 7));
+		final Result res = cmd.execute();
+		try {
+			assertThat(Charset.forName("US-ASCII").decode(res.getStdoutBuffer()).toString(), is("1\n2\n3\n4\n100000\n"));
+			assertThat(res.getStdoutDroppedBytes(), is(588895L - 15));
+			assertFalse(res.isOutputLimitExceeded());
+		} finally {
+			res.close();
+		}
+	}
+
+	@Test
+	public void executeTest01() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		// 上限を超えるとプロセスは強制終了される
+		final ExternalCommand cmd = ExternalCommand.parse("cat", "/dev/zero");
+		cmd.setStdoutCapturePolicy(CapturePolicy.head(1024).withKillLimit(10 * 1024 * 1024));
+		final long start = System.currentTimeMillis();
+		final Result res = cmd.execute(10000);
+		try {
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			assertTrue(res.isOutputLimitExceeded());
+			assertThat(res.getStdoutBuffer().remaining(), is(1024));
+			assertTrue(res.getStdoutDroppedBytes() >= 10 * 1024 * 1024 - 1024);
+		} finally {
+			res.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void acquireTest00() {
+		final BufferPool pool = new BufferPool(1024 * 1024);
+		final byte[] small = pool.acquire(false);
+		final byte[] large = pool.acquire(true);
+		assertThat(small.length, is(BufferPool.SMALL_SEGMENT_SIZE));
+		assertThat(large.length, is(BufferPool.LARGE_SEGMENT_SIZE));
+		pool.release(small);
+		pool.release(large);
+		assertThat(pool.getRetainedBytes(), is((long) (BufferPool.SMALL_SEGMENT_SIZE + BufferPool.LARGE_SEGMENT_SIZE)));
+		// 返却されたセグメントが再利用される
+		assertThat(pool.acquire(false), sameInstance(small));
+		assertThat(pool.acquire(true), sameInstance(large));
+		assertThat(pool.getRetainedBytes(), is(0L));
+	}
+
+	@Test
+	public void releaseTest00() {
+		// 上限を超えて返却されたセグメントは破棄される
+		final BufferPool pool = new BufferPool(BufferPool.SMALL_SEGMENT_SIZE);
+		pool.release(pool.acquire(false));
+		pool.release(pool.acquire(true));
+		pool.release(new byte[10]);
+		assertThat(pool.getRetainedBytes(), is((long) BufferPool.SMALL_SEGMENT_SIZE));
+	}
+
+	@Test
+	public void constructorTest00() {
+		try {
+			new BufferPool(-1);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
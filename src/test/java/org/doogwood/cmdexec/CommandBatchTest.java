@@ -0,0 +1,162 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.CommandBatch.Entry;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class CommandBatchTest {
+	
+	private ExternalCommand okCommand() {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return ExternalCommand.parse("src\\test\\resources\\dir.bat");
+		} else {
+			return ExternalCommand.parse("true");
+		}
+	}
+	
+	private ExternalCommand ngCommand() {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return ExternalCommand.parse("src\\test\\resources\\copy.bat");
+		} else {
+			return ExternalCommand.parse("false");
+		}
+	}
+	
+	private ExternalCommand sleep5SecondsCommand() {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return ExternalCommand.parse("ping -n 6 localhost");
+		} else {
+			return ExternalCommand.parse("sleep 5");
+		}
+	}
+	
+	private static void closeAll(final List<Entry> entries) {
+		for (final Entry entry : entries) {
+			if (entry.getResult() != null) {
+				entry.getResult().close();
+			}
+		}
+	}
+
+	@Test
+	public void executeTest00() throws InterruptedException {
+		final CommandBatch batch = new CommandBatch(Arrays.asList(
+				okCommand(), ngCommand(), okCommand(), okCommand()));
+		batch.setMaxParallelism(2);
+		final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Entry> entries = batch.execute(new CommandBatch.CompletionListener() {
+			@Override
+			public void commandCompleted(final Entry entry) {
+				completed.add(entry.getIndex());
+			}
+		});
+		// 結果は投入した順序で返される
+		assertThat(entries.size(), is(4));
+		for (int i = 0; i < entries.size(); i ++) {
+			assertThat(entries.get(i).getIndex(), is(i));
+			assertThat(entries.get(i).isCancelled(), is(false));
+		}
+		assertThat(entries.get(0).isSuccessful(), is(true));
+		assertThat(entries.get(1).isSuccessful(), is(false));
+		assertThat(entries.get(1).getResult(), notNullValue());
+		assertThat(completed.size(), is(4));
+		closeAll(entries);
+	}
+
+	@Test
+	public void executeTest01() throws InterruptedException {
+		// 最初のエラーで未完了のコマンドは取り消される
+		final CommandBatch batch = new CommandBatch(Arrays.asList(
+				ngCommand(), sleep5SecondsCommand(), sleep5SecondsCommand()));
+		batch.setMaxParallelism(1);
+		batch.setErrorPolicy(CommandBatch.ErrorPolicy.FAIL_FAST);
+		final long start = System.currentTimeMillis();
+		final List<Entry> entries = batch.execute();
+		assertTrue(System.currentTimeMillis() - start < 4000);
+		assertThat(entries.get(0).isSuccessful(), is(false));
+		assertThat(entries.get(0).isCancelled(), is(false));
+		assertThat(entries.get(1).isCancelled(), is(true));
+		assertThat(entries.get(2).isCancelled(), is(true));
+		closeAll(entries);
+	}
+
+	@Test
+	public void executeTest02() throws InterruptedException {
+		// 期限切れになると未完了のコマンドは取り消される
+		final CommandBatch batch = new CommandBatch(Arrays.asList(okCommand(), sleep5SecondsCommand()));
+		batch.setDeadlineMillis(1000);
+		final long start = System.currentTimeMillis();
+		final List<Entry> entries = batch.execute();
+		assertTrue(System.currentTimeMillis() - start < 4000);
+		assertThat(entries.get(0).isSuccessful(), is(true));
+		assertThat(entries.get(1).isCancelled(), is(true));
+		assertThat(entries.get(1).getError() instanceof TimeoutException, is(true));
+		closeAll(entries);
+	}
+
+	@Test
+	public void executeTest03() throws InterruptedException {
+		final List<ExternalCommand> empty = Collections.emptyList();
+		assertThat(new CommandBatch(empty).execute().isEmpty(), is(true));
+	}
+
+	@Test
+	public void executeTest04() throws InterruptedException, IOException {
+		// 取り消したコマンドは子孫のプロセスも含めて強制終了される
+		assumeThat(SystemUtils.IS_OS_LINUX, is(true));
+		assumeThat(ProcessTree.isSupported(), is(true));
+		final File pidFile = File.createTempFile("cmdexec", ".pid");
+		try {
+			final CommandTemplate sh = CommandTemplate.parse("/bin/sh -c");
+			final CommandBatch batch = new CommandBatch(Arrays.asList(
+					sh.bind("sleep 30 & echo $! > " + pidFile.getAbsolutePath() + "; wait"),
+					sh.bind("sleep 0.5; exit 1")));
+			batch.setMaxParallelism(2);
+			batch.setErrorPolicy(CommandBatch.ErrorPolicy.FAIL_FAST);
+			final List<Entry> entries = batch.execute();
+			assertThat(entries.get(0).isCancelled(), is(true));
+			assertThat(entries.get(1).isSuccessful(), is(false));
+			closeAll(entries);
+			final BufferedReader reader = new BufferedReader(new FileReader(pidFile));
+			final long pid;
+			try {
+				pid = Long.parseLong(reader.readLine().trim());
+			} finally {
+				reader.close();
+			}
+			for (int i = 0; i < 200 && ProcessTree.snapshot(pid).isAlive(); i ++) {
+				Thread.sleep(20);
+			}
+			assertThat(ProcessTree.snapshot(pid).isAlive(), is(false));
+		} finally {
+			pidFile.delete();
+		}
+	}
+
+	@Test
+	public void setMaxParallelismTest00() {
+		final List<ExternalCommand> empty = Collections.emptyList();
+		try {
+			new CommandBatch(empty).setMaxParallelism(0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
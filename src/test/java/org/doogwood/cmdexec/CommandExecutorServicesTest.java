@@ -0,0 +1,94 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class CommandExecutorServicesTest {
+	
+	private static Runnable awaitLatch(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					latch.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	@Test
+	public void newBoundedExecutorServiceTest00() throws InterruptedException {
+		final ExecutorService service = CommandExecutorServices.newBoundedExecutorService(1, 1);
+		final CountDownLatch latch = new CountDownLatch(1);
+		// 1件目は実行中、2件目は待ち行列に入る
+		service.execute(awaitLatch(latch));
+		service.execute(awaitLatch(latch));
+		try {
+			service.execute(awaitLatch(latch));
+			fail();
+		} catch (final RejectedExecutionException e) {
+			// Ok.
+		}
+		latch.countDown();
+		service.shutdown();
+		assertThat(service.awaitTermination(1, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test
+	public void newBoundedExecutorServiceTest01() throws InterruptedException {
+		final ExecutorService service = CommandExecutorServices.newBoundedExecutorService(1, 0,
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		final CountDownLatch latch = new CountDownLatch(1);
+		service.execute(awaitLatch(latch));
+		// 待ち行列を持たないため呼び出し元のスレッドで実行される
+		final Thread caller = Thread.currentThread();
+		final Thread[] executed = new Thread[1];
+		service.execute(new Runnable() {
+			@Override
+			public void run() {
+				executed[0] = Thread.currentThread();
+			}
+		});
+		assertThat(executed[0], is(caller));
+		latch.countDown();
+		service.shutdown();
+		assertThat(service.awaitTermination(1, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test
+	public void newBoundedExecutorServiceTest03() throws InterruptedException {
+		// 実行中のコマンドが残っている間はJVMが終了しないよう非デーモン・スレッドで実行する
+		final ExecutorService service = CommandExecutorServices.newBoundedExecutorService(1, 1);
+		final boolean[] daemon = {true};
+		service.execute(new Runnable() {
+			@Override
+			public void run() {
+				daemon[0] = Thread.currentThread().isDaemon();
+			}
+		});
+		service.shutdown();
+		assertThat(service.awaitTermination(1, TimeUnit.SECONDS), is(true));
+		assertThat(daemon[0], is(false));
+	}
+
+	@Test
+	public void newBoundedExecutorServiceTest02() {
+		try {
+			CommandExecutorServices.newBoundedExecutorService(0, 1);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
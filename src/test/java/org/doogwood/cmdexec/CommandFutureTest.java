@@ -0,0 +1,199 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandFutureTest {
+	
+	@Before
+	public void before() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+	}
+	
+	private static CommandCallback callback(final AtomicReference<Object> received, final CountDownLatch latch) {
+		return new CommandCallback() {
+			@Override
+			public void onSuccess(final Result result) {
+				received.set(result);
+				latch.countDown();
+			}
+			@Override
+			public void onFailure(final Throwable cause) {
+				received.set(cause);
+				latch.countDown();
+			}
+		};
+	}
+
+	@Test
+	public void addCallbackTest00() throws Exception {
+		final AtomicReference<Object> received = new AtomicReference<Object>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		final CommandFuture future = ExternalCommand.parse("echo", "hello").executeAsync();
+		future.addCallback(callback(received, latch));
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		final Result res = future.get();
+		assertThat(received.get(), is((Object) res));
+		assertThat(res.getExitCode(), is(0));
+		res.close();
+		
+		// 完了後に登録したコールバックにはただちに通知される
+		final AtomicReference<Object> received2 = new AtomicReference<Object>();
+		final CountDownLatch latch2 = new CountDownLatch(1);
+		future.addCallback(callback(received2, latch2));
+		assertThat(latch2.getCount(), is(0L));
+		assertThat(received2.get(), is((Object) res));
+	}
+
+	@Test
+	public void addCallbackTest01() throws Exception {
+		// コールバックの中で次のコマンドを実行して連鎖させる
+		final AtomicReference<Object> received = new AtomicReference<Object>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		ExternalCommand.parse("true").executeAsync().addCallback(new CommandCallback() {
+			@Override
+			public void onSuccess(final Result result) {
+				result.close();
+				ExternalCommand.parse("echo", "second").executeAsync().addCallback(callback(received, latch));
+			}
+			@Override
+			public void onFailure(final Throwable cause) {
+				received.set(cause);
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		final Result res = (Result) received.get();
+		assertThat(res.getStdoutLines().iterator().next(), is("second"));
+		res.close();
+	}
+
+	@Test
+	public void cancelTest00() throws Exception {
+		// 取り消すと実行中のプロセスは強制終了される
+		final AtomicReference<Object> received = new AtomicReference<Object>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		final ExecutionStatistics stats = new ExecutionStatistics();
+		ExternalCommand.addExecutionListener(stats);
+		try {
+			// SIGKILLの猶予時間を長くして、SIGTERMでただちに終了することを確かめる
+			final ExternalCommand cmd = ExternalCommand.parse("sleep", "30");
+			cmd.setKillGracePeriodMillis(10000);
+			final CommandFuture future = cmd.executeAsync();
+			future.addCallback(callback(received, latch));
+			Thread.sleep(300);
+			final long start = System.currentTimeMillis();
+			assertTrue(future.cancel(false));
+			assertFalse(future.cancel(false));
+			assertTrue(future.isCancelled());
+			assertTrue(future.isDone());
+			assertThat(received.get(), instanceOf(CancellationException.class));
+			try {
+				future.get();
+				fail();
+			} catch (final CancellationException e) {
+				// Ok.
+			}
+			// プロセスが強制終了されたことを確認する
+			while (stats.getExecutionCount() == 0) {
+				Thread.sleep(10);
+			}
+			assertTrue(System.currentTimeMillis() - start < 3000);
+			assertThat(stats.getKilledCount(), is(1L));
+		} finally {
+			ExternalCommand.removeExecutionListener(stats);
+		}
+	}
+
+	@Test
+	public void cancelTest01() throws Exception {
+		// 実行が始まる前に取り消すとプロセスは起動されない
+		final ExternalCommand blocker = ExternalCommand.parse("sleep", "1");
+		blocker.setExecutorService(CommandExecutorServices.newBoundedExecutorService(1, 10));
+		final ExternalCommand cmd = ExternalCommand.parse("sleep", "5");
+		cmd.setExecutorService(blocker.getExecutorService());
+		final CommandFuture first = blocker.executeAsync();
+		final CommandFuture second = cmd.executeAsync();
+		assertTrue(second.cancel(true));
+		final long start = System.currentTimeMillis();
+		first.get().close();
+		assertTrue(System.currentTimeMillis() - start < 3000);
+		blocker.getExecutorService().shutdown();
+		assertTrue(blocker.getExecutorService().awaitTermination(3, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void getTest00() throws Exception {
+		final CommandFuture future = ExternalCommand.parse("sleep", "5").executeAsync(300);
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (final TimeoutException e) {
+			// Ok.
+		}
+		// タイムアウトの指定は同期実行と同じく扱われる
+		final Result res = future.get(3, TimeUnit.SECONDS);
+		assertThat(res.getExitCode(), not(0));
+		res.close();
+	}
+
+	@Test
+	public void openStdoutStreamTest00() throws Exception {
+		// 完了を待たずに実行中の出力を読み取れる
+		final CommandFuture future = CommandTemplate.parse("sh -c")
+				.bind("echo first; sleep 1; echo second").executeAsync(5000);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(future.openStdoutStream()));
+		assertThat(reader.readLine(), is("first"));
+		assertThat(future.isDone(), is(false));
+		assertThat(reader.readLine(), is("second"));
+		assertThat(reader.readLine(), nullValue());
+		reader.close();
+		final Result res = future.get();
+		assertThat(res.getExitCode(), is(0));
+		// 実行結果と同じ出力を共有する
+		final BufferedReader again = new BufferedReader(new InputStreamReader(future.openStdoutStream()));
+		assertThat(again.readLine(), is("first"));
+		again.close();
+		res.close();
+		try {
+			future.openStdoutStream();
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void openStdoutStreamTest01() throws Exception {
+		// 実行が始まる前に取り消された場合は読み取りが終端に達する
+		final ExternalCommand blocker = ExternalCommand.parse("sleep", "1");
+		blocker.setExecutorService(CommandExecutorServices.newBoundedExecutorService(1, 10));
+		final ExternalCommand cmd = ExternalCommand.parse("echo", "never");
+		cmd.setExecutorService(blocker.getExecutorService());
+		final CommandFuture first = blocker.executeAsync();
+		final CommandFuture second = cmd.executeAsync();
+		final InputStream in = second.openStdoutStream();
+		assertTrue(second.cancel(true));
+		assertThat(in.read(), is(-1));
+		first.get().close();
+		blocker.getExecutorService().shutdown();
+		assertTrue(blocker.getExecutorService().awaitTermination(3, TimeUnit.SECONDS));
+	}
+}
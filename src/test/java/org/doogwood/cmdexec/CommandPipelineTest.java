@@ -0,0 +1,131 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.CommandPipeline.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assume.*;
+
+import org.junit.Test;
+
+public class CommandPipelineTest {
+	
+	private static List<String> toList(final Iterable<String> lines) {
+		final List<String> list = new ArrayList<String>();
+		for (final String line : lines) {
+			list.add(line);
+		}
+		return list;
+	}
+
+	@Test
+	public void executeTest00() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final Result res = ExternalCommand.parse("printf", "c\\nb\\na\\n")
+				.pipe(ExternalCommand.parse("sort"))
+				.pipe(ExternalCommand.parse("head -n 2"))
+				.execute(5000);
+		assertThat(res.getExitCodes().length, is(3));
+		assertThat(res.getExitCode(), is(0));
+		assertThat(res.isTimedOut(), is(false));
+		final List<String> lines = toList(res.getStdoutLines());
+		assertThat(lines.size(), is(2));
+		assertThat(lines.get(0), is("a"));
+		assertThat(lines.get(1), is("b"));
+		res.close();
+	}
+
+	@Test
+	public void executeTest01() {
+		// 各ステージの終了コードが報告される
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final Result res = CommandPipeline.of(
+				ExternalCommand.parse("false"),
+				ExternalCommand.parse("cat")).execute(5000);
+		assertThat(res.getExitCodes()[0], is(1));
+		assertThat(res.getExitCodes()[1], is(0));
+		res.close();
+	}
+
+	@Test
+	public void executeTest02() {
+		// 大量の出力も中間で貯めこまれることなく転送される
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final Result res = ExternalCommand.parse("seq 1 200000")
+				.pipe(ExternalCommand.parse("wc -l"))
+				.execute(10000);
+		assertThat(toList(res.getStdoutLines()).get(0).trim(), is("200000"));
+		res.close();
+	}
+
+	@Test
+	public void executeTest03() {
+		// タイムアウトはパイプライン全体に適用される
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final long start = System.currentTimeMillis();
+		final Result res = ExternalCommand.parse("sleep 5")
+				.pipe(ExternalCommand.parse("cat"))
+				.execute(1000);
+		assertTrue(System.currentTimeMillis() - start < 4000);
+		assertNotEquals(res.getExitCodes()[0], 0);
+		assertThat(res.isTimedOut(), is(true));
+		res.close();
+	}
+
+	@Test
+	public void executeTest04() {
+		// 最初のステージの標準入力に入力元の内容が転送される
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final ExternalCommand sort = ExternalCommand.parse("sort");
+		sort.setInputSource(InputSource.of("c\nb\na\n".getBytes()));
+		final Result res = sort.pipe(ExternalCommand.parse("head -n 1")).execute(5000);
+		assertThat(toList(res.getStdoutLines()).get(0), is("a"));
+		res.close();
+	}
+
+	@Test
+	public void executeTest05() {
+		// 各ステージの環境変数と標準エラーのリダイレクトが適用される
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final CommandTemplate template = CommandTemplate.parse("/bin/sh -c");
+		final Map<String, String> env = new HashMap<String, String>();
+		env.put("CMDEXEC_TEST", "value");
+		template.setEnvironment(env);
+		final ExternalCommand first = template.bind("echo $CMDEXEC_TEST; echo error 1>&2");
+		first.setStderrRedirect(OutputRedirect.discard());
+		final Result res = first.pipe(ExternalCommand.parse("cat")).execute(5000);
+		assertThat(toList(res.getStdoutLines()), is(Arrays.asList("value")));
+		assertThat(toList(res.getStderrLines(0, Charset.defaultCharset())).isEmpty(), is(true));
+		res.close();
+	}
+
+	@Test
+	public void executeTest06() {
+		// パイプラインで適用できない設定はエラーとなる
+		final ExternalCommand first = ExternalCommand.parse("echo a");
+		first.setStdoutCapturePolicy(CapturePolicy.head(10));
+		try {
+			first.pipe(ExternalCommand.parse("cat")).execute(5000);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+		final ExternalCommand second = ExternalCommand.parse("cat");
+		second.setInputSource(InputSource.of("a".getBytes()));
+		try {
+			ExternalCommand.parse("echo a").pipe(second).execute(5000);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class CommandResultCacheTest {
+	
+	private static String stdoutOf(final Result res) throws IOException {
+		try {
+			return Charset.defaultCharset().decode(res.getStdoutBuffer()).toString().trim();
+		} finally {
+			res.close();
+		}
+	}
+
+	@Test
+	public void constructorTest00() {
+		try {
+			new CommandResultCache(-1, 1000);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			new CommandResultCache(1000, 0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void executeTest00() throws IOException {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final CommandResultCache cache = new CommandResultCache(1024, 60000);
+		assertThat(stdoutOf(cache.execute(ExternalCommand.parse("echo", "hello"))), is("hello"));
+		assertThat(stdoutOf(cache.execute(ExternalCommand.parse("echo", "hello"))), is("hello"));
+		assertThat(stdoutOf(cache.execute(ExternalCommand.parse("echo", "world"))), is("world"));
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.getMissCount(), is(2L));
+		assertThat(cache.size(), is(2));
+		assertThat(cache.getCachedBytes(), is(12L));
+		
+		cache.invalidateAll();
+		assertThat(cache.size(), is(0));
+		assertThat(cache.getCachedBytes(), is(0L));
+	}
+
+	@Test
+	public void executeTest01() throws IOException {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final CommandResultCache cache = new CommandResultCache(1024, 60000);
+		// 終了コードが0以外の実行結果はキャッシュしない
+		cache.execute(ExternalCommand.parse("false")).close();
+		cache.execute(ExternalCommand.parse("false")).close();
+		assertThat(cache.getMissCount(), is(2L));
+		assertThat(cache.size(), is(0));
+	}
+
+	@Test
+	public void executeTest02() throws IOException {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		final CommandResultCache cache = new CommandResultCache(1024, 60000);
+		// 標準入力の内容はキーに含まれる
+		final ExternalCommand cmd0 = ExternalCommand.parse("cat");
+		cmd0.setInputSource(InputSource.of("foo".getBytes()));
+		final ExternalCommand cmd1 = ExternalCommand.parse("cat");
+		cmd1.setInputSource(InputSource.of("bar".getBytes()));
+		final ExternalCommand cmd2 = ExternalCommand.parse("cat");
+		cmd2.setInputSource(InputSource.of("foo".getBytes()));
+		assertThat(stdoutOf(cache.execute(cmd0)), is("foo"));
+		assertThat(stdoutOf(cache.execute(cmd1)), is("bar"));
+		assertThat(stdoutOf(cache.execute(cmd2)), is("foo"));
+		assertThat(cache.getHitCount(), is(1L));
+		
+		// 繰り返し読み取れない入力元の場合はキャッシュしない
+		final ExternalCommand cmd3 = ExternalCommand.parse("cat");
+		cmd3.setInputSource(InputSource.of(new ByteArrayInputStream("foo".getBytes())));
+		assertThat(stdoutOf(cache.execute(cmd3)), is("foo"));
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.size(), is(2));
+	}
+
+	@Test
+	public void executeTest03() throws IOException {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		// 上限を超えた分は最も長く参照されていないものから破棄する
+		final CommandResultCache cache = new CommandResultCache(12, 60000);
+		cache.execute(ExternalCommand.parse("echo", "aaaaa")).close();
+		cache.execute(ExternalCommand.parse("echo", "bbbbb")).close();
+		cache.execute(ExternalCommand.parse("echo", "aaaaa")).close();
+		cache.execute(ExternalCommand.parse("echo", "ccccc")).close();
+		assertThat(cache.size(), is(2));
+		assertThat(cache.getCachedBytes(), is(12L));
+		cache.execute(ExternalCommand.parse("echo", "aaaaa")).close();
+		assertThat(cache.getHitCount(), is(2L));
+		cache.execute(ExternalCommand.parse("echo", "bbbbb")).close();
+		assertThat(cache.getHitCount(), is(2L));
+		
+		// 上限を超える実行結果はキャッシュしない
+		cache.execute(ExternalCommand.parse("echo", "dddddddddddddddd")).close();
+		assertThat(cache.getCachedBytes(), is(12L));
+	}
+
+	@Test
+	public void executeTest04() throws Exception {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		// 有効期限が過ぎた実行結果は破棄する
+		final CommandResultCache cache = new CommandResultCache(1024, 100);
+		cache.execute(ExternalCommand.parse("echo", "hello")).close();
+		Thread.sleep(200);
+		cache.execute(ExternalCommand.parse("echo", "hello")).close();
+		assertThat(cache.getHitCount(), is(0L));
+		assertThat(cache.getMissCount(), is(2L));
+		assertThat(cache.size(), is(1));
+	}
+
+	@Test
+	public void executeTest05() throws Exception {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		// 同時に要求された同じキーの実行は1度だけ実行される
+		final File script = File.createTempFile("cmdexec", ".sh");
+		script.deleteOnExit();
+		final FileOutputStream out = new FileOutputStream(script);
+		try {
+			out.write("sleep 1\necho done\n".getBytes());
+		} finally {
+			out.close();
+		}
+		final CommandResultCache cache = new CommandResultCache(1024, 60000);
+		final ExecutorService service = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 8; i ++) {
+				futures.add(service.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return stdoutOf(cache.execute(ExternalCommand.parse("sh", script.getAbsolutePath())));
+					}
+				}));
+			}
+			for (final Future<String> future : futures) {
+				assertThat(future.get(), is("done"));
+			}
+		} finally {
+			service.shutdown();
+		}
+		assertThat(cache.getMissCount(), is(1L));
+		assertThat(cache.getHitCount(), is(7L));
+	}
+
+	@Test
+	public void executeTest06() throws Exception {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		// ファイルの入力元はパスとサイズと最終更新時刻で識別される
+		final File input = File.createTempFile("cmdexec", ".txt");
+		input.deleteOnExit();
+		writeFile(input, "foo");
+		final CommandResultCache cache = new CommandResultCache(1024, 60000);
+		final ExternalCommand cmd = ExternalCommand.parse("cat");
+		cmd.setInputSource(InputSource.of(input));
+		assertThat(stdoutOf(cache.execute(cmd)), is("foo"));
+		assertThat(stdoutOf(cache.execute(cmd)), is("foo"));
+		assertThat(cache.getHitCount(), is(1L));
+		// 内容が変わればキャッシュは使われない
+		writeFile(input, "barbaz");
+		assertThat(stdoutOf(cache.execute(cmd)), is("barbaz"));
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.getMissCount(), is(2L));
+	}
+	
+	@Test
+	public void executeTest07() throws IOException {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		// CommandTemplateで設定した環境変数はキーに含まれる
+		final CommandResultCache cache = new CommandResultCache(1024, 60000);
+		final CommandTemplate template = CommandTemplate.parse("/bin/sh -c");
+		final Map<String, String> env = new HashMap<String, String>();
+		env.put("CMDEXEC_TEST", "foo");
+		template.setEnvironment(env);
+		final ExternalCommand foo = template.bind("echo $CMDEXEC_TEST");
+		env.put("CMDEXEC_TEST", "bar");
+		template.setEnvironment(env);
+		final ExternalCommand bar = template.bind("echo $CMDEXEC_TEST");
+		assertThat(stdoutOf(cache.execute(foo)), is("foo"));
+		assertThat(stdoutOf(cache.execute(bar)), is("bar"));
+		assertThat(stdoutOf(cache.execute(foo)), is("foo"));
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.getMissCount(), is(2L));
+		assertThat(cache.size(), is(2));
+	}
+	
+	private static void writeFile(final File file, final String content) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes());
+		} finally {
+			out.close();
+		}
+	}
+}
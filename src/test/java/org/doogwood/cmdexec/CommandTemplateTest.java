@@ -0,0 +1,99 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommandTemplateTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Before
+	public void before() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+	}
+
+	private static String stdout(final Result res) {
+		return UTF_8.decode(res.getStdoutBuffer()).toString();
+	}
+
+	@Test
+	public void executeTest00() {
+		// 実行ごとに引数だけを付け加えて実行できる
+		final CommandTemplate template = CommandTemplate.parse("echo prefix");
+		for (int i = 0; i < 3; i ++) {
+			final Result res = template.execute(String.valueOf(i));
+			assertThat(res.getExitCode(), is(0));
+			assertThat(stdout(res), is("prefix " + i + "\n"));
+			res.close();
+		}
+	}
+
+	@Test
+	public void executeTest01() {
+		// 付け加える引数はクォートされずにそのまま渡される
+		final CommandTemplate template = CommandTemplate.parse("sh -c");
+		final Result res = template.execute("echo a b; exit 3");
+		assertThat(res.getExitCode(), is(3));
+		assertThat(stdout(res), is("a b\n"));
+		res.close();
+	}
+
+	@Test
+	public void executeTest02() throws Exception {
+		// 実行に関する設定はもとになるコマンドの設定に従う
+		final ExternalCommand cmd = ExternalCommand.parse("pwd");
+		final File dir = new File(System.getProperty("java.io.tmpdir")).getCanonicalFile();
+		cmd.setWorkingDirectory(dir);
+		cmd.setStreamPoller(StreamPoller.getShared());
+		final CommandTemplate template = CommandTemplate.of(cmd);
+		final Result res = template.executeAsync(5000).get(5, TimeUnit.SECONDS);
+		assertThat(stdout(res), is(dir.getPath() + "\n"));
+		res.close();
+	}
+
+	@Test
+	public void setEnvironmentTest00() {
+		// 設定した環境変数がプロセスの環境変数のすべてとなる
+		final CommandTemplate template = CommandTemplate.parse("/usr/bin/env");
+		final Map<String, String> env = new HashMap<String, String>();
+		env.put("CMDEXEC_TEST", "value");
+		template.setEnvironment(env);
+		assertThat(template.getEnvironment().get("CMDEXEC_TEST"), is("value"));
+		final Result res = template.execute();
+		assertThat(stdout(res), is("CMDEXEC_TEST=value\n"));
+		res.close();
+	}
+
+	@Test
+	public void bindTest00() {
+		final CommandTemplate template = CommandTemplate.parse("echo");
+		final ExternalCommand cmd = template.bind("a b", "c");
+		assertThat(cmd.getCommandLine().toStrings(), is(new String[] {"echo", "a b", "c"}));
+		try {
+			template.bind((String) null);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			CommandTemplate.of(null);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class ExecutionStatisticsTest {
+	
+	private ExternalCommand okCommand() {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return ExternalCommand.parse("src\\test\\resources\\dir.bat");
+		} else {
+			return ExternalCommand.parse("echo", "hello");
+		}
+	}
+	
+	private ExternalCommand ngCommand() {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return ExternalCommand.parse("src\\test\\resources\\copy.bat");
+		} else {
+			return ExternalCommand.parse("false");
+		}
+	}
+	
+	private ExternalCommand sleep5SecondsCommand() {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return ExternalCommand.parse("ping -n 6 localhost");
+		} else {
+			return ExternalCommand.parse("sleep 5");
+		}
+	}
+	
+	private static ExecutionMetrics metrics(final long totalMillis, final int exitCode) {
+		return new ExecutionMetrics(ExternalCommand.parse("true"), 0, 0, totalMillis * 1000000, 0,
+				10, 1, false, false, exitCode);
+	}
+
+	@Test
+	public void bucketOfTest00() {
+		assertThat(ExecutionStatistics.bucketOf(0), is(0));
+		assertThat(ExecutionStatistics.bucketOf(1), is(1));
+		assertThat(ExecutionStatistics.bucketOf(2), is(2));
+		assertThat(ExecutionStatistics.bucketOf(3), is(2));
+		assertThat(ExecutionStatistics.bucketOf(4), is(3));
+		assertThat(ExecutionStatistics.bucketOf(1000), is(10));
+		assertThat(ExecutionStatistics.bucketOf(Long.MAX_VALUE), is(ExecutionStatistics.HISTOGRAM_BUCKETS - 1));
+	}
+
+	@Test
+	public void executionCompletedTest00() {
+		final ExecutionStatistics stats = new ExecutionStatistics();
+		stats.executionCompleted(metrics(0, 0));
+		stats.executionCompleted(metrics(5, 1));
+		stats.executionCompleted(metrics(1000, 0));
+		assertThat(stats.getExecutionCount(), is(3L));
+		assertThat(stats.getFailureCount(), is(1L));
+		assertThat(stats.getKilledCount(), is(0L));
+		assertThat(stats.getSpilledCount(), is(0L));
+		assertThat(stats.getStdoutBytes(), is(30L));
+		assertThat(stats.getStderrBytes(), is(3L));
+		assertThat(stats.getTotalRunMillis(), is(1005L));
+		assertThat(stats.getMaxTotalMillis(), is(1000L));
+		final long[] histogram = stats.getTotalMillisHistogram();
+		assertThat(histogram[0], is(1L));
+		assertThat(histogram[3], is(1L));
+		assertThat(histogram[10], is(1L));
+		
+		stats.reset();
+		assertThat(stats.getExecutionCount(), is(0L));
+		assertThat(stats.getMaxTotalMillis(), is(0L));
+		assertThat(stats.getTotalMillisHistogram()[10], is(0L));
+	}
+
+	@Test
+	public void executionCompletedTest01() {
+		final ExecutionStatistics stats = new ExecutionStatistics();
+		ExternalCommand.addExecutionListener(stats);
+		try {
+			okCommand().execute().close();
+			ngCommand().execute().close();
+			final ExternalCommand.Result res = sleep5SecondsCommand().execute(500);
+			res.close();
+		} finally {
+			ExternalCommand.removeExecutionListener(stats);
+		}
+		assertThat(stats.getExecutionCount(), is(3L));
+		assertThat(stats.getFailureCount(), is(2L));
+		assertThat(stats.getKilledCount(), is(1L));
+		assertTrue(stats.getStdoutBytes() > 0);
+		assertTrue(stats.getMaxTotalMillis() >= 500);
+		
+		// 削除後は通知されない
+		okCommand().execute().close();
+		assertThat(stats.getExecutionCount(), is(3L));
+	}
+
+	@Test
+	public void executionCompletedTest02() throws Exception {
+		final ExecutionMetrics[] received = new ExecutionMetrics[1];
+		final ExecutionListener listener = new ExecutionListener() {
+			@Override
+			public void executionCompleted(final ExecutionMetrics metrics) {
+				received[0] = metrics;
+				throw new RuntimeException();
+			}
+		};
+		ExternalCommand.addExecutionListener(listener);
+		try {
+			// リスナーがスローした例外は実行結果に影響しない
+			final ExternalCommand cmd = okCommand();
+			final ExternalCommand.Result res = cmd.executeAsynchronously().get();
+			assertThat(res.getExitCode(), is(0));
+			res.close();
+			assertThat(received[0].getCommand(), is(cmd));
+			assertThat(received[0].getExitCode(), is(0));
+			assertFalse(received[0].isKilled());
+			assertFalse(received[0].isSpilled());
+			assertTrue(received[0].getSpawnNanos() > 0);
+			assertTrue(received[0].getQueueWaitNanos() > 0);
+		} finally {
+			ExternalCommand.removeExecutionListener(listener);
+		}
+	}
+
+	@Test
+	public void registerMBeanTest00() throws Exception {
+		final ExecutionStatistics stats = new ExecutionStatistics();
+		stats.executionCompleted(metrics(5, 0));
+		final ObjectName name = stats.registerMBean();
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			assertThat((Long) server.getAttribute(name, "ExecutionCount"), is(1L));
+			try {
+				new ExecutionStatistics().registerMBean();
+				fail();
+			} catch (final RuntimeException e) {
+				// Ok.
+			}
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+	@Test
+	public void registerMBeanTest01() {
+		try {
+			new ExecutionStatistics().registerMBean("not an object name");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
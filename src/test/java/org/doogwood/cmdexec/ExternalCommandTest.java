@@ -1,8 +1,12 @@
 package org.doogwood.cmdexec;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.*;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.lang3.SystemUtils;
 import org.doogwood.cmdexec.ExternalCommand.Result;
@@ -127,4 +131,30 @@ public class ExternalCommandTest {
 		printResult("executeTest04", cmd, res);
 		assertNotEquals(res.getExitCode(), 0);
 	}
+
+	@Test
+	public void executeStreamingTest00() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		// 空白を含むスクリプトをクォートせずに渡すためテンプレートで引数を組み立てる
+		final ExternalCommand cmd = CommandTemplate.parse("/bin/sh -c").bind("echo a; echo b 1>&2; echo c");
+		final Charset charset = Charset.forName("UTF-8");
+		final List<String> stdoutLines = new ArrayList<String>();
+		final List<String> stderrLines = new ArrayList<String>();
+		final int exitCode = cmd.executeStreaming(
+				new LineSplitter(new LineListener() {
+					@Override
+					public void lineArrived(final String line) {
+						stdoutLines.add(line);
+					}
+				}, charset),
+				new LineSplitter(new LineListener() {
+					@Override
+					public void lineArrived(final String line) {
+						stderrLines.add(line);
+					}
+				}, charset));
+		assertThat(exitCode, is(0));
+		assertThat(stdoutLines, is(Arrays.asList("a", "c")));
+		assertThat(stderrLines, is(Arrays.asList("b")));
+	}
 }
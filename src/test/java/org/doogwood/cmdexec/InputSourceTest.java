@@ -0,0 +1,68 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class InputSourceTest {
+	
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buff = new byte[3];
+		int n;
+		while ((n = in.read(buff)) != -1) {
+			baos.write(buff, 0, n);
+		}
+		in.close();
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void ofTest00() throws IOException {
+		final byte[] data = "0123456789".getBytes();
+		assertThat(readAll(InputSource.of(data).open()), is(data));
+		assertThat(readAll(InputSource.of(new ByteArrayInputStream(data)).open()), is(data));
+		assertThat(readAll(InputSource.of(Channels.newChannel(new ByteArrayInputStream(data))).open()), is(data));
+	}
+
+	@Test
+	public void ofTest01() throws IOException {
+		final File file = File.createTempFile("inputSourceTest", ".tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(file);
+			out.write("0123456789".getBytes());
+			out.close();
+			final InputSource source = InputSource.of(file);
+			// ファイルは実行のたびに開かれる
+			assertThat(readAll(source.open()), is("0123456789".getBytes()));
+			assertThat(readAll(source.open()), is("0123456789".getBytes()));
+		} finally {
+			assertTrue(file.delete());
+		}
+	}
+
+	@Test
+	public void ofTest02() throws IOException {
+		final byte[][] chunks = {"012".getBytes(), new byte[0], "3456".getBytes(), "789".getBytes()};
+		final InputSource source = InputSource.of(new InputSource.ChunkSupplier() {
+			private int index = 0;
+			@Override
+			public byte[] nextChunk() {
+				return index < chunks.length ? chunks[index ++] : null;
+			}
+		});
+		final InputStream in = source.open();
+		assertThat(in.read(), is((int) '0'));
+		assertThat(readAll(in), is("123456789".getBytes()));
+	}
+}
@@ -0,0 +1,211 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class LineIterableTest {
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static PipeOutputStream makeStreamThenWriteData(final int threshold, final byte[] data) throws IOException {
+		final PipeOutputStream s = new PipeOutputStream(threshold);
+		s.write(data);
+		s.close();
+		return s;
+	}
+
+	@Test
+	public void iteratorTest00() throws IOException {
+		final PipeOutputStream out = makeStreamThenWriteData(100, "0123456789\n9876543210".getBytes(UTF_8));
+		final Iterator<String> iter = new LineIterable(out, UTF_8).iterator();
+		assertThat(iter.hasNext(), is(true));
+		assertThat(iter.next(), is("0123456789"));
+		assertThat(iter.next(), is("9876543210"));
+		assertThat(iter.hasNext(), is(false));
+		try {
+			iter.next();
+			fail();
+		} catch (final NoSuchElementException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void iteratorTest01() throws IOException {
+		// 一時ファイルを使用している場合も同様に読み取れる
+		final PipeOutputStream out = makeStreamThenWriteData(5, "0123456789\n9876543210".getBytes(UTF_8));
+		final LineIterable lines = new LineIterable(out, UTF_8);
+		// イテレータは何度でも生成できる
+		for (int i = 0; i < 2; i ++) {
+			final Iterator<String> iter = lines.iterator();
+			assertThat(iter.next(), is("0123456789"));
+			assertThat(iter.next(), is("9876543210"));
+			assertThat(iter.hasNext(), is(false));
+		}
+	}
+
+	@Test
+	public void iteratorTest02() throws IOException {
+		// 改行は"\n"、"\r"、"\r\n"のいずれも行の区切りとなる
+		final PipeOutputStream out = makeStreamThenWriteData(100, "a\nb\rc\r\n\nd".getBytes(UTF_8));
+		assertThat(toList(new LineIterable(out, UTF_8)), is(Arrays.asList("a", "b", "c", "", "d")));
+	}
+
+	@Test
+	public void iteratorTest03() throws IOException {
+		// バッファより長い行や、バッファの境界をまたぐ"\r\n"も正しく区切られる
+		final StringBuilder longLine = new StringBuilder();
+		for (int i = 0; i < 100000; i ++) {
+			longLine.append((char) ('0' + i % 10));
+		}
+		final StringBuilder data = new StringBuilder();
+		for (int i = 0; i < BufferPool.LARGE_SEGMENT_SIZE - 1; i ++) {
+			data.append('x');
+		}
+		data.append("\r\n").append(longLine).append("\r\n").append("end\n");
+		final PipeOutputStream out = makeStreamThenWriteData(10, data.toString().getBytes(UTF_8));
+		final List<String> lines = toList(new LineIterable(out, UTF_8));
+		assertThat(lines.size(), is(3));
+		assertThat(lines.get(0).length(), is(BufferPool.LARGE_SEGMENT_SIZE - 1));
+		assertThat(lines.get(1), is(longLine.toString()));
+		assertThat(lines.get(2), is("end"));
+	}
+
+	@Test
+	public void iteratorTest04() throws IOException {
+		// ASCII以外の文字を含む行はキャラクターセットに従ってデコードされる
+		final PipeOutputStream utf8 = makeStreamThenWriteData(100, "abc\nあいう\n".getBytes(UTF_8));
+		assertThat(toList(new LineIterable(utf8, UTF_8)), is(Arrays.asList("abc", "あいう")));
+		final Charset latin1 = Charset.forName("ISO-8859-1");
+		final PipeOutputStream latin = makeStreamThenWriteData(100, "caf\u00e9\n".getBytes(latin1));
+		assertThat(toList(new LineIterable(latin, latin1)), is(Arrays.asList("caf\u00e9")));
+		// 不正なバイト列は置換文字に置き換えられる
+		final Charset ascii = Charset.forName("US-ASCII");
+		final PipeOutputStream invalid = makeStreamThenWriteData(100, new byte[] {'a', (byte) 0xE9, '\n'});
+		assertThat(toList(new LineIterable(invalid, ascii)), is(Arrays.asList("a\uFFFD")));
+	}
+
+	@Test
+	public void iteratorTest05() throws IOException {
+		// 改行が1バイトにならないキャラクターセットでも読み取れる
+		final Charset utf16 = Charset.forName("UTF-16BE");
+		assertThat(ByteLineReader.isSupported(utf16), is(false));
+		assertThat(ByteLineReader.isSupported(UTF_8), is(true));
+		final PipeOutputStream out = makeStreamThenWriteData(100, "\u0a0d\nb".getBytes(utf16));
+		assertThat(toList(new LineIterable(out, utf16)), is(Arrays.asList("\u0a0d", "b")));
+	}
+
+	@Test
+	public void iteratorTest06() throws IOException {
+		// エスケープ・シーケンスで状態を切り替えるキャラクターセットはバイト列のまま扱わずに読み取る
+		final Charset jis = Charset.forName("ISO-2022-JP");
+		assertThat(ByteLineReader.isSupported(jis), is(false));
+		assertThat(ByteLineReader.isSupported(Charset.forName("Shift_JIS")), is(true));
+		assertThat(ByteLineReader.isSupported(Charset.forName("ISO-8859-15")), is(true));
+		final PipeOutputStream out = makeStreamThenWriteData(100, "日本語\nabc\n".getBytes(jis));
+		assertThat(toList(new LineIterable(out, jis)), is(Arrays.asList("日本語", "abc")));
+		final List<String> views = new ArrayList<String>();
+		for (final CharSequence line : LineIterable.views(out, jis)) {
+			views.add(line.toString());
+		}
+		assertThat(views, is(Arrays.asList("日本語", "abc")));
+	}
+
+	@Test
+	public void viewsTest00() throws IOException {
+		// ビューは文字列と同じ内容を表わし、文字列に変換すれば保持できる
+		final PipeOutputStream out = makeStreamThenWriteData(100, "abc\nあいう\nxyz".getBytes(UTF_8));
+		final List<String> lines = new ArrayList<String>();
+		for (final CharSequence line : LineIterable.views(out, UTF_8)) {
+			lines.add(line.toString());
+		}
+		assertThat(lines, is(Arrays.asList("abc", "あいう", "xyz")));
+		final Iterator<CharSequence> iter = LineIterable.views(out, UTF_8).iterator();
+		final CharSequence first = iter.next();
+		assertThat(first.length(), is(3));
+		assertThat(first.charAt(1), is('b'));
+		assertThat(first.subSequence(1, 3).toString(), is("bc"));
+		try {
+			first.charAt(3);
+			fail();
+		} catch (final IndexOutOfBoundsException e) {
+			// Ok.
+		}
+		assertThat(iter.next().toString(), is("あいう"));
+	}
+
+	@Test
+	public void closeTest00() throws IOException {
+		// 途中で読み出しをやめたイテレータはクローズすれば一時ファイルのディスクリプタを解放する
+		final PipeOutputStream out = makeStreamThenWriteData(5, "a\nb\nc\n".getBytes(UTF_8));
+		assertThat(out.isUsingTempFile(), is(true));
+		final int before = openFileCount();
+		final CloseableIterator<String> iter = new LineIterable(out, UTF_8).iterator();
+		assertThat(iter.next(), is("a"));
+		iter.close();
+		assertThat(iter.hasNext(), is(false));
+		// 複数回クローズしても問題はない
+		iter.close();
+		if (before >= 0) {
+			assertThat(openFileCount(), is(before));
+		}
+		out.release();
+	}
+
+	@Test
+	public void closeTest01() throws IOException {
+		// 拡張for文の途中で抜けた場合はIterableをクローズすればイテレータもクローズされる
+		final PipeOutputStream out = makeStreamThenWriteData(5, "a\nb\nc\n".getBytes(UTF_8));
+		final int before = openFileCount();
+		final CloseableIterable<String> lines = new LineIterable(out, UTF_8);
+		final CloseableIterable<CharSequence> views = LineIterable.views(out, UTF_8);
+		try {
+			for (final String line : lines) {
+				if (line.equals("b")) {
+					break;
+				}
+			}
+			for (final CharSequence line : views) {
+				assertThat(line.toString(), is("a"));
+				break;
+			}
+		} finally {
+			lines.close();
+			views.close();
+		}
+		if (before >= 0) {
+			assertThat(openFileCount(), is(before));
+		}
+		// クローズした後も新たなイテレータを生成できる
+		assertThat(toList(lines), is(Arrays.asList("a", "b", "c")));
+		out.release();
+	}
+
+	/**
+	 * このプロセスが開いているファイル・ディスクリプタの数を返す（数えられない環境では{@code -1}）.
+	 */
+	private static int openFileCount() {
+		final String[] fds = new File("/proc/self/fd").list();
+		return fds != null ? fds.length : -1;
+	}
+
+	private static List<String> toList(final Iterable<String> lines) {
+		final List<String> list = new ArrayList<String>();
+		for (final String line : lines) {
+			list.add(line);
+		}
+		return list;
+	}
+}
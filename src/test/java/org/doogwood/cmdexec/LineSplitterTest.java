@@ -0,0 +1,72 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class LineSplitterTest {
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static final class Collector implements LineListener {
+		private final List<String> lines = new ArrayList<String>();
+		@Override
+		public void lineArrived(final String line) {
+			lines.add(line);
+		}
+	}
+	
+	private static List<String> split(final byte[] data, final int chunkSize) throws IOException {
+		final Collector c = new Collector();
+		final LineSplitter splitter = new LineSplitter(c, UTF_8);
+		for (int off = 0; off < data.length; off += chunkSize) {
+			splitter.outputArrived(data, off, Math.min(chunkSize, data.length - off));
+		}
+		splitter.outputClosed();
+		return c.lines;
+	}
+
+	@Test
+	public void outputArrivedTest00() throws IOException {
+		final byte[] data = "0123456789\n9876543210".getBytes(UTF_8);
+		assertThat(split(data, data.length), is(Arrays.asList("0123456789", "9876543210")));
+	}
+
+	@Test
+	public void outputArrivedTest01() throws IOException {
+		// 改行文字の種類はBufferedReaderと同様に扱う
+		final byte[] data = "a\r\nb\rc\n\nd\n".getBytes(UTF_8);
+		assertThat(split(data, data.length), is(Arrays.asList("a", "b", "c", "", "d")));
+		// "\r\n"がチャンクの境界をまたいでいても1つの改行として扱う
+		assertThat(split(data, 2), is(Arrays.asList("a", "b", "c", "", "d")));
+	}
+
+	@Test
+	public void outputArrivedTest02() throws IOException {
+		// マルチバイト文字がチャンクの境界をまたいでいても正しくデコードする
+		final byte[] data = "あいう\nえお".getBytes(UTF_8);
+		assertThat(split(data, 1), is(Arrays.asList("あいう", "えお")));
+		assertThat(split(data, 4), is(Arrays.asList("あいう", "えお")));
+	}
+
+	@Test
+	public void outputArrivedTest03() throws IOException {
+		// 行が到着した時点で通知される
+		final Collector c = new Collector();
+		final LineSplitter splitter = new LineSplitter(c, UTF_8);
+		splitter.outputArrived("01234".getBytes(UTF_8), 0, 5);
+		assertThat(c.lines.isEmpty(), is(true));
+		splitter.outputArrived("56789\n98765".getBytes(UTF_8), 0, 11);
+		assertThat(c.lines, is(Arrays.asList("0123456789")));
+		splitter.outputClosed();
+		assertThat(c.lines, is(Arrays.asList("0123456789", "98765")));
+	}
+}
@@ -0,0 +1,74 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+	@Test
+	public void constructorTest00() {
+		try {
+			new MemoryBudget(-1);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			new MemoryBudget(1024, 1.0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			new MemoryBudget(1024, Double.NaN);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void tryReserveTest00() {
+		final MemoryBudget budget = new MemoryBudget(100);
+		assertThat(budget.tryReserve(60), is(true));
+		assertThat(budget.tryReserve(60), is(false));
+		assertThat(budget.tryReserve(40), is(true));
+		assertThat(budget.getUsedBytes(), is(100L));
+		budget.release(60);
+		assertThat(budget.getUsedBytes(), is(40L));
+		assertThat(budget.tryReserve(60), is(true));
+	}
+
+	@Test
+	public void tryReserveTest01() {
+		// ヒープの逼迫を検知している間は割り当てを行わない
+		final MemoryBudget budget = new MemoryBudget(100);
+		budget.pressureDetected();
+		assertThat(budget.isUnderPressure(), is(true));
+		assertThat(budget.tryReserve(1), is(false));
+		assertThat(budget.getUsedBytes(), is(0L));
+	}
+
+	@Test
+	public void unlimitedTest00() {
+		final MemoryBudget budget = MemoryBudget.unlimited();
+		final long used = budget.getUsedBytes();
+		assertThat(budget.tryReserve(Integer.MAX_VALUE), is(true));
+		budget.release(Integer.MAX_VALUE);
+		assertThat(budget.getUsedBytes(), is(used));
+	}
+
+	@Test
+	public void setDefaultTest00() {
+		try {
+			MemoryBudget.setDefault(null);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		assertThat(MemoryBudget.getDefault(), notNullValue());
+	}
+}
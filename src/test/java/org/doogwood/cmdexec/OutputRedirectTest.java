@@ -0,0 +1,156 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutputRedirectTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private File file;
+
+	@Before
+	public void before() throws IOException {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+		file = File.createTempFile("cmdexec-redirect-", ".txt");
+	}
+
+	@After
+	public void after() {
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	private void writeFile(final String contents) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes(UTF_8));
+		} finally {
+			out.close();
+		}
+	}
+
+	private String readFile() throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buff = new byte[(int) file.length()];
+			int len = 0;
+			int n;
+			while (len < buff.length && (n = in.read(buff, len, buff.length - len)) != -1) {
+				len += n;
+			}
+			return new String(buff, 0, len, UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Result execute(final ExternalCommand cmd, final String script) {
+		return CommandTemplate.of(cmd).execute(5000, script);
+	}
+
+	@Test
+	public void toFileTest00() throws IOException {
+		// ファイルの内容は切り詰められる
+		writeFile("old contents\n");
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setStdoutRedirect(OutputRedirect.toFile(file));
+		final Result res = execute(cmd, "echo out; echo err >&2");
+		assertThat(res.getExitCode(), is(0));
+		assertThat(readFile(), is("out\n"));
+		// リダイレクトした出力は実行結果に含まれない
+		assertThat(res.getStdoutBuffer().remaining(), is(0));
+		assertThat(UTF_8.decode(res.getStderrBuffer()).toString(), is("err\n"));
+		res.close();
+	}
+
+	@Test
+	public void appendToFileTest00() throws IOException {
+		writeFile("old\n");
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setStderrRedirect(OutputRedirect.appendToFile(file));
+		final Result res = execute(cmd, "echo out; echo err >&2");
+		assertThat(readFile(), is("old\nerr\n"));
+		assertThat(UTF_8.decode(res.getStdoutBuffer()).toString(), is("out\n"));
+		assertThat(res.getStderrBuffer().remaining(), is(0));
+		res.close();
+	}
+
+	@Test
+	public void toStdoutTest00() throws IOException {
+		// 標準エラーを標準出力のファイルに合流させる
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setStdoutRedirect(OutputRedirect.toFile(file));
+		cmd.setStderrRedirect(OutputRedirect.toStdout());
+		final Result res = execute(cmd, "echo out; echo err >&2");
+		assertThat(readFile(), is("out\nerr\n"));
+		assertThat(res.getStdoutBuffer().remaining(), is(0));
+		assertThat(res.getStderrBuffer().remaining(), is(0));
+		res.close();
+	}
+
+	@Test
+	public void toStdoutTest01() {
+		// 標準出力を受け取る場合は標準エラーの内容も標準出力に含まれる
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setStderrRedirect(OutputRedirect.toStdout());
+		cmd.setStreamPoller(StreamPoller.getShared());
+		final Result res = execute(cmd, "echo out; echo err >&2");
+		assertThat(UTF_8.decode(res.getStdoutBuffer()).toString(), is("out\nerr\n"));
+		assertThat(res.getStderrBuffer().remaining(), is(0));
+		res.close();
+	}
+
+	@Test
+	public void discardTest00() {
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setStdoutRedirect(OutputRedirect.discard());
+		cmd.setStderrRedirect(OutputRedirect.discard());
+		final Result res = execute(cmd, "head -c 1000000 /dev/zero; echo err >&2; exit 3");
+		assertThat(res.getExitCode(), is(3));
+		assertThat(res.getStdoutBuffer().remaining(), is(0));
+		assertThat(res.getStderrBuffer().remaining(), is(0));
+		res.close();
+	}
+
+	@Test
+	public void setStdoutRedirectTest00() {
+		final ExternalCommand cmd = ExternalCommand.parse("true");
+		try {
+			cmd.setStdoutRedirect(OutputRedirect.toStdout());
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			cmd.setStderrRedirect(null);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			OutputRedirect.toFile(null);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
@@ -3,9 +3,18 @@ package org.doogwood.cmdexec;
 import static org.junit.Assert.*;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.hamcrest.CoreMatchers.*;
 
@@ -112,4 +121,542 @@ public class PipeOutputStreamTest {
 		assertThat(br.readLine(), is("0123456789"));
 		assertThat(br.readLine(), is("9876543210"));
 	}
+
+	@Test
+	public void writeBytesTest00() throws IOException {
+		// 閾値をまたぐ書き込みはバイト配列と一時ファイルに分割される
+		final PipeOutputStream out = makeStream(5);
+		out.write("0123456789\n9876543210".getBytes(), 0, 11);
+		assertThat(out.isUsingTempFile(), is(true));
+		out.write("0123456789\n9876543210".getBytes(), 11, 10);
+		out.close();
+		final BufferedReader br = new BufferedReader(new InputStreamReader(out.getInputStream()));
+		assertThat(br.readLine(), is("0123456789"));
+		assertThat(br.readLine(), is("9876543210"));
+		assertThat(br.readLine(), nullValue());
+	}
+
+	@Test
+	public void writeBytesTest01() throws IOException {
+		final PipeOutputStream out = makeStream(10);
+		try {
+			out.write("0123456789".getBytes(), 5, 6);
+			fail();
+		} catch (final IndexOutOfBoundsException e) {
+			// Ok.
+		}
+		out.write("0123456789".getBytes(), 10, 0);
+		assertThat(out.isUsingTempFile(), is(false));
+	}
+
+	@Test
+	public void writeBytesTest02() throws IOException {
+		// 1バイトずつ書き込んでもチャンク単位で書き込んでも同じ内容が得られる
+		// 書き込みのスループットはPipeOutputStreamBenchmarkで計測する
+		final byte[] data = new byte[4 * 1024 * 1024];
+		for (int i = 0; i < data.length; i ++) {
+			data[i] = (byte) ('0' + (i % 10));
+		}
+		final int chunkSize = 4096;
+		final int threshold = 1024 * 1024;
+		
+		final PipeOutputStream perByte = makeStream(threshold);
+		for (int i = 0; i < data.length; i ++) {
+			perByte.write(data[i]);
+		}
+		perByte.close();
+		
+		final PipeOutputStream bulk = makeStream(threshold);
+		for (int off = 0; off < data.length; off += chunkSize) {
+			bulk.write(data, off, Math.min(chunkSize, data.length - off));
+		}
+		bulk.close();
+		
+		assertThat(perByte.isUsingTempFile(), is(true));
+		assertThat(bulk.isUsingTempFile(), is(true));
+		assertThat(readAll(bulk.getInputStream()), is(data));
+		assertThat(readAll(perByte.getInputStream()), is(data));
+		perByte.release();
+		bulk.release();
+	}
+	
+	@Test
+	public void getByteBufferTest00() throws IOException {
+		final PipeOutputStream out = makeStreamThenWriteData(10, "0123456789".getBytes());
+		final ByteBuffer buff = out.getByteBuffer();
+		assertThat(buff.isReadOnly(), is(true));
+		assertThat(buff.remaining(), is(10));
+		assertThat(buff.get(9), is((byte) '9'));
+		// 呼び出すたびに内容のコピーが作られることはない
+		assertThat(readAll(out.getInputStream()), is("0123456789".getBytes()));
+		assertThat(readAll(out.getInputStream()), is("0123456789".getBytes()));
+	}
+
+	@Test
+	public void getByteBufferTest01() throws IOException {
+		// 一時ファイルを使用している場合はマッピングしたバッファを返す
+		final PipeOutputStream out = makeStreamThenWriteData(5, "0123456789".getBytes());
+		final ByteBuffer buff = out.getByteBuffer();
+		assertThat(buff instanceof MappedByteBuffer, is(true));
+		assertThat(buff.isReadOnly(), is(true));
+		final byte[] data = new byte[buff.remaining()];
+		buff.get(data);
+		assertThat(data, is("0123456789".getBytes()));
+	}
+
+	@Test
+	public void getFileChannelTest00() throws IOException {
+		final PipeOutputStream out = makeStreamThenWriteData(10, "0123456789".getBytes());
+		try {
+			out.getFileChannel();
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+		final PipeOutputStream out2 = makeStreamThenWriteData(5, "0123456789".getBytes());
+		final FileChannel channel = out2.getFileChannel();
+		assertThat(channel.size(), is(10L));
+		channel.close();
+	}
+
+	@Test
+	public void transferToTest00() throws IOException {
+		for (final int threshold : new int[] {5, 100}) {
+			final PipeOutputStream out = makeStreamThenWriteData(threshold, "0123456789".getBytes());
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final WritableByteChannel target = Channels.newChannel(baos);
+			assertThat(out.transferTo(target), is(10L));
+			assertThat(baos.toByteArray(), is("0123456789".getBytes()));
+		}
+	}
+
+	@Test
+	public void segmentsTest00() throws IOException {
+		// 複数のセグメントにまたがるデータも正しく読み取れる
+		final byte[] data = new byte[BufferPool.LARGE_SEGMENT_SIZE * 3 + 123];
+		for (int i = 0; i < data.length; i ++) {
+			data[i] = (byte) i;
+		}
+		final PipeOutputStream out = makeStreamThenWriteData(data.length, data);
+		assertThat(out.isUsingTempFile(), is(false));
+		assertThat(readAll(out.getInputStream()), is(data));
+		final ByteBuffer buff = out.getByteBuffer();
+		final byte[] copy = new byte[buff.remaining()];
+		buff.get(copy);
+		assertThat(copy, is(data));
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		assertThat(out.transferTo(Channels.newChannel(baos)), is((long) data.length));
+		assertThat(baos.toByteArray(), is(data));
+	}
+
+	@Test
+	public void releaseTest00() throws IOException {
+		final BufferPool pool = new BufferPool(1024 * 1024);
+		final PipeOutputStream out = new PipeOutputStream(100, pool);
+		out.write("0123456789".getBytes());
+		out.close();
+		assertThat(pool.getRetainedBytes(), is(0L));
+		out.release();
+		// セグメントはプールに返却される
+		assertThat(pool.getRetainedBytes(), is((long) BufferPool.SMALL_SEGMENT_SIZE));
+		assertThat(out.isReadyForReading(), is(false));
+		try {
+			out.getInputStream();
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void releaseTest01() throws IOException {
+		// 閾値を超えて一時ファイルを作成した時点でセグメントはプールに返却される
+		final BufferPool pool = new BufferPool(1024 * 1024);
+		final PipeOutputStream out = new PipeOutputStream(5, pool);
+		out.write("0123456789".getBytes());
+		assertThat(out.isUsingTempFile(), is(true));
+		assertThat(pool.getRetainedBytes(), is((long) BufferPool.SMALL_SEGMENT_SIZE));
+		out.close();
+	}
+
+	@Test
+	public void tempFileStoreTest00() throws IOException {
+		// 一時ファイルは指定されたディレクトリに作成され、解放とともに削除される
+		final File dir = makeTempDirectory();
+		final TempFileStore store = new TempFileStore(dir);
+		final PipeOutputStream out = new PipeOutputStream(5, BufferPool.getSharedPool(), store);
+		out.write("0123456789".getBytes());
+		out.close();
+		assertThat(dir.listFiles().length, is(1));
+		assertThat(store.getUsedBytes(), is(10L));
+		out.release();
+		assertThat(dir.listFiles().length, is(0));
+		assertThat(store.getUsedBytes(), is(0L));
+		assertTrue(dir.delete());
+	}
+
+	@Test
+	public void tempFileStoreTest01() throws IOException {
+		// ディスク容量の上限を超える書き込みはエラーとなる
+		final File dir = makeTempDirectory();
+		final TempFileStore store = new TempFileStore(dir, 8);
+		final PipeOutputStream out = new PipeOutputStream(5, BufferPool.getSharedPool(), store);
+		final boolean[] handled = new boolean[1];
+		out.setSpillFailureHandler(new Runnable() {
+			@Override
+			public void run() {
+				handled[0] = true;
+			}
+		});
+		out.write("01234567".getBytes());
+		try {
+			out.write("89".getBytes());
+			fail();
+		} catch (final SpillQuotaExceededException e) {
+			// Ok.
+		}
+		assertThat(handled[0], is(true));
+		assertThat(out.getSpillFailure(), notNullValue());
+		out.close();
+		out.release();
+		assertThat(store.getUsedBytes(), is(0L));
+		assertTrue(dir.delete());
+	}
+	
+	@Test
+	public void spillCompressedTest00() throws IOException {
+		// 圧縮した一時ファイルは読み取りの際に伸張され、予約するディスク容量は圧縮後のバイト数となる
+		final File dir = makeTempDirectory();
+		final TempFileStore store = new TempFileStore(dir);
+		final PipeOutputStream out = new PipeOutputStream(5, BufferPool.getSharedPool(), store);
+		out.setSpillCompressed(true);
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10000; i ++) {
+			expected.append("line ").append(i % 10).append('\n');
+		}
+		final byte[] data = expected.toString().getBytes();
+		out.write(data, 0, 3);
+		out.write(data[3]);
+		out.write(data, 4, data.length - 4);
+		out.close();
+		assertThat(out.isUsingTempFile(), is(true));
+		assertThat(dir.listFiles()[0].length(), is(store.getUsedBytes()));
+		assertTrue(store.getUsedBytes() < data.length / 10);
+		
+		final ByteArrayOutputStream read = new ByteArrayOutputStream();
+		final InputStream in = out.getInputStream();
+		final byte[] buff = new byte[1000];
+		int n;
+		while ((n = in.read(buff)) != -1) {
+			read.write(buff, 0, n);
+		}
+		in.close();
+		assertThat(read.toString(), is(expected.toString()));
+		
+		final ByteBuffer bb = out.getByteBuffer();
+		assertThat(bb.remaining(), is(data.length));
+		final byte[] copy = new byte[data.length];
+		bb.get(copy);
+		assertThat(new String(copy), is(expected.toString()));
+		
+		final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+		assertThat(out.transferTo(Channels.newChannel(transferred)), is((long) data.length));
+		assertThat(transferred.toString(), is(expected.toString()));
+		
+		out.release();
+		assertThat(store.getUsedBytes(), is(0L));
+		assertTrue(dir.delete());
+	}
+
+	@Test
+	public void spillCompressedTest01() throws IOException {
+		// 圧縮した一時ファイルはチャネルとして直接読み取れない
+		final PipeOutputStream out = makeStream(5);
+		out.setSpillCompressed(true);
+		out.write("0123456789".getBytes());
+		out.close();
+		try {
+			out.getFileChannel();
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+		// 一時ファイルを作成した後は設定を変更できない
+		try {
+			out.setSpillCompressed(false);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+		out.release();
+	}
+
+	@Test
+	public void spillCompressedTest02() throws IOException {
+		// 圧縮後のデータもディスク容量の上限を超えればエラーとなる
+		final File dir = makeTempDirectory();
+		final TempFileStore store = new TempFileStore(dir, 64);
+		final PipeOutputStream out = new PipeOutputStream(0, BufferPool.getSharedPool(), store);
+		out.setSpillCompressed(true);
+		final byte[] random = new byte[1024 * 1024];
+		new Random(0).nextBytes(random);
+		try {
+			out.write(random);
+			fail();
+		} catch (final SpillQuotaExceededException e) {
+			// Ok.
+		}
+		assertThat(out.getSpillFailure(), notNullValue());
+		out.close();
+		out.release();
+		assertThat(store.getUsedBytes(), is(0L));
+		assertTrue(dir.delete());
+	}
+	
+	@Test
+	public void openLiveInputStreamTest00() throws Exception {
+		// 書き込みの途中から読み取り、閾値を超えて一時ファイルに書き出された後も追いかけて読み取る
+		final PipeOutputStream out = makeStream(1000);
+		final byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i ++) {
+			data[i] = (byte) i;
+		}
+		final InputStream early = out.openLiveInputStream();
+		final byte[][] received = new byte[2][];
+		final Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					received[0] = readAll(early);
+				} catch (final IOException e) {
+					// 受け取れなかったことで検知する
+				}
+			}
+		});
+		reader.start();
+		for (int off = 0; off < data.length; off += 777) {
+			out.write(data, off, Math.min(777, data.length - off));
+			if (off == 777 * 10) {
+				// 書き込みの途中で生成した入力ストリームも先頭から読み取る
+				final InputStream late = out.openLiveInputStream();
+				final byte[] head = new byte[100];
+				assertThat(late.read(head), is(100));
+				assertThat(head[99], is((byte) 99));
+				late.close();
+			}
+		}
+		assertThat(out.isUsingTempFile(), is(true));
+		out.close();
+		reader.join(5000);
+		assertThat(received[0], is(data));
+		// クローズ後に生成した入力ストリームも全体を読み取れる
+		assertThat(readAll(out.openLiveInputStream()), is(data));
+		out.release();
+	}
+
+	@Test
+	public void openLiveInputStreamTest01() throws Exception {
+		// 書き込まれたデータに追いつくと次の書き込みを待つ
+		final PipeOutputStream out = makeStream(100);
+		final InputStream in = out.openLiveInputStream();
+		assertThat(in.available(), is(0));
+		out.write("abc".getBytes());
+		assertThat(in.available(), is(3));
+		final byte[] buff = new byte[10];
+		assertThat(in.read(buff), is(3));
+		final Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+					out.close();
+				} catch (final Exception e) {
+					// 読み取りがブロックし続けることで検知する
+				}
+			}
+		});
+		closer.start();
+		final long start = System.nanoTime();
+		assertThat(in.read(buff), is(-1));
+		assertTrue(System.nanoTime() - start >= 100 * 1000 * 1000);
+		// 解放後はエラーとなる
+		out.release();
+		try {
+			in.read(buff);
+			fail();
+		} catch (final IOException e) {
+			// Ok.
+		}
+		try {
+			out.openLiveInputStream();
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void openLiveInputStreamTest02() throws IOException {
+		// 一時ファイルを圧縮する場合は使用できない
+		final PipeOutputStream out = makeStream(5);
+		out.setSpillCompressed(true);
+		try {
+			out.openLiveInputStream();
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+		out.setSpillCompressed(false);
+		out.openLiveInputStream().close();
+		try {
+			out.setSpillCompressed(true);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+		out.close();
+		out.release();
+	}
+	
+	private static File makeTempDirectory() throws IOException {
+		final File dir = File.createTempFile("pipeOutputStreamTest", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		return dir;
+	}
+
+	@Test
+	public void releaseTest02() throws IOException {
+		// 解放した後もByteBufferの内容はプールで再利用されたセグメントに上書きされない
+		final BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_RETAINED_BYTES);
+		for (final int size : new int[] {100, 100000}) {
+			final byte[] a = new byte[size];
+			final byte[] b = new byte[size];
+			Arrays.fill(a, (byte) 'a');
+			Arrays.fill(b, (byte) 'b');
+			final PipeOutputStream first = new PipeOutputStream(PipeOutputStream.DEFAULT_THRESHOLD, pool);
+			first.write(a);
+			first.close();
+			final ByteBuffer buff = first.getByteBuffer();
+			// 2回目以降の呼び出しも同じ内容を返す
+			assertThat(first.getByteBuffer(), is(buff));
+			first.release();
+			final PipeOutputStream second = new PipeOutputStream(PipeOutputStream.DEFAULT_THRESHOLD, pool);
+			second.write(b);
+			second.close();
+			final byte[] actual = new byte[buff.remaining()];
+			buff.duplicate().get(actual);
+			assertArrayEquals(a, actual);
+			second.release();
+		}
+	}
+	
+	@Test
+	public void releaseTest03() throws IOException {
+		// 解放した後はメモリ上のデータを読み取る入力ストリームはエラーとなる
+		final PipeOutputStream out = makeStreamThenWriteData(100, "0123456789".getBytes());
+		final InputStream in = out.getInputStream();
+		assertThat(in.read(), is((int) '0'));
+		out.release();
+		try {
+			in.read();
+			fail();
+		} catch (final IOException e) {
+			// Ok.
+		}
+	}
+	
+	@Test
+	public void memoryBudgetTest00() throws IOException {
+		// 予算の割り当てを受けられなければ閾値に達していなくても一時ファイルに書き出す
+		final MemoryBudget budget = new MemoryBudget(BufferPool.LARGE_SEGMENT_SIZE);
+		final PipeOutputStream out = new PipeOutputStream(1024 * 1024, BufferPool.getSharedPool(),
+				TempFileStore.getDefault(), budget);
+		final byte[] data = new byte[BufferPool.LARGE_SEGMENT_SIZE * 3];
+		new Random(0).nextBytes(data);
+		out.write(data, 0, 1000);
+		assertThat(out.isUsingTempFile(), is(false));
+		// 保持するセグメントの分だけ割り当てを受ける
+		assertThat(budget.getUsedBytes(), is((long) BufferPool.SMALL_SEGMENT_SIZE));
+		out.write(data, 1000, BufferPool.LARGE_SEGMENT_SIZE - 1000);
+		assertThat(out.isUsingTempFile(), is(false));
+		assertThat(budget.getUsedBytes(), is((long) BufferPool.LARGE_SEGMENT_SIZE));
+		out.write(data, BufferPool.LARGE_SEGMENT_SIZE, data.length - BufferPool.LARGE_SEGMENT_SIZE);
+		out.close();
+		assertThat(out.isUsingTempFile(), is(true));
+		// 一時ファイルに移し替えた時点で割り当ては返却される
+		assertThat(budget.getUsedBytes(), is(0L));
+		assertArrayEquals(data, readAll(out.getInputStream()));
+		out.release();
+	}
+	
+	@Test
+	public void memoryBudgetTest01() throws IOException {
+		// 閾値未満で収まったデータの割り当ては解放の時点で返却される
+		final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		final PipeOutputStream out = new PipeOutputStream(1024 * 1024, BufferPool.getSharedPool(),
+				TempFileStore.getDefault(), budget);
+		for (int i = 0; i < 100; i ++) {
+			out.write('a');
+		}
+		out.close();
+		assertThat(out.isUsingTempFile(), is(false));
+		assertThat(budget.getUsedBytes(), is((long) BufferPool.SMALL_SEGMENT_SIZE));
+		out.release();
+		assertThat(budget.getUsedBytes(), is(0L));
+	}
+	
+	@Test
+	public void releaseByGarbageCollectionTest00() throws Exception {
+		// 解放されないまま回収された場合も一時ファイルは削除され、ディスク容量は解放される
+		final File dir = makeTempDirectory();
+		final TempFileStore store = new TempFileStore(dir);
+		writeAndAbandon(store);
+		assertThat(dir.listFiles().length, is(1));
+		assertThat(store.getUsedBytes(), is(10L));
+		for (int i = 0; i < 100 && (dir.listFiles().length > 0 || store.getUsedBytes() > 0); i ++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertThat(dir.listFiles().length, is(0));
+		assertThat(store.getUsedBytes(), is(0L));
+		assertTrue(dir.delete());
+	}
+	
+	@Test
+	public void releaseByGarbageCollectionTest01() throws Exception {
+		// 解放されないまま回収された場合もメモリの割り当ては返却される
+		final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		writeAndAbandon(budget);
+		assertThat(budget.getUsedBytes(), is((long) BufferPool.SMALL_SEGMENT_SIZE));
+		for (int i = 0; i < 100 && budget.getUsedBytes() > 0; i ++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertThat(budget.getUsedBytes(), is(0L));
+	}
+	
+	private static void writeAndAbandon(final MemoryBudget budget) throws IOException {
+		final PipeOutputStream out = new PipeOutputStream(1024 * 1024, BufferPool.getSharedPool(),
+				TempFileStore.getDefault(), budget);
+		out.write("0123456789".getBytes());
+		out.close();
+	}
+	
+	private static void writeAndAbandon(final TempFileStore store) throws IOException {
+		final PipeOutputStream out = new PipeOutputStream(5, BufferPool.getSharedPool(), store);
+		out.write("0123456789".getBytes());
+		out.close();
+	}
+	
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buff = new byte[8192];
+		int n;
+		while ((n = in.read(buff)) != -1) {
+			baos.write(buff, 0, n);
+		}
+		in.close();
+		return baos.toByteArray();
+	}
 }
@@ -0,0 +1,175 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class ResourceLimitsTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * テストに使用できるcgroup v2のディレクトリを返す.
+	 * 書き込みが許可されていない環境ではテストをスキップする。
+	 */
+	private static File cgroupDirectory() {
+		assumeThat(SystemUtils.IS_OS_LINUX, is(true));
+		for (final String path : new String[] {"/sys/fs/cgroup/unified", "/sys/fs/cgroup"}) {
+			final File dir = new File(path);
+			final File probe = new File(dir, "cmdexec-test-" + System.nanoTime());
+			if (new File(dir, "cgroup.controllers").isFile() && probe.mkdir()) {
+				probe.delete();
+				return dir;
+			}
+		}
+		assumeTrue(false);
+		return null;
+	}
+
+	@Test
+	public void withTest00() {
+		final ResourceLimits limits = ResourceLimits.none();
+		assertThat(limits.isUnlimited(), is(true));
+		final ResourceLimits limits2 = limits.withCpuQuota(0.5).withMemoryLimit(1024).withMaxProcesses(10);
+		assertThat(limits2.getCpuQuota(), is(0.5));
+		assertThat(limits2.getMemoryLimitBytes(), is(1024L));
+		assertThat(limits2.getMaxProcesses(), is(10));
+		assertThat(limits2.isUnlimited(), is(false));
+		// もとのオブジェクトは変更されない
+		assertThat(limits.isUnlimited(), is(true));
+	}
+
+	@Test
+	public void withTest01() {
+		try {
+			ResourceLimits.none().withCpuQuota(0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			ResourceLimits.none().withCpuQuota(Double.NaN);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			ResourceLimits.none().withMemoryLimit(0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			ResourceLimits.none().withMaxProcesses(-1);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void prlimitTest00() {
+		// cgroupを使用しない場合はprlimitでリソース制限を設定する
+		assumeThat(SystemUtils.IS_OS_LINUX, is(true));
+		assumeThat(new File("/usr/bin/prlimit").canExecute(), is(true));
+		final ExternalCommand cmd = ExternalCommand.parse("cat /proc/self/limits");
+		cmd.setResourceLimits(ResourceLimits.none().withMemoryLimit(512L * 1024 * 1024));
+		final Result res = cmd.execute(5000);
+		assertThat(res.getExitCode(), is(0));
+		final String limits = UTF_8.decode(res.getStdoutBuffer()).toString();
+		assertThat(limits, containsString("Max address space"));
+		assertThat(limits, containsString(String.valueOf(512L * 1024 * 1024)));
+		// prlimitでは使用量は計測されない
+		assertThat(res.getResourceUsage(), nullValue());
+		res.close();
+	}
+
+	@Test
+	public void prlimitTest01() {
+		// CPUの割り当てはcgroupでなければ適用できない
+		assumeThat(SystemUtils.IS_OS_LINUX, is(true));
+		final ExternalCommand cmd = ExternalCommand.parse("true");
+		cmd.setResourceLimits(ResourceLimits.none().withCpuQuota(1));
+		try {
+			cmd.execute(5000);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void prlimitTest02() {
+		// プロセス数の上限はcgroupでなければ適用できない（RLIMIT_NPROCはユーザーごとの上限のため）
+		assumeThat(SystemUtils.IS_OS_LINUX, is(true));
+		final ExternalCommand cmd = ExternalCommand.parse("true");
+		cmd.setResourceLimits(ResourceLimits.none().withMaxProcesses(10));
+		try {
+			cmd.execute(5000);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void cgroupTest00() {
+		// cgroupの中で実行し、プロセス・ツリー全体のCPU時間を計測する
+		final CgroupController controller = new CgroupController(cgroupDirectory());
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setCgroupController(controller);
+		final Result res = CommandTemplate.of(cmd).execute(10000,
+				"i=0; while [ $i -lt 20000 ]; do i=$((i+1)); done; cat /proc/self/cgroup");
+		assertThat(res.getExitCode(), is(0));
+		assertThat(UTF_8.decode(res.getStdoutBuffer()).toString(), containsString("cmdexec-"));
+		final ResourceUsage usage = res.getResourceUsage();
+		assertThat(usage, notNullValue());
+		assertThat(usage.getUserCpuMicros() + usage.getSystemCpuMicros() > 0, is(true));
+		res.close();
+		// 実行ごとのcgroupは削除される
+		for (final String name : controller.getDirectory().list()) {
+			assertThat(name.startsWith("cmdexec-"), is(false));
+		}
+	}
+
+	@Test
+	public void cgroupTest01() {
+		// 有効になっていないコントローラーの上限は設定できない
+		final File dir = cgroupDirectory();
+		final CgroupController controller = new CgroupController(dir);
+		assumeThat(new File(dir, "cgroup.subtree_control").isFile(), is(true));
+		final ExternalCommand cmd = ExternalCommand.parse("true");
+		cmd.setCgroupController(controller);
+		cmd.setResourceLimits(ResourceLimits.none().withMaxProcesses(10));
+		try {
+			final Result res = cmd.execute(5000);
+			// pidsコントローラーが有効な環境では上限を設定して実行できる
+			assertThat(res.getExitCode(), is(0));
+			res.close();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+		for (final String name : dir.list()) {
+			assertThat(name.startsWith("cmdexec-"), is(false));
+		}
+	}
+
+	@Test
+	public void cgroupControllerTest00() {
+		try {
+			new CgroupController(new File(System.getProperty("java.io.tmpdir")));
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.CommandBatch.Entry;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamPollerTest {
+	
+	@Before
+	public void before() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+	}
+
+	@Test
+	public void constructorTest00() {
+		try {
+			new StreamPoller(0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		assertThat(new StreamPoller(2).getThreadCount(), is(2));
+		assertThat(StreamPoller.getShared(), sameInstance(StreamPoller.getShared()));
+	}
+
+	@Test
+	public void executeTest00() {
+		// 閾値を超える大量の出力も欠けることなく受け取る
+		final StreamPoller poller = new StreamPoller(1);
+		final ExternalCommand cmd = ExternalCommand.parse("head", "-c", "3000000", "/dev/zero");
+		cmd.setStreamPoller(poller);
+		final Result res = cmd.execute();
+		try {
+			assertThat(res.getExitCode(), is(0));
+			assertThat(res.getStdoutBuffer().remaining(), is(3000000));
+		} finally {
+			res.close();
+		}
+		assertThat(poller.getRegistrationCount(), is(0));
+	}
+
+	@Test
+	public void executeTest01() {
+		// 標準入力に与えたデータも転送される
+		final byte[] data = new byte[200000];
+		for (int i = 0; i < data.length; i ++) {
+			data[i] = (byte) i;
+		}
+		final ExternalCommand cmd = ExternalCommand.parse("cat");
+		cmd.setStreamPoller(new StreamPoller(1));
+		cmd.setInputSource(InputSource.of(data));
+		final Result res = cmd.execute();
+		try {
+			final ByteBuffer buff = res.getStdoutBuffer();
+			final byte[] actual = new byte[buff.remaining()];
+			buff.get(actual);
+			assertThat(actual, is(data));
+		} finally {
+			res.close();
+		}
+	}
+
+	@Test
+	public void executeTest02() throws InterruptedException {
+		// 多数のコマンドを1つのポーラーで同時に実行する
+		final StreamPoller poller = new StreamPoller(1);
+		final List<ExternalCommand> commands = new ArrayList<ExternalCommand>();
+		for (int i = 0; i < 100; i ++) {
+			final ExternalCommand cmd = ExternalCommand.parse("echo", "hello" + i);
+			cmd.setStreamPoller(poller);
+			commands.add(cmd);
+		}
+		final CommandBatch batch = new CommandBatch(commands);
+		batch.setMaxParallelism(32);
+		final List<Entry> entries = batch.execute();
+		for (final Entry entry : entries) {
+			final Result res = entry.getResult();
+			try {
+				final String stdout = Charset.defaultCharset().decode(res.getStdoutBuffer()).toString();
+				assertThat(stdout, is("hello" + entry.getIndex() + "\n"));
+			} finally {
+				res.close();
+			}
+		}
+		assertThat(poller.getRegistrationCount(), is(0));
+	}
+
+	@Test
+	public void executeTest03() {
+		// タイムアウトは共有のタイマーで監視される
+		final ExternalCommand cmd = ExternalCommand.parse("sleep", "5");
+		cmd.setStreamPoller(new StreamPoller(1));
+		final long start = System.currentTimeMillis();
+		final Result res = cmd.execute(300);
+		res.close();
+		assertTrue(System.currentTimeMillis() - start < 3000);
+		assertThat(res.getExitCode(), not(0));
+	}
+}
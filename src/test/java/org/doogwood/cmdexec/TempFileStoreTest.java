@@ -0,0 +1,46 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class TempFileStoreTest {
+
+	@Test
+	public void reserveTest00() throws IOException {
+		final TempFileStore store = new TempFileStore(null, 10);
+		store.reserve(4);
+		store.reserve(6);
+		assertThat(store.getUsedBytes(), is(10L));
+		try {
+			store.reserve(1);
+			fail();
+		} catch (final SpillQuotaExceededException e) {
+			// Ok.
+		}
+		store.release(6);
+		store.reserve(1);
+		assertThat(store.getUsedBytes(), is(5L));
+	}
+
+	@Test
+	public void constructorTest00() {
+		try {
+			new TempFileStore(new File("no_such_directory"), 10);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			new TempFileStore(null, -1);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+}
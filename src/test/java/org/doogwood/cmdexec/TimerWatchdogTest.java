@@ -0,0 +1,168 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.doogwood.cmdexec.ExternalCommand.Result;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWatchdogTest {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	@Before
+	public void before() {
+		assumeThat(SystemUtils.IS_OS_LINUX, is(true));
+		assumeThat(ProcessTree.isSupported(), is(true));
+	}
+
+	/**
+	 * 標準出力に出力されたPIDを読み取る.
+	 */
+	private static List<Long> pids(final Result res) {
+		final List<Long> pids = new ArrayList<Long>();
+		for (final String line : res.getStdoutLines(UTF_8)) {
+			pids.add(Long.parseLong(line.trim()));
+		}
+		return pids;
+	}
+
+	/**
+	 * プロセスが動作しているかどうかを判定する（ゾンビは動作していないものとみなす）.
+	 */
+	private static boolean isAlive(final long pid) {
+		return ProcessTree.snapshot(pid).isAlive();
+	}
+
+	private static void awaitDeath(final List<Long> pids) throws InterruptedException {
+		for (int i = 0; i < 100; i ++) {
+			boolean alive = false;
+			for (final long pid : pids) {
+				alive |= isAlive(pid);
+			}
+			if (!alive) {
+				return;
+			}
+			Thread.sleep(20);
+		}
+	}
+
+	@Test
+	public void killTest00() throws Exception {
+		// タイムアウトで子孫のプロセスも終了させる
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		final long start = System.currentTimeMillis();
+		final Result res = CommandTemplate.of(cmd).execute(500,
+				"sleep 30 & echo $!; sleep 30 & echo $!; wait");
+		final long elapsed = System.currentTimeMillis() - start;
+		assertThat(elapsed < 5000, is(true));
+		final List<Long> pids = pids(res);
+		assertThat(pids.size(), is(2));
+		awaitDeath(pids);
+		for (final long pid : pids) {
+			assertThat(isAlive(pid), is(false));
+		}
+		res.close();
+	}
+
+	@Test
+	public void killTest01() throws Exception {
+		// SIGTERMを無視するプロセスは猶予時間の後にSIGKILLで終了させる
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setKillGracePeriodMillis(200);
+		final long start = System.currentTimeMillis();
+		final Result res = CommandTemplate.of(cmd).execute(300,
+				"trap '' TERM; sleep 30 & echo $!; wait; wait");
+		final long elapsed = System.currentTimeMillis() - start;
+		assertThat(elapsed < 5000, is(true));
+		final List<Long> pids = pids(res);
+		assertThat(pids.size(), is(1));
+		awaitDeath(pids);
+		assertThat(isAlive(pids.get(0)), is(false));
+		res.close();
+	}
+
+	@Test
+	public void killTest02() throws Exception {
+		// 起動したプロセスには猶予時間を待たずにSIGTERMを送る
+		// Process#destroy()は標準出力をクローズするため、SIGTERMを受け取ったことはファイルに記録する
+		final File marker = File.createTempFile("cmdexec", ".txt");
+		assertTrue(marker.delete());
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setKillGracePeriodMillis(10000);
+		final long start = System.currentTimeMillis();
+		final Result res = CommandTemplate.of(cmd).execute(300, "trap 'echo trapped > "
+				+ marker.getAbsolutePath() + "; exit 3' TERM; while true; do sleep 0.1; done");
+		final long elapsed = System.currentTimeMillis() - start;
+		try {
+			assertThat(elapsed < 3000, is(true));
+			assertThat(res.getExitCode(), is(3));
+			assertThat(marker.exists(), is(true));
+		} finally {
+			res.close();
+			marker.delete();
+		}
+	}
+
+	@Test
+	public void abandonTest00() throws Exception {
+		// コマンドの終了後に出力のパイプを開いたままのプロセスが残っても、期限を過ぎれば実行を完了する
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setKillGracePeriodMillis(100);
+		final long start = System.currentTimeMillis();
+		final Result res = CommandTemplate.of(cmd).execute(300, "sleep 30 & echo $!");
+		final long elapsed = System.currentTimeMillis() - start;
+		final List<Long> pids = pids(res);
+		res.close();
+		try {
+			assertThat(res.getExitCode(), is(0));
+			assertThat(elapsed < 5000, is(true));
+			assertThat(pids.size(), is(1));
+		} finally {
+			// 親をたどれなくなったプロセスは後始末する
+			for (final long pid : pids) {
+				kill(pid);
+			}
+		}
+	}
+
+	@Test
+	public void abandonTest01() throws Exception {
+		// ポーラーで出力を読み取る場合も、残りの出力の読み取りは期限を過ぎれば打ち切る
+		final ExternalCommand cmd = ExternalCommand.parse("sh -c");
+		cmd.setKillGracePeriodMillis(100);
+		cmd.setStreamPoller(new StreamPoller(1));
+		final long start = System.currentTimeMillis();
+		final Result res = CommandTemplate.of(cmd).execute(300, "sleep 30 & echo $!");
+		final long elapsed = System.currentTimeMillis() - start;
+		final List<Long> pids = pids(res);
+		res.close();
+		try {
+			assertThat(res.getExitCode(), is(0));
+			assertThat(elapsed < 5000, is(true));
+			assertThat(pids.size(), is(1));
+		} finally {
+			// 親をたどれなくなったプロセスは後始末する
+			for (final long pid : pids) {
+				kill(pid);
+			}
+		}
+	}
+
+	private static void kill(final long pid) throws IOException, InterruptedException {
+		if (new File("/proc/" + pid).exists()) {
+			Runtime.getRuntime().exec(new String[] {"kill", "-s", "KILL", String.valueOf(pid)}).waitFor();
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package org.doogwood.cmdexec;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkerPoolTest {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	@Before
+	public void before() {
+		assumeThat(SystemUtils.IS_OS_WINDOWS, is(false));
+	}
+
+	@Test
+	public void constructorTest00() {
+		try {
+			new WorkerPool(null, WorkerFraming.lineDelimited());
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		try {
+			new WorkerPool(ExternalCommand.parse("cat"), null);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		// 標準入出力はリクエストのやりとりに使用するため設定できない
+		final ExternalCommand withInput = ExternalCommand.parse("cat");
+		withInput.setInputSource(InputSource.of("a".getBytes()));
+		try {
+			new WorkerPool(withInput, WorkerFraming.lineDelimited());
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+		final ExternalCommand withRedirect = ExternalCommand.parse("cat");
+		withRedirect.setStdoutRedirect(OutputRedirect.discard());
+		try {
+			new WorkerPool(withRedirect, WorkerFraming.lineDelimited());
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void requestTest00() {
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("cat"), WorkerFraming.lineDelimited());
+		try {
+			for (int i = 0; i < 100; i ++) {
+				assertThat(pool.request("hello" + i, UTF8), is("hello" + i));
+			}
+			// 1つのワーカーを使い回す
+			assertThat(pool.getSpawnCount(), is(1L));
+			assertThat(pool.getIdleWorkerCount(), is(1));
+		} finally {
+			pool.close();
+		}
+		assertThat(pool.getWorkerCount(), is(0));
+	}
+
+	@Test
+	public void requestTest01() {
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("cat"), WorkerFraming.lengthPrefixed());
+		try {
+			final byte[] data = new byte[100000];
+			for (int i = 0; i < data.length; i ++) {
+				data[i] = (byte) i;
+			}
+			assertThat(pool.request(data), is(data));
+			assertThat(pool.request(new byte[0]), is(new byte[0]));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void requestTest02() {
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("cat"),
+				WorkerFraming.sentinel("END\n".getBytes(UTF8)));
+		try {
+			assertThat(pool.request("foo\nbar\nEND\n", UTF8), is("foo\nbar\n"));
+			assertThat(pool.request("baz\nEND\n", UTF8), is("baz\n"));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void requestTest03() {
+		// 上限数のリクエストを処理したワーカーは起動し直される
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("cat"), WorkerFraming.lineDelimited());
+		pool.setMaxRequestsPerWorker(3);
+		try {
+			for (int i = 0; i < 10; i ++) {
+				assertThat(pool.request("hello", UTF8), is("hello"));
+			}
+			assertThat(pool.getSpawnCount(), is(4L));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void requestTest04() {
+		// 予期せず終了したワーカーは透過的に起動し直される
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("head", "-n", "1"), WorkerFraming.lineDelimited());
+		try {
+			for (int i = 0; i < 5; i ++) {
+				assertThat(pool.request("hello" + i, UTF8), is("hello" + i));
+			}
+			assertTrue(pool.getSpawnCount() >= 5);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void requestTest05() {
+		// レスポンスを返さないワーカーはタイムアウトで強制終了される
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("sleep", "5"), WorkerFraming.lineDelimited());
+		pool.setRequestTimeoutMillis(300);
+		final long start = System.currentTimeMillis();
+		try {
+			pool.request("hello", UTF8);
+			fail();
+		} catch (final RuntimeException e) {
+			assertThat(e.getCause(), instanceOf(TimeoutException.class));
+		} finally {
+			pool.close();
+		}
+		assertTrue(System.currentTimeMillis() - start < 3000);
+		assertThat(pool.getWorkerCount(), is(0));
+	}
+
+	@Test
+	public void requestTest06() throws Exception {
+		// ワーカーの数は上限を超えない
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("cat"), WorkerFraming.lineDelimited());
+		pool.setMaxWorkers(2);
+		final ExecutorService service = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 200; i ++) {
+				final String req = "hello" + i;
+				futures.add(service.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						return pool.request(req, UTF8);
+					}
+				}));
+			}
+			for (int i = 0; i < 200; i ++) {
+				assertThat(futures.get(i).get(), is("hello" + i));
+			}
+			assertThat(pool.getSpawnCount(), is(2L));
+		} finally {
+			service.shutdown();
+			pool.close();
+		}
+	}
+
+	@Test
+	public void requestTest07() {
+		// ヘルスチェックに応答しないワーカーは破棄される
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("head", "-n", "1"), WorkerFraming.lineDelimited());
+		pool.setHealthCheck("ping".getBytes(UTF8), 0);
+		try {
+			assertThat(pool.request("hello", UTF8), is("hello"));
+			assertThat(pool.request("hello", UTF8), is("hello"));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void closeTest00() {
+		final WorkerPool pool = new WorkerPool(ExternalCommand.parse("cat"), WorkerFraming.lineDelimited());
+		pool.close();
+		try {
+			pool.request("hello", UTF8);
+			fail();
+		} catch (final IllegalStateException e) {
+			// Ok.
+		}
+	}
+
+	@Test
+	public void requestTest08() {
+		// 組み立て済みの環境変数でワーカーが起動される
+		final CommandTemplate template = CommandTemplate.parse("/bin/sh -c");
+		final Map<String, String> env = new HashMap<String, String>();
+		env.put("CMDEXEC_TEST", "value-");
+		template.setEnvironment(env);
+		final WorkerPool pool = new WorkerPool(template.bind("while read l; do echo \"$CMDEXEC_TEST$l\"; done"),
+				WorkerFraming.lineDelimited());
+		try {
+			assertThat(pool.request("a", UTF8), is("value-a"));
+		} finally {
+			pool.close();
+		}
+	}
+}